@@ -1,89 +1,54 @@
 package com.microsoft.sample.custom;
 
-import android.util.Log;
-
 import androidx.annotation.NonNull;
 
+import com.microsoft.snippet.CompositeExecutionPath;
 import com.microsoft.snippet.ExecutionContext;
-import com.microsoft.snippet.Snippet;
-import com.microsoft.snippet.token.ExtendableLogToken;
-import com.microsoft.snippet.token.ILogToken;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.MeasurementBatch;
+import com.microsoft.snippet.MeasurementSink;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 
 /**
- * Demo for showing custom implementation of Execution Path. This path, takes the data that is
- * captured from the MeasuredExecutionPath and passes it to FileExecutionPath and then the data
- * is written to the file.
+ * Demo for showing custom implementation of Execution Path. This path measures like the
+ * MeasuredExecutionPath, prints the measurements to logcat and writes them to a file.
  * <p>
- * We need to override LogToken also, as for the code that is non contiguous all the measurements
- * are inside the log token that is handed over to the user by Snippet.startCapture() API
- * So if we want that our new execution to work for both kinds of APIs that ie.
- * The one passed through a lambda in Snippet.capture(lambda) and Snippet.startCapture()/LogToken.endCapture()
- * We need to override both the classes.
+ * There is no need to override capture() or to wrap the log tokens: CompositeExecutionPath measures
+ * once, for both the Snippet.capture(lambda) and the Snippet.startCapture()/LogToken.endCapture() APIs,
+ * and hands every measurement to each of its consumers on their own background thread. Call
+ * Snippet.setLogcatEnabled(false) so that the measurements are not printed twice.
  */
+public class FileExecutionPath extends CompositeExecutionPath {
 
-public class FileExecutionPath extends Snippet.MeasuredExecutionPath {
-
-    @Override
-    public ILogToken startCapture(String tag) {
-        return super.startCapture(tag);
-    }
-
-    @NonNull
-    @Override
-    public ExecutionContext capture(String message, Snippet.Closure closure) {
-        ExecutionContext context = super.capture(message, closure);
-        Log.d("Snippet", "Class: " + context.getClassName() + "Duration: " + context.getExecutionDuration());
-        // Context has all the information that measured path has captured. Use that to write to files.
-        return writeToFile(context);
+    public FileExecutionPath(@NonNull File file) {
+        super(CompositeExecutionPath.logcat(), new FileWritingSink(file));
     }
 
-    private ExecutionContext writeToFile(ExecutionContext context) {
-        // Code to write to a file goes here, create a thread and write.
-        // Finally return a the execution context(could be the same or a new implementation) with some
-        // of the details that you captured.
-
-        // NOTE: always put the relevant information on the context before you start doing IO
-        // so that the execution path could return successfully.
-        return context;
-    }
-
-    @NonNull
-    @Override
-    public ExecutionContext capture(Snippet.Closure closure) {
-        return super.capture(closure);
-    }
+    private static class FileWritingSink implements MeasurementSink {
+        private final File mFile;
 
-    // We need to return a log token implementation that writes to a file when we call endCapture()
-    // APIs.
-    // USE ExtendableLogToken for the above purpose
-    @Override
-    public ILogToken startCapture() {
-        return new ExtendableLogToken(super.startCapture());
-    }
-
-    @Override
-    public ILogToken find(String tag) {
-        return super.find(tag);
-    }
-
-    public class FileWritingLogToken extends ExtendableLogToken {
-
-        public FileWritingLogToken(ILogToken logToken) {
-            super(logToken);
-        }
-
-        @Override
-        public ExecutionContext endCapture(String message) {
-           ExecutionContext context = super.endCapture(message);
-           writeToFile(context);
-           return context;
+        FileWritingSink(File file) {
+            this.mFile = file;
         }
 
         @Override
-        public ExecutionContext endCapture() {
-            ExecutionContext context = super.endCapture();
-            writeToFile(context);
-            return context;
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            // Runs on the lane thread of this consumer, IO does not slow the measured code down.
+            try (Writer writer = new FileWriter(mFile, true)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Measurement measurement = batch.get(i);
+                    ExecutionContext context = measurement.getExecutionContext();
+                    writer.write((context != null ? context.getClassName() : "") + " "
+                            + measurement.getMessage() + " "
+                            + measurement.getDurationNanos() + " ns\n");
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
     }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.plugin;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites the calls to Snippet APIs that need the caller's call site to the overloads accepting a
+ * <code>CallSite</code>. Arguments of the original call are already on the operand stack, the
+ * visitor loads the call site from a synthetic static field of the class and calls the overload
+ * that takes it as the last parameter, so an instrumented capture costs one field load and
+ * allocates nothing.
+ * <p>
+ * There is one field per distinct method and line. The fields are set at the start of the static
+ * initializer, which is created if the class has none, with <code>CallSite.of(String, String, int)</code>
+ * on the class, method and line constants. The static initializer is buffered until the end of the
+ * class because the call sites are only known once every method was visited. Setting the fields
+ * there needs no branch, so the existing stack map frames stay valid.
+ * <ol>
+ *     <li>Snippet.capture(Closure) to Snippet.capture(Closure, CallSite)</li>
+ *     <li>Snippet.capture(String, Closure) to Snippet.capture(String, Closure, CallSite)</li>
+ *     <li>ILogToken.endCapture() to ILogToken.endCapture(CallSite)</li>
+ *     <li>ILogToken.endCapture(String) to ILogToken.endCapture(String, CallSite)</li>
+ * </ol>
+ * Snippet.startCapture() is left alone, the token resolves its call site in endCapture() only.
+ */
+class CallSiteClassVisitor extends ClassVisitor {
+    private static final String SNIPPET = "com/microsoft/snippet/Snippet";
+    private static final String LOG_TOKEN = "com/microsoft/snippet/Snippet$LogToken";
+    private static final String I_LOG_TOKEN = "com/microsoft/snippet/token/ILogToken";
+    private static final String EXTENDABLE_LOG_TOKEN = "com/microsoft/snippet/token/ExtendableLogToken";
+    private static final String CALL_SITE = "com/microsoft/snippet/CallSite";
+
+    private static final String CLOSURE_DESC = "Lcom/microsoft/snippet/Snippet$Closure;";
+    private static final String STRING_DESC = "Ljava/lang/String;";
+    private static final String CALL_SITE_DESC = "L" + CALL_SITE + ";";
+    private static final String EXECUTION_CONTEXT_DESC = "Lcom/microsoft/snippet/ExecutionContext;";
+
+    private static final String CAPTURE = "capture";
+    private static final String END_CAPTURE = "endCapture";
+    private static final String CALL_SITE_OF = "of";
+    private static final String CALL_SITE_OF_DESC = "(" + STRING_DESC + STRING_DESC + "I)" + CALL_SITE_DESC;
+    private static final String CALL_SITE_FIELD = "snippet$callSite";
+    private static final String CLASS_INIT = "<clinit>";
+
+    private String mInternalName;
+    private String mClassName;
+    private boolean mInterface;
+    private boolean mModified;
+
+    // Method and line of every call site field, the index in the list is the suffix of the field.
+    private final List<String> mCallSiteMethods = new ArrayList<>();
+    private final List<Integer> mCallSiteLines = new ArrayList<>();
+    private final Map<String, Integer> mCallSiteFields = new HashMap<>();
+
+    // Static initializer of the class, buffered until visitEnd(). Null if the class has none.
+    private MethodNode mClassInit;
+
+    CallSiteClassVisitor(ClassVisitor classVisitor) {
+        super(Opcodes.ASM9, classVisitor);
+    }
+
+    boolean isModified() {
+        return mModified;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        mInternalName = name;
+        mClassName = name.replace('/', '.');
+        mInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if (CLASS_INIT.equals(name)) {
+            mClassInit = new MethodNode(Opcodes.ASM9, access, name, descriptor, signature, exceptions);
+            return new CallSiteMethodVisitor(mClassInit, name);
+        }
+        MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+        return new CallSiteMethodVisitor(methodVisitor, name);
+    }
+
+    @Override
+    public void visitEnd() {
+        MethodNode classInit = mClassInit;
+        if (!mCallSiteMethods.isEmpty()) {
+            // Fields of an interface have to be public, they are static final either way.
+            int access = Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC
+                    | (mInterface ? Opcodes.ACC_PUBLIC : Opcodes.ACC_PRIVATE);
+            for (int index = 0; index < mCallSiteMethods.size(); index++) {
+                super.visitField(access, CALL_SITE_FIELD + index, CALL_SITE_DESC, null, null).visitEnd();
+            }
+            if (classInit == null) {
+                classInit = new MethodNode(Opcodes.ASM9, Opcodes.ACC_STATIC, CLASS_INIT, "()V", null, null);
+                classInit.instructions.add(new InsnNode(Opcodes.RETURN));
+            }
+            classInit.instructions.insert(callSiteInitializers());
+        }
+        if (classInit != null) {
+            classInit.accept(cv);
+        }
+        super.visitEnd();
+    }
+
+    /**
+     * Sets every call site field, leaves the operand stack empty and does not touch the locals.
+     */
+    private InsnList callSiteInitializers() {
+        InsnList instructions = new InsnList();
+        for (int index = 0; index < mCallSiteMethods.size(); index++) {
+            instructions.add(new LdcInsnNode(mClassName));
+            instructions.add(new LdcInsnNode(mCallSiteMethods.get(index)));
+            instructions.add(new LdcInsnNode(mCallSiteLines.get(index)));
+            instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CALL_SITE, CALL_SITE_OF, CALL_SITE_OF_DESC, false));
+            instructions.add(new FieldInsnNode(Opcodes.PUTSTATIC, mInternalName, CALL_SITE_FIELD + index, CALL_SITE_DESC));
+        }
+        return instructions;
+    }
+
+    /**
+     * Returns the name of the field holding the call site of the line, calls on the same line of a
+     * method share it.
+     */
+    private String callSiteField(String methodName, int line) {
+        String key = methodName + ':' + line;
+        Integer index = mCallSiteFields.get(key);
+        if (index == null) {
+            index = mCallSiteMethods.size();
+            mCallSiteMethods.add(methodName);
+            mCallSiteLines.add(line);
+            mCallSiteFields.put(key, index);
+        }
+        return CALL_SITE_FIELD + index;
+    }
+
+    /**
+     * Returns the descriptor of the overload accepting the call site, null if the call does not
+     * need rewriting.
+     */
+    private static String rewrittenDescriptor(int opcode, String owner, String name, String descriptor) {
+        if (opcode == Opcodes.INVOKESTATIC && SNIPPET.equals(owner) && CAPTURE.equals(name)) {
+            if (descriptor.equals("(" + CLOSURE_DESC + ")V")
+                    || descriptor.equals("(" + STRING_DESC + CLOSURE_DESC + ")V")) {
+                return appendCallSite(descriptor);
+            }
+            return null;
+        }
+        boolean isTokenCall = opcode == Opcodes.INVOKEINTERFACE && I_LOG_TOKEN.equals(owner)
+                || opcode == Opcodes.INVOKEVIRTUAL && (LOG_TOKEN.equals(owner) || EXTENDABLE_LOG_TOKEN.equals(owner));
+        if (isTokenCall && END_CAPTURE.equals(name)) {
+            if (descriptor.equals("()" + EXECUTION_CONTEXT_DESC)
+                    || descriptor.equals("(" + STRING_DESC + ")" + EXECUTION_CONTEXT_DESC)) {
+                return appendCallSite(descriptor);
+            }
+        }
+        return null;
+    }
+
+    private static String appendCallSite(String descriptor) {
+        int end = descriptor.indexOf(')');
+        return descriptor.substring(0, end) + CALL_SITE_DESC + descriptor.substring(end);
+    }
+
+    private class CallSiteMethodVisitor extends MethodVisitor {
+        private final String mMethodName;
+        private int mLine = -1;
+
+        CallSiteMethodVisitor(MethodVisitor methodVisitor, String methodName) {
+            super(Opcodes.ASM9, methodVisitor);
+            this.mMethodName = methodName;
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            mLine = line;
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            String newDescriptor = rewrittenDescriptor(opcode, owner, name, descriptor);
+            if (newDescriptor == null) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                return;
+            }
+            super.visitFieldInsn(Opcodes.GETSTATIC, mInternalName, callSiteField(mMethodName, mLine), CALL_SITE_DESC);
+            super.visitMethodInsn(opcode, owner, name, newDescriptor, isInterface);
+            mModified = true;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.plugin;
+
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.Format;
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Transform;
+import com.android.build.api.transform.TransformException;
+import com.android.build.api.transform.TransformInput;
+import com.android.build.api.transform.TransformInvocation;
+import com.android.build.api.transform.TransformOutputProvider;
+import com.android.build.gradle.internal.pipeline.TransformManager;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Transform that runs {@link CallSiteClassVisitor} over every class of the module (and its
+ * dependencies for application modules). Snippet's own classes are copied as they are.
+ */
+class CallSiteTransform extends Transform {
+    private static final String SNIPPET_PACKAGE = "com/microsoft/snippet/";
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final SnippetPluginExtension mExtension;
+    private final boolean mIsLibrary;
+
+    CallSiteTransform(SnippetPluginExtension extension, boolean isLibrary) {
+        this.mExtension = extension;
+        this.mIsLibrary = isLibrary;
+    }
+
+    @Override
+    public String getName() {
+        return "snippetCallSites";
+    }
+
+    @Override
+    public Set<QualifiedContent.ContentType> getInputTypes() {
+        return TransformManager.CONTENT_CLASS;
+    }
+
+    @Override
+    public Set<? super QualifiedContent.Scope> getScopes() {
+        // Libraries can only transform their own classes.
+        return mIsLibrary ? TransformManager.PROJECT_ONLY : TransformManager.SCOPE_FULL_PROJECT;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return false;
+    }
+
+    @Override
+    public void transform(TransformInvocation invocation) throws TransformException, InterruptedException, IOException {
+        TransformOutputProvider outputProvider = invocation.getOutputProvider();
+        outputProvider.deleteAll();
+        boolean inject = mExtension.getInjectCallSites();
+        for (TransformInput input : invocation.getInputs()) {
+            for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                File outputDir = outputProvider.getContentLocation(directoryInput.getName(),
+                        directoryInput.getContentTypes(), directoryInput.getScopes(), Format.DIRECTORY);
+                transformDirectory(directoryInput.getFile().toPath(), outputDir.toPath(), inject);
+            }
+            for (JarInput jarInput : input.getJarInputs()) {
+                File outputJar = outputProvider.getContentLocation(jarInput.getName(),
+                        jarInput.getContentTypes(), jarInput.getScopes(), Format.JAR);
+                transformJar(jarInput.getFile(), outputJar, inject);
+            }
+        }
+    }
+
+    private static void transformDirectory(Path inputDir, Path outputDir, boolean inject) throws IOException {
+        try (Stream<Path> paths = Files.walk(inputDir)) {
+            for (Path input : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String relativePath = inputDir.relativize(input).toString().replace(File.separatorChar, '/');
+                Path output = outputDir.resolve(inputDir.relativize(input).toString());
+                Files.createDirectories(output.getParent());
+                byte[] bytes = Files.readAllBytes(input);
+                Files.write(output, inject ? transformEntry(relativePath, bytes) : bytes);
+            }
+        }
+    }
+
+    private static void transformJar(File inputJar, File outputJar, boolean inject) throws IOException {
+        Files.createDirectories(outputJar.getParentFile().toPath());
+        try (ZipFile zipFile = new ZipFile(inputJar);
+             ZipOutputStream outputStream = new ZipOutputStream(Files.newOutputStream(outputJar.toPath()))) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                byte[] bytes;
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    bytes = readFully(inputStream);
+                }
+                outputStream.putNextEntry(new ZipEntry(entry.getName()));
+                outputStream.write(inject ? transformEntry(entry.getName(), bytes) : bytes);
+                outputStream.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] transformEntry(String path, byte[] bytes) {
+        if (!path.endsWith(CLASS_SUFFIX) || path.startsWith(SNIPPET_PACKAGE)) {
+            return bytes;
+        }
+        ClassReader reader = new ClassReader(bytes);
+        // Only the max stack changes, no new branches so the frames stay valid.
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        CallSiteClassVisitor visitor = new CallSiteClassVisitor(writer);
+        reader.accept(visitor, 0);
+        return visitor.isModified() ? writer.toByteArray() : bytes;
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = inputStream.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+}
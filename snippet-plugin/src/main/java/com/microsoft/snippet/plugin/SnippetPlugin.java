@@ -0,0 +1,46 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.plugin;
+
+import com.android.build.gradle.BaseExtension;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+
+/**
+ * Gradle plugin that injects the call site of Snippet APIs at build time.
+ * Apply it to an android application or library module after the android plugin:
+ * <pre>
+ * {@code
+ *     apply plugin: 'com.android.application'
+ *     apply plugin: 'com.microsoft.snippet'
+ *
+ *     snippet {
+ *         injectCallSites = true
+ *     }
+ * }
+ * </pre>
+ * Calls to <code>Snippet.capture(...)</code> and <code>ILogToken.endCapture(...)</code> in the
+ * module are rewritten to overloads that receive the class, method and line as constants, so
+ * Snippet does not need to analyse the stack at runtime.
+ */
+public class SnippetPlugin implements Plugin<Project> {
+    static final String EXTENSION_NAME = "snippet";
+
+    @Override
+    public void apply(Project project) {
+        SnippetPluginExtension extension = project.getExtensions()
+                .create(EXTENSION_NAME, SnippetPluginExtension.class);
+        project.getPlugins().withId("com.android.application",
+                plugin -> registerTransform(project, extension, false));
+        project.getPlugins().withId("com.android.library",
+                plugin -> registerTransform(project, extension, true));
+    }
+
+    private static void registerTransform(Project project, SnippetPluginExtension extension, boolean isLibrary) {
+        BaseExtension android = project.getExtensions().getByType(BaseExtension.class);
+        android.registerTransform(new CallSiteTransform(extension, isLibrary));
+    }
+}
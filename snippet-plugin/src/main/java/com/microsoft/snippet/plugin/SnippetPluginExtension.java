@@ -0,0 +1,26 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.plugin;
+
+/**
+ * Configuration of the snippet gradle plugin, available as the <code>snippet {}</code> block.
+ */
+public class SnippetPluginExtension {
+    private boolean mInjectCallSites = true;
+
+    public boolean getInjectCallSites() {
+        return mInjectCallSites;
+    }
+
+    /**
+     * Turns the call site injection on/off. When off, classes are copied untouched and Snippet falls
+     * back to the stack analysis at runtime.
+     *
+     * @param inject true to rewrite the calls.
+     */
+    public void setInjectCallSites(boolean inject) {
+        this.mInjectCallSites = inject;
+    }
+}
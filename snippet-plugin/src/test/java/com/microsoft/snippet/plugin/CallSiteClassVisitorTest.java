@@ -0,0 +1,335 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.plugin;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rewrite of the Snippet calls by {@link CallSiteClassVisitor}, on classes generated with ASM so that
+ * the test does not need the library on its class path.
+ */
+public class CallSiteClassVisitorTest {
+    private static final String CLASS_NAME = "com/example/Feed";
+    private static final String SNIPPET = "com/microsoft/snippet/Snippet";
+    private static final String I_LOG_TOKEN = "com/microsoft/snippet/token/ILogToken";
+    private static final String EXTENDABLE_LOG_TOKEN = "com/microsoft/snippet/token/ExtendableLogToken";
+    private static final String CLOSURE = "Lcom/microsoft/snippet/Snippet$Closure;";
+    private static final String STRING = "Ljava/lang/String;";
+    private static final String CALL_SITE = "Lcom/microsoft/snippet/CallSite;";
+    private static final String CONTEXT = "Lcom/microsoft/snippet/ExecutionContext;";
+    private static final String CALL_SITE_OF = "INVOKESTATIC com/microsoft/snippet/CallSite.of"
+            + "(" + STRING + STRING + "I)" + CALL_SITE;
+    private static final int CALL_SITE_FIELD_ACCESS = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC
+            | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC;
+
+    /**
+     * Instructions of a method body, as written by {@link #generate(int, Call...)}.
+     */
+    private static final class Call {
+        final int mOpcode;
+        final String mOwner;
+        final String mName;
+        final String mDescriptor;
+        final int mArguments;
+        final boolean mReturns;
+
+        Call(int opcode, String owner, String name, String descriptor, int arguments, boolean returns) {
+            this.mOpcode = opcode;
+            this.mOwner = owner;
+            this.mName = name;
+            this.mDescriptor = descriptor;
+            this.mArguments = arguments;
+            this.mReturns = returns;
+        }
+    }
+
+    private static final Call CAPTURE = new Call(Opcodes.INVOKESTATIC, SNIPPET, "capture",
+            "(" + CLOSURE + ")V", 1, false);
+    private static final Call CAPTURE_WITH_FILTER = new Call(Opcodes.INVOKESTATIC, SNIPPET, "capture",
+            "(" + STRING + CLOSURE + ")V", 2, false);
+    private static final Call END_CAPTURE = new Call(Opcodes.INVOKEINTERFACE, I_LOG_TOKEN, "endCapture",
+            "()" + CONTEXT, 1, true);
+    private static final Call END_CAPTURE_WITH_MESSAGE = new Call(Opcodes.INVOKEINTERFACE, I_LOG_TOKEN, "endCapture",
+            "(" + STRING + ")" + CONTEXT, 2, true);
+    private static final Call EXTENDABLE_END_CAPTURE = new Call(Opcodes.INVOKEVIRTUAL, EXTENDABLE_LOG_TOKEN,
+            "endCapture", "()" + CONTEXT, 1, true);
+    private static final Call START_CAPTURE = new Call(Opcodes.INVOKESTATIC, SNIPPET, "startCapture",
+            "()L" + I_LOG_TOKEN + ";", 0, true);
+    private static final Call CAPTURE_WITH_CALL_SITE = new Call(Opcodes.INVOKESTATIC, SNIPPET, "capture",
+            "(" + CLOSURE + CALL_SITE + ")V", 2, false);
+    private static final Call OTHER_CAPTURE = new Call(Opcodes.INVOKESTATIC, "com/example/Other", "capture",
+            "(" + CLOSURE + ")V", 1, false);
+
+    /**
+     * Class with a method <code>load()</code> that makes the given calls on the given line, every
+     * argument is null.
+     */
+    private static byte[] generate(int line, Call... calls) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, CLASS_NAME, null, "java/lang/Object", null);
+        generateMethod(writer, "load", line, calls);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void generateMethod(ClassWriter writer, String name, int line, Call... calls) {
+        MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, "()V", null, null);
+        method.visitCode();
+        Label start = new Label();
+        method.visitLabel(start);
+        method.visitLineNumber(line, start);
+        for (Call call : calls) {
+            for (int i = 0; i < call.mArguments; i++) {
+                method.visitInsn(Opcodes.ACONST_NULL);
+            }
+            method.visitMethodInsn(call.mOpcode, call.mOwner, call.mName, call.mDescriptor,
+                    call.mOpcode == Opcodes.INVOKEINTERFACE);
+            if (call.mReturns) {
+                method.visitInsn(Opcodes.POP);
+            }
+        }
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    private static final class Result {
+        final boolean mModified;
+        final byte[] mBytes;
+        final Map<String, Integer> mFields;
+        final Map<String, List<String>> mMethods;
+
+        Result(boolean modified, byte[] bytes, Map<String, Integer> fields, Map<String, List<String>> methods) {
+            this.mModified = modified;
+            this.mBytes = bytes;
+            this.mFields = fields;
+            this.mMethods = methods;
+        }
+
+        List<String> instructions(String method) {
+            List<String> instructions = mMethods.get(method);
+            return instructions != null ? instructions : Collections.<String>emptyList();
+        }
+    }
+
+    /**
+     * Runs the visitor the way {@link CallSiteTransform} does and lists the fields, and the
+     * constants, field accesses and calls of every method in the rewritten class.
+     */
+    private static Result rewrite(byte[] bytes) {
+        ClassReader reader = new ClassReader(bytes);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        CallSiteClassVisitor visitor = new CallSiteClassVisitor(writer);
+        reader.accept(visitor, 0);
+        byte[] rewritten = writer.toByteArray();
+
+        final Map<String, Integer> fields = new LinkedHashMap<>();
+        final Map<String, List<String>> methods = new LinkedHashMap<>();
+        new ClassReader(rewritten).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                fields.put(name + ":" + descriptor, access);
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                final List<String> instructions = new ArrayList<>();
+                methods.put(name, instructions);
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        instructions.add("LDC " + value);
+                    }
+
+                    @Override
+                    public void visitIntInsn(int opcode, int operand) {
+                        instructions.add("LDC " + operand);
+                    }
+
+                    @Override
+                    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                        instructions.add(opcodeName(opcode) + " " + owner + "." + name + ":" + descriptor);
+                    }
+
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                        instructions.add(opcodeName(opcode) + " " + owner + "." + name + descriptor);
+                    }
+
+                    @Override
+                    public void visitInsn(int opcode) {
+                        if (opcode == Opcodes.RETURN) {
+                            instructions.add("RETURN");
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return new Result(visitor.isModified(), rewritten, fields, methods);
+    }
+
+    private static String opcodeName(int opcode) {
+        switch (opcode) {
+            case Opcodes.INVOKESTATIC:
+                return "INVOKESTATIC";
+            case Opcodes.INVOKEINTERFACE:
+                return "INVOKEINTERFACE";
+            case Opcodes.INVOKEVIRTUAL:
+                return "INVOKEVIRTUAL";
+            case Opcodes.GETSTATIC:
+                return "GETSTATIC";
+            case Opcodes.PUTSTATIC:
+                return "PUTSTATIC";
+            default:
+                return String.valueOf(opcode);
+        }
+    }
+
+    private static String callSiteField(int index) {
+        return CLASS_NAME + ".snippet$callSite" + index + ":" + CALL_SITE;
+    }
+
+    private static List<String> withCallSite(int index, String call) {
+        return Arrays.asList("GETSTATIC " + callSiteField(index), call);
+    }
+
+    private static List<String> callSiteInitializer(int index, String method, int line) {
+        return Arrays.asList("LDC com.example.Feed", "LDC " + method, "LDC " + line, CALL_SITE_OF,
+                "PUTSTATIC " + callSiteField(index));
+    }
+
+    @Test
+    public void captureCallsGetTheCallSiteOverload() {
+        Result result = rewrite(generate(42, CAPTURE, CAPTURE_WITH_FILTER));
+        assertTrue(result.mModified);
+        List<String> expected = new ArrayList<>();
+        // Both calls are on the same line of the same method, they share the field.
+        expected.addAll(withCallSite(0, "INVOKESTATIC " + SNIPPET + ".capture(" + CLOSURE + CALL_SITE + ")V"));
+        expected.addAll(withCallSite(0, "INVOKESTATIC " + SNIPPET + ".capture(" + STRING + CLOSURE + CALL_SITE + ")V"));
+        expected.add("RETURN");
+        assertEquals(expected, result.instructions("load"));
+    }
+
+    @Test
+    public void endCaptureCallsGetTheCallSiteOverload() {
+        Result result = rewrite(generate(7, END_CAPTURE, END_CAPTURE_WITH_MESSAGE, EXTENDABLE_END_CAPTURE));
+        assertTrue(result.mModified);
+        List<String> expected = new ArrayList<>();
+        expected.addAll(withCallSite(0, "INVOKEINTERFACE " + I_LOG_TOKEN + ".endCapture(" + CALL_SITE + ")" + CONTEXT));
+        expected.addAll(withCallSite(0, "INVOKEINTERFACE " + I_LOG_TOKEN + ".endCapture(" + STRING + CALL_SITE + ")" + CONTEXT));
+        expected.addAll(withCallSite(0, "INVOKEVIRTUAL " + EXTENDABLE_LOG_TOKEN + ".endCapture(" + CALL_SITE + ")" + CONTEXT));
+        expected.add("RETURN");
+        assertEquals(expected, result.instructions("load"));
+    }
+
+    @Test
+    public void callSitesAreBuiltOnceInANewStaticInitializer() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, CLASS_NAME, null, "java/lang/Object", null);
+        generateMethod(writer, "load", 12, CAPTURE);
+        generateMethod(writer, "save", 30, END_CAPTURE);
+        writer.visitEnd();
+
+        Result result = rewrite(writer.toByteArray());
+        Map<String, Integer> expectedFields = new LinkedHashMap<>();
+        expectedFields.put("snippet$callSite0:" + CALL_SITE, CALL_SITE_FIELD_ACCESS);
+        expectedFields.put("snippet$callSite1:" + CALL_SITE, CALL_SITE_FIELD_ACCESS);
+        assertEquals(expectedFields, result.mFields);
+        assertEquals("GETSTATIC " + callSiteField(1), result.instructions("save").get(0));
+
+        List<String> expected = new ArrayList<>();
+        expected.addAll(callSiteInitializer(0, "load", 12));
+        expected.addAll(callSiteInitializer(1, "save", 30));
+        expected.add("RETURN");
+        assertEquals(expected, result.instructions("<clinit>"));
+    }
+
+    @Test
+    public void existingStaticInitializerSetsTheCallSitesFirst() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, CLASS_NAME, null, "java/lang/Object", null);
+        // The static initializer captures itself and calls a method that is visited after it.
+        MethodVisitor classInit = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        classInit.visitCode();
+        Label start = new Label();
+        classInit.visitLabel(start);
+        classInit.visitLineNumber(5, start);
+        classInit.visitInsn(Opcodes.ACONST_NULL);
+        classInit.visitMethodInsn(Opcodes.INVOKESTATIC, SNIPPET, "capture", "(" + CLOSURE + ")V", false);
+        classInit.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NAME, "load", "()V", false);
+        classInit.visitInsn(Opcodes.RETURN);
+        classInit.visitMaxs(0, 0);
+        classInit.visitEnd();
+        generateMethod(writer, "load", 9, CAPTURE);
+        writer.visitEnd();
+
+        Result result = rewrite(writer.toByteArray());
+        List<String> expected = new ArrayList<>();
+        expected.addAll(callSiteInitializer(0, "<clinit>", 5));
+        expected.addAll(callSiteInitializer(1, "load", 9));
+        expected.addAll(withCallSite(0, "INVOKESTATIC " + SNIPPET + ".capture(" + CLOSURE + CALL_SITE + ")V"));
+        expected.add("INVOKESTATIC " + CLASS_NAME + ".load()V");
+        expected.add("RETURN");
+        assertEquals(expected, result.instructions("<clinit>"));
+        assertEquals(2, result.mFields.size());
+    }
+
+    @Test
+    public void interfaceFieldsArePublic() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, CLASS_NAME,
+                null, "java/lang/Object", null);
+        generateMethod(writer, "load", 4, CAPTURE);
+        writer.visitEnd();
+
+        Result result = rewrite(writer.toByteArray());
+        assertEquals(Collections.singletonMap("snippet$callSite0:" + CALL_SITE,
+                Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC), result.mFields);
+    }
+
+    @Test
+    public void otherCallsAreLeftAlone() {
+        Result result = rewrite(generate(3, START_CAPTURE, CAPTURE_WITH_CALL_SITE, OTHER_CAPTURE));
+        assertFalse(result.mModified);
+        assertEquals(Arrays.asList(
+                "INVOKESTATIC " + SNIPPET + ".startCapture()L" + I_LOG_TOKEN + ";",
+                "INVOKESTATIC " + SNIPPET + ".capture(" + CLOSURE + CALL_SITE + ")V",
+                "INVOKESTATIC com/example/Other.capture(" + CLOSURE + ")V",
+                "RETURN"), result.instructions("load"));
+        assertTrue(result.mFields.isEmpty());
+        assertNull(result.mMethods.get("<clinit>"));
+    }
+
+    @Test
+    public void rewrittenClassIsStableOnASecondPass() {
+        Result once = rewrite(generate(11, CAPTURE));
+
+        // A class that was already transformed only has the CallSite overloads, nothing to rewrite.
+        Result twice = rewrite(once.mBytes);
+        assertFalse(twice.mModified);
+        assertEquals(once.mFields, twice.mFields);
+        assertEquals(once.mMethods, twice.mMethods);
+    }
+}
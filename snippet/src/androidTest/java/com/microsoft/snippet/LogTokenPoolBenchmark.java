@@ -0,0 +1,92 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.microsoft.snippet.token.ILogToken;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Contention benchmark for {@link LogTokenPool}. Every thread runs obtain()/recycle() pairs in a
+ * tight loop, the throughput for 1 to 16 threads is printed on the logcat under the tag
+ * LogTokenPoolBenchmark. The test also checks that a token is never handed to two threads at once,
+ * and that no more tokens are created than there are threads. Handles are still allocated per
+ * obtain(), see {@link LogTokenPool}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogTokenPoolBenchmark {
+    private static final String TAG = LogTokenPoolBenchmark.class.getSimpleName();
+    private static final int WARM_UP_ITERATIONS = 20_000;
+    private static final int ITERATIONS = 200_000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    @Test
+    public void obtainAndRecycleScalesWithThreads() throws Exception {
+        runRound(new LogTokenPool(), 4, WARM_UP_ITERATIONS);
+        for (int threads : THREAD_COUNTS) {
+            LogTokenPool pool = new LogTokenPool();
+            long nanos = runRound(pool, threads, ITERATIONS);
+            long operations = (long) threads * ITERATIONS;
+            // A thread holds one token at a time, the pool never has to create more.
+            assertTrue(pool.stats().getMisses() <= threads);
+            Log.i(TAG, "Threads: " + threads
+                    + " | ops: " + operations
+                    + " | tokens created: " + pool.stats().getMisses()
+                    + " | ns/op/thread: " + (nanos * threads / operations)
+                    + " | ops/ms: " + (operations * 1_000_000L / nanos));
+        }
+    }
+
+    private static long runRound(final LogTokenPool pool, int threads, final int iterations) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger sharedTokens = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            ILogToken token = pool.obtain();
+                            // A token that is handed out twice would have its owner overwritten.
+                            long owner = Thread.currentThread().getId();
+                            token.setCreatorThreadId(owner);
+                            if (token.creatorThreadId() != owner) {
+                                sharedTokens.incrementAndGet();
+                            }
+                            pool.recycle(token);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "PoolBenchmark-" + i).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        assertNull(failure.get());
+        assertEquals(0, sharedTokens.get());
+        return elapsed;
+    }
+}
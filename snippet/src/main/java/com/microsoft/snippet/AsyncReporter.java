@@ -0,0 +1,131 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.os.Process;
+
+import androidx.annotation.RestrictTo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the delivery of the measurements to the sinks off the measured thread.
+ * Measured thread only claims a slot in a bounded lock free {@link MeasurementQueue}, writes the
+ * primitive data into it and publishes it. A single background thread drains the queue and
+ * delivers whatever it finds to the sinks in batches. When the queue is full, one measurement is dropped as per the {@link DropPolicy}
+ * and counted, measured thread never waits.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class AsyncReporter extends MeasurementReporter {
+    private static final String THREAD_NAME = "Snippet-Reporter";
+    // Safety net for a missed wake up, the consumer never sleeps longer than this.
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final MeasurementQueue mQueue;
+    private final DropPolicy mDropPolicy;
+    private final AtomicLong mDropped = new AtomicLong();
+    private final MeasurementBatch mBatch;
+    private final Thread mConsumer;
+    private volatile boolean mConsumerParked;
+    private volatile boolean mRunning = true;
+
+    AsyncReporter(SinkRegistry sinks, int capacity, DropPolicy dropPolicy) {
+        super(sinks);
+        this.mQueue = new MeasurementQueue(capacity);
+        this.mBatch = new MeasurementBatch(Math.min(MAX_BATCH_SIZE, mQueue.capacity()));
+        this.mDropPolicy = dropPolicy;
+        this.mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, THREAD_NAME);
+        this.mConsumer.setDaemon(true);
+        this.mConsumer.start();
+    }
+
+    @Override
+    Measurement obtain() {
+        if (mSinks.isEmpty()) {
+            return null;
+        }
+        Measurement slot = mQueue.claimForWrite();
+        if (slot != null) {
+            return slot;
+        }
+        mDropped.incrementAndGet();
+        if (mDropPolicy == DropPolicy.DROP_OLDEST) {
+            // Consume the oldest one on behalf of the reporter thread and take its place.
+            Measurement oldest = mQueue.claimOldestForOverwrite();
+            if (oldest == null) {
+                // Oldest one is still being written, or delivered by the reporter thread. Dropping
+                // another one would not free the slot the next write needs.
+                return null;
+            }
+            mQueue.release(oldest);
+            slot = mQueue.claimForWrite();
+            if (slot == null) {
+                mDropped.incrementAndGet();  // Lost the freed slot to another producer.
+            }
+            return slot;
+        }
+        return null;
+    }
+
+    @Override
+    void submit(Measurement measurement) {
+        mQueue.publish(measurement);
+        if (mConsumerParked) {
+            LockSupport.unpark(mConsumer);
+        }
+    }
+
+    long droppedCount() {
+        return mDropped.get();
+    }
+
+    @Override
+    void shutdown() {
+        mRunning = false;
+        LockSupport.unpark(mConsumer);
+    }
+
+    private void drainLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Measurement measurement;
+            while (!mBatch.isFull() && (measurement = mQueue.claimForRead()) != null) {
+                mBatch.add(measurement);
+            }
+            if (mBatch.size() > 0) {
+                try {
+                    mSinks.dispatch(mBatch);
+                } finally {
+                    for (int i = 0; i < mBatch.size(); i++) {
+                        mQueue.release(mBatch.get(i));
+                    }
+                    mBatch.clear();
+                }
+                continue;
+            }
+            if (!mRunning) {
+                return;
+            }
+            if (!mQueue.isEmpty()) {
+                // A producer has claimed a slot but not published it yet.
+                Thread.yield();
+                continue;
+            }
+            mConsumerParked = true;
+            if (mQueue.isEmpty()) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+            mConsumerParked = false;
+        }
+    }
+}
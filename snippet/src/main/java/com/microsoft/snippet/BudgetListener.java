@@ -0,0 +1,20 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Notified when a capture or a log token takes longer than its latency budget, see
+ * {@link Snippet#setBudgetListener(BudgetListener)}. Called on a background thread of Snippet, one
+ * violation at a time, never on the measured thread.
+ */
+public interface BudgetListener {
+
+    /**
+     * @param violation what went over which budget.
+     */
+    void onOverBudget(@NonNull BudgetViolation violation);
+}
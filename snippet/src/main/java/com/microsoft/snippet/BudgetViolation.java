@@ -0,0 +1,149 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Immutable description of a capture or log token that went over its latency budget, handed to the
+ * {@link BudgetListener}. Unlike a {@link Measurement} it can be kept around.
+ * <p>
+ * The budget that applies is the most specific one: the budget of the tag if the token has one,
+ * otherwise the budget of the call site, otherwise the budget of the thread class.
+ */
+public final class BudgetViolation {
+    /**
+     * The budget was set for the tag of the log token.
+     */
+    public static final int BUDGET_TAG = 1;
+
+    /**
+     * The budget was set for the call site of the capture or of endCapture().
+     */
+    public static final int BUDGET_CALL_SITE = 2;
+
+    /**
+     * The budget was set for the class of the thread, main or background.
+     */
+    public static final int BUDGET_THREAD = 3;
+
+    private final int mKind;
+    private final int mBudgetType;
+    private final long mBudgetNanos;
+    private final long mDurationNanos;
+    private final String mTag;
+    private final CallSite mCallSite;
+    private final String mThreadName;
+    private final ThreadClass mThreadClass;
+    private final String[] mTopSplitNames;
+    private final long[] mTopSplitNanos;
+
+    BudgetViolation(int kind, int budgetType, long budgetNanos, long durationNanos, String tag,
+                    CallSite callSite, String threadName, ThreadClass threadClass,
+                    String[] topSplitNames, long[] topSplitNanos) {
+        this.mKind = kind;
+        this.mBudgetType = budgetType;
+        this.mBudgetNanos = budgetNanos;
+        this.mDurationNanos = durationNanos;
+        this.mTag = tag;
+        this.mCallSite = callSite;
+        this.mThreadName = threadName;
+        this.mThreadClass = threadClass;
+        this.mTopSplitNames = topSplitNames;
+        this.mTopSplitNanos = topSplitNanos;
+    }
+
+    /**
+     * @return {@link Measurement#KIND_CAPTURE} or {@link Measurement#KIND_LOG_TOKEN}.
+     */
+    public int getKind() {
+        return mKind;
+    }
+
+    /**
+     * @return One of {@link BudgetViolation#BUDGET_TAG}, {@link BudgetViolation#BUDGET_CALL_SITE} or
+     * {@link BudgetViolation#BUDGET_THREAD}.
+     */
+    public int getBudgetType() {
+        return mBudgetType;
+    }
+
+    public long getBudgetNanos() {
+        return mBudgetNanos;
+    }
+
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    /**
+     * Tag of the log token, null for captures and untagged tokens.
+     */
+    @Nullable
+    public String getTag() {
+        return mTag;
+    }
+
+    /**
+     * Code location of the capture or of endCapture(), null if it could not be resolved.
+     */
+    @Nullable
+    public CallSite getCallSite() {
+        return mCallSite;
+    }
+
+    public String getThreadName() {
+        return mThreadName;
+    }
+
+    @NonNull
+    public ThreadClass getThreadClass() {
+        return mThreadClass;
+    }
+
+    /**
+     * Number of splits reported, the longest splits of the token, at most 3.
+     */
+    public int getTopSplitCount() {
+        return mTopSplitNames.length;
+    }
+
+    /**
+     * @param index 0 for the longest split.
+     * @return message passed to addSplit(), Split[sequence] if there was none.
+     */
+    public String getTopSplitName(int index) {
+        return mTopSplitNames[index];
+    }
+
+    /**
+     * @param index 0 for the longest split.
+     */
+    public long getTopSplitNanos(int index) {
+        return mTopSplitNanos[index];
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mTag != null ? mTag : String.valueOf(mCallSite))
+                .append(String.format(Locale.US, " took %.3f ms, budget %.3f ms", millis(mDurationNanos), millis(mBudgetNanos)))
+                .append(" on ").append(mThreadName);
+        for (int i = 0; i < mTopSplitNames.length; i++) {
+            builder.append(i == 0 ? ", top splits: " : ", ")
+                    .append(mTopSplitNames[i])
+                    .append(String.format(Locale.US, " %.3f ms", millis(mTopSplitNanos[i])));
+        }
+        return builder.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+}
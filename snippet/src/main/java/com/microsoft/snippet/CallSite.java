@@ -0,0 +1,188 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable representation of the code location that called a Snippet API. Call sites resolved
+ * through the stack analysis are interned, so a capture that runs repeatedly from the same place
+ * gets the same instance every time and they can be compared by reference.
+ * <p>
+ * Call sites can also be known at build time, the snippet gradle plugin rewrites the calls to
+ * {@link Snippet#capture(Snippet.Closure)} and {@link com.microsoft.snippet.token.ILogToken#endCapture()}
+ * to pass a call site that the class builds once with <code>CallSite.of(class, method, line)</code>
+ * in its static initializer, no stack analysis is needed at runtime.
+ */
+public final class CallSite {
+    static final CallSite UNKNOWN = new CallSite("Unknown", "unknown", -1);
+
+    // Call sites are bound by the amount of code that calls Snippet. The cap only protects us from
+    // generated code flooding the cache, beyond it call sites are still resolved but not interned.
+    static final int MAX_INTERNED_CALL_SITES = 1024;
+    private static final Interner INTERNED = new Interner(MAX_INTERNED_CALL_SITES);
+
+    private final String mClassName;
+    private final String mMethodName;
+    private final int mLineNumber;
+    private String mSimpleClassName;
+
+    private CallSite(String className, String methodName, int lineNumber) {
+        this.mClassName = className;
+        this.mMethodName = methodName;
+        this.mLineNumber = lineNumber;
+    }
+
+    /**
+     * Returns the interned call site for the location.
+     *
+     * @param className  fully qualified name of the class.
+     * @param methodName method name.
+     * @param lineNumber line number, negative if not known.
+     * @return CallSite
+     */
+    @NonNull
+    public static CallSite of(String className, String methodName, int lineNumber) {
+        return INTERNED.intern(className, methodName, lineNumber);
+    }
+
+    /**
+     * Interned call sites by class name, then by method name, each method holding the few lines it
+     * calls Snippet from. Looking up a call site that is already interned allocates nothing, the
+     * call site is only built on a miss.
+     */
+    static final class Interner {
+        private final ConcurrentHashMap<String, ConcurrentHashMap<String, CallSite[]>> mClasses = new ConcurrentHashMap<>();
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final int mCapacity;
+
+        /**
+         * @param capacity call sites interned at most, more can be added by racing misses.
+         */
+        Interner(int capacity) {
+            this.mCapacity = capacity;
+        }
+
+        int size() {
+            return mSize.get();
+        }
+
+        @NonNull
+        CallSite intern(String className, String methodName, int lineNumber) {
+            ConcurrentHashMap<String, CallSite[]> methods = mClasses.get(className);
+            if (methods != null) {
+                CallSite callSite = find(methods.get(methodName), lineNumber);
+                if (callSite != null) {
+                    return callSite;
+                }
+            }
+            CallSite callSite = new CallSite(className, methodName, lineNumber);
+            if (mSize.get() >= mCapacity) {
+                return callSite;
+            }
+            if (methods == null) {
+                ConcurrentHashMap<String, CallSite[]> created = new ConcurrentHashMap<>();
+                methods = mClasses.putIfAbsent(className, created);
+                if (methods == null) {
+                    methods = created;
+                }
+            }
+            while (true) {
+                CallSite[] lines = methods.get(methodName);
+                CallSite existing = find(lines, lineNumber);
+                if (existing != null) {
+                    return existing;
+                }
+                boolean added;
+                if (lines == null) {
+                    added = methods.putIfAbsent(methodName, new CallSite[]{callSite}) == null;
+                } else {
+                    // Copy on write, a method calls Snippet from a handful of lines at most.
+                    CallSite[] grown = Arrays.copyOf(lines, lines.length + 1);
+                    grown[lines.length] = callSite;
+                    added = methods.replace(methodName, lines, grown);
+                }
+                if (added) {
+                    mSize.incrementAndGet();
+                    return callSite;
+                }
+            }
+        }
+
+        private static CallSite find(CallSite[] lines, int lineNumber) {
+            if (lines != null) {
+                for (CallSite callSite : lines) {
+                    if (callSite.mLineNumber == lineNumber) {
+                        return callSite;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static String trimPackage(String qualifiedName) {
+        int lastDot = qualifiedName.lastIndexOf('.');
+        return lastDot < 0 ? qualifiedName : qualifiedName.substring(lastDot + 1);
+    }
+
+    /**
+     * @return Fully qualified name of the calling class.
+     */
+    public String getClassName() {
+        return mClassName;
+    }
+
+    /**
+     * @return Name of the calling class without the package.
+     */
+    public String getSimpleClassName() {
+        String simpleName = mSimpleClassName;
+        if (simpleName == null) {
+            simpleName = trimPackage(mClassName);
+            mSimpleClassName = simpleName;
+        }
+        return simpleName;
+    }
+
+    public String getMethodName() {
+        return mMethodName;
+    }
+
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CallSite)) {
+            return false;
+        }
+        CallSite other = (CallSite) o;
+        return mLineNumber == other.mLineNumber
+                && mClassName.equals(other.mClassName)
+                && mMethodName.equals(other.mMethodName);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mClassName.hashCode();
+        result = 31 * result + mMethodName.hashCode();
+        return 31 * result + mLineNumber;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mClassName + '#' + mMethodName + ':' + mLineNumber;
+    }
+}
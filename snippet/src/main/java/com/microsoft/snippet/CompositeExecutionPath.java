@@ -0,0 +1,255 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Execution path that measures like {@link Snippet.MeasuredExecutionPath} and fans every measurement
+ * out to an ordered list of consumers, for example logcat, a file and an aggregator.
+ * <pre>
+ * {@code
+ *     Snippet.setLogcatEnabled(false);
+ *     Snippet.install(new CompositeExecutionPath(
+ *             CompositeExecutionPath.logcat(),
+ *             new MappedTraceFileSink(new File(getFilesDir(), "traces")),
+ *             new LatencyAggregator()));
+ * }
+ * </pre>
+ * Unlike a chain of paths that extend each other and call super, the closure is timed and the
+ * call site is resolved exactly once, whatever the number of consumers. The lanes share the
+ * {@link ExecutionContext} of a measurement, its call site is resolved by the first consumer that
+ * asks for it.
+ * <p>
+ * Every consumer has its own lane: a bounded lock free {@link MeasurementQueue} and a daemon thread.
+ * The measurement is copied into a pre-allocated slot of every lane, no lock is taken and nothing
+ * is allocated for it, so fanning out costs the same on the thread that reports it, which is the
+ * measured thread with synchronous reporting. As for any sink, the measurements handed to a
+ * consumer are recycled once it returns. A consumer that throws only loses its own batch, a consumer
+ * that is slow only fills its own queue, after which the measurements are dropped for that consumer
+ * and counted in {@link CompositeExecutionPath#getDroppedCount(MeasurementSink)}. The measured thread
+ * never waits for a consumer.
+ * <p>
+ * Consumers only receive the measurements of this path, and only while it is the execution path of
+ * Snippet: the lanes start when the path is installed and, once another path replaces it, deliver
+ * what they have queued and stop. Tokens started on this path and ended after the swap are not
+ * delivered.
+ */
+public class CompositeExecutionPath extends Snippet.MeasuredExecutionPath {
+    private static final String TAG = CompositeExecutionPath.class.getSimpleName();
+    static final int DEFAULT_LANE_CAPACITY = 1024;
+    private static final int BATCH_SIZE = 64;
+    // Safety net for a missed wake up, a lane never sleeps longer than this.
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final MeasurementSink[] mConsumers;
+    private final AtomicLong[] mDropped;
+    private final AtomicLong[] mFailures;
+    private final int mLaneCapacity;
+
+    // Lanes of the current installation, null while the path is not installed.
+    private volatile Lane[] mLanes;
+
+    private final MeasurementSink mDispatcher = new MeasurementSink() {
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            Lane[] lanes = mLanes;
+            if (lanes == null) {
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Measurement measurement = batch.get(i);
+                if (measurement.mPath != CompositeExecutionPath.this) {
+                    continue;
+                }
+                for (int lane = 0; lane < lanes.length; lane++) {
+                    lanes[lane].offer(measurement);
+                }
+            }
+        }
+    };
+
+    private final class Lane implements Runnable {
+        final int mIndex;
+        final MeasurementQueue mQueue = new MeasurementQueue(Math.max(2, mLaneCapacity));
+        final MeasurementBatch mBatch = new MeasurementBatch(Math.min(BATCH_SIZE, mQueue.capacity()));
+        final Thread mThread;
+        volatile boolean mParked;
+        volatile boolean mRunning = true;
+
+        Lane(int index) {
+            this.mIndex = index;
+            this.mThread = new Thread(this, "Snippet-Lane-" + index + "-" + mConsumers[index].getClass().getSimpleName());
+            this.mThread.setDaemon(true);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        /**
+         * The lane delivers what is queued and its thread ends. Not interrupted, that would break the
+         * IO of the consumer.
+         */
+        void stop() {
+            mRunning = false;
+            LockSupport.unpark(mThread);
+        }
+
+        /**
+         * Copies the measurement into a slot of the lane, or counts it as dropped if the lane is full.
+         */
+        void offer(Measurement measurement) {
+            Measurement slot = mQueue.claimForWrite();
+            if (slot == null) {
+                mDropped[mIndex].incrementAndGet();
+                return;
+            }
+            slot.copyFrom(measurement);
+            mQueue.publish(slot);
+            if (mParked) {
+                LockSupport.unpark(mThread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Measurement measurement;
+                while (!mBatch.isFull() && (measurement = mQueue.claimForRead()) != null) {
+                    mBatch.add(measurement);
+                }
+                if (mBatch.size() > 0) {
+                    deliver(mBatch);
+                    continue;
+                }
+                if (!mRunning) {
+                    return;
+                }
+                if (!mQueue.isEmpty()) {
+                    // A producer has claimed a slot but not published it yet.
+                    Thread.yield();
+                    continue;
+                }
+                mParked = true;
+                if (mQueue.isEmpty() && mRunning) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                mParked = false;
+            }
+        }
+
+        private void deliver(MeasurementBatch batch) {
+            MeasurementSink consumer = mConsumers[mIndex];
+            try {
+                consumer.onMeasurements(batch);
+            } catch (Throwable t) {
+                // Errors too, the lane would otherwise die and drop everything from now on.
+                if (mFailures[mIndex].getAndIncrement() == 0) {
+                    Log.e(TAG, "Consumer " + consumer + " threw, its batch is skipped.", t);
+                }
+            } finally {
+                for (int i = 0; i < batch.size(); i++) {
+                    mQueue.release(batch.get(i));
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * @param consumers receive the measurements in this order.
+     */
+    public CompositeExecutionPath(@NonNull MeasurementSink... consumers) {
+        this(DEFAULT_LANE_CAPACITY, consumers);
+    }
+
+    /**
+     * @param laneCapacity measurements each consumer can lag behind before they are dropped for it,
+     *                     rounded up to a power of two.
+     * @param consumers    receive the measurements in this order.
+     */
+    public CompositeExecutionPath(int laneCapacity, @NonNull MeasurementSink... consumers) {
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("Lane capacity should be positive: " + laneCapacity);
+        }
+        if (consumers.length == 0) {
+            throw new IllegalArgumentException("At least one consumer is needed");
+        }
+        mConsumers = consumers.clone();
+        mDropped = new AtomicLong[consumers.length];
+        mFailures = new AtomicLong[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            if (consumers[i] == null) {
+                throw new IllegalArgumentException("Consumer cannot be null");
+            }
+            mDropped[i] = new AtomicLong();
+            mFailures[i] = new AtomicLong();
+        }
+        mLaneCapacity = laneCapacity;
+    }
+
+    @Override
+    void onInstalled() {
+        Lane[] lanes = new Lane[mConsumers.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i);
+            lanes[i].start();
+        }
+        mLanes = lanes;
+        Snippet.addSink(mDispatcher);
+    }
+
+    @Override
+    void onUninstalled() {
+        Snippet.removeSink(mDispatcher);
+        Lane[] lanes = mLanes;
+        mLanes = null;
+        if (lanes != null) {
+            for (Lane lane : lanes) {
+                lane.stop();
+            }
+        }
+    }
+
+    /**
+     * The logcat output of Snippet as a consumer. Switch the default one off with
+     * {@link Snippet#setLogcatEnabled(boolean)} so that the measurements are printed only once, off
+     * the measured thread.
+     */
+    @NonNull
+    public static MeasurementSink logcat() {
+        return LogcatSink.INSTANCE;
+    }
+
+    /**
+     * @return measurements dropped for the consumer because its lane was full.
+     */
+    public long getDroppedCount(@NonNull MeasurementSink consumer) {
+        return mDropped[indexOf(consumer)].get();
+    }
+
+    /**
+     * @return batches the consumer threw on.
+     */
+    public long getFailureCount(@NonNull MeasurementSink consumer) {
+        return mFailures[indexOf(consumer)].get();
+    }
+
+    private int indexOf(MeasurementSink consumer) {
+        for (int i = 0; i < mConsumers.length; i++) {
+            if (mConsumers[i] == consumer) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a consumer of this path: " + consumer);
+    }
+}
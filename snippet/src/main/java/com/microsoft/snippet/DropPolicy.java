@@ -0,0 +1,24 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+/**
+ * Decides what happens to a measurement when the queue of the asynchronous reporter is full.
+ * Measured thread is never blocked, one measurement is always dropped and counted in
+ * {@link Snippet#getDroppedMeasurementCount()}.
+ */
+public enum DropPolicy {
+    /**
+     * Measurement being reported is discarded, the ones already queued are kept.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Oldest measurement in the queue is discarded to make space for the one being reported. While
+     * the reporter thread is still delivering the oldest ones there is nothing to discard, the one
+     * being reported is dropped instead.
+     */
+    DROP_OLDEST
+}
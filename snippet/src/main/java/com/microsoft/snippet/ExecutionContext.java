@@ -1,44 +1,89 @@
 package com.microsoft.snippet;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * POJO Alert!
  * Wraps all the information that can be returned through the library.
  * Custom implementation of {@link ExecutionPath} might/might not have to extend this to
  * accommodate any additional information.
+ * <p>
+ * The call site (class, method and line) is resolved lazily. At the time of measurement only a
+ * handle to the stack is kept, which still costs a walk of the stack but not its decoding. The
+ * frames are analysed the first time any of {@link ExecutionContext#getCallSite()},
+ * {@link ExecutionContext#getClassName()}, {@link ExecutionContext#getMethodName()} or
+ * {@link ExecutionContext#getLineNo()} is called, which happens only when one of the FLAG_METADATA_*
+ * flags needs it or a consumer asks for it. The handle is taken for every context the library hands
+ * out, so these getters answer for code not instrumented by the plugin too.
+ * <p>
+ * Captures and log tokens that start while another one is open on the same thread are its children.
+ * {@link ExecutionContext#getSpanId()} and {@link ExecutionContext#getParentSpanId()} link the
+ * contexts into a tree and {@link ExecutionContext#getSelfDurationNanos()} is the time that was not
+ * spent in the children.
  */
 public class ExecutionContext {
-    private String mClass;
-    private String mMethod;
-    private int mLineNo;
+    private volatile CallSite mCallSite;
+    private Throwable mCallSiteHandle;
+    private StackAnalyser mAnalyser;
+    private int mApiType;
     private String mThreadName;
     private long mExecutionDuration;
+    private long mSelfDuration;
+    private long mSpanId;
+    private long mParentSpanId;
+    private int mDepth;
 
-    void setClassName(String clazz) {
-        this.mClass = clazz;
-    }
-
-    void setMethod(String method) {
-        this.mMethod = method;
+    void setCallSite(CallSite callSite) {
+        this.mCallSite = callSite;
     }
 
-    void setLineNo(int line) {
-        this.mLineNo = line;
+    /**
+     * Defers the call site resolution. Handle must be created on the thread that called the API
+     * being measured, it is analysed only if the call site is ever asked for.
+     */
+    void setCallSiteHandle(StackAnalyser analyser, Throwable handle, int apiType) {
+        this.mAnalyser = analyser;
+        this.mCallSiteHandle = handle;
+        this.mApiType = apiType;
     }
 
     void setThreadName(String threadName) {
         this.mThreadName = threadName;
     }
 
-    void setExecutionDuration(long duration) {
-        this.mExecutionDuration = duration;
+    void setExecutionDuration(long durationNanos) {
+        this.mExecutionDuration = durationNanos;
+        this.mSelfDuration = durationNanos;
+    }
+
+    void setSpan(long spanId, long parentSpanId, int depth, long selfDurationNanos) {
+        this.mSpanId = spanId;
+        this.mParentSpanId = parentSpanId;
+        this.mDepth = depth;
+        this.mSelfDuration = selfDurationNanos;
+    }
+
+    /**
+     * Returns the code location that was measured, null if it was not captured.
+     */
+    public CallSite getCallSite() {
+        CallSite callSite = mCallSite;
+        if (callSite == null && mCallSiteHandle != null) {
+            // Racing resolutions are harmless, both end up with the same interned call site.
+            callSite = mAnalyser.resolve(mCallSiteHandle, mApiType);
+            mCallSite = callSite;
+        }
+        return callSite;
     }
 
     public String getClassName() {
-        return this.mClass;
+        CallSite callSite = getCallSite();
+        return callSite != null ? callSite.getClassName() : null;
     }
 
     public String getMethodName() {
-        return this.mMethod;
+        CallSite callSite = getCallSite();
+        return callSite != null ? callSite.getMethodName() : null;
     }
 
     public String getThreadName() {
@@ -46,10 +91,56 @@ public class ExecutionContext {
     }
 
     public int getLineNo() {
-        return this.mLineNo;
+        CallSite callSite = getCallSite();
+        return callSite != null ? callSite.getLineNumber() : 0;
     }
 
+    /**
+     * Returns the execution duration in milliseconds. Durations are recorded in nanoseconds, use
+     * {@link ExecutionContext#getExecutionDurationNanos()} or
+     * {@link ExecutionContext#getExecutionDuration(TimeUnit)} for sub millisecond resolution.
+     *
+     * @return duration in milliseconds.
+     */
     public long getExecutionDuration() {
+        return TimeUnit.NANOSECONDS.toMillis(this.mExecutionDuration);
+    }
+
+    public long getExecutionDurationNanos() {
         return this.mExecutionDuration;
     }
+
+    public long getExecutionDuration(TimeUnit unit) {
+        return unit.convert(this.mExecutionDuration, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the part of the execution duration, in nanoseconds, that was not spent in the nested
+     * captures and log tokens. Same as the execution duration if there were none.
+     */
+    public long getSelfDurationNanos() {
+        return this.mSelfDuration;
+    }
+
+    /**
+     * Id of this capture in the span tree, unique across threads. 0 if it was not tracked.
+     */
+    public long getSpanId() {
+        return this.mSpanId;
+    }
+
+    /**
+     * Id of the capture or log token that was open on the same thread when this one started,
+     * 0 if there was none.
+     */
+    public long getParentSpanId() {
+        return this.mParentSpanId;
+    }
+
+    /**
+     * Nesting level, 0 for a capture that has no parent.
+     */
+    public int getDepth() {
+        return this.mDepth;
+    }
 }
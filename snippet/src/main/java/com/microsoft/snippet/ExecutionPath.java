@@ -9,6 +9,8 @@ import androidx.annotation.NonNull;
 
 import com.microsoft.snippet.token.ILogToken;
 
+import java.util.List;
+
 /**
  * Execution path determines how core the functionality of this library should behave.
  * It might be possible that we do not want to execute the code entirely in release builds or
@@ -38,6 +40,21 @@ public interface ExecutionPath {
     @NonNull
     ExecutionContext capture(Snippet.Closure closure);
 
+    /**
+     * Same as {@link ExecutionPath#capture(String, Snippet.Closure)} but the call site has been
+     * computed at build time by the snippet gradle plugin. Implementations should use it instead of
+     * analysing the stack. The plugin rewrites every Snippet.capture() call to this overload, so a path
+     * that customises capture(String, Closure) has to customise this one too, MeasuredExecutionPath
+     * does it on behalf of its subclasses.
+     *
+     * @param message  Custom message to print on the log if any.
+     * @param closure  Closure who execution duration needs to be measured.
+     * @param callSite Code location that called capture().
+     * @return Execution context
+     */
+    @NonNull
+    ExecutionContext capture(String message, Snippet.Closure closure, CallSite callSite);
+
     /**
      * Returns a log token and starts the measurement at this point. The token returned has a
      * method endCapture() which ends the measurement.
@@ -56,6 +73,16 @@ public interface ExecutionPath {
      */
     ILogToken startCapture(String tag);
 
+    /**
+     * Same as {@link ExecutionPath#startCapture(String)}, but the tag only needs to be unique
+     * within the given scope.
+     *
+     * @param tag   Tag for the log token, unique within the scope.
+     * @param scope Namespace of the tag.
+     * @return IToken
+     */
+    ILogToken startCapture(String tag, TagScope scope);
+
     /**
      * Finds a log token with a tag which has been created previously. Using
      * {@link Snippet#startCapture(String)}
@@ -65,4 +92,32 @@ public interface ExecutionPath {
      */
     ILogToken find(String tag);
 
+    /**
+     * Finds a log token created using {@link Snippet#startCapture(String, TagScope)}.
+     *
+     * @param tag   Custom tag.
+     * @param scope Scope the tag was started in.
+     * @return IToken if any available attached with this tag in this scope
+     */
+    ILogToken find(String tag, TagScope scope);
+
+    /**
+     * Finds all the log tokens whose tag matches the pattern. '*' matches any sequence of
+     * characters, "net/feed/*" finds every token tagged under "net/feed/".
+     *
+     * @param pattern Tag or wildcard pattern.
+     * @param scope   Scope the tags were started in, null for all scopes.
+     * @return Matching tokens sorted by tag, empty list if none.
+     */
+    List<ILogToken> findAll(String pattern, TagScope scope);
+
+    /**
+     * Ends all the log tokens whose tag matches the pattern, see {@link ExecutionPath#findAll(String, TagScope)}.
+     *
+     * @param pattern Tag or wildcard pattern.
+     * @param scope   Scope the tags were started in, null for all scopes.
+     * @return Execution contexts of the captures that were ended.
+     */
+    List<ExecutionContext> endCaptureAll(String pattern, TagScope scope);
+
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deterministic {@link TimeSource} meant for tests. Time only moves when the test moves it using
+ * {@link FakeTimeSource#advance(long, TimeUnit)} or {@link FakeTimeSource#setNanoTime(long)}.
+ * Optionally every read can auto advance the clock by a fixed step, which is handy when the
+ * code under test reads the clock at the start and the end of a capture.
+ */
+public final class FakeTimeSource implements TimeSource {
+    private final AtomicLong mNow;
+    private final long mAutoAdvanceNanos;
+
+    public FakeTimeSource() {
+        this(0L, 0L);
+    }
+
+    /**
+     * @param startNanos       initial value of the clock.
+     * @param autoAdvanceNanos step by which the clock moves after every read, 0 to disable.
+     */
+    public FakeTimeSource(long startNanos, long autoAdvanceNanos) {
+        if (autoAdvanceNanos < 0) {
+            throw new IllegalArgumentException("Time source cannot move backwards");
+        }
+        this.mNow = new AtomicLong(startNanos);
+        this.mAutoAdvanceNanos = autoAdvanceNanos;
+    }
+
+    @Override
+    public long nanoTime() {
+        if (mAutoAdvanceNanos == 0L) {
+            return mNow.get();
+        }
+        return mNow.getAndAdd(mAutoAdvanceNanos);
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+        long nanos = unit.toNanos(duration);
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Time source cannot move backwards");
+        }
+        mNow.addAndGet(nanos);
+    }
+
+    public void setNanoTime(long nanos) {
+        mNow.set(nanos);
+    }
+}
@@ -6,6 +6,8 @@ package com.microsoft.snippet;
 
 import com.microsoft.snippet.token.ILogToken;
 
+import java.util.List;
+
 /**
  * Log token Searcher. Not for external use
  */
@@ -14,8 +16,18 @@ interface ILogTokenSearcher {
     /**
      * Return the token for the tag provided else return null
      *
-     * @param tag tag for the log token
+     * @param tag tag for the log token, with its scope
      * @return Log Token
      */
-    ILogToken search(String tag);
+    ILogToken search(TagKey tag);
+
+    /**
+     * Returns the tokens whose tag matches the pattern. '*' in the pattern matches any sequence of
+     * characters, so "net/feed/*" matches every tag under "net/feed/".
+     *
+     * @param pattern tag or wildcard pattern
+     * @param scope   scope the tags were started in, null for all scopes
+     * @return matching log tokens sorted by tag, empty if none
+     */
+    List<ILogToken> searchAll(String pattern, TagScope scope);
 }
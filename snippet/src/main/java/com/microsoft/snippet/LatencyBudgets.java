@@ -0,0 +1,272 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.util.Log;
+
+import androidx.annotation.RestrictTo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency budgets per tag, per call site and per thread class, and the delivery of the
+ * {@link BudgetViolation}s to the {@link BudgetListener}.
+ * <p>
+ * The measured thread only compares the duration with {@link LatencyBudgets#mThresholdNanos}, the
+ * smallest of all the budgets, which is {@link Long#MAX_VALUE} while there is no listener. Only a
+ * duration above it goes through {@link LatencyBudgets#check}, which finds the budget that applies
+ * and returns before allocating anything if the duration is within it. The measured thread reads
+ * volatile fields only, it never takes a lock.
+ * <p>
+ * For code that is not instrumented by the snippet gradle plugin the call site is not known on the
+ * measured thread. A measurement longer than the smallest call site budget is handed to the budget
+ * thread with the stack handle of its context, the budget thread resolves the call site and drops
+ * the measurement if no budget of its call site or thread is exceeded. A call site budget therefore
+ * applies without a thread budget too.
+ * <p>
+ * Violations are delivered on a single daemon thread through a bounded queue, when the listener
+ * cannot keep up they are dropped and counted, the measured thread never waits.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class LatencyBudgets {
+    private static final String TAG = LatencyBudgets.class.getSimpleName();
+    private static final String THREAD_NAME = "Snippet-Budgets";
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_TOP_SPLITS = 3;
+    static final long NO_BUDGET = Long.MAX_VALUE;
+
+    private final ConcurrentMap<String, Long> mTagBudgets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CallSite, Long> mCallSiteBudgets = new ConcurrentHashMap<>();
+    // Indexed by ThreadClass. Replaced, never modified, under the lock of this.
+    private volatile long[] mThreadBudgets = {NO_BUDGET, NO_BUDGET};
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile BudgetListener mListener;
+    private volatile ThreadPoolExecutor mExecutor;   // Written under the lock of this.
+
+    // Smallest budget, the field the measured thread reads when it is within budget.
+    volatile long mThresholdNanos = NO_BUDGET;
+
+    // Smallest call site budget, decides whether a measurement without a known call site needs one.
+    volatile long mCallSiteThresholdNanos = NO_BUDGET;
+
+    /**
+     * @param budget 0 to remove the budget of the tag.
+     */
+    synchronized void setBudget(String tag, long budget, TimeUnit unit) {
+        long nanos = checkBudget(budget, unit);
+        if (nanos == 0) {
+            mTagBudgets.remove(tag);
+        } else {
+            mTagBudgets.put(tag, nanos);
+        }
+        updateThreshold();
+    }
+
+    /**
+     * @param budget 0 to remove the budget of the call site.
+     */
+    synchronized void setBudget(CallSite callSite, long budget, TimeUnit unit) {
+        long nanos = checkBudget(budget, unit);
+        if (nanos == 0) {
+            mCallSiteBudgets.remove(callSite);
+        } else {
+            mCallSiteBudgets.put(callSite, nanos);
+        }
+        updateThreshold();
+    }
+
+    /**
+     * @param budget 0 to remove the budget of the thread class.
+     */
+    synchronized void setBudget(ThreadClass threadClass, long budget, TimeUnit unit) {
+        long nanos = checkBudget(budget, unit);
+        long[] threadBudgets = mThreadBudgets.clone();
+        threadBudgets[threadClass.ordinal()] = nanos == 0 ? NO_BUDGET : nanos;
+        mThreadBudgets = threadBudgets;
+        updateThreshold();
+    }
+
+    synchronized void clear() {
+        mTagBudgets.clear();
+        mCallSiteBudgets.clear();
+        mThreadBudgets = new long[]{NO_BUDGET, NO_BUDGET};
+        updateThreshold();
+    }
+
+    synchronized void setListener(BudgetListener listener) {
+        mListener = listener;
+        if (listener != null && mExecutor == null) {
+            mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        updateThreshold();
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private static long checkBudget(long budget, TimeUnit unit) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget cannot be negative: " + budget);
+        }
+        return unit.toNanos(budget);
+    }
+
+    private void updateThreshold() {
+        long threshold = NO_BUDGET;
+        long callSiteThreshold = NO_BUDGET;
+        if (mListener != null) {
+            for (Long budget : mTagBudgets.values()) {
+                threshold = Math.min(threshold, budget);
+            }
+            for (Long budget : mCallSiteBudgets.values()) {
+                callSiteThreshold = Math.min(callSiteThreshold, budget);
+            }
+            long[] threadBudgets = mThreadBudgets;
+            threshold = Math.min(threshold, Math.min(threadBudgets[0], threadBudgets[1]));
+        }
+        mThresholdNanos = Math.min(threshold, callSiteThreshold);
+        mCallSiteThresholdNanos = callSiteThreshold;
+    }
+
+    /**
+     * The comparison done on the measured thread, check() is only called when it returns true.
+     * When the call site is not known at build time, it also decides whether one is needed.
+     */
+    boolean mayExceed(long duration) {
+        return duration > mThresholdNanos;
+    }
+
+    /**
+     * Called on the measured thread once {@link LatencyBudgets#mayExceed(long)} returned
+     * true. The splits are only read during the call.
+     *
+     * @param kind       {@link Measurement#KIND_CAPTURE} or {@link Measurement#KIND_LOG_TOKEN}.
+     * @param tag        tag of the log token, null if none.
+     * @param callSite   call site known at build time, null otherwise.
+     * @param splitStart start of the first split.
+     */
+    void check(int kind, String tag, CallSite callSite, ExecutionContext context, long duration,
+               long splitStart, long[] splitEnds, String[] splitNames, int splitCount) {
+        final BudgetListener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        final ThreadClass threadClass = ThreadClass.of(Thread.currentThread());
+        int type;
+        long budget;
+        Long tagBudget = tag != null ? mTagBudgets.get(tag) : null;
+        Long callSiteBudget = tagBudget == null && callSite != null ? mCallSiteBudgets.get(callSite) : null;
+        if (tagBudget != null) {
+            type = BudgetViolation.BUDGET_TAG;
+            budget = tagBudget;
+        } else if (callSiteBudget != null) {
+            type = BudgetViolation.BUDGET_CALL_SITE;
+            budget = callSiteBudget;
+        } else {
+            type = BudgetViolation.BUDGET_THREAD;
+            budget = mThreadBudgets[threadClass.ordinal()];
+        }
+        // Without a known call site a call site budget may still apply, with or without a thread
+        // budget, but resolving the call site can walk the stack, so it is left to the budget thread.
+        long callSiteThreshold = mCallSiteThresholdNanos;
+        final boolean resolveCallSite = type == BudgetViolation.BUDGET_THREAD && callSite == null
+                && callSiteThreshold != NO_BUDGET;
+        if (duration <= budget && !(resolveCallSite && duration > callSiteThreshold)) {
+            return;
+        }
+        ThreadPoolExecutor executor = mExecutor;
+        if (executor == null) {
+            return;
+        }
+        final int budgetType = type;
+        final long appliedBudget = budget;
+        final int measuredKind = kind;
+        final long measuredDuration = duration;
+        final String measuredTag = tag;
+        final ExecutionContext measuredContext = context;
+        final String[] topNames = new String[Math.min(splitCount, MAX_TOP_SPLITS)];
+        final long[] topNanos = new long[topNames.length];
+        topSplits(splitStart, splitEnds, splitNames, splitCount, topNames, topNanos);
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                int type = budgetType;
+                long applied = appliedBudget;
+                CallSite callSite = measuredContext.getCallSite();
+                if (resolveCallSite) {
+                    Long callSiteBudget = callSite != null ? mCallSiteBudgets.get(callSite) : null;
+                    if (callSiteBudget != null) {
+                        type = BudgetViolation.BUDGET_CALL_SITE;
+                        applied = callSiteBudget;
+                    }
+                    if (measuredDuration <= applied) {
+                        return;
+                    }
+                }
+                BudgetViolation violation = new BudgetViolation(measuredKind, type, applied, measuredDuration,
+                        measuredTag, callSite, measuredContext.getThreadName(), threadClass, topNames, topNanos);
+                try {
+                    listener.onOverBudget(violation);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Budget listener threw, the violation is skipped.", e);
+                }
+            }
+        };
+        try {
+            executor.execute(delivery);
+        } catch (RejectedExecutionException e) {
+            if (mDropped.getAndIncrement() == 0) {
+                Log.w(TAG, "Budget listener cannot keep up, violations are dropped.");
+            }
+        }
+    }
+
+    /**
+     * Fills the names and durations of the longest splits, longest first.
+     */
+    private static void topSplits(long start, long[] ends, String[] names, int count,
+                                  String[] topNames, long[] topNanos) {
+        int top = 0;
+        long splitStart = start;
+        for (int i = 0; i < count; i++) {
+            long nanos = ends[i] - splitStart;
+            splitStart = ends[i];
+            // Insertion into the few top slots, shifting the shorter ones down.
+            int slot = top;
+            while (slot > 0 && topNanos[slot - 1] < nanos) {
+                slot--;
+            }
+            if (slot >= topNames.length) {
+                continue;
+            }
+            int last = Math.min(top, topNames.length - 1);
+            for (int j = last; j > slot; j--) {
+                topNames[j] = topNames[j - 1];
+                topNanos[j] = topNanos[j - 1];
+            }
+            topNames[slot] = names[i] != null ? names[i] : "Split[" + (i + 1) + "]";
+            topNanos[slot] = nanos;
+            if (top < topNames.length) {
+                top++;
+            }
+        }
+    }
+}
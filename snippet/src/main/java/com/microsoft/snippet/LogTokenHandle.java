@@ -0,0 +1,170 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.RestrictTo;
+
+import com.microsoft.snippet.token.ILogToken;
+import com.microsoft.snippet.token.LogTokenState;
+
+/**
+ * Versioned reference to a pooled {@link Snippet.LogToken}, this is what startCapture() hands out.
+ * The handle remembers the generation of the token at the time it was obtained. Once the token is
+ * ended and goes back to the pool its generation moves on, so a caller that holds on to the handle
+ * after endCapture() can no longer act on the token, even if the token is reused by another capture.
+ * The check is a single int comparison. Mutators compare the generation and write under the monitor
+ * of the token, the one endCapture() and the pool hold while they move the generation on, so the
+ * token cannot be ended and handed out again between the check and the write.
+ * <p>
+ * Stale handles behave like {@link com.microsoft.snippet.token.AttenuatedLogToken}, except addSplit()
+ * which throws {@link IllegalStateException} same as on an ended token.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class LogTokenHandle implements ILogToken {
+    private final Snippet.LogToken mToken;
+    private final int mGeneration;
+
+    LogTokenHandle(Snippet.LogToken token, int generation) {
+        this.mToken = token;
+        this.mGeneration = generation;
+    }
+
+    Snippet.LogToken token() {
+        return mToken;
+    }
+
+    int generation() {
+        return mGeneration;
+    }
+
+    boolean isLive() {
+        return mToken.mGeneration == mGeneration;
+    }
+
+    @Override
+    public ILogToken overrideFilter(String newFilter) {
+        synchronized (mToken) {
+            if (isLive()) {
+                mToken.overrideFilter(newFilter);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public String filter() {
+        return isLive() ? mToken.filter() : "";
+    }
+
+    @Override
+    public ExecutionContext endCapture() {
+        return mToken.finishCapture(null, null, mGeneration, this);
+    }
+
+    @Override
+    public ExecutionContext endCapture(String message) {
+        return mToken.finishCapture(message, null, mGeneration, this);
+    }
+
+    @Override
+    public ExecutionContext endCapture(CallSite callSite) {
+        return mToken.finishCapture(null, callSite, mGeneration, this);
+    }
+
+    @Override
+    public ExecutionContext endCapture(String message, CallSite callSite) {
+        return mToken.finishCapture(message, callSite, mGeneration, this);
+    }
+
+    @Override
+    public long creatorThreadId() {
+        return isLive() ? mToken.creatorThreadId() : -1L;
+    }
+
+    @Override
+    public boolean isThreadLockEnabled() {
+        return isLive() && mToken.isThreadLockEnabled();
+    }
+
+    @Override
+    public ILogToken enableThreadLock() {
+        synchronized (mToken) {
+            if (isLive()) {
+                mToken.enableThreadLock();
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void setCreatorThreadId(long threadId) {
+        synchronized (mToken) {
+            if (isLive()) {
+                mToken.setCreatorThreadId(threadId);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (mToken) {
+            if (isLive()) {
+                mToken.reset();
+            }
+        }
+    }
+
+    @Override
+    public void addSplit() {
+        mToken.addSplit(null, mGeneration);
+    }
+
+    @Override
+    public void addSplit(String message) {
+        mToken.addSplit(message, mGeneration);
+    }
+
+    @Override
+    public void setState(LogTokenState state) {
+        synchronized (mToken) {
+            if (isLive()) {
+                mToken.setState(state);
+            }
+        }
+    }
+
+    @Override
+    public LogTokenState getState() {
+        return isLive() ? mToken.getState() : LogTokenState.IN_POOL;
+    }
+
+    @Override
+    public long getStart() {
+        return isLive() ? mToken.getStart() : -1L;
+    }
+
+    @Override
+    public long getEnd() {
+        return isLive() ? mToken.getEnd() : -1L;
+    }
+
+    @Override
+    public void setStart(long start) {
+        synchronized (mToken) {
+            if (isLive()) {
+                mToken.setStart(start);
+            }
+        }
+    }
+
+    @Override
+    public void setEnd(long end) {
+        synchronized (mToken) {
+            if (isLive()) {
+                mToken.setEnd(end);
+            }
+        }
+    }
+}
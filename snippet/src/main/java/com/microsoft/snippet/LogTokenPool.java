@@ -12,112 +12,264 @@ import androidx.annotation.RestrictTo;
 import com.microsoft.snippet.token.ILogToken;
 import com.microsoft.snippet.token.LogTokenState;
 
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * LogToken Pool is helps recycling the log token objects that are used by Snippet.
- * Currently there is no upper cap on the no of tokens it could hold. But we are trying to understand
- * what could be the upper limit.
+ * <p>
+ * Pool is lock free. Tokens sit in a fixed array of slots, a token is taken out with getAndSet(null)
+ * and put back with compareAndSet(null, token), so a slot is owned by exactly one thread at a time and
+ * there is no ABA problem, unlike a linked stack of reused nodes. Every thread starts probing from its
+ * own home slot, so threads that capture in parallel mostly touch different slots and a thread usually
+ * gets back the token it recycled last. Slots further away are only looked at when the ones next to
+ * the home slot are empty (obtain) or taken (recycle). The home slot stands in for a per-thread cache:
+ * it gives the same affinity without a ThreadLocal lookup per capture, and without tokens stranded in
+ * the cache of a thread that stopped capturing, out of reach of the bound and of the idle eviction.
+ * <p>
+ * Once the pool is warm no token is allocated, but obtain() is not allocation free: every call
+ * allocates one {@link LogTokenHandle}, two fields on top of the object header. Handles are not
+ * reused on purpose. The handle escapes to the caller, who can keep it after endCapture(), and a
+ * handle is only stale as long as no later capture gets the same object. A handle reused by the next
+ * capture of its token would let the stale reference act on that capture again, which is the bug the
+ * handles exist to prevent. The handle dies young, it is the whole per-capture garbage of the pool,
+ * compared to a token with its split arrays when the pool is not used.
+ * <p>
+ * Pool is bounded, it never holds more tokens than its capacity. If the pool is empty a new token is
+ * created, if the pool is full on recycle the token is left to the GC.
+ * Tokens that sat in the pool for longer than the idle timeout are evicted, so the tokens created for
+ * a burst of parallel captures do not stay around forever. Eviction runs on the thread that recycles
+ * a token, at most once every quarter of the idle timeout, or when {@link LogTokenPool#trim()} is
+ * called. A pool that sees no capture at all is only shrunk by trim().
+ * <p>
+ * Double recycling of a token is detected through a CAS on the pooled flag of the token. Every
+ * recycle bumps the generation of the token, the {@link LogTokenHandle}s handed out before that
+ * become stale and are ignored by the token.
  */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public final class LogTokenPool {
     private static final String TAG = LogTokenPool.class.getSimpleName();
 
-    private final List<ILogToken> mPool = new LinkedList<>();
+    static final int DEFAULT_CAPACITY = 64;
+    static final int DEFAULT_PREWARM_COUNT = 8;
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000L;
 
-    // A register to keep track of allocated tokens.
-    private final HashSet<Integer> mRegister = new HashSet<>();
+    // Fibonacci hashing, spreads sequential thread ids across the slots.
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
+    // Hits are counted on stripes picked by the home slot, 8 longs apart so that two stripes never
+    // share a cache line.
+    private static final int STRIPES = 8;
+    private static final int STRIPE_PADDING = 8;
+
+    private final AtomicReferenceArray<Snippet.LogToken> mSlots;
+    private final int mMask;
+    private final long mIdleTimeoutMillis;
+    private final long mEvictionIntervalMillis;
+
+    // Uptime from which the next recycle() runs an idle eviction.
+    private final AtomicLong mNextEvictionMillis = new AtomicLong();
+
+    private final AtomicLongArray mHits = new AtomicLongArray(STRIPES * STRIPE_PADDING);
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicInteger mAlive = new AtomicInteger();
+    private final AtomicInteger mHighWaterMark = new AtomicInteger();
 
     LogTokenPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param capacity          number of slots, rounded up to a power of two.
+     * @param idleTimeoutMillis time after which a token that was not reused is evicted.
+     */
+    LogTokenPool(int capacity, long idleTimeoutMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity should be positive: " + capacity);
+        }
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Idle timeout should be positive: " + idleTimeoutMillis);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mSlots = new AtomicReferenceArray<>(size);
+        this.mMask = size - 1;
+        this.mIdleTimeoutMillis = idleTimeoutMillis;
+        this.mEvictionIntervalMillis = Math.max(1L, idleTimeoutMillis / 4);
+    }
+
+    /**
+     * Fills the pool with up to <code>count</code> tokens, so that the first captures do not allocate.
+     * Counted as alive tokens, not as misses.
+     */
+    void prewarm(int count) {
+        long now = ToolBox.uptimeMillis();
+        int target = Math.min(count, mMask + 1);
+        int created = 0;
+        for (int index = 0; index <= mMask && created < target; index++) {
+            if (mSlots.get(index) != null) {
+                continue;
+            }
+            Snippet.LogToken token = new Snippet.LogToken();
+            token.mPooled = 1;
+            token.setState(LogTokenState.IN_POOL);
+            token.mPooledAt = now;
+            if (mSlots.compareAndSet(index, null, token)) {
+                onCreated();
+                created++;
+            }
+        }
+        if (Snippet.mPrintDebugLogs) {
+            Log.d(TAG, "Pool pre-warmed with " + created + " tokens.");
+        }
     }
 
     @NonNull
-    ILogToken obtain() {
+    LogTokenHandle obtain() {
         if (Snippet.mPrintDebugLogs) {
             Log.d(TAG, "obtain() called");
-            Log.d(TAG, "Number of objects in POOL while entering into obtain(): " + mPool.size());
         }
-        ILogToken temp;
-        synchronized (this) {
-            if (mPool.size() > 0) {
-                if (Snippet.mPrintDebugLogs) {
-                    Log.d(TAG, "Pool has reusable objects available. Will use one.");
-                }
-                temp = mPool.remove(0);
-                boolean isAddingToRegisterSuccess = mRegister.add(temp.hashCode());
-                if (isAddingToRegisterSuccess) {
-                    temp.setState(LogTokenState.ACTIVE);
-                    return temp;
-                } else {
-                    Log.d(TAG, "Register already has the hashcode belonging to the current token, we need to recycle it and create a new one! ");
-                    return assureTokenWithUniqueHashCode(temp);
-                }
-            } else {
-                if (Snippet.mPrintDebugLogs) {
-                    Log.d(TAG, "Pool is empty, a new LogToken object will be created.");
-                }
-                temp = createTokenLocked();
-                boolean isAddingToRegisterSuccess = mRegister.add(temp.hashCode());
-                if (isAddingToRegisterSuccess) {
-                    temp.setState(LogTokenState.ACTIVE);
-                    return temp;
-                } else {
-                    Log.d(TAG, "Register already has the hashcode belonging to the current token, we need to recycle it and create a new one! ");
-                    return assureTokenWithUniqueHashCode(temp);
+        int home = homeSlot();
+        for (int i = 0; i <= mMask; i++) {
+            int index = (home + i) & mMask;
+            // Cheap read first so that an empty slot does not cost a CAS.
+            if (mSlots.get(index) != null) {
+                Snippet.LogToken token = mSlots.getAndSet(index, null);
+                if (token != null) {
+                    if (Snippet.mPrintDebugLogs) {
+                        Log.d(TAG, "Pool has reusable objects available. Will use one.");
+                    }
+                    mHits.incrementAndGet((home & (STRIPES - 1)) * STRIPE_PADDING);
+                    return activate(token);
                 }
             }
         }
+        if (Snippet.mPrintDebugLogs) {
+            Log.d(TAG, "Pool is empty, a new LogToken object will be created.");
+        }
+        mMisses.incrementAndGet();
+        onCreated();
+        return activate(new Snippet.LogToken());
     }
 
-    /**
-     * This method gives a one level safety against the situation where the hash codes of 2 log tokens
-     * become same accidentally given the hash functions are not messed up. It recycles the old token
-     * that has the same hash code that exists in the register and tries to generate a new token that
-     * will be having different hash code.
-     * If someone has messed the hash function badly. This will not help.
-     *
-     * @param oldToken old token that needs to get recycled.
-     * @return new token
-     */
-    @NonNull
-    ILogToken assureTokenWithUniqueHashCode(ILogToken oldToken) {
-        // Return old token to the pool
-        oldToken.reset();
-        mPool.add(oldToken);
-
-        // create a new token and return it.
-        ILogToken newToken = createTokenLocked();
-        newToken.setState(LogTokenState.ACTIVE);
-        return newToken;
+    private static LogTokenHandle activate(Snippet.LogToken token) {
+        // Token is exclusively owned by this thread now, plain writes are enough. The handle is the
+        // one allocation of a warm pool, see the class doc.
+        token.mPooled = 0;
+        token.setState(LogTokenState.ACTIVE);
+        return new LogTokenHandle(token, token.mGeneration);
     }
 
-    synchronized void recycle(@NonNull ILogToken token) {
+    void recycle(@NonNull ILogToken token) {
         if (Snippet.mPrintDebugLogs) {
             Log.d(TAG, "recycle() called");
-            Log.d(TAG, "Number of objects in POOL while entering into recycle(): " + mPool.size());
         }
-
+        Snippet.LogToken logToken = null;
+        if (token instanceof LogTokenHandle) {
+            LogTokenHandle handle = (LogTokenHandle) token;
+            if (handle.isLive()) {
+                logToken = handle.token();
+            }
+        } else if (token instanceof Snippet.LogToken) {
+            logToken = (Snippet.LogToken) token;
+        }
         // See if we are returning token which was not created using obtain()
-        if (!mRegister.contains(token.hashCode())) {
+        if (logToken == null || !logToken.markPooled()) {
             throw new IllegalStateException("Trying to return object which was not created using obtain() "
                     + "OR  May be endCapture() was called multiple times on the same token object.");
-        } else {
-            if (Snippet.mPrintDebugLogs) {
-                Log.d(TAG, " Recycling the LogToken object in the pool.");
+        }
+        // Only the thread that won markPooled() gets here. The monitor keeps the mutators of a handle
+        // that is going stale from writing into the token after the generation moved on.
+        synchronized (logToken) {
+            logToken.mGeneration++;
+            logToken.reset();
+            logToken.setState(LogTokenState.IN_POOL);
+        }
+        long now = ToolBox.uptimeMillis();
+        logToken.mPooledAt = now;
+        evictIdleIfDue(now);
+
+        int home = homeSlot();
+        for (int i = 0; i <= mMask; i++) {
+            int index = (home + i) & mMask;
+            if (mSlots.get(index) == null && mSlots.compareAndSet(index, null, logToken)) {
+                if (Snippet.mPrintDebugLogs) {
+                    Log.d(TAG, " Recycling the LogToken object in the pool.");
+                }
+                return;
             }
-            token.reset();
-            token.setState(LogTokenState.IN_POOL);
-            mPool.add(token);
-            mRegister.remove(token.hashCode());
+        }
+        if (Snippet.mPrintDebugLogs) {
+            Log.d(TAG, "Pool is full, LogToken is left to the GC.");
+        }
+        mAlive.decrementAndGet();
+    }
+
+    /**
+     * Evicts every token that is sitting in the pool. To be called when the app goes to the
+     * background or on memory pressure.
+     */
+    void trim() {
+        evictIdle(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs an idle eviction if the interval has elapsed, on one thread only.
+     */
+    private void evictIdleIfDue(long now) {
+        long due = mNextEvictionMillis.get();
+        if (now >= due && mNextEvictionMillis.compareAndSet(due, now + mEvictionIntervalMillis)) {
+            evictIdle(now - mIdleTimeoutMillis);
+        }
+    }
+
+    private void evictIdle(long pooledBefore) {
+        int evicted = 0;
+        for (int index = 0; index <= mMask; index++) {
+            Snippet.LogToken token = mSlots.get(index);
+            // The token could be taken and put back meanwhile, compareAndSet only removes the one we looked at.
+            if (token != null && token.mPooledAt < pooledBefore && mSlots.compareAndSet(index, token, null)) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            mAlive.addAndGet(-evicted);
+            mEvictions.addAndGet(evicted);
             if (Snippet.mPrintDebugLogs) {
-                Log.d(TAG, "Number of objects in POOL while after recycle(): " + mPool.size());
+                Log.d(TAG, evicted + " idle tokens evicted from the pool.");
+            }
+        }
+    }
+
+    private void onCreated() {
+        int alive = mAlive.incrementAndGet();
+        int highWaterMark;
+        do {
+            highWaterMark = mHighWaterMark.get();
+        } while (alive > highWaterMark && !mHighWaterMark.compareAndSet(highWaterMark, alive));
+    }
+
+    @NonNull
+    TokenPoolStats stats() {
+        long hits = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            hits += mHits.get(stripe * STRIPE_PADDING);
+        }
+        int pooled = 0;
+        for (int index = 0; index <= mMask; index++) {
+            if (mSlots.get(index) != null) {
+                pooled++;
             }
         }
+        return new TokenPoolStats(hits, mMisses.get(), mEvictions.get(), mHighWaterMark.get(), pooled, mMask + 1);
     }
 
-    private synchronized ILogToken createTokenLocked() {
-        return new Snippet.LogToken();
+    private int homeSlot() {
+        return ((int) Thread.currentThread().getId() * HASH_MULTIPLIER >>> 16) & mMask;
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.RestrictTo;
+
+import java.util.Locale;
+
+/**
+ * Builds the log lines for the measurements and prints them to the logcat.
+ * Runs on whichever thread the {@link MeasurementReporter} reports on, so it must only use the data
+ * captured inside the {@link Measurement} and never the state of the current thread.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class LogcatFormatter {
+    private static final String TAG = LogcatFormatter.class.getSimpleName();
+    static final String SEPARATOR = "|::::|";
+    private static final String UNKNOWN = "unknown";
+
+    private LogcatFormatter() {
+    }
+
+    static void print(Measurement measurement) {
+        switch (measurement.mKind) {
+            case Measurement.KIND_CAPTURE:
+                printCapture(measurement);
+                break;
+            case Measurement.KIND_LOG_TOKEN:
+                printLogToken(measurement);
+                break;
+            case Measurement.KIND_ABANDONED:
+                printAbandoned(measurement);
+                break;
+            default:
+                Log.e(TAG, "Unknown measurement kind: " + measurement.mKind);
+        }
+    }
+
+    private static void printCapture(Measurement measurement) {
+        StringBuilder logMessageBuilder = new StringBuilder();
+        String message = measurement.mMessage;
+        if (message != null && !message.isEmpty()) {
+            logMessageBuilder.append(message).append("::");
+        }
+
+        appendExecutionContextToLog(logMessageBuilder, measurement.mContext, measurement.mFlags);
+
+        logMessageBuilder.append(SEPARATOR).append('(');
+        appendDurations(logMessageBuilder, measurement).append(')');
+        Log.d(measurement.mFilter, logMessageBuilder.toString());
+    }
+
+    private static void printLogToken(Measurement measurement) {
+        StringBuilder logMessageBuilder = new StringBuilder();
+        String message = measurement.mMessage;
+        if (message != null && !message.isEmpty()) {
+            logMessageBuilder.append(message).append(SEPARATOR);
+        }
+
+        appendExecutionContextToLog(logMessageBuilder, measurement.mContext, measurement.mFlags);
+
+        logMessageBuilder.append(SEPARATOR).append('(');
+        appendDurations(logMessageBuilder, measurement).append(')');
+        Log.d(measurement.mFilter, logMessageBuilder.toString());
+
+        if (measurement.mSplitCount > 0) {
+            printSplitSummary(measurement);
+        }
+    }
+
+    // Self time is only shown when nested captures took part of the duration.
+    private static StringBuilder appendDurations(StringBuilder builder, Measurement measurement) {
+        ToolBox.appendDuration(builder, measurement.duration());
+        if (measurement.mSelfNanos != measurement.duration()) {
+            builder.append(", self ");
+            ToolBox.appendDuration(builder, measurement.mSelfNanos);
+        }
+        return builder;
+    }
+
+    private static void printAbandoned(Measurement measurement) {
+        StringBuilder logMessageBuilder = new StringBuilder();
+        logMessageBuilder.append("ABANDONED[").append(measurement.mTag).append(']')
+                .append(SEPARATOR).append("Not ended within its time to live")
+                .append(SEPARATOR).append('(');
+        ToolBox.appendDuration(logMessageBuilder, measurement.duration()).append(')');
+        Log.w(measurement.mFilter, logMessageBuilder.toString());
+    }
+
+    private static void printSplitSummary(Measurement measurement) {
+        long total = measurement.duration();
+        StringBuilder recordSummaryBuilder = new StringBuilder();
+        recordSummaryBuilder.append("                  Split Summary").append('\n');
+        recordSummaryBuilder.append("                  *********************************************************************************************"
+                + "*************************************");
+        for (int i = 0; i < measurement.mSplitCount; i++) {
+            long delta = measurement.mSplitEnds[i] - measurement.mSplitStarts[i];
+            String name = measurement.mSplitNames[i];
+            recordSummaryBuilder.append('\n').append('|').append("___").append("Split[").append(measurement.mSplitSequences[i]).append(']');
+            if (!TextUtils.isEmpty(name)) {
+                recordSummaryBuilder.append('[').append(name).append(']').append(' ');
+            }
+            ToolBox.appendDuration(recordSummaryBuilder, delta).append('/');
+            ToolBox.appendDuration(recordSummaryBuilder, total).append(' ');
+            recordSummaryBuilder.append("  ").append('(').append(String.format(Locale.US, "%.3f", ((double) delta / total) * 100)).append(" %").append(')');
+            recordSummaryBuilder.append(" of total capture.");
+        }
+        recordSummaryBuilder.append("\n                 *************************************************************************************************************************************");
+        Log.d(measurement.mFilter, recordSummaryBuilder.toString());
+    }
+
+    private static void appendExecutionContextToLog(StringBuilder logMessageBuilder, ExecutionContext context, int flags) {
+        if (isSet(flags, Snippet.FLAG_METADATA_CLASS)) {
+            if (Snippet.mPrintDebugLogs) {
+                Log.d(TAG, "FLAG_METADATA_CLASS set");
+            }
+            CallSite callSite = context.getCallSite();
+            logMessageBuilder.append("[Class = ").append(callSite != null ? callSite.getSimpleClassName() : UNKNOWN).append(']').append(SEPARATOR);
+        }
+        if (isSet(flags, Snippet.FLAG_METADATA_METHOD)) {
+            if (Snippet.mPrintDebugLogs) {
+                Log.d(TAG, "FLAG_METADATA_METHOD set");
+            }
+            String methodName = context.getMethodName();
+            logMessageBuilder.append("[Method = ").append(methodName != null ? methodName : UNKNOWN).append(']').append(SEPARATOR);
+        }
+        if (isSet(flags, Snippet.FLAG_METADATA_LINE)) {
+            if (Snippet.mPrintDebugLogs) {
+                Log.d(TAG, "FLAG_METADATA_LINE set");
+            }
+            logMessageBuilder.append("<Line no. ").append(context.getLineNo()).append('>').append(SEPARATOR);
+        }
+        if (isSet(flags, Snippet.FLAG_METADATA_THREAD_INFO)) {
+            if (Snippet.mPrintDebugLogs) {
+                Log.d(TAG, "FLAG_METADATA_THREAD_INFO set");
+            }
+            logMessageBuilder.append("[Thread name = ").append(context.getThreadName()).append(']').append(SEPARATOR);
+        }
+    }
+
+    private static boolean isSet(int flags, int flag) {
+        return (flags & flag) == flag;
+    }
+}
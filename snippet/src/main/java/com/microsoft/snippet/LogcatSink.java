@@ -0,0 +1,27 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+/**
+ * Default sink that prints the measurements on the logcat. Registered unless turned off by
+ * {@link Snippet#setLogcatEnabled(boolean)}.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class LogcatSink implements MeasurementSink {
+    static final LogcatSink INSTANCE = new LogcatSink();
+
+    private LogcatSink() {
+    }
+
+    @Override
+    public void onMeasurements(@NonNull MeasurementBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            LogcatFormatter.print(batch.get(i));
+        }
+    }
+}
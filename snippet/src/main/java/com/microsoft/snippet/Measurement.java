@@ -0,0 +1,311 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Compact record of a finished measurement that travels from the measured thread to the
+ * {@link MeasurementSink}s. The measured thread fills it in and no formatting happens until a sink
+ * decides to do so. Split arrays grow on demand and are kept across reuses.
+ * <p>
+ * Instances are recycled by the library. A measurement is valid only for the duration of
+ * {@link MeasurementSink#onMeasurements(MeasurementBatch)}, copy whatever is needed out of it and
+ * never keep a reference to it.
+ */
+public final class Measurement {
+    /**
+     * Measurement of a closure passed to {@link Snippet#capture(Snippet.Closure)}.
+     */
+    public static final int KIND_CAPTURE = 1;
+
+    /**
+     * Measurement of a log token, from startCapture() to endCapture(). Carries the splits of the token.
+     */
+    public static final int KIND_LOG_TOKEN = 2;
+
+    /**
+     * A split of a log token. Splits are never reported on their own, they are carried by the
+     * measurement of their token, see {@link Measurement#getSplitCount()}. Sinks that write the splits
+     * as separate records use this kind for them.
+     */
+    public static final int KIND_SPLIT = 3;
+
+    /**
+     * Tagged log token that was not ended within its time to live and was ended by Snippet.
+     * Start is when the token was started, end is when it expired. Carries the splits of the token.
+     * See {@link Snippet#setTagTimeToLive(long, java.util.concurrent.TimeUnit)}.
+     */
+    public static final int KIND_ABANDONED = 4;
+
+    private static final int INITIAL_SPLIT_CAPACITY = 4;
+
+    int mKind;
+    long mStartNanos;
+    long mEndNanos;
+    long mThreadId;
+    int mFlags;
+    String mFilter;
+    String mMessage;
+    String mTag;
+    TagScope mTagScope;
+    ExecutionContext mContext;
+    long mSelfNanos;
+    long mSpanId;
+    long mParentSpanId;
+    int mDepth;
+    double mWeight;
+    ExecutionPath mPath;  // Path that measured it, CompositeExecutionPath only fans out its own.
+
+    // Split summary attached to a log token.
+    int mSplitCount;
+    long[] mSplitStarts;
+    long[] mSplitEnds;
+    int[] mSplitSequences;
+    String[] mSplitNames;
+
+    long mQueuePosition;  // Owned by MeasurementQueue
+
+    Measurement() {
+    }
+
+    long duration() {
+        return mEndNanos - mStartNanos;
+    }
+
+    /**
+     * @return One of {@link Measurement#KIND_CAPTURE}, {@link Measurement#KIND_LOG_TOKEN} or
+     * {@link Measurement#KIND_ABANDONED}
+     */
+    public int getKind() {
+        return mKind;
+    }
+
+    /**
+     * Start of the measurement in nanoseconds, as per the installed {@link TimeSource}.
+     */
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * End of the measurement in nanoseconds, as per the installed {@link TimeSource}.
+     */
+    public long getEndNanos() {
+        return mEndNanos;
+    }
+
+    public long getDurationNanos() {
+        return duration();
+    }
+
+    /**
+     * Id of the thread that finished the measurement. For {@link Measurement#KIND_ABANDONED} the
+     * thread that started it.
+     */
+    public long getThreadId() {
+        return mThreadId;
+    }
+
+    /**
+     * Custom message passed to the capture, or the name of the split.
+     */
+    @Nullable
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Tag of the log token if it was started through {@link Snippet#startCapture(String)}, null otherwise.
+     */
+    @Nullable
+    public String getTag() {
+        return mTag;
+    }
+
+    /**
+     * Scope of the tag, see {@link Snippet#startCapture(String, TagScope)}. Null if there is no tag.
+     */
+    @Nullable
+    public TagScope getTagScope() {
+        return mTagScope;
+    }
+
+    /**
+     * Part of the duration, in nanoseconds, that was not spent in the nested captures and log tokens.
+     */
+    public long getSelfNanos() {
+        return mSelfNanos;
+    }
+
+    /**
+     * Id of the span, see {@link ExecutionContext#getSpanId()}. 0 if it was not tracked.
+     */
+    public long getSpanId() {
+        return mSpanId;
+    }
+
+    /**
+     * Id of the enclosing span on the thread that started this one, 0 for a root span.
+     */
+    public long getParentSpanId() {
+        return mParentSpanId;
+    }
+
+    /**
+     * Nesting level of the span, 0 for a root span.
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Number of calls the measurement stands for. 1, unless it was taken by a
+     * {@link SamplingExecutionPath}, then the inverse of the sampling rate: a capture sampled 1 in 100
+     * has a weight of 100. Aggregates count every measurement this many times, a fractional weight is
+     * rounded at random so that the counts are right on average.
+     */
+    public double getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * Logcat filter that was in effect for this measurement.
+     */
+    public String getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * FLAG_METADATA_* flags that were set in {@link Snippet} when the measurement was taken.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Execution context returned to the caller of the API.
+     * Unlike the measurement, the context can be retained.
+     */
+    @Nullable
+    public ExecutionContext getExecutionContext() {
+        return mContext;
+    }
+
+    /**
+     * Number of splits that were added to the log token, only for {@link Measurement#KIND_LOG_TOKEN} and
+     * {@link Measurement#KIND_ABANDONED}.
+     */
+    public int getSplitCount() {
+        return mSplitCount;
+    }
+
+    public long getSplitStartNanos(int index) {
+        checkSplitIndex(index);
+        return mSplitStarts[index];
+    }
+
+    public long getSplitEndNanos(int index) {
+        checkSplitIndex(index);
+        return mSplitEnds[index];
+    }
+
+    public int getSplitSequence(int index) {
+        checkSplitIndex(index);
+        return mSplitSequences[index];
+    }
+
+    @Nullable
+    public String getSplitName(int index) {
+        checkSplitIndex(index);
+        return mSplitNames[index];
+    }
+
+    private void checkSplitIndex(int index) {
+        if (index < 0 || index >= mSplitCount) {
+            throw new IndexOutOfBoundsException("Split index: " + index + ", split count: " + mSplitCount);
+        }
+    }
+
+    /**
+     * Copies the splits of a log token. Split i starts where split i - 1 ended, the first one at the
+     * start of the token.
+     */
+    void setSplits(long start, long[] ends, String[] names, int count) {
+        if (mSplitStarts == null || mSplitStarts.length < count) {
+            int capacity = Math.max(INITIAL_SPLIT_CAPACITY, Integer.highestOneBit(count - 1) << 1);
+            mSplitStarts = new long[capacity];
+            mSplitEnds = new long[capacity];
+            mSplitSequences = new int[capacity];
+            mSplitNames = new String[capacity];
+        }
+        long splitStart = start;
+        for (int i = 0; i < count; i++) {
+            mSplitStarts[i] = splitStart;
+            mSplitEnds[i] = ends[i];
+            mSplitSequences[i] = i + 1;
+            mSplitNames[i] = names[i];
+            splitStart = ends[i];
+        }
+        mSplitCount = count;
+    }
+
+    /**
+     * Copies another measurement into this one, reusing the split arrays once they are large enough.
+     * The execution context is shared, its call site is resolved only once.
+     */
+    void copyFrom(Measurement other) {
+        mKind = other.mKind;
+        mStartNanos = other.mStartNanos;
+        mEndNanos = other.mEndNanos;
+        mThreadId = other.mThreadId;
+        mFlags = other.mFlags;
+        mFilter = other.mFilter;
+        mMessage = other.mMessage;
+        mTag = other.mTag;
+        mTagScope = other.mTagScope;
+        mContext = other.mContext;
+        mSelfNanos = other.mSelfNanos;
+        mSpanId = other.mSpanId;
+        mParentSpanId = other.mParentSpanId;
+        mDepth = other.mDepth;
+        mWeight = other.mWeight;
+        mPath = other.mPath;
+        int count = other.mSplitCount;
+        if (count > 0 && (mSplitStarts == null || mSplitStarts.length < count)) {
+            int capacity = Math.max(INITIAL_SPLIT_CAPACITY, Integer.highestOneBit(count - 1) << 1);
+            mSplitStarts = new long[capacity];
+            mSplitEnds = new long[capacity];
+            mSplitSequences = new int[capacity];
+            mSplitNames = new String[capacity];
+        }
+        if (count > 0) {
+            System.arraycopy(other.mSplitStarts, 0, mSplitStarts, 0, count);
+            System.arraycopy(other.mSplitEnds, 0, mSplitEnds, 0, count);
+            System.arraycopy(other.mSplitSequences, 0, mSplitSequences, 0, count);
+            System.arraycopy(other.mSplitNames, 0, mSplitNames, 0, count);
+        }
+        mSplitCount = count;
+    }
+
+    /**
+     * Drops the references so that a slot sitting in the queue does not keep objects alive.
+     * Primitive fields are overwritten by the next user.
+     */
+    void clear() {
+        mFilter = null;
+        mMessage = null;
+        mTag = null;
+        mTagScope = null;
+        mContext = null;
+        mPath = null;
+        if (mSplitNames != null) {
+            for (int i = 0; i < mSplitCount; i++) {
+                mSplitNames[i] = null;
+            }
+        }
+        mSplitCount = 0;
+    }
+}
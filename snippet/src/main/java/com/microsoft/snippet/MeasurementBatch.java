@@ -0,0 +1,47 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Group of measurements handed over to a {@link MeasurementSink} in one call.
+ * Batch is reused by the library, it is valid only inside {@link MeasurementSink#onMeasurements(MeasurementBatch)}.
+ */
+public final class MeasurementBatch {
+    private final Measurement[] mMeasurements;
+    private int mSize;
+
+    MeasurementBatch(int capacity) {
+        this.mMeasurements = new Measurement[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    @NonNull
+    public Measurement get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+        }
+        return mMeasurements[index];
+    }
+
+    boolean isFull() {
+        return mSize == mMeasurements.length;
+    }
+
+    void add(Measurement measurement) {
+        mMeasurements[mSize++] = measurement;
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mMeasurements[i] = null;
+        }
+        mSize = 0;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.RestrictTo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock free multi producer/multi consumer queue of pre-allocated {@link Measurement} slots.
+ * Producers claim a slot, fill it in place and publish it, consumers claim a published slot,
+ * read it and release it back. No allocation happens after construction.
+ * <p>
+ * Each slot has a sequence number that tells whose turn it is, for the slot at index i and
+ * position p (p &amp; mask == i):
+ * <ol>
+ *     <li>sequence == p: free, producer claiming position p can take it.</li>
+ *     <li>sequence == p + 1: published, consumer claiming position p can take it.</li>
+ *     <li>sequence == p + capacity: released, free for the producer of the next lap.</li>
+ * </ol>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class MeasurementQueue {
+    private final Measurement[] mSlots;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();  // Next position to produce
+    private final AtomicLong mHead = new AtomicLong();  // Next position to consume
+
+    MeasurementQueue(int requestedCapacity) {
+        if (requestedCapacity < 2) {
+            throw new IllegalArgumentException("Queue capacity should at least be 2");
+        }
+        int capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+        mSlots = new Measurement[capacity];
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Measurement();
+            mSequences.set(i, i);
+        }
+        mMask = capacity - 1;
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Claims a free slot for writing. Returned slot has to be handed back through
+     * {@link MeasurementQueue#publish(Measurement)}.
+     *
+     * @return slot, null if the queue is full.
+     */
+    Measurement claimForWrite() {
+        while (true) {
+            long position = mTail.get();
+            int index = (int) position & mMask;
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    Measurement slot = mSlots[index];
+                    slot.mQueuePosition = position;
+                    return slot;
+                }
+            } else if (difference < 0) {
+                return null;  // Slot of the previous lap is not consumed yet, queue is full.
+            }
+            // Else some other producer took this position, retry with the new tail.
+        }
+    }
+
+    void publish(Measurement slot) {
+        long position = slot.mQueuePosition;
+        mSequences.lazySet((int) position & mMask, position + 1);
+    }
+
+    /**
+     * Claims the oldest published slot for reading. Returned slot has to be handed back through
+     * {@link MeasurementQueue#release(Measurement)}.
+     *
+     * @return slot, null if nothing is published.
+     */
+    Measurement claimForRead() {
+        while (true) {
+            long position = mHead.get();
+            int index = (int) position & mMask;
+            long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    Measurement slot = mSlots[index];
+                    slot.mQueuePosition = position;
+                    return slot;
+                }
+            } else if (difference < 0) {
+                return null;  // Empty or the producer of this position has not published yet.
+            }
+        }
+    }
+
+    /**
+     * Claims the oldest published slot for reading, only if it is the slot the next write needs.
+     * It is not when the consumer still holds that slot, freeing the oldest published one then would
+     * not make space for a write.
+     *
+     * @return slot, null if the oldest slot can not be replaced.
+     */
+    Measurement claimOldestForOverwrite() {
+        long position = mHead.get();
+        if (position != mTail.get() - mSlots.length) {
+            return null;
+        }
+        int index = (int) position & mMask;
+        if (mSequences.get(index) != position + 1 || !mHead.compareAndSet(position, position + 1)) {
+            return null;
+        }
+        Measurement slot = mSlots[index];
+        slot.mQueuePosition = position;
+        return slot;
+    }
+
+    void release(Measurement slot) {
+        slot.clear();
+        long position = slot.mQueuePosition;
+        mSequences.lazySet((int) position & mMask, position + mSlots.length);
+    }
+
+    boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.RestrictTo;
+
+/**
+ * Hands the finished measurements over to the registered {@link MeasurementSink}s.
+ * The measured thread obtains a {@link Measurement}, fills it and submits it back. What happens
+ * after submission, and on which thread, is up to the implementation.
+ * NOT FOR EXTERNAL USE
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+abstract class MeasurementReporter {
+    final SinkRegistry mSinks;
+
+    MeasurementReporter(SinkRegistry sinks) {
+        this.mSinks = sinks;
+    }
+
+    /**
+     * @return An empty measurement to fill, null if the measurement has to be dropped or there
+     * is no sink to consume it.
+     */
+    abstract Measurement obtain();
+
+    /**
+     * Submits a measurement obtained through {@link MeasurementReporter#obtain()}. The caller should
+     * not touch the measurement after this call.
+     */
+    abstract void submit(Measurement measurement);
+
+    /**
+     * Stops the reporter, measurements that are already submitted are still reported.
+     */
+    void shutdown() {
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the finished measurements, captures, log tokens and splits. Sinks are registered through
+ * {@link Snippet#addSink(MeasurementSink)}, several sinks can be registered at once and each of them
+ * gets every measurement. Logcat output of Snippet is a sink too, it can be switched off using
+ * {@link Snippet#setLogcatEnabled(boolean)}.
+ * <p>
+ * Measurements are delivered in batches. With the default synchronous reporting a batch holds one
+ * measurement and is delivered on the measured thread, with {@link Snippet#enableAsyncReporting(int, DropPolicy)}
+ * batches are delivered on the reporter thread and hold whatever was queued since the last delivery.
+ * Implementations should be quick and must not throw, an exception is logged and the batch moves on
+ * to the next sink.
+ */
+public interface MeasurementSink {
+
+    /**
+     * Called with the measurements finished since the last call. The batch and the measurements in
+     * it are recycled once this method returns.
+     *
+     * @param batch finished measurements, in the order they were reported.
+     */
+    void onMeasurements(@NonNull MeasurementBatch batch);
+}
@@ -8,6 +8,9 @@ import androidx.annotation.NonNull;
 
 import com.microsoft.snippet.token.ILogToken;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This is the NOOP execution path that is used by Release build types.
  */
@@ -28,6 +31,13 @@ public class ReleaseExecutionPath implements ExecutionPath {
         return RESULT;
     }
 
+    @Override
+    @NonNull
+    public ExecutionContext capture(String message, Snippet.Closure closure, CallSite callSite) {
+        closure.invoke();
+        return RESULT;
+    }
+
     @Override
     public ILogToken startCapture() {
         return Snippet.NO_OP_TOKEN;
@@ -38,8 +48,28 @@ public class ReleaseExecutionPath implements ExecutionPath {
         return Snippet.NO_OP_TOKEN;
     }
 
+    @Override
+    public ILogToken startCapture(String tag, TagScope scope) {
+        return Snippet.NO_OP_TOKEN;
+    }
+
     @Override
     public ILogToken find(String tag) {
         return Snippet.NO_OP_TOKEN;
     }
+
+    @Override
+    public ILogToken find(String tag, TagScope scope) {
+        return Snippet.NO_OP_TOKEN;
+    }
+
+    @Override
+    public List<ILogToken> findAll(String pattern, TagScope scope) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<ExecutionContext> endCaptureAll(String pattern, TagScope scope) {
+        return Collections.emptyList();
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.snippet.token.ILogToken;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Execution path that measures only a sample of the captures and log tokens, so that the
+ * instrumentation can stay on in dogfood builds.
+ * <pre>
+ * {@code
+ *     SamplingExecutionPath path = SamplingExecutionPath.withProbability(0.01);
+ *     path.setOneIn("app_start", 1);   // Always measure the app start.
+ *     Snippet.install(path);
+ * }
+ * </pre>
+ * The rate is either 1 in N, every Nth call of each thread, or a probability. It can be overridden per tag and per
+ * call site, the call site is only known for the code instrumented by the snippet gradle plugin.
+ * A call that is not sampled costs what it costs on {@link ReleaseExecutionPath}: the closure is
+ * invoked or {@link Snippet#NO_OP_TOKEN} is returned, after a sampling decision that takes a few
+ * nanoseconds. Sampled calls are measured as on {@link Snippet.MeasuredExecutionPath} and carry a
+ * {@link Measurement#getWeight()} of 1 / rate, which the aggregators of the stats package use to scale
+ * their counts.
+ * <p>
+ * Tags of the unsampled tokens are not registered, {@link Snippet#find(String)} returns
+ * {@link Snippet#NO_OP_TOKEN} for them.
+ */
+public class SamplingExecutionPath extends Snippet.MeasuredExecutionPath {
+    private static final ExecutionContext UNSAMPLED = new ExecutionContext();
+
+    private final Rate mDefaultRate;
+    private final ConcurrentMap<String, Rate> mTagRates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CallSite, Rate> mCallSiteRates = new ConcurrentHashMap<>();
+    private final ThreadLocal<Dice> mDice = new ThreadLocal<Dice>() {
+        @Override
+        protected Dice initialValue() {
+            return new Dice();
+        }
+    };
+
+    /**
+     * Sampling rate, either every Nth call or a probability.
+     */
+    private static final class Rate {
+        final int mInterval;        // 0 for a probability.
+        final long mThreshold;      // Sampled if the 53 bits random number is below.
+        final double mWeight;
+
+        // Calls left before the next sampled one, per thread so that threads do not contend on a
+        // shared counter. Starts at a random phase, short lived threads are not all sampled first.
+        final ThreadLocal<int[]> mCountdown = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[]{1 + (int) (new Dice().next() % mInterval)};
+            }
+        };
+
+        Rate(int interval, double probability) {
+            this.mInterval = interval;
+            this.mThreshold = (long) (probability * (1L << 53));
+            this.mWeight = interval > 0 ? interval : 1 / probability;
+        }
+
+        boolean sample(ThreadLocal<Dice> dice) {
+            if (mInterval == 1) {
+                return true;
+            }
+            if (mInterval > 0) {
+                int[] countdown = mCountdown.get();
+                if (--countdown[0] > 0) {
+                    return false;
+                }
+                countdown[0] = mInterval;
+                return true;
+            }
+            return dice.get().next() < mThreshold;
+        }
+    }
+
+    /**
+     * Per thread xorshift random generator, java.util.Random would contend on its seed.
+     */
+    private static final class Dice {
+        private long mState = System.nanoTime() ^ (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) | 1L;
+
+        /**
+         * @return random number on 53 bits.
+         */
+        long next() {
+            long x = mState;
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            mState = x;
+            return x >>> 11;
+        }
+    }
+
+    private SamplingExecutionPath(Rate defaultRate) {
+        this.mDefaultRate = defaultRate;
+    }
+
+    /**
+     * Measures every Nth capture and log token.
+     *
+     * @param n 1 to measure everything.
+     */
+    @NonNull
+    public static SamplingExecutionPath oneIn(int n) {
+        return new SamplingExecutionPath(oneInRate(n));
+    }
+
+    /**
+     * Measures each capture and log token with the given probability.
+     *
+     * @param probability between 0 exclusive and 1 inclusive, 0.01 to measure 1 % of the calls.
+     */
+    @NonNull
+    public static SamplingExecutionPath withProbability(double probability) {
+        return new SamplingExecutionPath(probabilityRate(probability));
+    }
+
+    /**
+     * Overrides the rate for the log tokens started with the tag.
+     */
+    public void setOneIn(@NonNull String tag, int n) {
+        mTagRates.put(tag, oneInRate(n));
+    }
+
+    /**
+     * Overrides the rate for the log tokens started with the tag.
+     */
+    public void setProbability(@NonNull String tag, double probability) {
+        mTagRates.put(tag, probabilityRate(probability));
+    }
+
+    /**
+     * Overrides the rate for the captures of an instrumented call site.
+     */
+    public void setOneIn(@NonNull CallSite callSite, int n) {
+        mCallSiteRates.put(callSite, oneInRate(n));
+    }
+
+    /**
+     * Overrides the rate for the captures of an instrumented call site.
+     */
+    public void setProbability(@NonNull CallSite callSite, double probability) {
+        mCallSiteRates.put(callSite, probabilityRate(probability));
+    }
+
+    private static Rate oneInRate(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Sampling interval should be positive: " + n);
+        }
+        return new Rate(n, 0);
+    }
+
+    private static Rate probabilityRate(double probability) {
+        if (!(probability > 0 && probability <= 1)) {
+            throw new IllegalArgumentException("Sampling probability should be in (0, 1]: " + probability);
+        }
+        return new Rate(0, probability);
+    }
+
+    private Rate rateOf(CallSite callSite) {
+        if (callSite == null || mCallSiteRates.isEmpty()) {
+            return mDefaultRate;
+        }
+        Rate rate = mCallSiteRates.get(callSite);
+        return rate != null ? rate : mDefaultRate;
+    }
+
+    private Rate rateOf(String tag) {
+        if (tag == null || mTagRates.isEmpty()) {
+            return mDefaultRate;
+        }
+        Rate rate = mTagRates.get(tag);
+        return rate != null ? rate : mDefaultRate;
+    }
+
+    @Override
+    @NonNull
+    public ExecutionContext capture(String message, Snippet.Closure closure) {
+        return capture(message, closure, null);
+    }
+
+    @Override
+    @NonNull
+    public ExecutionContext capture(Snippet.Closure closure) {
+        return capture(null, closure, null);
+    }
+
+    @Override
+    @NonNull
+    public ExecutionContext capture(String message, Snippet.Closure closure, CallSite callSite) {
+        Rate rate = rateOf(callSite);
+        if (!rate.sample(mDice)) {
+            closure.invoke();
+            return UNSAMPLED;
+        }
+        return capture(message, closure, callSite, rate.mWeight);
+    }
+
+    @Override
+    public ILogToken startCapture() {
+        Rate rate = mDefaultRate;
+        if (!rate.sample(mDice)) {
+            return Snippet.NO_OP_TOKEN;
+        }
+        return startCapture(rate.mWeight);
+    }
+
+    @Override
+    public ILogToken startCapture(String tag, TagScope scope) {
+        Rate rate = rateOf(tag);
+        if (!rate.sample(mDice)) {
+            return Snippet.NO_OP_TOKEN;
+        }
+        return startCapture(tag, scope, rate.mWeight);
+    }
+}
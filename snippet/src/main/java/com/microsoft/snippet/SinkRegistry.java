@@ -0,0 +1,66 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.util.Log;
+
+import androidx.annotation.RestrictTo;
+
+import java.util.Arrays;
+
+/**
+ * Copy on write registry of {@link MeasurementSink}s. Reporters read the current array without
+ * locking, changes are rare and replace the array.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class SinkRegistry {
+    private static final String TAG = SinkRegistry.class.getSimpleName();
+
+    private volatile MeasurementSink[] mSinks = new MeasurementSink[]{LogcatSink.INSTANCE};
+
+    synchronized boolean add(MeasurementSink sink) {
+        MeasurementSink[] current = mSinks;
+        for (MeasurementSink existing : current) {
+            if (existing == sink) {
+                return false;
+            }
+        }
+        MeasurementSink[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = sink;
+        mSinks = updated;
+        return true;
+    }
+
+    synchronized boolean remove(MeasurementSink sink) {
+        MeasurementSink[] current = mSinks;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == sink) {
+                MeasurementSink[] updated = new MeasurementSink[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                mSinks = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return mSinks.length == 0;
+    }
+
+    /**
+     * Delivers the batch to every sink. A sink throwing does not stop the delivery to others.
+     */
+    void dispatch(MeasurementBatch batch) {
+        for (MeasurementSink sink : mSinks) {
+            try {
+                sink.onMeasurements(batch);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Sink " + sink + " failed to consume the measurements", e);
+            }
+        }
+    }
+}
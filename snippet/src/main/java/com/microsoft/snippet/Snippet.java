@@ -5,7 +5,6 @@
 package com.microsoft.snippet;
 
 import android.os.Looper;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -17,9 +16,13 @@ import com.microsoft.snippet.token.ILogToken;
 import com.microsoft.snippet.token.LogTokenState;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -151,9 +154,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  *     much time some steps take within that sequence. As an example, while you are measuring some
  *     method that takes 300ms to execute, it could have multiple areas inside it that could be adding up
  *     to that number. So, to measure that {@link LogToken#addSplit()} and {@link LogToken#addSplit(String)}
- *     could be used. Each call to add split print the time takes since the last addSplit() was called.
+ *     could be used. Each split measures the time taken since the last addSplit() was called.
  *     If addSplit() is called for the first time, then it would measure the time from startCapture().
- *     Once the endCapture() is called and there are {@link Split} inside your capture, snippet also prints
+ *     A split only records a timestamp, nothing is formatted or reported until endCapture().
+ *     Once the endCapture() is called and there are splits inside your capture, snippet also prints
  *     a clean split summary that shows what was the fraction of time each split took to give an overall idea to
  *     the user.
  * </p>
@@ -199,16 +203,21 @@ public final class Snippet {
     public static final int FLAG_METADATA_THREAD_INFO = 1 << 28;
     public static final int FLAG_NONE = 0;
 
-    private static String primaryFilter = Snippet.class.getSimpleName();
-    private static final LogTokenPool OBJECT_POOL;
-    private static String packageNameFilter = "com.microsoft";
-    private static StackAnalyser stackAnalyser = new StackAnalyser(packageNameFilter);
+    private static volatile LogTokenPool OBJECT_POOL;
     private static final TagHelper TAG_HELPER;
-    private static int mFlags = FLAG_METADATA_CLASS | FLAG_METADATA_METHOD;
-    private static final String SEPARATOR = "|::::|";
+    private static final TagReaper TAG_REAPER = new TagReaper();
+    private static final LatencyBudgets LATENCY_BUDGETS = new LatencyBudgets();
     private static final OneShot<Boolean> SHOULD_PRINT_DEBUG_LOGS = new OneShot<>(false);
-    private static final OneShot<ExecutionPath> EXECUTION_PATH = new OneShot<ExecutionPath>(new ReleaseExecutionPath());  // Release is the default execution path
+    // Path, flags, filters and tag switches, swapped as a whole. Release is the default execution path.
+    private static final AtomicReference<SnippetConfig> CONFIG = new AtomicReference<>(SnippetConfig.defaults());
+    private static final AtomicBoolean INSTALLED = new AtomicBoolean();
+    // Path of the last configuration handed to onConfigChanged(), guarded by CONFIG_LOCK.
+    private static ExecutionPath activePath = CONFIG.get().mExecutionPath;
+    private static final Object CONFIG_LOCK = new Object();
     static boolean mPrintDebugLogs = unBox(SHOULD_PRINT_DEBUG_LOGS.get());  // Do not set the value from anywhere other than turnOn/Off logs. Just meant for easy reference.
+    static volatile TimeSource timeSource = SystemTimeSource.uptime();
+    private static final SinkRegistry SINKS = new SinkRegistry();
+    private static volatile MeasurementReporter measurementReporter = new SynchronousReporter(SINKS);
 
     static {
         TAG_HELPER = new TagHelper();
@@ -221,12 +230,344 @@ public final class Snippet {
     /**
      * Installs custom execution path. It is best to call this as early as possible.
      * Prior to this call, core functionality will be routed to Release Execution path which is
-     * default. Can be set once. Attempts to set it multiple times will not be honoured.
+     * default. Can be set once. Attempts to set it multiple times will not be honoured, use
+     * {@link Snippet#setExecutionPath(ExecutionPath)} to change the path at runtime.
      *
      * @param path execution path.
      */
     public static void install(ExecutionPath path) {
-        EXECUTION_PATH.set(path);
+        if (!INSTALLED.compareAndSet(false, true)) {
+            if (mPrintDebugLogs) {
+                Log.e(TAG, "Execution path already installed. Cannot install it again.");
+            }
+            return;
+        }
+        setExecutionPath(path);
+    }
+
+    /**
+     * Swaps the execution path while the app runs, for example to measure a slow session without a
+     * restart. Captures in flight finish on the path they started on.
+     *
+     * @param path execution path.
+     */
+    public static void setExecutionPath(@NonNull ExecutionPath path) {
+        SnippetConfig config;
+        do {
+            config = CONFIG.get();
+        } while (!swapConfig(config, config.withExecutionPath(path)));
+    }
+
+    /**
+     * @return the configuration in effect, see {@link SnippetConfig}.
+     */
+    @NonNull
+    public static SnippetConfig getConfig() {
+        return CONFIG.get();
+    }
+
+    /**
+     * Replaces the whole configuration at once. The measurements started after this call see all of
+     * the new configuration, none see a part of it. Changes made meanwhile by other threads are
+     * overwritten, use {@link Snippet#compareAndSetConfig(SnippetConfig, SnippetConfig)} to avoid that.
+     *
+     * @param config built from {@link Snippet#getConfig()} with its with*() methods.
+     */
+    public static void setConfig(@NonNull SnippetConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("Config cannot be null");
+        }
+        CONFIG.set(config);
+        onConfigChanged();
+    }
+
+    /**
+     * Replaces the configuration only if it is still the expected one.
+     *
+     * @return false if the configuration was changed since expected was read.
+     */
+    public static boolean compareAndSetConfig(@NonNull SnippetConfig expected, @NonNull SnippetConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("Config cannot be null");
+        }
+        return swapConfig(expected, config);
+    }
+
+    private static boolean swapConfig(SnippetConfig expected, SnippetConfig config) {
+        if (!CONFIG.compareAndSet(expected, config)) {
+            return false;
+        }
+        onConfigChanged();
+        return true;
+    }
+
+    /**
+     * Hands the current configuration to its path, so that captures dispatched to the path just
+     * before a swap still see a configuration the path was installed with, and tells the paths when
+     * they are installed and swapped out. Brings the bookkeeping up to date with whatever is current,
+     * concurrent changes can call it in any order.
+     */
+    private static void onConfigChanged() {
+        synchronized (CONFIG_LOCK) {
+            SnippetConfig config = CONFIG.get();
+            if (config.mExecutionPath instanceof MeasuredExecutionPath) {
+                ((MeasuredExecutionPath) config.mExecutionPath).mConfig = config;
+            }
+            if (config.mExecutionPath == activePath) {
+                return;
+            }
+            if (activePath instanceof MeasuredExecutionPath) {
+                ((MeasuredExecutionPath) activePath).onUninstalled();
+            }
+            activePath = config.mExecutionPath;
+            if (config.mExecutionPath instanceof MeasuredExecutionPath) {
+                // Cold start is where the first captures happen, do not let them pay for the allocations.
+                OBJECT_POOL.prewarm(LogTokenPool.DEFAULT_PREWARM_COUNT);
+                ((MeasuredExecutionPath) config.mExecutionPath).onInstalled();
+            }
+        }
+    }
+
+    /**
+     * Switches the measurement of a tag on or off at runtime. While it is off,
+     * {@link Snippet#startCapture(String)} returns {@link Snippet#NO_OP_TOKEN} for it, in every scope.
+     * Tokens already started with the tag are not affected.
+     *
+     * @param tag     tag passed to {@link Snippet#startCapture(String)}.
+     * @param enabled false to stop measuring the tag.
+     */
+    public static void setTagEnabled(@NonNull String tag, boolean enabled) {
+        SnippetConfig config;
+        do {
+            config = CONFIG.get();
+        } while (!swapConfig(config, config.withTagEnabled(tag, enabled)));
+    }
+
+    /**
+     * Replaces the log token pool with a new one. Call it before {@link Snippet#install(ExecutionPath)},
+     * the statistics of the old pool are lost.
+     *
+     * @param capacity          maximum number of tokens kept in the pool, rounded up to a power of two.
+     * @param prewarmCount      number of tokens created right away.
+     * @param idleTimeoutMillis tokens that are not reused for this long are dropped from the pool.
+     */
+    public static void configureTokenPool(int capacity, int prewarmCount, long idleTimeoutMillis) {
+        LogTokenPool pool = new LogTokenPool(capacity, idleTimeoutMillis);
+        pool.prewarm(prewarmCount);
+        OBJECT_POOL = pool;
+    }
+
+    /**
+     * Drops all the log tokens that are sitting in the pool. Call it from
+     * ComponentCallbacks2#onTrimMemory() when the app goes to the background.
+     */
+    public static void trimTokenPool() {
+        OBJECT_POOL.trim();
+    }
+
+    /**
+     * Sets how long a log token started with {@link Snippet#startCapture(String)} can stay open.
+     * A token that is not ended within this time is ended by Snippet, reported as
+     * {@link Measurement#KIND_ABANDONED}, untagged and recycled, so the tag can be used again.
+     * Disabled by default.
+     *
+     * @param timeToLive 0 to never expire the tagged tokens.
+     * @param unit       unit of the time to live.
+     */
+    public static void setTagTimeToLive(long timeToLive, @NonNull TimeUnit unit) {
+        TAG_REAPER.setDefaultTimeToLive(timeToLive, unit);
+    }
+
+    /**
+     * Overrides the time to live set by {@link Snippet#setTagTimeToLive(long, TimeUnit)} for one tag.
+     * Applies to the tokens tagged after this call.
+     *
+     * @param tag        tag passed to {@link Snippet#startCapture(String)}.
+     * @param timeToLive 0 to never expire the tokens with this tag, negative to go back to the default.
+     * @param unit       unit of the time to live.
+     */
+    public static void setTagTimeToLive(@NonNull String tag, long timeToLive, @NonNull TimeUnit unit) {
+        TAG_REAPER.setTimeToLive(tag, timeToLive, unit);
+    }
+
+    /**
+     * @return number of tagged tokens that were ended because they outlived their time to live.
+     */
+    public static long getAbandonedCaptureCount() {
+        return TAG_REAPER.getAbandonedCount();
+    }
+
+    /**
+     * Sets how long the log tokens started with the tag may take, from startCapture() to
+     * endCapture(). Tokens that take longer are reported to the {@link BudgetListener}. A tag budget
+     * wins over the budgets of the call site and of the thread.
+     *
+     * @param tag    tag passed to {@link Snippet#startCapture(String)}.
+     * @param budget 0 to remove the budget of the tag.
+     * @param unit   unit of the budget.
+     */
+    public static void setLatencyBudget(@NonNull String tag, long budget, @NonNull TimeUnit unit) {
+        LATENCY_BUDGETS.setBudget(tag, budget, unit);
+    }
+
+    /**
+     * Sets how long the captures of the call site, or the log tokens ended there, may take. A call
+     * site budget wins over the budget of the thread and applies without one. For code that is not
+     * instrumented by the snippet gradle plugin, the call site of a measurement longer than the
+     * smallest call site budget is resolved from the stack on a background thread.
+     *
+     * @param callSite code location of capture() or endCapture().
+     * @param budget   0 to remove the budget of the call site.
+     * @param unit     unit of the budget.
+     */
+    public static void setLatencyBudget(@NonNull CallSite callSite, long budget, @NonNull TimeUnit unit) {
+        LATENCY_BUDGETS.setBudget(callSite, budget, unit);
+    }
+
+    /**
+     * Sets how long any capture or log token ended on a class of thread may take, for example 16 ms
+     * on the main thread.
+     *
+     * @param threadClass thread the capture or endCapture() runs on.
+     * @param budget      0 to remove the budget of the thread class.
+     * @param unit        unit of the budget.
+     */
+    public static void setLatencyBudget(@NonNull ThreadClass threadClass, long budget, @NonNull TimeUnit unit) {
+        LATENCY_BUDGETS.setBudget(threadClass, budget, unit);
+    }
+
+    /**
+     * Removes all the latency budgets.
+     */
+    public static void clearLatencyBudgets() {
+        LATENCY_BUDGETS.clear();
+    }
+
+    /**
+     * Sets the listener notified of the captures and log tokens that go over their latency budget.
+     * The listener is called on a background thread with the longest splits of the token. Budgets are
+     * not checked at all while there is no listener.
+     *
+     * @param listener null to stop checking the budgets.
+     */
+    public static void setBudgetListener(@Nullable BudgetListener listener) {
+        LATENCY_BUDGETS.setListener(listener);
+    }
+
+    /**
+     * @return number of budget violations dropped because the listener could not keep up.
+     */
+    public static long getDroppedBudgetViolationCount() {
+        return LATENCY_BUDGETS.getDroppedCount();
+    }
+
+    /**
+     * @return hits, misses and high-water mark of the log token pool.
+     */
+    @NonNull
+    public static TokenPoolStats getTokenPoolStats() {
+        return OBJECT_POOL.stats();
+    }
+
+    /**
+     * Replaces the clock used for all the measurements. All the timestamps and durations recorded by
+     * Snippet are in nanoseconds as returned by {@link TimeSource#nanoTime()}.
+     * Default is {@link SystemTimeSource#uptime()}. Swap it before any capture starts, tokens that
+     * are in flight while the source is changed will report garbage durations.
+     *
+     * @param source new time source.
+     */
+    public static void setTimeSource(@NonNull TimeSource source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Time source cannot be null");
+        }
+        timeSource = source;
+    }
+
+    /**
+     * @return the time source used for the measurements.
+     */
+    @NonNull
+    public static TimeSource getTimeSource() {
+        return timeSource;
+    }
+
+    /**
+     * Moves the formatting and printing of the measurements off the measured thread. Measured thread
+     * only writes the raw numbers into a bounded lock free queue, a background thread formats and
+     * prints them. If the queue is full, a measurement is dropped as per the drop policy and
+     * counted in {@link Snippet#getDroppedMeasurementCount()}, measured thread never waits.
+     * Measurements in flight while the reporting mode is switched could get lost.
+     *
+     * @param capacity   Size of the queue, rounded up to a power of 2.
+     * @param dropPolicy What to drop when the queue is full.
+     */
+    public static void enableAsyncReporting(int capacity, @NonNull DropPolicy dropPolicy) {
+        switchReporter(new AsyncReporter(SINKS, capacity, dropPolicy));
+    }
+
+    /**
+     * Goes back to formatting and printing the measurements on the measured thread. This is the default.
+     */
+    public static void disableAsyncReporting() {
+        switchReporter(new SynchronousReporter(SINKS));
+    }
+
+    /**
+     * Number of measurements dropped by the current asynchronous reporter because its queue was full.
+     *
+     * @return dropped count, 0 if async reporting is not enabled.
+     */
+    public static long getDroppedMeasurementCount() {
+        MeasurementReporter reporter = measurementReporter;
+        if (reporter instanceof AsyncReporter) {
+            return ((AsyncReporter) reporter).droppedCount();
+        }
+        return 0L;
+    }
+
+    /**
+     * Registers a sink that receives every finished measurement. Multiple sinks can be registered,
+     * each one gets all the measurements in the order of registration. See {@link MeasurementSink}.
+     *
+     * @param sink sink to add.
+     * @return false if the sink was already registered.
+     */
+    public static boolean addSink(@NonNull MeasurementSink sink) {
+        if (sink == null) {
+            throw new IllegalArgumentException("Sink cannot be null");
+        }
+        return SINKS.add(sink);
+    }
+
+    /**
+     * Unregisters a sink added through {@link Snippet#addSink(MeasurementSink)}.
+     *
+     * @param sink sink to remove.
+     * @return false if the sink was not registered.
+     */
+    public static boolean removeSink(@NonNull MeasurementSink sink) {
+        return SINKS.remove(sink);
+    }
+
+    /**
+     * Turns the logcat output on/off, it is on by default. With logcat off and no other sink
+     * registered, measurements are not even recorded and only the {@link ExecutionContext} is returned.
+     *
+     * @param enabled true to print measurements to the logcat.
+     */
+    public static void setLogcatEnabled(boolean enabled) {
+        if (enabled) {
+            SINKS.add(LogcatSink.INSTANCE);
+        } else {
+            SINKS.remove(LogcatSink.INSTANCE);
+        }
+    }
+
+    private static synchronized void switchReporter(MeasurementReporter newReporter) {
+        MeasurementReporter oldReporter = measurementReporter;
+        measurementReporter = newReporter;
+        oldReporter.shutdown();
     }
 
     /**
@@ -236,7 +577,7 @@ public final class Snippet {
      * @param closure Lambda or implementation representing the closure.
      */
     public static void capture(String message, Closure closure) {
-        EXECUTION_PATH.get().capture(message, closure);
+        CONFIG.get().mExecutionPath.capture(message, closure);
     }
 
     /**
@@ -245,7 +586,32 @@ public final class Snippet {
      * @param closure Lambda or implementation representing the closure.
      */
     public static void capture(Closure closure) {
-        EXECUTION_PATH.get().capture(null, closure);
+        CONFIG.get().mExecutionPath.capture(null, closure);
+    }
+
+    /**
+     * Overload of {@link Snippet#capture(String, Closure)} for the code instrumented by the snippet
+     * gradle plugin, the call site is computed at build time and no stack analysis is needed.
+     * Not meant to be called by hand.
+     *
+     * @param message  Custom message if any.
+     * @param closure  Lambda or implementation representing the closure.
+     * @param callSite Code location that called capture().
+     */
+    public static void capture(String message, Closure closure, CallSite callSite) {
+        CONFIG.get().mExecutionPath.capture(message, closure, callSite);
+    }
+
+    /**
+     * Overload of {@link Snippet#capture(Closure)} for the code instrumented by the snippet
+     * gradle plugin, the call site is computed at build time and no stack analysis is needed.
+     * Not meant to be called by hand.
+     *
+     * @param closure  Lambda or implementation representing the closure.
+     * @param callSite Code location that called capture().
+     */
+    public static void capture(Closure closure, CallSite callSite) {
+        CONFIG.get().mExecutionPath.capture(null, closure, callSite);
     }
 
     /**
@@ -254,95 +620,101 @@ public final class Snippet {
      * and android SDK frames, it has to identify the last frame which was related to the user application.
      * For that uses the regex matching this filter to identify the user's application frame.
      * After receiving the new regex it replaces the old stack analyser component with the new one.
-     * This impacts stack analyser of the log token also. Any log token created after this call will
-     * use the new regex, but token created before this call will have this one.
+     * This impacts the log tokens also, log tokens ended after this call use the new regex.
      *
      * @param regex REGEX identifying the application.
      */
     public static void setPackageRegex(String regex) {
-        packageNameFilter = regex;
-        stackAnalyser = new StackAnalyser(packageNameFilter);
+        SnippetConfig config;
+        do {
+            config = CONFIG.get();
+        } while (!swapConfig(config, config.withPackageRegex(regex)));
     }
 
-    private static ExecutionContext invokeMeasureAndAttachExecutionContext(String message, Closure closure) {
-        long delta = ToolBox.invokeAndMeasure(closure);
-        ExecutionContext executionContext = getExecutionContext();
-        executionContext.setExecutionDuration(delta);
+    /**
+     * @param config snapshot read once when the capture started.
+     * @param weight number of calls the measurement stands for, see {@link Measurement#getWeight()}.
+     */
+    private static ExecutionContext invokeMeasureAndAttachExecutionContext(SnippetConfig config, String message, Closure closure,
+                                                                           CallSite callSite, double weight) {
+        SpanStack spans = SpanStack.current();
+        SpanStack.Frame span = spans.push();
+        long start = ToolBox.currentTime();
+        long end;
+        try {
+            closure.invoke();
+        } finally {
+            end = ToolBox.currentTime();
+            if (span != null) {
+                spans.pop(span, end - start);
+            }
+        }
+        ExecutionContext executionContext = getExecutionContext(callSite, config);
+        executionContext.setExecutionDuration(end - start);
+        if (span != null) {
+            // Frame is reused only by the next push on this thread, it can still be read.
+            executionContext.setSpan(span.mSpanId, span.mParentSpanId, span.mDepth, end - start - span.mChildNanos);
+        }
+        if (LATENCY_BUDGETS.mayExceed(end - start)) {
+            LATENCY_BUDGETS.check(Measurement.KIND_CAPTURE, null, callSite, executionContext, end - start, start, null, null, 0);
+        }
 
-        // Build the log string using the snippet info we got.
-        StringBuilder logMessageBuilder = new StringBuilder();
-        if (message != null && !message.isEmpty()) {
-            logMessageBuilder.append(message).append("::");
+        // Only the data is handed over here, log string is built by the reporter.
+        MeasurementReporter reporter = measurementReporter;
+        Measurement measurement = reporter.obtain();
+        if (measurement != null) {
+            fillMeasurement(measurement, Measurement.KIND_CAPTURE, start, end, message, config.mFilter, config, weight);
+            fillSpan(measurement, executionContext);
+            reporter.submit(measurement);
         }
+        return executionContext;
+    }
 
-        appendExecutionContextToLog(logMessageBuilder, executionContext);
+    private static void fillMeasurement(Measurement measurement, int kind, long start, long end, String message,
+                                        String filter, SnippetConfig config, double weight) {
+        measurement.mKind = kind;
+        measurement.mStartNanos = start;
+        measurement.mEndNanos = end;
+        measurement.mThreadId = Thread.currentThread().getId();
+        measurement.mMessage = message;
+        measurement.mTag = null;
+        measurement.mTagScope = null;
+        measurement.mFilter = filter;
+        measurement.mFlags = config.mFlags;
+        measurement.mWeight = weight;
+        measurement.mPath = config.mExecutionPath;
+    }
 
-        logMessageBuilder.append(SEPARATOR).append('(').append(delta).append(" ms)");
-        Log.d(primaryFilter, logMessageBuilder.toString());
-        return executionContext;
+    private static void fillSpan(Measurement measurement, ExecutionContext executionContext) {
+        measurement.mContext = executionContext;
+        measurement.mSelfNanos = executionContext.getSelfDurationNanos();
+        measurement.mSpanId = executionContext.getSpanId();
+        measurement.mParentSpanId = executionContext.getParentSpanId();
+        measurement.mDepth = executionContext.getDepth();
     }
 
     /**
      * Returns the execution context in te form of SnippetInfo class. That can be returned and
-     * used by external clients too.
+     * used by external clients too. If the call site is not known at build time, only a handle to
+     * the stack is taken here, call site is resolved when someone asks for it. The handle is always
+     * taken, the context is handed back to the caller, who may ask for the call site at any time.
      *
+     * @param callSite call site if known, null otherwise.
+     * @param config   resolves the call site from the stack if it is not known.
      * @return snippet info.
      */
-    private static ExecutionContext getExecutionContext() {
-
-        Thread thread = Thread.currentThread();
-
+    private static ExecutionContext getExecutionContext(CallSite callSite, SnippetConfig config) {
         ExecutionContext info = new ExecutionContext();
-        info.setClassName(stackAnalyser.callingClass(thread, StackAnalyser.API_CAPTURE));
-        info.setMethod(stackAnalyser.callingMethod(thread, StackAnalyser.API_CAPTURE));
-        info.setLineNo(stackAnalyser.callingLine(thread, StackAnalyser.API_CAPTURE));
-        info.setThreadName(thread.getName());
-
-        return info;
-    }
-
-    private static void appendExecutionContextToLog(StringBuilder logMessageBuilder, ExecutionContext context) {
-        if (testFlag(FLAG_METADATA_CLASS)) {
-            if (Snippet.mPrintDebugLogs) {
-                Log.d(TAG, "FLAG_METADATA_CLASS set");
-            }
-            String trimmedClass = trimPackageFromClass(context.getClassName());
-            logMessageBuilder.append("[Class = ").append(trimmedClass).append(']').append(SEPARATOR);
-        }
-        if (testFlag(FLAG_METADATA_METHOD)) {
-            if (Snippet.mPrintDebugLogs) {
-                Log.d(TAG, "FLAG_METADATA_METHOD set");
-            }
-            logMessageBuilder.append("[Method = ").append(context.getMethodName()).append(']').append(SEPARATOR);
-        }
-        if (testFlag(FLAG_METADATA_LINE)) {
-            if (Snippet.mPrintDebugLogs) {
-                Log.d(TAG, "FLAG_METADATA_LINE set");
-            }
-            logMessageBuilder.append("<Line no. ").append(context.getLineNo()).append('>').append(SEPARATOR);
-        }
-        if (testFlag(FLAG_METADATA_THREAD_INFO)) {
-            if (Snippet.mPrintDebugLogs) {
-                Log.d(TAG, "FLAG_METADATA_THREAD_INFO set");
-            }
-            logMessageBuilder.append("[Thread name = ").append(Thread.currentThread().getName()).append(']').append(SEPARATOR);
+        if (callSite != null) {
+            info.setCallSite(callSite);
+        } else {
+            info.setCallSiteHandle(config.mStackAnalyser, StackAnalyser.captureHandle(), StackAnalyser.API_CAPTURE);
         }
+        info.setThreadName(Thread.currentThread().getName());
 
+        return info;
     }
 
-    private static String trimPackageFromClass(String qualifiedName) {
-        String[] tokens = qualifiedName.split("\\.");
-        if (Snippet.mPrintDebugLogs) {
-            StringBuilder temp = new StringBuilder();
-            for (String a : tokens) {
-                temp.append('[').append(a).append("] ");
-            }
-            Log.d(TAG, "trimPackageFromClass() tokens: " + temp.toString());
-        }
-        return tokens[tokens.length - 1];
-    }
-
-
     /**
      * Set a new global filter and returns the old filter, just in case if you need to restore it.
      *
@@ -350,9 +722,11 @@ public final class Snippet {
      * @return old filter value.
      */
     public static String newFilter(String newFilterKey) {
-        String oldTag = primaryFilter;
-        primaryFilter = newFilterKey;
-        return oldTag;
+        SnippetConfig config;
+        do {
+            config = CONFIG.get();
+        } while (!swapConfig(config, config.withFilter(newFilterKey)));
+        return config.mFilter;
     }
 
     /**
@@ -370,8 +744,13 @@ public final class Snippet {
      */
     public static int addFlag(int flag) {
         //assureCorrectFlag(flag);  // This will prevent us from supplying compound flags.
-        mFlags |= flag;
-        return mFlags;
+        SnippetConfig config;
+        SnippetConfig updated;
+        do {
+            config = CONFIG.get();
+            updated = config.withFlags(config.mFlags | flag);
+        } while (!swapConfig(config, updated));
+        return updated.mFlags;
     }
 
     private static void assureCorrectFlag(int flag) {
@@ -391,7 +770,7 @@ public final class Snippet {
      */
     public static boolean testFlag(int flag) {
         assureCorrectFlag(flag);
-        return (mFlags & flag) == flag;
+        return (CONFIG.get().mFlags & flag) == flag;
     }
 
     /**
@@ -399,7 +778,10 @@ public final class Snippet {
      * Calling this will not show any execution context in the logs.
      */
     public static void clearFlags() {
-        mFlags = FLAG_NONE;
+        SnippetConfig config;
+        do {
+            config = CONFIG.get();
+        } while (!swapConfig(config, config.withFlags(FLAG_NONE)));
     }
 
     /**
@@ -410,7 +792,7 @@ public final class Snippet {
      */
     @NonNull
     public static ILogToken startCapture() {
-        return EXECUTION_PATH.get().startCapture();
+        return CONFIG.get().mExecutionPath.startCapture();
     }
 
 
@@ -429,7 +811,29 @@ public final class Snippet {
      */
     @Nullable
     public static ILogToken startCapture(String tag) {
-        return EXECUTION_PATH.get().startCapture(tag);
+        SnippetConfig config = CONFIG.get();
+        if (!config.isTagEnabled(tag)) {
+            return NO_OP_TOKEN;
+        }
+        return config.mExecutionPath.startCapture(tag);
+    }
+
+    /**
+     * Same as {@link Snippet#startCapture(String)}, but the tag only needs to be unique within the
+     * scope. Use {@link TagScope#thread()} or {@link TagScope#of(Object)} to measure the same flow on
+     * several threads or executors at the same time.
+     *
+     * @param tag   tag
+     * @param scope namespace of the tag
+     * @return LogToken which can we retrieved using the tag and scope if request successful, no op token otherwise
+     */
+    @NonNull
+    public static ILogToken startCapture(String tag, @NonNull TagScope scope) {
+        SnippetConfig config = CONFIG.get();
+        if (!config.isTagEnabled(tag)) {
+            return NO_OP_TOKEN;
+        }
+        return config.mExecutionPath.startCapture(tag, scope);
     }
 
     /**
@@ -440,7 +844,68 @@ public final class Snippet {
      * @return LogToken if existing, attenuated token otherwise.
      */
     public static ILogToken find(String tag) {
-        return EXECUTION_PATH.get().find(tag);
+        return CONFIG.get().mExecutionPath.find(tag);
+    }
+
+    /**
+     * Finds a token started with {@link Snippet#startCapture(String, TagScope)}.
+     *
+     * @param tag   Tag
+     * @param scope Scope the tag was started in
+     * @return LogToken if existing, attenuated token otherwise.
+     */
+    public static ILogToken find(String tag, @NonNull TagScope scope) {
+        return CONFIG.get().mExecutionPath.find(tag, scope);
+    }
+
+    /**
+     * Finds all the tokens whose tag matches the pattern, in any scope. '*' matches any sequence of
+     * characters, so <code>findAll("net/feed/*")</code> returns every in-flight capture tagged under
+     * "net/feed/". A pattern without '*' matches the tag exactly.
+     *
+     * @param pattern Tag or wildcard pattern.
+     * @return Matching tokens sorted by tag, empty list if none.
+     */
+    @NonNull
+    public static List<ILogToken> findAll(@NonNull String pattern) {
+        return CONFIG.get().mExecutionPath.findAll(pattern, null);
+    }
+
+    /**
+     * Same as {@link Snippet#findAll(String)}, limited to the tokens started in the given scope.
+     *
+     * @param pattern Tag or wildcard pattern.
+     * @param scope   Scope the tags were started in.
+     * @return Matching tokens sorted by tag, empty list if none.
+     */
+    @NonNull
+    public static List<ILogToken> findAll(@NonNull String pattern, @NonNull TagScope scope) {
+        return CONFIG.get().mExecutionPath.findAll(pattern, scope);
+    }
+
+    /**
+     * Ends all the tokens whose tag matches the pattern, in any scope. Useful when a screen is torn
+     * down: <code>endCaptureAll("net/feed/*")</code> ends every capture of the feed that is still
+     * running. Tokens with thread lock enabled are only ended if called on their creator thread.
+     *
+     * @param pattern Tag or wildcard pattern.
+     * @return Execution contexts of the captures that were ended.
+     */
+    @NonNull
+    public static List<ExecutionContext> endCaptureAll(@NonNull String pattern) {
+        return CONFIG.get().mExecutionPath.endCaptureAll(pattern, null);
+    }
+
+    /**
+     * Same as {@link Snippet#endCaptureAll(String)}, limited to the tokens started in the given scope.
+     *
+     * @param pattern Tag or wildcard pattern.
+     * @param scope   Scope the tags were started in.
+     * @return Execution contexts of the captures that were ended.
+     */
+    @NonNull
+    public static List<ExecutionContext> endCaptureAll(@NonNull String pattern, @NonNull TagScope scope) {
+        return CONFIG.get().mExecutionPath.endCaptureAll(pattern, scope);
     }
 
     public static void turnOnLogging() {
@@ -480,20 +945,44 @@ public final class Snippet {
      */
     public static class LogToken implements ILogToken {
         private static final String TAG = LogToken.class.getSimpleName();
-        private static final String SPLIT_MESSAGE = "********SPLIT[" + "%1s" + "]"
-                + SEPARATOR + "(" + "%2s" + " " + "ms"
-                + ")" + "********";
+        private static final int INITIAL_SPLIT_CAPACITY = 4;
+        private static final int MAX_RETAINED_SPLITS = 64;
+        private static final AtomicIntegerFieldUpdater<LogToken> POOLED_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(LogToken.class, "mPooled");
 
-        private final StackAnalyser mLocalAnalyser = new StackAnalyser(packageNameFilter);
         private long mStartTime;
         private long mEndTime;
         private String mFilter;
         private long mThreadId = -1L;
+        private TagKey mTagKey;
         private boolean mThreadLockEnabled = false;
         private volatile LogTokenState mState;
-        private long mLastSplitTimeCaptured = 0L;
-        private List<Split> mSplitRecord;
-        private final AtomicInteger mSequenceNumber = new AtomicInteger(1);
+
+        // Splits, guarded by this. Split i runs from the end of split i - 1 (or the start of the token)
+        // to mSplitEnds[i]. The arrays are kept when the token goes back to the pool.
+        private long[] mSplitEnds;
+        private String[] mSplitNames;
+        private int mSplitCount;
+
+        // 1 while the token sits in the LogTokenPool, 0 while it is handed out. Owned by the pool.
+        volatile int mPooled;
+
+        // Span pushed on the creator thread by startCapture(), null if already ended or not tracked.
+        SpanStack.Frame mSpan;
+        final SpanStack.Frame mSpanFrame = new SpanStack.Frame(true);
+
+        // Number of calls the token stands for, more than 1 when it was sampled.
+        double mWeight = 1d;
+
+        // Configuration snapshot read when the capture started, used when it ends.
+        SnippetConfig mConfig;
+
+        // Bumped every time the token goes back to the pool. A LogTokenHandle from an older generation is stale.
+        volatile int mGeneration;
+
+        // Uptime millis when the token was put back in the pool, used for idle eviction. Owned by the
+        // pool, read by the thread that evicts while the token sits in a slot.
+        volatile long mPooledAt;
 
         // To be called only through LogTokenPool. Should not be created through any other ways.
         protected LogToken() {
@@ -506,7 +995,7 @@ public final class Snippet {
                 Log.d(TAG, "<init> will be called once per LogToken object, after the usage is over, it will be returned to the pool and will get recycled using obtain()");
             }
             this.mStartTime = ToolBox.currentTime();
-            this.mFilter = Snippet.primaryFilter;   // Uses the primary filter by default.
+            this.mFilter = CONFIG.get().mFilter;   // Uses the primary filter by default.
         }
 
         /**
@@ -557,15 +1046,27 @@ public final class Snippet {
         public void reset() {
             this.mStartTime = 0;
             this.mEndTime = 0;
-            this.mFilter = Snippet.primaryFilter;
+            this.mFilter = CONFIG.get().mFilter;
             this.mThreadId = -1L;
+            this.mTagKey = null;
+            this.mWeight = 1d;
+            this.mConfig = null;
             this.mThreadLockEnabled = false;
-            if (this.mSplitRecord != null) {
-                this.mSplitRecord.clear();
+            if (this.mSpan != null) {
+                // Token is dropped without being ended, it does not count as a child of its parent.
+                SpanStack.end(this.mSpan, 0L);
+                this.mSpan = null;
+            }
+            synchronized (this) {
+                if (mSplitEnds != null && mSplitEnds.length > MAX_RETAINED_SPLITS) {
+                    // Do not keep the arrays of a token that was split in a long loop.
+                    mSplitEnds = null;
+                    mSplitNames = null;
+                } else if (mSplitNames != null) {
+                    Arrays.fill(mSplitNames, 0, mSplitCount, null);
+                }
+                mSplitCount = 0;
             }
-            this.mSequenceNumber.set(1);
-            this.mLastSplitTimeCaptured = 0L;
-            this.mSplitRecord = null;
         }
 
         /**
@@ -577,8 +1078,7 @@ public final class Snippet {
          */
         @Override
         public void addSplit() {
-            Split newSplit = addSplitInternal();
-            Log.d(mFilter, String.format(SPLIT_MESSAGE, newSplit.sequence(), newSplit.delta()));
+            addSplit(null, mGeneration);
         }
 
         /**
@@ -589,44 +1089,59 @@ public final class Snippet {
          */
         @Override
         public void addSplit(String message) {
-            Split newSplit = addSplitInternal();
-            newSplit.setName(message);
-            Log.d(mFilter, String.format(SPLIT_MESSAGE, "[" + newSplit.sequence() + "]" + message, newSplit.delta()));
+            addSplit(message, mGeneration);
         }
 
-        private Split addSplitInternal() {
-            // This is not fully true but a quick hack, will have to think about multiple states possible.
-            if (mState != LogTokenState.ACTIVE) {
-                throw new IllegalStateException("addSplit() called after endCapture() is executed! Development error!!!!!!");
-            }
-            Split newSplit = createSplit();
+        /**
+         * Adds the split only if the token is still in the given generation.
+         *
+         * @throws IllegalStateException if the token was ended and recycled since.
+         */
+        void addSplit(String message, int generation) {
+            long now = ToolBox.currentTime();
             synchronized (this) {
-                if (mSplitRecord == null) {
-                    mSplitRecord = new ArrayList<>();
+                // This is not fully true but a quick hack, will have to think about multiple states possible.
+                if (mState != LogTokenState.ACTIVE || mGeneration != generation) {
+                    throw new IllegalStateException("addSplit() called after endCapture() is executed! Development error!!!!!!");
                 }
-                mSplitRecord.add(newSplit);
+                if (mSplitEnds == null) {
+                    mSplitEnds = new long[INITIAL_SPLIT_CAPACITY];
+                    mSplitNames = new String[INITIAL_SPLIT_CAPACITY];
+                } else if (mSplitCount == mSplitEnds.length) {
+                    mSplitEnds = Arrays.copyOf(mSplitEnds, mSplitCount * 2);
+                    mSplitNames = Arrays.copyOf(mSplitNames, mSplitCount * 2);
+                }
+                // The name is only referenced, it is formatted by the sinks after endCapture().
+                mSplitEnds[mSplitCount] = now;
+                mSplitNames[mSplitCount] = message;
+                mSplitCount++;
             }
-            return newSplit;
         }
 
-        private Split createSplit() {
-            Split newSplit;
+        /**
+         * Sends a token that was never handed out back to the pool, unless it was ended meanwhile
+         * and is already there.
+         *
+         * @return false if the token was already ended.
+         */
+        boolean discard(int generation) {
             synchronized (this) {
-                if (mState != LogTokenState.ACTIVE) {
-                    throw new IllegalStateException("addSplit() called after endCapture() is executed! Development error!!!!!!");
-                }
-                if (mLastSplitTimeCaptured == 0L) {  // Split called for the first time
-                    // We use the token start time as the reference.
-                    mLastSplitTimeCaptured = ToolBox.currentTime();
-                    newSplit = new Split(getStart(), mLastSplitTimeCaptured, mSequenceNumber.getAndIncrement());
-                } else {
-                    // Here we use the last split time captured.
-                    long currentTime = ToolBox.currentTime();
-                    newSplit = new Split(getStart(), mLastSplitTimeCaptured, mSequenceNumber.getAndIncrement());
-                    mLastSplitTimeCaptured = currentTime;
+                if (mGeneration != generation || mState == LogTokenState.END_CAPTURE_EXECUTED) {
+                    return false;
                 }
+                mState = LogTokenState.END_CAPTURE_EXECUTED;
+                OBJECT_POOL.recycle(this);
+                return true;
             }
-            return newSplit;
+        }
+
+        /**
+         * Flags the token as returned to the pool.
+         *
+         * @return false if the token was already returned.
+         */
+        boolean markPooled() {
+            return POOLED_UPDATER.compareAndSet(this, 0, 1);
         }
 
         @Override
@@ -644,48 +1159,7 @@ public final class Snippet {
          */
         @Override
         public ExecutionContext endCapture() {
-            synchronized (this) {
-                if (mState == LogTokenState.END_CAPTURE_EXECUTED) {
-                    return Snippet.EMPTY_CONTEXT;
-                }
-                ExecutionContext executionContext;
-                if (ToolBox.willThreadLockGuardThisCapture(Thread.currentThread(), this)) {
-                    Log.e(TAG, "ThreadLocks enabled! Not able to end the capture as the token "
-                            + "creating thread is not same as the thread calling endCapture().");
-
-                    return Snippet.EMPTY_CONTEXT;
-                } else {
-                    mState = LogTokenState.END_CAPTURE_EXECUTED;
-                    executionContext = doEndSlice(null);
-                    if (mSplitRecord != null && mSplitRecord.size() > 0) {
-                        dumpSplitData(mSplitRecord, executionContext);
-                    }
-                    ILogToken token = TAG_HELPER.unTag(this);
-                    if (token == null) {
-                        Log.e(TAG, "Not able to unTag as the tag for the request was not available.");
-                    }
-                    OBJECT_POOL.recycle(this);
-                    return executionContext;
-                }
-            }
-        }
-
-        private void dumpSplitData(List<Split> splits, ExecutionContext context) {
-            StringBuilder recordSummaryBuilder = new StringBuilder('\n');
-            recordSummaryBuilder.append("                  Split Summary").append('\n');
-            recordSummaryBuilder.append("                  *********************************************************************************************"
-                    + "*************************************");
-            for (Split split : splits) {
-                recordSummaryBuilder.append('\n').append('|').append("___").append("Split[").append(split.sequence()).append(']');
-                if (split.getName() != null && !TextUtils.isEmpty(split.getName())) {
-                    recordSummaryBuilder.append('[').append(split.getName()).append(']').append(' ');
-                }
-                recordSummaryBuilder.append(split.delta()).append('/').append(context.getExecutionDuration()).append(" ( ms ) ");
-                recordSummaryBuilder.append("  ").append('(').append(String.format(Locale.US, "%.3f", split.percentage(context.getExecutionDuration()))).append(" %").append(')');
-                recordSummaryBuilder.append(" of total capture.");
-            }
-            recordSummaryBuilder.append("\n                 *************************************************************************************************************************************");
-            Log.d(mFilter, recordSummaryBuilder.toString());
+            return finishCapture(null, null, mGeneration, this);
         }
 
         /**
@@ -695,41 +1169,125 @@ public final class Snippet {
          */
         @Override
         public ExecutionContext endCapture(String message) {
-            synchronized (this) {
-                if (mState == LogTokenState.END_CAPTURE_EXECUTED) {
-                    return Snippet.EMPTY_CONTEXT;
-                }
-                ExecutionContext executionContext;
-                if (ToolBox.willThreadLockGuardThisCapture(Thread.currentThread(), this)) {
-                    Log.e(TAG, mFilter + " ThreadLocks enabled! Not able to end the capture as the"
-                            + " token creating thread is not same as the thread calling endCapture(message).");
+            return finishCapture(message, null, mGeneration, this);
+        }
 
-                    return Snippet.EMPTY_CONTEXT;
-                } else {
+        /**
+         * Overload of {@link LogToken#endCapture()} for the code instrumented by the snippet gradle
+         * plugin. The call site is known at build time so no stack analysis is needed.
+         *
+         * @param callSite Code location that called endCapture().
+         */
+        @Override
+        public ExecutionContext endCapture(CallSite callSite) {
+            return finishCapture(null, callSite, mGeneration, this);
+        }
+
+        /**
+         * Overload of {@link LogToken#endCapture(String)} for the code instrumented by the snippet
+         * gradle plugin. The call site is known at build time so no stack analysis is needed.
+         *
+         * @param message  Custom message if required
+         * @param callSite Code location that called endCapture().
+         */
+        @Override
+        public ExecutionContext endCapture(String message, CallSite callSite) {
+            return finishCapture(message, callSite, mGeneration, this);
+        }
+
+        /**
+         * Ends the capture only if the token is still in the given generation, calls through a stale
+         * {@link LogTokenHandle} are ignored.
+         * Should not be named endCapture*, the stack analyser looks for the first endCapture frame.
+         *
+         * @param publicToken token that was handed out to the user, and is in the tag registry.
+         */
+        ExecutionContext finishCapture(String message, CallSite callSite, int generation, ILogToken publicToken) {
+            return finish(message, callSite, generation, publicToken, false);
+        }
+
+        /**
+         * Ends a tagged token that outlived its time to live, called by the {@link TagReaper}.
+         * Reported as {@link Measurement#KIND_ABANDONED}, on behalf of the thread that started it.
+         *
+         * @return false if the token was ended meanwhile.
+         */
+        boolean abandon(LogTokenHandle handle) {
+            return finish(null, CallSite.UNKNOWN, handle.generation(), handle, true) != Snippet.EMPTY_CONTEXT;
+        }
+
+        private ExecutionContext finish(String message, CallSite callSite, int generation, ILogToken publicToken, boolean abandoned) {
+            MeasurementReporter reporter = measurementReporter;
+            Measurement measurement = null;
+            ExecutionContext executionContext;
+            try {
+                synchronized (this) {
+                    if (mGeneration != generation) {
+                        if (!abandoned) {
+                            Log.e(TAG, "endCapture() called on a token that was already ended, the call is ignored.");
+                        }
+                        return Snippet.EMPTY_CONTEXT;
+                    }
+                    if (mState == LogTokenState.END_CAPTURE_EXECUTED) {
+                        return Snippet.EMPTY_CONTEXT;
+                    }
+                    if (!abandoned && ToolBox.willThreadLockGuardThisCapture(Thread.currentThread(), this)) {
+                        Log.e(TAG, mFilter + " ThreadLocks enabled! Not able to end the capture as the"
+                                + " token creating thread is not same as the thread calling endCapture().");
+
+                        return Snippet.EMPTY_CONTEXT;
+                    }
                     mState = LogTokenState.END_CAPTURE_EXECUTED;
-                    executionContext = doEndSlice(message);
-                    if (mSplitRecord != null && mSplitRecord.size() > 0) {
-                        dumpSplitData(mSplitRecord, executionContext);
+                    SnippetConfig config = mConfig;
+                    executionContext = doEndSlice(callSite, config);
+                    SpanStack.Frame span = mSpan;
+                    if (span != null) {
+                        mSpan = null;
+                        long duration = mEndTime - mStartTime;
+                        executionContext.setSpan(span.mSpanId, span.mParentSpanId, span.mDepth, duration - span.mChildNanos);
+                        SpanStack.end(span, duration);
                     }
-                    ILogToken token = TAG_HELPER.unTag(this);
-                    if (token == null) {
+                    if (!abandoned && LATENCY_BUDGETS.mayExceed(mEndTime - mStartTime)) {
+                        LATENCY_BUDGETS.check(Measurement.KIND_LOG_TOKEN, mTagKey != null ? mTagKey.getTag() : null,
+                                callSite, executionContext, mEndTime - mStartTime, mStartTime, mSplitEnds, mSplitNames, mSplitCount);
+                    }
+                    // Copy what the reporter needs before the token goes back to the pool.
+                    measurement = reporter.obtain();
+                    if (measurement != null) {
+                        fillMeasurement(measurement, abandoned ? Measurement.KIND_ABANDONED : Measurement.KIND_LOG_TOKEN,
+                                mStartTime, mEndTime, message, mFilter, config, mWeight);
+                        fillSpan(measurement, executionContext);
+                        if (mTagKey != null) {
+                            measurement.mTag = mTagKey.getTag();
+                            measurement.mTagScope = mTagKey.getScope();
+                        }
+                        if (abandoned) {
+                            measurement.mThreadId = mThreadId;
+                        }
+                        if (mSplitCount > 0) {
+                            measurement.setSplits(mStartTime, mSplitEnds, mSplitNames, mSplitCount);
+                        }
+                    }
+                    if (mTagKey != null && !TAG_HELPER.unTag(mTagKey, publicToken)) {
                         Log.d(TAG, "Not able to unTag as the tag for the request was not available.");
                     }
                     OBJECT_POOL.recycle(this);
-                    return executionContext;
+                }
+            } finally {
+                // A claimed slot is always published, even if the pool rejects the token, so that
+                // the reporter does not wait for it forever. Printing happens outside the monitor.
+                if (measurement != null) {
+                    reporter.submit(measurement);
                 }
             }
+            return executionContext;
         }
 
-        private ExecutionContext doEndSlice(String message) {
+        private ExecutionContext doEndSlice(CallSite callSite, SnippetConfig config) {
             synchronized (this) {
                 mEndTime = ToolBox.currentTime();
                 long delta = mEndTime - mStartTime;
 
-                StringBuilder logMessageBuilder = new StringBuilder();
-                if (message != null && !message.isEmpty()) {
-                    logMessageBuilder.append(message).append(SEPARATOR);
-                }
                 Thread thread = Thread.currentThread();
                 if (mPrintDebugLogs) {
                     if (thread == Looper.getMainLooper().getThread()) {
@@ -739,15 +1297,13 @@ public final class Snippet {
                     }
                 }
                 ExecutionContext executionContext = new ExecutionContext();
-                executionContext.setClassName(mLocalAnalyser.callingClass(thread, StackAnalyser.API_LOG_TOKEN));
-                executionContext.setMethod(mLocalAnalyser.callingMethod(thread, StackAnalyser.API_LOG_TOKEN));
-                executionContext.setLineNo(mLocalAnalyser.callingLine(thread, StackAnalyser.API_LOG_TOKEN));
+                if (callSite != null) {
+                    executionContext.setCallSite(callSite);
+                } else {
+                    executionContext.setCallSiteHandle(config.mStackAnalyser, StackAnalyser.captureHandle(), StackAnalyser.API_LOG_TOKEN);
+                }
                 executionContext.setThreadName(thread.getName());
                 executionContext.setExecutionDuration(delta);
-
-                appendExecutionContextToLog(logMessageBuilder, executionContext);
-                logMessageBuilder.append(SEPARATOR).append('(').append(delta).append(" ms)");
-                Log.d(mFilter, logMessageBuilder.toString());
                 return executionContext;
             }
         }
@@ -778,40 +1334,154 @@ public final class Snippet {
      * Execution path that is used by Snippet to route the code to the core library functionality.
      */
     public static class MeasuredExecutionPath implements ExecutionPath {
+        // Build time call site handed from the 3 arguments overload to an overridden capture(String, Closure).
+        private static final ThreadLocal<CallSite> PENDING_CALL_SITE = new ThreadLocal<>();
+
+        /**
+         * True if a subclass overrides {@link MeasuredExecutionPath#capture(String, Closure)} but not
+         * the call site overload the plugin rewrites the calls to, the override must still run.
+         */
+        private final boolean mLegacyCapture;
+
+        // Last configuration in which this path was installed, written by Snippet.onConfigChanged().
+        volatile SnippetConfig mConfig;
+
+        public MeasuredExecutionPath() {
+            mLegacyCapture = declaredBySubclass("capture", String.class, Closure.class)
+                    && !declaredBySubclass("capture", String.class, Closure.class, CallSite.class);
+        }
+
+        /**
+         * Configuration a capture on this path uses from start to end. The current one, unless the
+         * path was swapped out after the capture was dispatched to it. Its path is always this one.
+         */
+        final SnippetConfig config() {
+            SnippetConfig config = CONFIG.get();
+            if (config.mExecutionPath == this) {
+                return config;
+            }
+            SnippetConfig installed = mConfig;
+            // A path that was never installed measures with the current settings.
+            return installed != null ? installed : config.withExecutionPath(this);
+        }
+
+        /**
+         * Called when the path becomes the execution path of Snippet, under the configuration lock.
+         */
+        void onInstalled() {
+        }
+
+        /**
+         * Called when another path replaces this one, under the configuration lock. Captures and
+         * tokens already dispatched to the path still finish on it.
+         */
+        void onUninstalled() {
+        }
+
+        private boolean declaredBySubclass(String name, Class<?>... parameterTypes) {
+            try {
+                return getClass().getMethod(name, parameterTypes).getDeclaringClass() != MeasuredExecutionPath.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
 
         @Override
         @NonNull
         public ExecutionContext capture(String message, Closure closure) {
-            return invokeMeasureAndAttachExecutionContext(message, closure);
+            CallSite callSite = null;
+            if (mLegacyCapture) {
+                // Taken before the closure runs so that nested captures do not see it.
+                callSite = PENDING_CALL_SITE.get();
+                PENDING_CALL_SITE.set(null);
+            }
+            return invokeMeasureAndAttachExecutionContext(config(), message, closure, callSite, 1d);
         }
 
         @Override
         @NonNull
         public ExecutionContext capture(Closure closure) {
-            return invokeMeasureAndAttachExecutionContext(null, closure);
+            return invokeMeasureAndAttachExecutionContext(config(), null, closure, null, 1d);
+        }
+
+        @Override
+        @NonNull
+        public ExecutionContext capture(String message, Closure closure, CallSite callSite) {
+            if (mLegacyCapture) {
+                PENDING_CALL_SITE.set(callSite);
+                try {
+                    return capture(message, closure);
+                } finally {
+                    PENDING_CALL_SITE.set(null);
+                }
+            }
+            return invokeMeasureAndAttachExecutionContext(config(), message, closure, callSite, 1d);
+        }
+
+        /**
+         * Measures a closure that stands for several calls, used by {@link SamplingExecutionPath}.
+         *
+         * @param callSite null if not known at build time.
+         * @param weight   number of calls the measurement stands for.
+         */
+        final ExecutionContext capture(String message, Closure closure, CallSite callSite, double weight) {
+            return invokeMeasureAndAttachExecutionContext(config(), message, closure, callSite, weight);
         }
 
         @Override
         public ILogToken startCapture() {
+            return startCapture(1d);
+        }
+
+        /**
+         * Starts an untagged token that stands for several calls, used by {@link SamplingExecutionPath}.
+         */
+        final ILogToken startCapture(double weight) {
+            SnippetConfig config = config();
             long startTime = ToolBox.currentTime();
-            ILogToken token = OBJECT_POOL.obtain();
+            LogTokenHandle token = OBJECT_POOL.obtain();
             token.setStart(startTime);
             token.setCreatorThreadId(Thread.currentThread().getId());
+            token.token().mWeight = weight;
+            token.token().mConfig = config;
+            token.token().mFilter = config.mFilter;
+            token.token().mSpan = SpanStack.current().push(token.token().mSpanFrame);
             return token;
         }
 
         @Override
         public ILogToken startCapture(String tag) {
+            return startCapture(tag, TagScope.GLOBAL);
+        }
+
+        @Override
+        public ILogToken startCapture(String tag, TagScope scope) {
+            return startCapture(tag, scope, 1d);
+        }
+
+        /**
+         * Starts a tagged token that stands for several calls, used by {@link SamplingExecutionPath}.
+         */
+        final ILogToken startCapture(String tag, TagScope scope, double weight) {
+            SnippetConfig config = config();
             long startTime = ToolBox.currentTime();
-            ILogToken token = OBJECT_POOL.obtain();
+            TagKey key = new TagKey(tag, scope);
+            LogTokenHandle token = OBJECT_POOL.obtain();
             token.setStart(startTime);
             token.setCreatorThreadId(Thread.currentThread().getId());
-            Pair<ILogToken, Boolean> tagResult = TAG_HELPER.tag(tag, token);
+            token.token().mWeight = weight;
+            token.token().mConfig = config;
+            token.token().mFilter = config.mFilter;
+            // Set before tagging, the token can be found and ended by another thread right after.
+            token.token().mTagKey = key;
+            token.token().mSpan = SpanStack.current().push(token.token().mSpanFrame);
+            Pair<ILogToken, Boolean> tagResult = TAG_HELPER.tag(key, token);
             if (!tagResult.getSecond()) {
-                Log.e(TAG, "Tag: [" + tag + "] already exists in the record, cannot assign log token, so we are providing a NO_OP_TOKEN.");
-                OBJECT_POOL.recycle(token);
+                Log.e(TAG, "Tag: [" + key + "] already exists in the record, cannot assign log token, so we are providing a NO_OP_TOKEN.");
+                token.token().discard(token.generation());
                 return NO_OP_TOKEN;
             }
+            TAG_REAPER.onTagged(tag, token);
             if (mPrintDebugLogs) {
                 Log.e(TAG, "Tag: [" + tag + "] created for the LogToken.");
             }
@@ -828,12 +1498,48 @@ public final class Snippet {
          */
         @Override
         public ILogToken find(String tag) {
-            ILogToken token = TAG_HELPER.search(tag);
+            return find(tag, TagScope.GLOBAL);
+        }
+
+        /**
+         * Used to find Log Token that was created using {@link Snippet#startCapture(String, TagScope)}.
+         *
+         * @param tag   Custom tag.
+         * @param scope Scope the tag was started in.
+         * @return LogToken if existing with the tag in the scope, No op token otherwise.
+         */
+        @Override
+        public ILogToken find(String tag, TagScope scope) {
+            ILogToken token = TAG_HELPER.search(new TagKey(tag, scope));
             if (token == null) {
                 return NO_OP_TOKEN;
             } else {
                 return token;
             }
         }
+
+        @Override
+        public List<ILogToken> findAll(String pattern, TagScope scope) {
+            return TAG_HELPER.searchAll(pattern, scope);
+        }
+
+        @Override
+        public List<ExecutionContext> endCaptureAll(String pattern, TagScope scope) {
+            List<ILogToken> tokens = TAG_HELPER.searchAll(pattern, scope);
+            if (tokens.isEmpty()) {
+                return Collections.emptyList();
+            }
+            // All the captures end at the same call site, walk the stack once for all of them.
+            CallSite callSite = config().mStackAnalyser.resolve(StackAnalyser.captureHandle(), StackAnalyser.API_END_CAPTURE_ALL);
+            List<ExecutionContext> contexts = new ArrayList<>(tokens.size());
+            for (ILogToken token : tokens) {
+                // The token could have been ended by its owner meanwhile, the handle ignores the call then.
+                ExecutionContext context = token.endCapture(callSite);
+                if (context != EMPTY_CONTEXT) {
+                    contexts.add(context);
+                }
+            }
+            return contexts;
+        }
     }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the runtime configuration of Snippet: execution path, FLAG_METADATA_* flags,
+ * logcat filter, package regex and the tags that are switched off.
+ * <p>
+ * Snippet keeps the current snapshot in a single volatile reference, every API call reads it once.
+ * A change builds a new snapshot with one of the with*() methods and publishes it with
+ * {@link Snippet#setConfig(SnippetConfig)}, so a thread never sees half of a change and the execution
+ * path can be swapped while the app runs, for example to turn on the measurements for a slow session.
+ * <pre>
+ * {@code
+ *     SnippetConfig config = Snippet.getConfig();
+ *     Snippet.setConfig(config.withExecutionPath(new Snippet.MeasuredExecutionPath())
+ *             .withFlags(config.getFlags() | Snippet.FLAG_METADATA_LINE));
+ * }
+ * </pre>
+ * A capture or log token uses one snapshot from start to end, the one that was current when it was
+ * dispatched to its path, so it never mixes a path with the flags or filter of another configuration.
+ * Log tokens keep the path they were started on, a token started before a swap is ended as usual.
+ */
+public final class SnippetConfig {
+    static final String DEFAULT_FILTER = Snippet.class.getSimpleName();
+    static final String DEFAULT_PACKAGE_REGEX = "com.microsoft";
+
+    final ExecutionPath mExecutionPath;
+    final int mFlags;
+    final String mFilter;
+    final String mPackageRegex;
+    final StackAnalyser mStackAnalyser;
+    final Set<String> mDisabledTags;
+
+    private SnippetConfig(ExecutionPath executionPath, int flags, String filter, String packageRegex,
+                          StackAnalyser stackAnalyser, Set<String> disabledTags) {
+        this.mExecutionPath = executionPath;
+        this.mFlags = flags;
+        this.mFilter = filter;
+        this.mPackageRegex = packageRegex;
+        this.mStackAnalyser = stackAnalyser;
+        this.mDisabledTags = disabledTags;
+    }
+
+    /**
+     * Configuration Snippet starts with: release path, class and method flags, no disabled tag.
+     */
+    static SnippetConfig defaults() {
+        return new SnippetConfig(new ReleaseExecutionPath(),
+                Snippet.FLAG_METADATA_CLASS | Snippet.FLAG_METADATA_METHOD,
+                DEFAULT_FILTER,
+                DEFAULT_PACKAGE_REGEX,
+                new StackAnalyser(DEFAULT_PACKAGE_REGEX),
+                Collections.<String>emptySet());
+    }
+
+    @NonNull
+    public ExecutionPath getExecutionPath() {
+        return mExecutionPath;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public String getFilter() {
+        return mFilter;
+    }
+
+    public String getPackageRegex() {
+        return mPackageRegex;
+    }
+
+    /**
+     * @return false if {@link Snippet#startCapture(String)} with this tag returns
+     * {@link Snippet#NO_OP_TOKEN}.
+     */
+    public boolean isTagEnabled(@NonNull String tag) {
+        return mDisabledTags.isEmpty() || !mDisabledTags.contains(tag);
+    }
+
+    /**
+     * @return unmodifiable set of the disabled tags.
+     */
+    @NonNull
+    public Set<String> getDisabledTags() {
+        return mDisabledTags;
+    }
+
+    @NonNull
+    public SnippetConfig withExecutionPath(@NonNull ExecutionPath executionPath) {
+        if (executionPath == null) {
+            throw new IllegalArgumentException("Execution path cannot be null");
+        }
+        return new SnippetConfig(executionPath, mFlags, mFilter, mPackageRegex, mStackAnalyser, mDisabledTags);
+    }
+
+    /**
+     * @param flags combination of the FLAG_METADATA_* flags of {@link Snippet}, replaces the current ones.
+     */
+    @NonNull
+    public SnippetConfig withFlags(int flags) {
+        return new SnippetConfig(mExecutionPath, flags, mFilter, mPackageRegex, mStackAnalyser, mDisabledTags);
+    }
+
+    @NonNull
+    public SnippetConfig withFilter(String filter) {
+        return new SnippetConfig(mExecutionPath, mFlags, filter, mPackageRegex, mStackAnalyser, mDisabledTags);
+    }
+
+    /**
+     * @param packageRegex regex identifying the frames of the application, see
+     *                     {@link Snippet#setPackageRegex(String)}.
+     */
+    @NonNull
+    public SnippetConfig withPackageRegex(String packageRegex) {
+        return new SnippetConfig(mExecutionPath, mFlags, mFilter, packageRegex, new StackAnalyser(packageRegex), mDisabledTags);
+    }
+
+    /**
+     * @param enabled false to make {@link Snippet#startCapture(String)} return {@link Snippet#NO_OP_TOKEN}
+     *                for the tag, in every scope.
+     */
+    @NonNull
+    public SnippetConfig withTagEnabled(@NonNull String tag, boolean enabled) {
+        if (enabled != mDisabledTags.contains(tag)) {
+            return this;
+        }
+        Set<String> disabledTags = new HashSet<>(mDisabledTags);
+        if (enabled) {
+            disabledTags.remove(tag);
+        } else {
+            disabledTags.add(tag);
+        }
+        return new SnippetConfig(mExecutionPath, mFlags, mFilter, mPackageRegex, mStackAnalyser,
+                Collections.unmodifiableSet(disabledTags));
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "SnippetConfig{path=" + mExecutionPath.getClass().getSimpleName()
+                + ", flags=" + Integer.toHexString(mFlags)
+                + ", filter=" + mFilter
+                + ", packageRegex=" + mPackageRegex
+                + ", disabledTags=" + mDisabledTags
+                + '}';
+    }
+}
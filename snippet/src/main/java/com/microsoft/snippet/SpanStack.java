@@ -0,0 +1,222 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Stack of the spans that are open on a thread. Every capture and log token is a span, the span on
+ * top of the stack when a new one starts is its parent. When a span ends, its duration is added to
+ * the child time of its parent, so the parent can report its self time, the part of its duration
+ * that was not spent in the spans nested inside it.
+ * <p>
+ * Captures are strictly nested and are pushed and popped on the same thread. Their frames are
+ * reused, pushing a span does not allocate once the stack has grown to its usual depth.
+ * <p>
+ * Log tokens are pushed on the stack of the thread that started them, in a frame the token owns.
+ * Tokens can be ended out of order, on another thread or never:
+ * <ul>
+ * <li>A token ended on its creator thread unwinds the stack to its frame. The tokens started after
+ * it and still running are taken off the stack with it, a capture that is still running above it
+ * is left in place and the frame is dropped when that capture ends.</li>
+ * <li>A token ended on another thread, or abandoned and reclaimed, only closes its frame. The
+ * creator thread drops closed frames from the top of its stack on its next push, so they never
+ * become the parent of a later span.</li>
+ * </ul>
+ * The frame of a token is reused by its next capture, possibly on another thread, so every slot of
+ * the stack also keeps the span id it was pushed with. A slot whose frame has moved on is treated
+ * as closed.
+ * <p>
+ * Span ids are unique across threads and never 0, every thread takes them in blocks from a global
+ * counter. Spans that would make the stack deeper than {@link SpanStack#MAX_DEPTH} are not tracked
+ * and get no id.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class SpanStack {
+    static final int MAX_DEPTH = 256;
+    private static final int INITIAL_DEPTH = 8;
+    private static final long ID_BLOCK = 1024L;
+
+    private static final AtomicLong NEXT_ID_BLOCK = new AtomicLong(1L);
+
+    private static final ThreadLocal<SpanStack> STACKS = new ThreadLocal<SpanStack>() {
+        @Override
+        protected SpanStack initialValue() {
+            return new SpanStack();
+        }
+    };
+
+    private final Thread mThread = Thread.currentThread();
+    private Frame[] mFrames = new Frame[INITIAL_DEPTH];
+    private long[] mSpanIds = new long[INITIAL_DEPTH];
+    // Frames of the captures, indexed by depth and reused by the next capture at the same depth.
+    private Frame[] mCaptureFrames = new Frame[INITIAL_DEPTH];
+    private int mSize;
+    private long mNextId;
+    private long mIdLimit;
+
+    /**
+     * Open span. Fields other than the child time and the closed flag are only written by the thread
+     * that pushes the frame, before the frame is handed out.
+     */
+    static final class Frame {
+        private static final AtomicLongFieldUpdater<Frame> CHILD_NANOS_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Frame.class, "mChildNanos");
+
+        final boolean mToken;
+        SpanStack mStack;
+        long mSpanId;
+        long mParentSpanId;
+        int mDepth;
+        Frame mParent;
+        volatile long mChildNanos;
+        volatile boolean mClosed = true;
+
+        /**
+         * @param token true for the frame of a log token, which may end on another thread.
+         */
+        Frame(boolean token) {
+            this.mToken = token;
+        }
+
+        private void addChild(long nanos) {
+            // Children ending on other threads can race with the owner thread.
+            CHILD_NANOS_UPDATER.addAndGet(this, nanos);
+        }
+    }
+
+    private SpanStack() {
+    }
+
+    static SpanStack current() {
+        return STACKS.get();
+    }
+
+    /**
+     * Opens the span of a capture on the calling thread.
+     *
+     * @return frame of the span, null if the stack is full and the span is not tracked.
+     */
+    @Nullable
+    Frame push() {
+        dropClosed();
+        if (!reserve()) {
+            return null;
+        }
+        Frame frame = mCaptureFrames[mSize];
+        if (frame == null) {
+            frame = new Frame(false);
+            mCaptureFrames[mSize] = frame;
+        }
+        return open(frame);
+    }
+
+    /**
+     * Opens the span of a log token on the calling thread.
+     *
+     * @param frame owned by the token, reused for every capture of the token.
+     * @return the frame, null if the stack is full and the span is not tracked.
+     */
+    @Nullable
+    Frame push(Frame frame) {
+        dropClosed();
+        if (!reserve()) {
+            return null;
+        }
+        return open(frame);
+    }
+
+    /**
+     * Closes the span of a log token from any thread. On the creator thread the stack is unwound to
+     * the frame, on any other thread the frame is only flagged and is dropped by the next push of
+     * the creator thread.
+     */
+    static void end(Frame frame, long inclusiveNanos) {
+        SpanStack stack = frame.mStack;
+        if (stack != null && stack.mThread == Thread.currentThread()) {
+            stack.pop(frame, inclusiveNanos);
+        } else {
+            // The parent may have been popped and reused since, which can only be checked on its
+            // own thread, so the duration does not count as its child time.
+            frame.mParent = null;
+            frame.mClosed = true;
+        }
+    }
+
+    /**
+     * Closes a span that was pushed on the calling thread. A capture is popped if it is on the top,
+     * a log token unwinds the stack to its frame.
+     *
+     * @param inclusiveNanos duration of the span, added to the child time of its parent.
+     */
+    void pop(Frame frame, long inclusiveNanos) {
+        Frame parent = frame.mParent;
+        if (parent != null && !parent.mClosed && parent.mSpanId == frame.mParentSpanId) {
+            parent.addChild(inclusiveNanos);
+        }
+        frame.mParent = null;
+        frame.mClosed = true;
+        int depth = frame.mDepth;
+        if (frame.mToken && depth < mSize && mFrames[depth] == frame && mSpanIds[depth] == frame.mSpanId) {
+            while (mSize > depth + 1 && (mFrames[mSize - 1].mToken || isClosed(mSize - 1))) {
+                mFrames[--mSize] = null;
+            }
+        }
+        dropClosed();
+    }
+
+    private boolean reserve() {
+        if (mSize == MAX_DEPTH) {
+            return false;
+        }
+        if (mSize == mFrames.length) {
+            mFrames = Arrays.copyOf(mFrames, mSize * 2);
+            mSpanIds = Arrays.copyOf(mSpanIds, mSize * 2);
+            mCaptureFrames = Arrays.copyOf(mCaptureFrames, mSize * 2);
+        }
+        return true;
+    }
+
+    private Frame open(Frame frame) {
+        Frame parent = mSize > 0 ? mFrames[mSize - 1] : null;
+        frame.mStack = this;
+        frame.mSpanId = nextId();
+        frame.mParent = parent;
+        frame.mParentSpanId = parent != null ? mSpanIds[mSize - 1] : 0L;
+        frame.mDepth = mSize;
+        frame.mChildNanos = 0L;
+        // Written last, a stack that still holds the frame from its previous capture sees the new
+        // span id once it sees the frame open again.
+        frame.mClosed = false;
+        mFrames[mSize] = frame;
+        mSpanIds[mSize] = frame.mSpanId;
+        mSize++;
+        return frame;
+    }
+
+    private boolean isClosed(int depth) {
+        Frame frame = mFrames[depth];
+        return frame.mClosed || frame.mSpanId != mSpanIds[depth];
+    }
+
+    private void dropClosed() {
+        while (mSize > 0 && isClosed(mSize - 1)) {
+            mFrames[--mSize] = null;
+        }
+    }
+
+    private long nextId() {
+        if (mNextId == mIdLimit) {
+            mNextId = NEXT_ID_BLOCK.getAndAdd(ID_BLOCK);
+            mIdLimit = mNextId + ID_BLOCK;
+        }
+        return mNextId++;
+    }
+}
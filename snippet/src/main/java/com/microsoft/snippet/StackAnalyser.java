@@ -4,17 +4,31 @@
 
 package com.microsoft.snippet;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.RestrictTo;
 
 /**
  * Internal helper class used to extract the execution context of the code which was guarded
  * by Snippet APIs.
+ * The calling frame is located with a single walk of the stack and the class, method and line are
+ * returned together as a {@link CallSite}. Resolved call sites are interned, a capture that is
+ * executed again from the same place reuses the same {@link CallSite} instance.
+ * This is the fallback for the code that was not instrumented by the snippet gradle plugin, for
+ * instrumented code the call site is passed directly to the APIs.
  * NOT FOR EXTERNAL USE
  */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 final class StackAnalyser {
     static final int API_CAPTURE = 0;
     static final int API_LOG_TOKEN = 1;
+    static final int API_END_CAPTURE_ALL = 2;
+
+    private static final String SNIPPET_CLASS = "com.microsoft.snippet.Snippet";
+    private static final String LOG_TOKEN_CLASS = "com.microsoft.snippet.Snippet$LogToken";
+    private static final String LOG_TOKEN_HANDLE_CLASS = "com.microsoft.snippet.LogTokenHandle";
+    private static final String CAPTURE_METHOD = "capture";
+    private static final String END_CAPTURE_METHOD = "endCapture";
+    private static final String END_CAPTURE_ALL_METHOD = "endCaptureAll";
 
     private final String mPackage;
 
@@ -26,54 +40,62 @@ final class StackAnalyser {
         this("com.microsoft");
     }
 
-    String callingMethod(Thread mCallingThread, int apiType) {
-        if (apiType == API_CAPTURE) {
-            return getCallingFrameForCapture(mCallingThread, apiType).getMethodName();
-        } else {
-            return getDoEndSliceCallerFrame(mCallingThread, apiType).getMethodName();
-        }
+    /**
+     * Resolves the call site from a handle captured on the calling thread using
+     * {@link StackAnalyser#captureHandle()}. Can be called from any thread.
+     */
+    @NonNull
+    CallSite resolve(Throwable handle, int apiType) {
+        return resolve(handle.getStackTrace(), apiType);
     }
 
-    String callingClass(Thread mCallingThread, int apiType) {
-        if (apiType == API_CAPTURE) {
-            return getCallingFrameForCapture(mCallingThread, apiType).getClassName();
-        } else {
-            return getDoEndSliceCallerFrame(mCallingThread, apiType).getClassName();
-        }
+    /**
+     * Records the stack of the current thread without materialising the frames. The Throwable
+     * constructor still walks the stack in fillInStackTrace(), only the decoding of the frames into
+     * StackTraceElements, the expensive part, is deferred until {@link StackAnalyser#resolve(Throwable, int)}
+     * is called.
+     */
+    @NonNull
+    static Throwable captureHandle() {
+        return new Throwable();
     }
 
-    int callingLine(Thread mCallingThread, int apiType) {
+    /**
+     * Walks the frames once and returns the frame that called the Snippet API.
+     *
+     * @param frames  stack of the thread that called the API.
+     * @param apiType {@link StackAnalyser#API_CAPTURE}, {@link StackAnalyser#API_LOG_TOKEN} or
+     *                {@link StackAnalyser#API_END_CAPTURE_ALL}
+     * @return Call site, {@link CallSite#UNKNOWN} if the frame could not be identified.
+     */
+    @NonNull
+    CallSite resolve(StackTraceElement[] frames, int apiType) {
+        String apiMethod;
         if (apiType == API_CAPTURE) {
-            return getCallingFrameForCapture(mCallingThread, apiType).getLineNumber();
+            apiMethod = CAPTURE_METHOD;
+        } else if (apiType == API_END_CAPTURE_ALL) {
+            apiMethod = END_CAPTURE_ALL_METHOD;
         } else {
-            return getDoEndSliceCallerFrame(mCallingThread, apiType).getLineNumber();
+            apiMethod = END_CAPTURE_METHOD;
         }
-    }
-
-    private StackTraceElement searchForCallingFrameOfMethodCaller(Thread callingThread, String methodName, int apiType) {
-        StackTraceElement[] frames = callingThread.getStackTrace();
-        int index = -1;
-        for (int i = 0; i < frames.length; i++) {
-                if (frames[i].getMethodName().equals(methodName)
-                        && frames[i].getClassName().startsWith(mPackage) && apiType == API_CAPTURE
-                        && frames[i].getClassName().equals("com.microsoft.snippet.Snippet")
-                        ||
-                        frames[i].getMethodName().equals(methodName)
-                                && frames[i].getClassName().startsWith(mPackage) && apiType == API_LOG_TOKEN
-                                && frames[i].getClassName().equals("com.microsoft.snippet.Snippet$LogToken")) {
-                    index = i;
-                    break;
-                }
+        for (int i = 0; i < frames.length - 1; i++) {
+            StackTraceElement frame = frames[i];
+            if (frame.getMethodName().equals(apiMethod)
+                    && isApiClass(frame.getClassName(), apiType)
+                    && frame.getClassName().startsWith(mPackage)) {
+                // The next stack frame belongs to the code that called the API.
+                StackTraceElement caller = frames[i + 1];
+                return CallSite.of(caller.getClassName(), caller.getMethodName(), caller.getLineNumber());
+            }
         }
-        // Now we know the index at which we found the method in the stackframe, the next stack frame belongs to the code that called that method.
-        return callingThread.getStackTrace()[index + 1];
+        return CallSite.UNKNOWN;
     }
 
-    private StackTraceElement getDoEndSliceCallerFrame(Thread thread, int apiType) {
-        return searchForCallingFrameOfMethodCaller(thread, "endCapture", apiType);
-    }
-
-    private StackTraceElement getCallingFrameForCapture(Thread thread, int apiType) {
-        return searchForCallingFrameOfMethodCaller(thread, "capture", apiType);
+    private static boolean isApiClass(String className, int apiType) {
+        if (apiType == API_CAPTURE || apiType == API_END_CAPTURE_ALL) {
+            return className.equals(SNIPPET_CLASS);
+        }
+        // Tokens handed out by the pool are handles, the token itself is reached only through them.
+        return className.equals(LOG_TOKEN_HANDLE_CLASS) || className.equals(LOG_TOKEN_CLASS);
     }
 }
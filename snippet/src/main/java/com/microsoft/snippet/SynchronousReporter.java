@@ -0,0 +1,57 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.RestrictTo;
+
+/**
+ * Reports the measurements on the measured thread itself, right when they are submitted, each
+ * batch holds a single measurement. This is the default reporter.
+ * Each thread reuses a scratch measurement and batch, fresh ones are created only if reporting
+ * on the same thread is re-entered from a sink.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class SynchronousReporter extends MeasurementReporter {
+    private final ThreadLocal<Measurement> mScratch = new ThreadLocal<>();
+    private final ThreadLocal<MeasurementBatch> mBatch = new ThreadLocal<MeasurementBatch>() {
+        @Override
+        protected MeasurementBatch initialValue() {
+            return new MeasurementBatch(1);
+        }
+    };
+
+    SynchronousReporter(SinkRegistry sinks) {
+        super(sinks);
+    }
+
+    @Override
+    Measurement obtain() {
+        if (mSinks.isEmpty()) {
+            return null;
+        }
+        Measurement measurement = mScratch.get();
+        if (measurement == null) {
+            return new Measurement();
+        }
+        mScratch.set(null);
+        return measurement;
+    }
+
+    @Override
+    void submit(Measurement measurement) {
+        MeasurementBatch batch = mBatch.get();
+        if (batch.size() != 0) {
+            batch = new MeasurementBatch(1);  // Re-entered from a sink.
+        }
+        batch.add(measurement);
+        try {
+            mSinks.dispatch(batch);
+        } finally {
+            batch.clear();
+            measurement.clear();
+            mScratch.set(measurement);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * {@link TimeSource} backed by the monotonic clocks of the platform.
+ * <ol>
+ *     <li>{@link SystemTimeSource#uptime()} reads {@link System#nanoTime()}, this is the same
+ *     clock as {@link SystemClock#uptimeMillis()} (stops in deep sleep) but with nanosecond
+ *     resolution. This is the default time source of Snippet.</li>
+ *     <li>{@link SystemTimeSource#elapsedRealtime()} reads {@link SystemClock#elapsedRealtimeNanos()},
+ *     which keeps ticking in deep sleep. Falls back to {@link System#nanoTime()} on API levels
+ *     where it is not available.</li>
+ * </ol>
+ */
+public final class SystemTimeSource implements TimeSource {
+    private static final SystemTimeSource UPTIME = new SystemTimeSource(false);
+    private static final SystemTimeSource ELAPSED_REALTIME = new SystemTimeSource(
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1);
+
+    private final boolean mUseElapsedRealtime;
+
+    private SystemTimeSource(boolean useElapsedRealtime) {
+        this.mUseElapsedRealtime = useElapsedRealtime;
+    }
+
+    public static SystemTimeSource uptime() {
+        return UPTIME;
+    }
+
+    public static SystemTimeSource elapsedRealtime() {
+        return ELAPSED_REALTIME;
+    }
+
+    @Override
+    public long nanoTime() {
+        if (mUseElapsedRealtime) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return System.nanoTime();
+    }
+}
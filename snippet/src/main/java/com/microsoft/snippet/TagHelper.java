@@ -11,85 +11,172 @@ import androidx.annotation.RestrictTo;
 
 import com.microsoft.snippet.token.ILogToken;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Internal helper class that takes care of tagging the LogTokens.
  * Not intended for external use.
+ * <p>
+ * Exact lookups go to a hash map. Every tagged token is also kept in a skip list sorted by tag, so
+ * that all the tokens under a prefix such as "net/feed/" are found by seeking to the prefix and
+ * walking forward until the first tag that does not start with it. The cost of a prefix or wildcard
+ * search is proportional to the number of tags under the literal prefix of the pattern, not to
+ * the number of tagged tokens. Only the tokens the registry still holds are returned, so a
+ * token whose tag was rejected as a duplicate is never found through the index.
  *
  * @author vishalratna
  */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 class TagHelper implements ILogTokenSearcher {
     private static final String LOG_TAG = TagHelper.class.getSimpleName();
+    private static final char WILDCARD = '*';
 
-    private final Map<String, ILogToken> mRegistry;
+    // Tag in its scope -> token. The token knows its own key, so no reverse lookup is needed to untag it.
+    private final ConcurrentMap<TagKey, ILogToken> mRegistry;
+
+    // Same tokens sorted by tag, the same tag can be present once per scope.
+    private final ConcurrentSkipListMap<TagKey, ILogToken> mIndex;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private static final Comparator<TagKey> TAG_ORDER = new Comparator<TagKey>() {
+        @Override
+        public int compare(TagKey first, TagKey second) {
+            int result = first.getTag().compareTo(second.getTag());
+            if (result != 0) {
+                return result;
+            }
+            return first.mSequence < second.mSequence ? -1 : (first.mSequence == second.mSequence ? 0 : 1);
+        }
+    };
 
     TagHelper() {
-        this.mRegistry = new HashMap<>();
+        this.mRegistry = new ConcurrentHashMap<>();
+        this.mIndex = new ConcurrentSkipListMap<>(TAG_ORDER);
     }
 
     @NonNull
-    Pair<ILogToken, Boolean> tag(String tag, ILogToken token) {
-        synchronized (mRegistry) {
-            // Synchronizing to make sure, while we are checking the existence, a new thread does
-            // not add a key which returns true for contains() call.
-            if (mRegistry.containsKey(tag)) {
-                if (Snippet.mPrintDebugLogs) {
-                    Log.e(LOG_TAG, "Tag already existing, we will not provide tagged token. Returning the token without tagging.");
-                }
-                return new Pair<>(token, false);
+    Pair<ILogToken, Boolean> tag(TagKey tag, ILogToken token) {
+        // Index first: once in the registry the token can be found and untagged by another thread,
+        // which must find the index entry to remove it.
+        tag.mSequence = mSequence.incrementAndGet();
+        mIndex.put(tag, token);
+        // putIfAbsent() checks and inserts atomically, two threads can not tag with the same tag.
+        if (mRegistry.putIfAbsent(tag, token) != null) {
+            mIndex.remove(tag, token);
+            if (Snippet.mPrintDebugLogs) {
+                Log.e(LOG_TAG, "Tag already existing, we will not provide tagged token. Returning the token without tagging.");
             }
+            return new Pair<>(token, false);
+        }
+        if (Snippet.mPrintDebugLogs) {
+            Log.d(LOG_TAG, "Tagging the LogToken and returning it back");
+        }
+        return new Pair<>(token, true);
+    }
 
-            // Now we know that entry is not existing, make an entry
-            if (Snippet.mPrintDebugLogs) {
-                Log.d(LOG_TAG, "Tagging the LogToken and returning it back");
+    /**
+     * Removes the tag, only if it still points to the given token.
+     *
+     * @param tag   key the token was tagged with, the same instance that was passed to tag().
+     * @param token token that was tagged.
+     * @return true if the tag was removed.
+     */
+    boolean unTag(TagKey tag, ILogToken token) {
+        boolean removed = mRegistry.remove(tag, token);
+        if (removed) {
+            mIndex.remove(tag, token);
+        }
+        if (Snippet.mPrintDebugLogs) {
+            if (removed) {
+                Log.e(LOG_TAG, "We found a existing tag for the LogToken " + token.toString() + ", removing the tag");
+            } else {
+                Log.e(LOG_TAG, "There is no such tagged LogToken existing. Bad request! Returning");
             }
-            mRegistry.put(tag, token);
         }
+        return removed;
+    }
 
-        return new Pair<>(token, true);
+    @Override
+    public ILogToken search(TagKey tag) {
+        ILogToken token = mRegistry.get(tag);
+        if (token == null && Snippet.mPrintDebugLogs) {
+            Log.d(LOG_TAG, "There is no log token with tag: " + tag);
+        }
+        return token;
     }
 
-    ILogToken unTag(ILogToken token) {
-        synchronized (mRegistry) {
-            String requestedTag = null;
-            Set<Map.Entry<String, ILogToken>> entrySet = mRegistry.entrySet();
-            for (Map.Entry<String, ILogToken> eachEntry : entrySet) {
-                if (eachEntry.getValue() == token) {
-                    requestedTag = eachEntry.getKey();
-                    break;
-                }
+    @NonNull
+    @Override
+    public List<ILogToken> searchAll(String pattern, TagScope scope) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("Pattern cannot be null");
+        }
+        int wildcard = pattern.indexOf(WILDCARD);
+        String prefix = wildcard < 0 ? pattern : pattern.substring(0, wildcard);
+        // Only a wildcard at the very end can be answered by the prefix alone.
+        boolean prefixOnly = wildcard == pattern.length() - 1;
+
+        TagKey from = new TagKey(prefix, TagScope.GLOBAL);
+        from.mSequence = Long.MIN_VALUE;
+        List<ILogToken> result = new ArrayList<>();
+        for (Map.Entry<TagKey, ILogToken> entry : mIndex.tailMap(from, true).entrySet()) {
+            TagKey key = entry.getKey();
+            String tag = key.getTag();
+            if (!tag.startsWith(prefix)) {
+                break;
             }
-            // If we did not get anything after searching the registry.
-            if (requestedTag == null) {
-                if (Snippet.mPrintDebugLogs) {
-                    Log.e(LOG_TAG, "There is no such tagged LogToken existing. Bad request! Returning");
-                }
-                return null;
+            if (wildcard < 0 && tag.length() != prefix.length()) {
+                break;  // Exact tag, every longer tag sorts after it.
             }
-
-            if (Snippet.mPrintDebugLogs) {
-                Log.e(LOG_TAG, "We found a existing tag for the LogToken " + token.toString() + ", removing the tag");
+            if (scope != null && !scope.equals(key.getScope())) {
+                continue;
+            }
+            if (wildcard < 0 || prefixOnly || matches(pattern, wildcard, tag, prefix.length())) {
+                ILogToken token = entry.getValue();
+                // A token is indexed before the registry accepts its tag. Until a duplicate is
+                // rejected and taken out of the index again it must not be found.
+                if (mRegistry.get(key) == token) {
+                    result.add(token);
+                }
             }
-            return mRegistry.remove(requestedTag);
         }
+        if (result.isEmpty() && Snippet.mPrintDebugLogs) {
+            Log.d(LOG_TAG, "There is no log token matching: " + pattern);
+        }
+        return result;
     }
 
-    @Override
-    public ILogToken search(String tag) {
-        synchronized (mRegistry) {
-            if (mRegistry.containsKey(tag)) {
-                return mRegistry.get(tag);
+    /**
+     * Glob match of the rest of the tag against the rest of the pattern, '*' matches any sequence
+     * of characters including none. Backtracks only to the last '*', linear for the usual patterns.
+     */
+    private static boolean matches(String pattern, int patternIndex, String tag, int tagIndex) {
+        int starIndex = -1;
+        int starTagIndex = 0;
+        while (tagIndex < tag.length()) {
+            if (patternIndex < pattern.length() && pattern.charAt(patternIndex) == WILDCARD) {
+                starIndex = patternIndex++;
+                starTagIndex = tagIndex;
+            } else if (patternIndex < pattern.length() && pattern.charAt(patternIndex) == tag.charAt(tagIndex)) {
+                patternIndex++;
+                tagIndex++;
+            } else if (starIndex >= 0) {
+                patternIndex = starIndex + 1;
+                tagIndex = ++starTagIndex;
             } else {
-                if (Snippet.mPrintDebugLogs) {
-                    Log.d(LOG_TAG, "There is no log token with tag: " + tag);
-                }
-                return null;
+                return false;
             }
         }
+        while (patternIndex < pattern.length() && pattern.charAt(patternIndex) == WILDCARD) {
+            patternIndex++;
+        }
+        return patternIndex == pattern.length();
     }
 }
-
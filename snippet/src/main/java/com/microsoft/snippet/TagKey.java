@@ -0,0 +1,62 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+/**
+ * Key of the tag registry, the user tag together with its {@link TagScope}. Hash is computed once,
+ * nothing is parsed back out of a string.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class TagKey {
+    private final String mTag;
+    private final TagScope mScope;
+    private final int mHash;
+
+    // Order of the key among the keys with the same tag in the sorted index of TagHelper. Assigned
+    // once the key is registered, published through the concurrent maps.
+    long mSequence;
+
+    TagKey(@NonNull String tag, @NonNull TagScope scope) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Tag cannot be null");
+        }
+        this.mTag = tag;
+        this.mScope = scope;
+        this.mHash = 31 * tag.hashCode() + scope.hashCode();
+    }
+
+    String getTag() {
+        return mTag;
+    }
+
+    TagScope getScope() {
+        return mScope;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TagKey)) {
+            return false;
+        }
+        TagKey other = (TagKey) o;
+        return mHash == other.mHash && mTag.equals(other.mTag) && mScope.equals(other.mScope);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return mScope == TagScope.GLOBAL ? mTag : mTag + "@" + mScope;
+    }
+}
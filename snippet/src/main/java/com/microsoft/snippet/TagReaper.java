@@ -0,0 +1,213 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.RestrictTo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ends the tagged log tokens that outlive their time to live. Such tokens are reported as
+ * {@link Measurement#KIND_ABANDONED}, untagged and returned to the pool, so the same tag can be
+ * measured again and the pool does not leak.
+ * <p>
+ * Deadlines are kept in a hashed timing wheel with one second ticks, scheduling and cancelling are
+ * O(1). Capture threads only add the new entries to a lock free queue, the wheel itself is owned by a
+ * single daemon thread. A token that is ended normally is not removed from the wheel, its entry
+ * holds a {@link LogTokenHandle} which simply becomes stale and is dropped when its bucket comes up.
+ * The reaper thread is started on the first tagged capture with a time to live and parks for as long
+ * as the wheel is empty.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class TagReaper {
+    private static final String TAG = TagReaper.class.getSimpleName();
+    private static final String THREAD_NAME = "Snippet-Reaper";
+    private static final long TICK_MILLIS = 1000L;
+    private static final int WHEEL_SIZE = 64;   // Power of two.
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private final ConcurrentMap<String, Long> mTagTimeToLive = new ConcurrentHashMap<>();
+    private volatile long mDefaultTimeToLiveMillis;
+
+    private final ConcurrentLinkedQueue<Entry> mPending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mAbandoned = new AtomicLong();
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+    private volatile Thread mThread;
+    private volatile boolean mIdle;
+
+    // Owned by the reaper thread.
+    private final Entry[] mWheel = new Entry[WHEEL_SIZE];
+    private int mWheelCount;
+    private long mStartMillis;
+    private long mTick;
+
+    private static final class Entry {
+        final LogTokenHandle mHandle;
+        final long mDeadline;
+        long mRemainingRounds;
+        Entry mNext;
+
+        Entry(LogTokenHandle handle, long deadline) {
+            this.mHandle = handle;
+            this.mDeadline = deadline;
+        }
+    }
+
+    /**
+     * @param timeToLive 0 to never expire the tagged tokens.
+     */
+    void setDefaultTimeToLive(long timeToLive, TimeUnit unit) {
+        mDefaultTimeToLiveMillis = checkTimeToLive(timeToLive, unit);
+    }
+
+    /**
+     * @param timeToLive 0 to never expire the tokens with this tag, negative to use the default again.
+     */
+    void setTimeToLive(String tag, long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            mTagTimeToLive.remove(tag);
+        } else {
+            mTagTimeToLive.put(tag, checkTimeToLive(timeToLive, unit));
+        }
+    }
+
+    private static long checkTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live cannot be negative: " + timeToLive);
+        }
+        return unit.toMillis(timeToLive);
+    }
+
+    /**
+     * Starts the clock of a freshly tagged token, if a time to live applies to its tag.
+     */
+    void onTagged(String tag, LogTokenHandle handle) {
+        long timeToLive = mDefaultTimeToLiveMillis;
+        if (!mTagTimeToLive.isEmpty()) {
+            Long tagTimeToLive = mTagTimeToLive.get(tag);
+            if (tagTimeToLive != null) {
+                timeToLive = tagTimeToLive;
+            }
+        }
+        if (timeToLive == 0) {
+            return;
+        }
+        mPending.add(new Entry(handle, ToolBox.uptimeMillis() + timeToLive));
+        if (mStarted.compareAndSet(false, true)) {
+            startThread();
+        } else if (mIdle) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    long getAbandonedCount() {
+        return mAbandoned.get();
+    }
+
+    private void startThread() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                reapLoop();
+            }
+        }, THREAD_NAME);
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    private void reapLoop() {
+        mStartMillis = ToolBox.uptimeMillis();
+        while (true) {
+            if (mWheelCount == 0 && mPending.isEmpty()) {
+                mIdle = true;
+                // Check again after publishing the flag, an entry may have been added just before.
+                while (mPending.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                mIdle = false;
+                // Wheel is empty, it can be anchored at the current time.
+                mStartMillis = ToolBox.uptimeMillis();
+                mTick = 0;
+            }
+            waitForNextTick();
+            transferPending();
+            expire(mWheel[(int) (mTick & WHEEL_MASK)]);
+            mTick++;
+        }
+    }
+
+    private void waitForNextTick() {
+        long deadline = mStartMillis + (mTick + 1) * TICK_MILLIS;
+        long remaining;
+        while ((remaining = deadline - ToolBox.uptimeMillis()) > 0) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remaining));
+        }
+    }
+
+    private void transferPending() {
+        Entry entry;
+        while ((entry = mPending.poll()) != null) {
+            long ticks = (entry.mDeadline - mStartMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+            if (ticks < mTick) {
+                ticks = mTick;  // Already due, expire it with the current bucket.
+            }
+            entry.mRemainingRounds = (ticks - mTick) / WHEEL_SIZE;
+            int bucket = (int) (ticks & WHEEL_MASK);
+            entry.mNext = mWheel[bucket];
+            mWheel[bucket] = entry;
+            mWheelCount++;
+        }
+    }
+
+    private void expire(Entry head) {
+        int bucket = (int) (mTick & WHEEL_MASK);
+        long now = ToolBox.uptimeMillis();
+        Entry previous = null;
+        Entry entry = head;
+        while (entry != null) {
+            Entry next = entry.mNext;
+            boolean remove;
+            if (!entry.mHandle.isLive()) {
+                remove = true;  // Ended normally, the entry was lazily cancelled.
+            } else if (entry.mRemainingRounds > 0) {
+                entry.mRemainingRounds--;
+                remove = false;
+            } else if (entry.mDeadline <= now) {
+                remove = true;
+                if (entry.mHandle.token().abandon(entry.mHandle)) {
+                    mAbandoned.incrementAndGet();
+                }
+            } else {
+                remove = false;
+            }
+            if (remove) {
+                if (previous == null) {
+                    mWheel[bucket] = next;
+                } else {
+                    previous.mNext = next;
+                }
+                entry.mNext = null;
+                mWheelCount--;
+            } else {
+                previous = entry;
+            }
+            entry = next;
+        }
+        if (Snippet.mPrintDebugLogs && mWheelCount > 0) {
+            Log.d(TAG, mWheelCount + " tagged tokens waiting for expiry.");
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Namespace of a tag passed to {@link Snippet#startCapture(String, TagScope)}. The same tag can be
+ * taken once per scope, so the same flow can be measured in parallel on different threads or
+ * executors without the captures colliding on one tag.
+ * <ol>
+ *     <li>{@link TagScope#GLOBAL} Tag is unique across the app, same as {@link Snippet#startCapture(String)}.</li>
+ *     <li>{@link TagScope#thread()} Tag is unique per thread. Find it from another thread with
+ *     {@link TagScope#thread(long)}.</li>
+ *     <li>{@link TagScope#of(Object)} Tag is unique per owner, like an executor or a request object.
+ *     Owners are compared by identity.</li>
+ * </ol>
+ */
+public final class TagScope {
+    private static final int KIND_GLOBAL = 0;
+    private static final int KIND_THREAD = 1;
+    private static final int KIND_OWNER = 2;
+
+    public static final TagScope GLOBAL = new TagScope(KIND_GLOBAL, 0L, null);
+
+    private final int mKind;
+    private final long mThreadId;
+    private final Object mOwner;
+
+    private TagScope(int kind, long threadId, Object owner) {
+        this.mKind = kind;
+        this.mThreadId = threadId;
+        this.mOwner = owner;
+    }
+
+    /**
+     * Scope of the calling thread.
+     */
+    @NonNull
+    public static TagScope thread() {
+        return new TagScope(KIND_THREAD, Thread.currentThread().getId(), null);
+    }
+
+    /**
+     * Scope of the given thread, to find a tag that was started on another thread.
+     */
+    @NonNull
+    public static TagScope thread(long threadId) {
+        return new TagScope(KIND_THREAD, threadId, null);
+    }
+
+    /**
+     * Scope of an owner object such as an {@link java.util.concurrent.Executor}. The owner is held
+     * by the registry only while a token is tagged in its scope.
+     */
+    @NonNull
+    public static TagScope of(@NonNull Object owner) {
+        if (owner == null) {
+            throw new IllegalArgumentException("Owner of the scope cannot be null");
+        }
+        return new TagScope(KIND_OWNER, 0L, owner);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TagScope)) {
+            return false;
+        }
+        TagScope other = (TagScope) o;
+        return mKind == other.mKind && mThreadId == other.mThreadId && mOwner == other.mOwner;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mKind;
+        result = 31 * result + (int) (mThreadId ^ (mThreadId >>> 32));
+        result = 31 * result + System.identityHashCode(mOwner);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        switch (mKind) {
+            case KIND_THREAD:
+                return "thread:" + mThreadId;
+            case KIND_OWNER:
+                return "owner:" + mOwner.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(mOwner));
+            default:
+                return "global";
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import android.os.Looper;
+
+/**
+ * Kind of thread a capture ran on, used to give all the captures of the main thread one latency
+ * budget, see {@link Snippet#setLatencyBudget(ThreadClass, long, java.util.concurrent.TimeUnit)}.
+ */
+public enum ThreadClass {
+    /**
+     * The main (UI) thread of the app.
+     */
+    MAIN,
+
+    /**
+     * Any other thread.
+     */
+    BACKGROUND;
+
+    static ThreadClass of(Thread thread) {
+        // No main looper outside of an app process, in local unit tests for example.
+        Looper mainLooper = Looper.getMainLooper();
+        return mainLooper != null && thread == mainLooper.getThread() ? MAIN : BACKGROUND;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+/**
+ * Source of timestamps used by Snippet for all the measurements. Every timestamp handed out by
+ * the library (token start/end, split boundaries, execution durations) is read from the installed
+ * time source and is expressed in nanoseconds.
+ * <p>
+ * Implementations must be monotonic: the value returned should never go backwards, the absolute
+ * value carries no meaning and only the difference between two readings is used.
+ * Use {@link Snippet#setTimeSource(TimeSource)} to install a custom source, for example
+ * {@link FakeTimeSource} in tests.
+ */
+public interface TimeSource {
+
+    /**
+     * Returns the current value of the monotonic clock in nanoseconds.
+     *
+     * @return monotonic timestamp in nanoseconds.
+     */
+    long nanoTime();
+}
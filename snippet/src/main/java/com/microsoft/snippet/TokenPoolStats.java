@@ -0,0 +1,79 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+/**
+ * Snapshot of the log token pool counters, returned by {@link Snippet#getTokenPoolStats()}.
+ * Counters are read one after the other while captures may be running, so they are not exactly
+ * consistent with each other.
+ */
+public final class TokenPoolStats {
+    private final long mHits;
+    private final long mMisses;
+    private final long mEvictions;
+    private final int mHighWaterMark;
+    private final int mPooled;
+    private final int mCapacity;
+
+    TokenPoolStats(long hits, long misses, long evictions, int highWaterMark, int pooled, int capacity) {
+        this.mHits = hits;
+        this.mMisses = misses;
+        this.mEvictions = evictions;
+        this.mHighWaterMark = highWaterMark;
+        this.mPooled = pooled;
+        this.mCapacity = capacity;
+    }
+
+    /**
+     * Number of startCapture() calls that got a token from the pool.
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Number of startCapture() calls that had to create a new token.
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Number of tokens dropped from the pool after being idle, or by {@link Snippet#trimTokenPool()}.
+     */
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * Highest number of tokens that existed at the same time, in use and in the pool together.
+     * Tokens that were never ended are counted as alive.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Number of tokens sitting in the pool right now.
+     */
+    public int getPooled() {
+        return mPooled;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenPoolStats{hits=" + mHits
+                + ", misses=" + mMisses
+                + ", evictions=" + mEvictions
+                + ", highWaterMark=" + mHighWaterMark
+                + ", pooled=" + mPooled
+                + ", capacity=" + mCapacity
+                + '}';
+    }
+}
@@ -4,8 +4,6 @@
 
 package com.microsoft.snippet;
 
-import android.os.SystemClock;
-
 import androidx.annotation.RestrictTo;
 
 import com.microsoft.snippet.token.ILogToken;
@@ -20,13 +18,8 @@ final class ToolBox {
 
     }
 
-    static long invokeAndMeasure(Snippet.Closure closure) {
-        long start = SystemClock.uptimeMillis();
-        closure.invoke();
-        long end = SystemClock.uptimeMillis();
-
-        return end - start;
-    }
+    private static final long NANOS_PER_MICRO = 1000L;
+    private static final long NANOS_PER_MILLI = 1000_000L;
 
     static boolean willThreadLockGuardThisCapture(Thread currentThread, ILogToken token) {
         if (token.isThreadLockEnabled()) {
@@ -36,27 +29,58 @@ final class ToolBox {
         }
     }
 
-    static String combineThreadIdWithUserTag(String tag) {
-        return tag + ":" + Thread.currentThread().getId();
+    /**
+     * Current time in nanoseconds as per the installed {@link TimeSource}.
+     */
+    static long currentTime() {
+        return Snippet.timeSource.nanoTime();
     }
 
-    static long getThreadIdFromSnippetTag(String snippetTag) {
-        String[] items = snippetTag.split(":");
-        if (items.length != 2) {
-            throw new IllegalStateException("Snippet tag should have 2 items, user tag and thread ID");
-        }
-        return Long.parseLong(items[1]);
+    /**
+     * Uptime in milliseconds for the timers of the library, the idle eviction of the token pool and
+     * the expiry of tagged tokens. Not affected by the installed {@link TimeSource}. Same clock as
+     * SystemClock.uptimeMillis(), read through {@link System#nanoTime()} so that it also ticks in
+     * local unit tests, where the android.jar stubs return 0.
+     */
+    static long uptimeMillis() {
+        return System.nanoTime() / NANOS_PER_MILLI;
     }
 
-    static String getUserTagFromSnippetTag(String snippetTag) {
-        String[] items = snippetTag.split(":");
-        if (items.length != 2) {
-            throw new IllegalStateException("Snippet tag should have 2 items, user tag and thread ID");
+    /**
+     * Appends a human readable form of the duration to the builder. The unit is chosen depending
+     * on the magnitude so that sub millisecond durations do not show up as 0.
+     * ex. 18.204 ms, 512.300 µs, 730 ns
+     *
+     * @param builder builder to append to.
+     * @param nanos   duration in nanoseconds.
+     * @return the same builder.
+     */
+    static StringBuilder appendDuration(StringBuilder builder, long nanos) {
+        long abs = Math.abs(nanos);
+        if (abs >= NANOS_PER_MILLI) {
+            return appendScaled(builder, nanos, NANOS_PER_MILLI).append(" ms");
+        } else if (abs >= NANOS_PER_MICRO) {
+            return appendScaled(builder, nanos, NANOS_PER_MICRO).append(" µs");
+        } else {
+            return builder.append(nanos).append(" ns");
         }
-        return items[0];
     }
 
-    static long currentTime() {
-        return SystemClock.uptimeMillis();
+    // Appends value/unit with 3 decimal places, without going through String.format().
+    private static StringBuilder appendScaled(StringBuilder builder, long value, long unit) {
+        if (value < 0) {
+            builder.append('-');
+            value = -value;
+        }
+        long whole = value / unit;
+        long fraction = (value % unit) * 1000 / unit;
+        builder.append(whole).append('.');
+        if (fraction < 100) {
+            builder.append('0');
+        }
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        return builder.append(fraction);
     }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.sink;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.ExecutionContext;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.MeasurementBatch;
+import com.microsoft.snippet.MeasurementSink;
+import com.microsoft.snippet.TagScope;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * {@link MeasurementSink} that writes the measurements as Chrome Trace Event JSON, which can be
+ * opened in chrome://tracing or ui.perfetto.dev.
+ * <ol>
+ *     <li>Captures become complete events ("X") on the thread that ran them.</li>
+ *     <li>Log tokens become complete events on the thread that ended them, the splits of the token
+ *     are nested complete events inside it.</li>
+ *     <li>Tokens started with {@link com.microsoft.snippet.Snippet#startCapture(String)} can end on
+ *     a different thread, so they become async begin/end pairs ("b"/"e") keyed by the tag. Splits are
+ *     nested async pairs with the same key. Tokens that outlived their time to live are marked as
+ *     abandoned.</li>
+ * </ol>
+ * Events are written to the file as they arrive, the document is never held in memory. Timestamps
+ * are the nanoseconds of the installed {@link com.microsoft.snippet.TimeSource} converted to
+ * microseconds.
+ * <p>
+ * Call {@link ChromeTraceSink#close()} to finish the document. A trace that was not closed still
+ * opens in the viewers, they accept a missing closing bracket.
+ */
+public final class ChromeTraceSink implements MeasurementSink, Closeable {
+    private static final String TAG = ChromeTraceSink.class.getSimpleName();
+
+    private static final String CATEGORY_CAPTURE = "capture";
+    private static final String CATEGORY_TOKEN = "token";
+    private static final String CATEGORY_TAG = "tag";
+    private static final String CATEGORY_SPLIT = "split";
+
+    private final Writer mWriter;
+    private final int mPid;
+    // Ids of the threads whose name was written. There are few threads, a scan of the array is
+    // cheap and does not box the id of every measurement like a Set<Long> would.
+    private long[] mNamedThreads = new long[16];
+    private int mNamedThreadCount;
+    private final StringBuilder mScratch = new StringBuilder(256);
+    private boolean mFirstEvent = true;
+    private boolean mClosed;
+
+    /**
+     * @param file file where the trace is written, overwritten if it exists.
+     * @throws IOException if the file cannot be opened.
+     */
+    public ChromeTraceSink(@NonNull File file) throws IOException {
+        this(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+
+    /**
+     * @param writer writer that receives the trace, closed when the sink is closed.
+     * @throws IOException if the writer fails.
+     */
+    public ChromeTraceSink(@NonNull Writer writer) throws IOException {
+        this.mWriter = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+        this.mPid = Process.myPid();
+        mWriter.write("[\n");
+    }
+
+    @Override
+    public synchronized void onMeasurements(@NonNull MeasurementBatch batch) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Measurement measurement = batch.get(i);
+                switch (measurement.getKind()) {
+                    case Measurement.KIND_CAPTURE:
+                        writeThreadName(measurement);
+                        writeComplete(measurement.getStartNanos(), measurement.getEndNanos(), measurement.getThreadId(),
+                                nameOf(measurement), CATEGORY_CAPTURE, measurement.getExecutionContext());
+                        break;
+                    case Measurement.KIND_LOG_TOKEN:
+                    case Measurement.KIND_ABANDONED:
+                        writeThreadName(measurement);
+                        if (measurement.getTag() != null) {
+                            writeTagged(measurement);
+                        } else {
+                            writeToken(measurement);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            // Flushing once per batch keeps most of the trace if the process dies.
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Not able to write the trace, closing the sink", e);
+            closeQuietly();
+        }
+    }
+
+    private void writeToken(Measurement measurement) throws IOException {
+        long threadId = measurement.getThreadId();
+        writeComplete(measurement.getStartNanos(), measurement.getEndNanos(), threadId,
+                nameOf(measurement), CATEGORY_TOKEN, measurement.getExecutionContext());
+        for (int i = 0; i < measurement.getSplitCount(); i++) {
+            writeComplete(measurement.getSplitStartNanos(i), measurement.getSplitEndNanos(i), threadId,
+                    splitName(measurement, i), CATEGORY_SPLIT, null);
+        }
+    }
+
+    private void writeTagged(Measurement measurement) throws IOException {
+        String name = measurement.getMessage() != null ? measurement.getMessage() : measurement.getTag();
+        // Same tag can be open in several scopes at once, each needs its own async track.
+        String tag = measurement.getTagScope() == TagScope.GLOBAL
+                ? measurement.getTag()
+                : measurement.getTag() + "@" + measurement.getTagScope();
+        long threadId = measurement.getThreadId();
+        if (measurement.getKind() == Measurement.KIND_ABANDONED) {
+            name = name + " (abandoned)";
+        }
+        writeAsync('b', measurement.getStartNanos(), threadId, name, tag, measurement.getExecutionContext());
+        for (int i = 0; i < measurement.getSplitCount(); i++) {
+            String splitName = splitName(measurement, i);
+            writeAsync('b', measurement.getSplitStartNanos(i), threadId, splitName, tag, null);
+            writeAsync('e', measurement.getSplitEndNanos(i), threadId, splitName, tag, null);
+        }
+        writeAsync('e', measurement.getEndNanos(), threadId, name, tag, null);
+    }
+
+    private void writeComplete(long start, long end, long threadId, String name, String category,
+                               ExecutionContext context) throws IOException {
+        StringBuilder event = beginEvent(name, category, 'X', start, threadId);
+        event.append(",\"dur\":");
+        appendMicros(event, end - start);
+        appendArgs(event, context);
+        writeEvent(event);
+    }
+
+    private void writeAsync(char phase, long timestamp, long threadId, String name, String tag,
+                            ExecutionContext context) throws IOException {
+        StringBuilder event = beginEvent(name, CATEGORY_TAG, phase, timestamp, threadId);
+        event.append(",\"id\":");
+        appendString(event, tag);
+        appendArgs(event, context);
+        writeEvent(event);
+    }
+
+    private void writeThreadName(Measurement measurement) throws IOException {
+        ExecutionContext context = measurement.getExecutionContext();
+        // Abandoned tokens are ended by the reaper, the context has its name and not the name of the
+        // thread the token started on, which is the thread id of the measurement.
+        if (context == null || measurement.getKind() == Measurement.KIND_ABANDONED
+                || !markNamed(measurement.getThreadId())) {
+            return;
+        }
+        StringBuilder event = mScratch;
+        event.setLength(0);
+        event.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(mPid)
+                .append(",\"tid\":").append(measurement.getThreadId())
+                .append(",\"args\":{\"name\":");
+        appendString(event, String.valueOf(context.getThreadName()));
+        event.append("}}");
+        writeEvent(event);
+    }
+
+    /**
+     * @return false if the name of the thread was already written.
+     */
+    private boolean markNamed(long threadId) {
+        for (int i = 0; i < mNamedThreadCount; i++) {
+            if (mNamedThreads[i] == threadId) {
+                return false;
+            }
+        }
+        if (mNamedThreadCount == mNamedThreads.length) {
+            mNamedThreads = Arrays.copyOf(mNamedThreads, mNamedThreadCount * 2);
+        }
+        mNamedThreads[mNamedThreadCount++] = threadId;
+        return true;
+    }
+
+    private StringBuilder beginEvent(String name, String category, char phase, long timestamp, long threadId) {
+        StringBuilder event = mScratch;
+        event.setLength(0);
+        event.append("{\"name\":");
+        appendString(event, name);
+        event.append(",\"cat\":\"").append(category)
+                .append("\",\"ph\":\"").append(phase)
+                .append("\",\"ts\":");
+        appendMicros(event, timestamp);
+        event.append(",\"pid\":").append(mPid)
+                .append(",\"tid\":").append(threadId);
+        return event;
+    }
+
+    private static void appendArgs(StringBuilder event, ExecutionContext context) {
+        CallSite callSite = context != null ? context.getCallSite() : null;
+        if (callSite != null) {
+            event.append(",\"args\":{\"callSite\":");
+            appendString(event, callSite.toString());
+            event.append("}");
+        }
+        event.append("}");
+    }
+
+    private void writeEvent(StringBuilder event) throws IOException {
+        if (!mFirstEvent) {
+            mWriter.write(",\n");
+        }
+        mFirstEvent = false;
+        mWriter.append(event);
+    }
+
+    private static String nameOf(Measurement measurement) {
+        if (measurement.getMessage() != null) {
+            return measurement.getMessage();
+        }
+        ExecutionContext context = measurement.getExecutionContext();
+        CallSite callSite = context != null ? context.getCallSite() : null;
+        if (callSite == null) {
+            return "unknown";
+        }
+        return callSite.getSimpleClassName() + "#" + callSite.getMethodName();
+    }
+
+    private static String splitName(Measurement measurement, int index) {
+        String name = measurement.getSplitName(index);
+        return name != null ? name : "Split " + measurement.getSplitSequence(index);
+    }
+
+    // Microseconds with the nanoseconds as a fraction, without going through a double.
+    private static void appendMicros(StringBuilder builder, long nanos) {
+        if (nanos < 0) {
+            builder.append('-');
+            nanos = -nanos;
+        }
+        builder.append(nanos / 1000L).append('.');
+        long fraction = nanos % 1000L;
+        if (fraction < 100) {
+            builder.append('0');
+        }
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
+    private static void appendString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * Writes the closing bracket and closes the file. Measurements reported after this call are ignored.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mWriter.write("\n]\n");
+        } finally {
+            mWriter.close();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            Log.e(TAG, "Not able to close the trace file", e);
+        }
+    }
+}
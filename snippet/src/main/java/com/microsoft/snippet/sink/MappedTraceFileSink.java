@@ -0,0 +1,291 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.sink;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.ExecutionContext;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.MeasurementBatch;
+import com.microsoft.snippet.MeasurementSink;
+import com.microsoft.snippet.Snippet;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link MeasurementSink} that keeps the measurements of a session in binary trace files.
+ * Records are appended to memory mapped segment files, so writing a record is a handful of puts
+ * into a {@link MappedByteBuffer} and not a syscall. When a segment is full the next one is mapped,
+ * only the newest <code>maxSegments</code> segments are kept on the disk.
+ * <p>
+ * Files written for a session, where session is the wall clock time at which the sink was created:
+ * <ol>
+ *     <li><b>snippet-&lt;session&gt;-&lt;index&gt;.trace</b> Segment: a 32 byte header followed by
+ *     fixed size records.</li>
+ *     <li><b>snippet-&lt;session&gt;-&lt;index&gt;.dict</b> Dictionary of the segment: names used by
+ *     its records (call sites, thread names, messages) are written once here and the records refer
+ *     to them by id.</li>
+ * </ol>
+ * Every segment has its own dictionary, ids start from 0 again in each segment. A name used in
+ * several segments is written once per segment, in exchange the dictionary held in memory never
+ * has more names than a segment has records, however many distinct messages a long session sees,
+ * and a segment can be read without the ones that were deleted before it.
+ * Segments are little endian, the dictionaries are written with a {@link DataOutputStream} and are big endian.
+ * <pre>
+ * Segment header (32 bytes)
+ *   int   magic          0x54504E53 ("SNPT")
+ *   short version        2
+ *   short record size    48
+ *   int   segment index
+ *   int   record count   updated after every record
+ *   long  wall clock millis when the session started
+ *   long  time source nanos when the session started
+ *
+ * Record (48 bytes)
+ *   long  start nanos
+ *   long  end nanos
+ *   long  thread id
+ *   int   call site id   -1 if not known
+ *   int   thread name id -1 if not known
+ *   int   message id     -1 if none, name of the split for split records
+ *   int   split sequence 0 for captures and log tokens
+ *   int   kind           {@link Measurement#KIND_CAPTURE}, {@link Measurement#KIND_LOG_TOKEN},
+ *                        {@link Measurement#KIND_ABANDONED} or {@link Measurement#KIND_SPLIT} for split records
+ *   int   reserved
+ *
+ * Dictionary entry
+ *   int   id
+ *   short length of the name in bytes
+ *   byte[] UTF-8 name, call sites are written as class#method:line
+ * </pre>
+ * Splits of a log token are written right after the record of the token, with the token's call
+ * site and thread.
+ * <p>
+ * Works best with {@link com.microsoft.snippet.Snippet#enableAsyncReporting(int, com.microsoft.snippet.DropPolicy)},
+ * otherwise all the measured threads write the file under the lock of the sink.
+ * Call {@link MappedTraceFileSink#close()} to flush the files when the session is over.
+ */
+public final class MappedTraceFileSink implements MeasurementSink, Closeable {
+    private static final String TAG = MappedTraceFileSink.class.getSimpleName();
+
+    public static final int MAGIC = 0x54504E53;
+    public static final short VERSION = 2;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 48;
+
+    private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_MAX_SEGMENTS = 8;
+    private static final int NO_ID = -1;
+    private static final int RECORD_COUNT_OFFSET = 12;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final String mSessionName;
+    private final long mSessionWallClock;
+    private final long mSessionNanos;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+
+    // Names of the current segment, cleared on rotation.
+    private final Map<Object, Integer> mDictionary = new HashMap<>();
+    private DataOutputStream mDictionaryStream;
+    private boolean mDictionaryDirty;
+    private final ArrayDeque<File> mSegments = new ArrayDeque<>();
+
+    private int mSegmentIndex = -1;
+    private MappedByteBuffer mBuffer;
+    private int mRecordCount;
+    private boolean mClosed;
+
+    /**
+     * Creates a sink with 4MB segments and keeps at most 8 of them.
+     *
+     * @param directory directory where the trace files are written, created if missing.
+     * @throws IOException if the files cannot be created.
+     */
+    public MappedTraceFileSink(@NonNull File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param directory    directory where the trace files are written, created if missing.
+     * @param segmentSize  size of a segment file in bytes.
+     * @param maxSegments  number of segments to keep, older ones are deleted.
+     * @throws IOException if the files cannot be created.
+     */
+    public MappedTraceFileSink(@NonNull File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment should be able to hold at least one record");
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("At least one segment should be kept");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Not able to create the directory " + directory);
+        }
+        this.mDirectory = directory;
+        this.mSessionWallClock = System.currentTimeMillis();
+        this.mSessionNanos = Snippet.getTimeSource().nanoTime();
+        this.mSessionName = "snippet-" + mSessionWallClock;
+        this.mSegmentSize = segmentSize - (segmentSize - HEADER_SIZE) % RECORD_SIZE;
+        this.mMaxSegments = maxSegments;
+        rotate();
+    }
+
+    @Override
+    public synchronized void onMeasurements(@NonNull MeasurementBatch batch) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                writeMeasurement(batch.get(i));
+            }
+            if (mDictionaryDirty) {
+                // Only new names cost a write, once per batch.
+                mDictionaryDirty = false;
+                mDictionaryStream.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Not able to write the trace, closing the sink", e);
+            closeQuietly();
+        }
+    }
+
+    private void writeMeasurement(Measurement measurement) throws IOException {
+        ExecutionContext context = measurement.getExecutionContext();
+        CallSite callSite = null;
+        String threadName = null;
+        if (context != null) {
+            callSite = context.getCallSite();
+            threadName = context.getThreadName();
+        }
+        writeRecord(measurement.getStartNanos(), measurement.getEndNanos(), measurement.getThreadId(),
+                callSite, threadName, measurement.getMessage(), 0, measurement.getKind());
+        for (int i = 0; i < measurement.getSplitCount(); i++) {
+            writeRecord(measurement.getSplitStartNanos(i), measurement.getSplitEndNanos(i), measurement.getThreadId(),
+                    callSite, threadName, measurement.getSplitName(i), measurement.getSplitSequence(i),
+                    Measurement.KIND_SPLIT);
+        }
+    }
+
+    private void writeRecord(long start, long end, long threadId, CallSite callSite, String threadName,
+                             String message, int sequence, int kind) throws IOException {
+        if (mBuffer.remaining() < RECORD_SIZE) {
+            rotate();
+        }
+        // Ids are resolved after the rotation, they belong to the dictionary of the segment.
+        int callSiteId = idOf(callSite);
+        int threadNameId = idOf(threadName);
+        int messageId = idOf(message);
+        MappedByteBuffer buffer = mBuffer;
+        buffer.putLong(start);
+        buffer.putLong(end);
+        buffer.putLong(threadId);
+        buffer.putInt(callSiteId);
+        buffer.putInt(threadNameId);
+        buffer.putInt(messageId);
+        buffer.putInt(sequence);
+        buffer.putInt(kind);
+        buffer.putInt(0);
+        buffer.putInt(RECORD_COUNT_OFFSET, ++mRecordCount);
+    }
+
+    private int idOf(Object name) throws IOException {
+        if (name == null) {
+            return NO_ID;
+        }
+        Integer id = mDictionary.get(name);
+        if (id != null) {
+            return id;
+        }
+        int newId = mDictionary.size();
+        mDictionary.put(name, newId);
+        mDictionaryDirty = true;
+        byte[] bytes = name.toString().getBytes(UTF_8);
+        int length = Math.min(bytes.length, Short.MAX_VALUE);
+        mDictionaryStream.writeInt(newId);
+        mDictionaryStream.writeShort(length);
+        mDictionaryStream.write(bytes, 0, length);
+        return newId;
+    }
+
+    private void rotate() throws IOException {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+        if (mDictionaryStream != null) {
+            mDictionaryStream.close();
+        }
+        mSegmentIndex++;
+        String segmentName = mSessionName + "-" + mSegmentIndex;
+        mDictionary.clear();
+        mDictionaryDirty = false;
+        mDictionaryStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(mDirectory, segmentName + ".dict"))));
+        File segment = new File(mDirectory, segmentName + ".trace");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // Mapping stays valid after the channel is closed.
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mRecordCount = 0;
+        mBuffer.putInt(MAGIC);
+        mBuffer.putShort(VERSION);
+        mBuffer.putShort((short) RECORD_SIZE);
+        mBuffer.putInt(mSegmentIndex);
+        mBuffer.putInt(mRecordCount);
+        mBuffer.putLong(mSessionWallClock);
+        mBuffer.putLong(mSessionNanos);
+
+        mSegments.addLast(segment);
+        while (mSegments.size() > mMaxSegments) {
+            File oldest = mSegments.removeFirst();
+            String name = oldest.getName();
+            File dictionary = new File(mDirectory, name.substring(0, name.length() - ".trace".length()) + ".dict");
+            if (!oldest.delete() || !dictionary.delete()) {
+                Log.e(TAG, "Not able to delete the old segment " + oldest);
+            }
+        }
+    }
+
+    /**
+     * Flushes the mapped segment and its dictionary to the disk. Measurements reported after this
+     * call are ignored.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mBuffer.force();
+        mDictionaryStream.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            Log.e(TAG, "Not able to close the trace files", e);
+        }
+    }
+}
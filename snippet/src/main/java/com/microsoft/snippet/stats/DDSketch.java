@@ -0,0 +1,310 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Quantile sketch of durations with a bounded relative error (DDSketch, Masson et al. 2019).
+ * <p>
+ * A duration v is counted in the bin ceil(log(v) / log(gamma)) with
+ * gamma = (1 + accuracy) / (1 - accuracy), so every quantile is reported within the relative
+ * accuracy of the true value, 1 % by default. Only the bins between the smallest and the largest
+ * recorded duration are allocated: durations from 1 ms to 10 s take about 460 bins. If the range
+ * needs more than the maximum number of bins, the lowest bins are collapsed together, which keeps the
+ * high quantiles exact within the accuracy.
+ * <p>
+ * Sketches with the same accuracy can be merged, the result is the same as if all the durations had
+ * been recorded into one sketch. They can be written to a stream and read back, so the sketches
+ * of several sessions can be merged. Methods are synchronized, a sketch can be shared by threads.
+ */
+public final class DDSketch {
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    static final int DEFAULT_MAX_BINS = 2048;
+    private static final int INITIAL_BINS = 32;
+    private static final int FORMAT_VERSION = 1;
+
+    private final double mRelativeAccuracy;
+    private final double mGamma;
+    private final double mMultiplier;
+    private final int mMaxBins;
+
+    // mBins[i] counts the durations of bin mOffset + i. Null until the first positive duration.
+    private long[] mBins;
+    private int mOffset;
+    private long mZeroCount;
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    public DDSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * @param relativeAccuracy between 0 and 1 exclusive, 0.01 for quantiles within 1 %.
+     */
+    public DDSketch(double relativeAccuracy) {
+        this(relativeAccuracy, DEFAULT_MAX_BINS);
+    }
+
+    DDSketch(double relativeAccuracy, int maxBins) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("Relative accuracy should be between 0 and 1: " + relativeAccuracy);
+        }
+        this.mRelativeAccuracy = relativeAccuracy;
+        this.mGamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.mMultiplier = 1 / Math.log(mGamma);
+        this.mMaxBins = maxBins;
+    }
+
+    public double getRelativeAccuracy() {
+        return mRelativeAccuracy;
+    }
+
+    /**
+     * @param nanos duration in nanoseconds, negative durations are recorded as 0.
+     */
+    public void record(long nanos) {
+        record(nanos, 1L);
+    }
+
+    /**
+     * Records a duration that stands for several calls, for example a sampled one.
+     *
+     * @param count number of times to count the duration.
+     */
+    public synchronized void record(long nanos, long count) {
+        long value = nanos < 0 ? 0 : nanos;
+        if (value == 0) {
+            mZeroCount += count;
+        } else {
+            int index = (int) Math.ceil(Math.log(value) * mMultiplier);
+            add(index, count);
+        }
+        mCount += count;
+        mSum += value * count;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    private void add(int index, long count) {
+        if (mBins == null) {
+            mBins = new long[INITIAL_BINS];
+            mOffset = index;
+        }
+        if (index < mOffset || index >= mOffset + mBins.length) {
+            index = ensureRange(index);
+        }
+        mBins[index - mOffset] += count;
+    }
+
+    /**
+     * Grows the bins so that the index fits, collapsing the lowest bins if the range gets too wide.
+     *
+     * @return index to count the duration in, the lowest bin if the index was collapsed.
+     */
+    private int ensureRange(int index) {
+        int length = mBins.length;
+        int low = Math.min(index, mOffset);
+        int high = Math.max(index, mOffset + length - 1);
+        if (high - low + 1 > mMaxBins) {
+            low = high - mMaxBins + 1;
+        }
+        int size = Math.max(high - low + 1, Math.min(mMaxBins, length * 2));
+        // Leave the spare room on the side the sketch is growing to.
+        int newOffset = index < mOffset ? high - size + 1 : low;
+        long[] bins = new long[size];
+        for (int i = 0; i < length; i++) {
+            long count = mBins[i];
+            if (count != 0) {
+                bins[Math.max(mOffset + i, newOffset) - newOffset] += count;
+            }
+        }
+        mBins = bins;
+        mOffset = newOffset;
+        return Math.max(index, newOffset);
+    }
+
+    /**
+     * Adds the durations recorded in the other sketch to this one.
+     *
+     * @throws IllegalArgumentException if the sketches do not have the same accuracy.
+     */
+    public void merge(@NonNull DDSketch other) {
+        if (other == this) {
+            throw new IllegalArgumentException("A sketch cannot be merged into itself");
+        }
+        long[] bins;
+        int offset;
+        long zeroCount;
+        long count;
+        long sum;
+        long min;
+        long max;
+        synchronized (other) {
+            if (other.mCount == 0) {
+                return;
+            }
+            bins = other.mBins != null ? other.mBins.clone() : null;
+            offset = other.mOffset;
+            zeroCount = other.mZeroCount;
+            count = other.mCount;
+            sum = other.mSum;
+            min = other.mMin;
+            max = other.mMax;
+        }
+        if (Double.compare(other.mGamma, mGamma) != 0) {
+            throw new IllegalArgumentException("Cannot merge sketches of accuracy " + other.mRelativeAccuracy
+                    + " into a sketch of accuracy " + mRelativeAccuracy);
+        }
+        synchronized (this) {
+            if (bins != null) {
+                for (int i = 0; i < bins.length; i++) {
+                    if (bins[i] != 0) {
+                        add(offset + i, bins[i]);
+                    }
+                }
+            }
+            mZeroCount += zeroCount;
+            mCount += count;
+            mSum += sum;
+            mMin = Math.min(mMin, min);
+            mMax = Math.max(mMax, max);
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param quantile between 0 and 1, for example 0.99.
+     * @return duration in microseconds that the given fraction of the durations did not exceed, 0 if
+     * nothing was recorded.
+     */
+    public synchronized double getQuantileMicros(double quantile) {
+        return getQuantileNanos(quantile) / 1000d;
+    }
+
+    /**
+     * Same as {@link DDSketch#getQuantileMicros(double)}, in nanoseconds.
+     */
+    public synchronized double getQuantileNanos(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile should be between 0 and 1: " + quantile);
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        if (quantile == 0) {
+            return mMin;
+        }
+        if (quantile == 1) {
+            return mMax;
+        }
+        long rank = (long) (quantile * (mCount - 1));
+        long seen = mZeroCount;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int i = 0; i < mBins.length; i++) {
+            seen += mBins[i];
+            if (seen > rank) {
+                // Value in the middle of the bin in terms of relative error.
+                double value = 2 * Math.pow(mGamma, mOffset + i) / (mGamma + 1);
+                return Math.max(mMin, Math.min(mMax, value));
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized double getMeanMicros() {
+        return mCount == 0 ? 0 : (double) mSum / mCount / 1000d;
+    }
+
+    public synchronized double getMinMicros() {
+        return mCount == 0 ? 0 : mMin / 1000d;
+    }
+
+    public synchronized double getMaxMicros() {
+        return mCount == 0 ? 0 : mMax / 1000d;
+    }
+
+    /**
+     * Writes the sketch, only the non empty range of bins is written.
+     */
+    public synchronized void writeTo(@NonNull DataOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        out.writeDouble(mRelativeAccuracy);
+        out.writeLong(mCount);
+        out.writeLong(mZeroCount);
+        out.writeLong(mSum);
+        out.writeLong(mMin);
+        out.writeLong(mMax);
+        int first = 0;
+        int last = -1;
+        if (mBins != null) {
+            while (first < mBins.length && mBins[first] == 0) {
+                first++;
+            }
+            last = mBins.length - 1;
+            while (last >= first && mBins[last] == 0) {
+                last--;
+            }
+        }
+        out.writeInt(mOffset + first);
+        out.writeInt(last - first + 1);
+        for (int i = first; i <= last; i++) {
+            out.writeLong(mBins[i]);
+        }
+    }
+
+    /**
+     * Reads a sketch written by {@link DDSketch#writeTo(DataOutput)}.
+     */
+    @NonNull
+    public static DDSketch readFrom(@NonNull DataInput in) throws IOException {
+        int version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown sketch format: " + version);
+        }
+        DDSketch sketch = new DDSketch(in.readDouble());
+        sketch.mCount = in.readLong();
+        sketch.mZeroCount = in.readLong();
+        sketch.mSum = in.readLong();
+        sketch.mMin = in.readLong();
+        sketch.mMax = in.readLong();
+        int offset = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > sketch.mMaxBins) {
+            throw new IOException("Corrupted sketch, bin count: " + length);
+        }
+        if (length > 0) {
+            sketch.mBins = new long[Math.max(length, INITIAL_BINS)];
+            sketch.mOffset = offset;
+            for (int i = 0; i < length; i++) {
+                sketch.mBins[i] = in.readLong();
+            }
+        }
+        return sketch;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "DDSketch{count=" + mCount
+                + ", bins=" + (mBins != null ? mBins.length : 0)
+                + ", accuracy=" + mRelativeAccuracy
+                + ", p50=" + getQuantileMicros(0.5) + " µs"
+                + ", p99=" + getQuantileMicros(0.99) + " µs"
+                + '}';
+    }
+}
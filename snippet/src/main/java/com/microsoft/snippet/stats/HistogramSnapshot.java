@@ -0,0 +1,110 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Immutable copy of a {@link LatencyHistogram}. All the values are in nanoseconds. Percentiles are
+ * within 1.6 % of the recorded values, min and max are exact.
+ */
+public final class HistogramSnapshot {
+    private final long[] mCounts;
+    private final long mCount;
+    private final long mSum;
+    private final long mMin;
+    private final long mMax;
+
+    HistogramSnapshot(long[] counts, long sum, long min, long max) {
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        this.mCounts = counts;
+        this.mCount = count;
+        this.mSum = sum;
+        this.mMin = count == 0 ? 0 : min;
+        this.mMax = count == 0 ? 0 : max;
+    }
+
+    /**
+     * Number of recorded durations.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMinNanos() {
+        return mMin;
+    }
+
+    public long getMaxNanos() {
+        return mMax;
+    }
+
+    public double getMeanNanos() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * Duration that the given percentage of the recorded durations did not exceed.
+     *
+     * @param percentile between 0 and 100, for example 99.9.
+     * @return duration in nanoseconds, 0 if nothing was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile should be between 0 and 100: " + percentile);
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        if (percentile == 100) {
+            return mMax;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                // Middle of the bucket, but never outside of what was actually recorded.
+                long value = LatencyHistogram.bucketLowerBound(i) + (LatencyHistogram.bucketWidth(i) >>> 1);
+                return Math.max(mMin, Math.min(mMax, value));
+            }
+        }
+        return mMax;
+    }
+
+    public long getP50Nanos() {
+        return getPercentileNanos(50);
+    }
+
+    public long getP90Nanos() {
+        return getPercentileNanos(90);
+    }
+
+    public long getP99Nanos() {
+        return getPercentileNanos(99);
+    }
+
+    public long getP999Nanos() {
+        return getPercentileNanos(99.9);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "count=%d, min=%.3f ms, mean=%.3f ms, p50=%.3f ms, p90=%.3f ms, p99=%.3f ms, p99.9=%.3f ms, max=%.3f ms",
+                mCount, millis(mMin), getMeanNanos() / 1_000_000d, millis(getP50Nanos()), millis(getP90Nanos()),
+                millis(getP99Nanos()), millis(getP999Nanos()), millis(mMax));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+}
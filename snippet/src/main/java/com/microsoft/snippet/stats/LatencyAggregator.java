@@ -0,0 +1,190 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.ExecutionContext;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.MeasurementBatch;
+import com.microsoft.snippet.MeasurementSink;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MeasurementSink} that keeps a {@link LatencyHistogram} per tag and per call site, so the
+ * distribution of every measured piece of code is available in memory instead of only as log lines.
+ * <pre>
+ * {@code
+ *     LatencyAggregator aggregator = new LatencyAggregator();
+ *     Snippet.addSink(aggregator);
+ *     ...
+ *     HistogramSnapshot feed = aggregator.snapshot("feed_load");
+ *     Log.d(TAG, "feed_load p99 " + feed.getP99Nanos());
+ * }
+ * </pre>
+ * Tagged log tokens are keyed by their tag, whatever scope they were started in. Captures and
+ * untagged log tokens are keyed by their call site. Abandoned tokens are not recorded, their
+ * duration is only the time to live. Sampled measurements are counted as many times as their
+ * {@link Measurement#getWeight()}.
+ * <p>
+ * Durations are first buffered per thread by a {@link PerThreadRecorder}, so threads that report in
+ * parallel do not contend on the histograms. The buffers are merged into the histograms on every
+ * snapshot, without stopping the threads that keep recording. Recording does not allocate as long as
+ * the call site is known without a stack walk, that is for tags and for code instrumented by the
+ * snippet gradle plugin.
+ * The number of keys is bounded, measurements of new keys beyond the limit are counted in
+ * {@link LatencyAggregator#getDroppedCount()} and not recorded.
+ */
+public final class LatencyAggregator implements MeasurementSink {
+    private static final String TAG = LatencyAggregator.class.getSimpleName();
+    static final int DEFAULT_MAX_KEYS = 256;
+
+    private final ConcurrentMap<String, LatencyHistogram> mTags = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CallSite, LatencyHistogram> mCallSites = new ConcurrentHashMap<>();
+    private final int mMaxKeys;
+    private final AtomicInteger mKeys = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final PerThreadRecorder<Object> mRecorder = new PerThreadRecorder<>(new PerThreadRecorder.Aggregate<Object>() {
+        @Override
+        public void record(Object key, long nanos, long count) {
+            LatencyHistogram histogram = key instanceof String
+                    ? histogramOf(mTags, (String) key)
+                    : histogramOf(mCallSites, (CallSite) key);
+            if (histogram != null) {
+                histogram.record(nanos, count);
+            }
+        }
+    }, PerThreadRecorder.DEFAULT_BUFFER_SIZE);
+
+    public LatencyAggregator() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param maxKeys maximum number of tags and call sites together. Every key takes about 18 KB.
+     */
+    public LatencyAggregator(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Max keys should be positive: " + maxKeys);
+        }
+        this.mMaxKeys = maxKeys;
+    }
+
+    @Override
+    public void onMeasurements(@NonNull MeasurementBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            record(batch.get(i));
+        }
+    }
+
+    private void record(Measurement measurement) {
+        int kind = measurement.getKind();
+        if (kind != Measurement.KIND_CAPTURE && kind != Measurement.KIND_LOG_TOKEN) {
+            return;
+        }
+        Object key = measurement.getTag();
+        if (key == null) {
+            ExecutionContext context = measurement.getExecutionContext();
+            key = context != null ? context.getCallSite() : null;
+            if (key == null) {
+                return;
+            }
+        }
+        mRecorder.record(key, measurement.getEndNanos() - measurement.getStartNanos(),
+                LatencyHistogram.countOf(measurement));
+    }
+
+    @Nullable
+    private <K> LatencyHistogram histogramOf(ConcurrentMap<K, LatencyHistogram> histograms, K key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram != null) {
+            return histogram;
+        }
+        // Reserve the key first so that racing threads can never go past the limit.
+        if (mKeys.incrementAndGet() > mMaxKeys) {
+            mKeys.decrementAndGet();
+            if (mDropped.getAndIncrement() == 0) {
+                Log.w(TAG, "More than " + mMaxKeys + " keys, measurements of new keys are not recorded.");
+            }
+            return null;
+        }
+        LatencyHistogram created = new LatencyHistogram();
+        histogram = histograms.putIfAbsent(key, created);
+        if (histogram != null) {
+            mKeys.decrementAndGet();
+            return histogram;
+        }
+        return created;
+    }
+
+    /**
+     * @return distribution of the tokens started with the tag, null if none was recorded.
+     */
+    @Nullable
+    public HistogramSnapshot snapshot(@NonNull String tag) {
+        mRecorder.drain();
+        LatencyHistogram histogram = mTags.get(tag);
+        return histogram != null ? histogram.snapshot() : null;
+    }
+
+    /**
+     * @return distribution of the captures and untagged tokens measured at the call site, null if none
+     * was recorded.
+     */
+    @Nullable
+    public HistogramSnapshot snapshot(@NonNull CallSite callSite) {
+        mRecorder.drain();
+        LatencyHistogram histogram = mCallSites.get(callSite);
+        return histogram != null ? histogram.snapshot() : null;
+    }
+
+    @NonNull
+    public Map<String, HistogramSnapshot> snapshotTags() {
+        mRecorder.drain();
+        Map<String, HistogramSnapshot> snapshots = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : mTags.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    @NonNull
+    public Map<CallSite, HistogramSnapshot> snapshotCallSites() {
+        mRecorder.drain();
+        Map<CallSite, HistogramSnapshot> snapshots = new HashMap<>();
+        for (Map.Entry<CallSite, LatencyHistogram> entry : mCallSites.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Number of measurements that were not recorded because the key limit was reached.
+     */
+    public long getDroppedCount() {
+        mRecorder.drain();
+        return mDropped.get();
+    }
+
+    /**
+     * Drops all the histograms.
+     */
+    public void clear() {
+        mRecorder.drain();
+        mTags.clear();
+        mCallSites.clear();
+        mKeys.set(0);
+    }
+}
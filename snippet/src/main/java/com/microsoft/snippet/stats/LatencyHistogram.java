@@ -0,0 +1,153 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.snippet.Measurement;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory histogram of durations in nanoseconds, in the style of HdrHistogram.
+ * <p>
+ * Buckets are log-linear: values below 64 ns have a bucket each, above that every power of two is
+ * split into 64 equal buckets. So a value is known within 1/64 (1.6 %) of itself at any magnitude,
+ * from nanoseconds up to about 18 minutes. Longer durations are counted in the last bucket, the
+ * maximum is still exact. The histogram always takes the same ~18 KB, whatever is recorded.
+ * <p>
+ * {@link LatencyHistogram#record(long)} does not allocate and does not lock, it is a bucket index
+ * computation and one atomic increment, plus a CAS when the value is a new minimum or maximum.
+ * It can be called from any number of threads. Read it through {@link LatencyHistogram#snapshot()}.
+ */
+public final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 6;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Highest power of two that has its own buckets, 2^40 ns is a little more than 18 minutes.
+    private static final int MAX_EXPONENT = 39;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Records one duration. Negative durations, which a misbehaving time source could produce, are
+     * recorded as 0.
+     *
+     * @param nanos duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        record(nanos, 1L);
+    }
+
+    /**
+     * Records a duration that stands for several calls, for example a sampled one.
+     *
+     * @param nanos duration in nanoseconds.
+     * @param count number of times to count it.
+     */
+    public void record(long nanos, long count) {
+        long value = nanos < 0 ? 0 : nanos;
+        mCounts.addAndGet(bucketIndex(value), count);
+        mSum.addAndGet(value * count);
+        long min;
+        while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+            // Retry, another thread recorded a new minimum meanwhile.
+        }
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Retry, another thread recorded a new maximum meanwhile.
+        }
+    }
+
+    /**
+     * Copies the counters. The copy is not atomic, values recorded while it is taken may be only
+     * partly visible in it.
+     */
+    @NonNull
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new HistogramSnapshot(counts, mSum.get(), mMin.get(), mMax.get());
+    }
+
+    /**
+     * Clears the histogram. Values recorded while it is being reset may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0L);
+        }
+        mSum.set(0L);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Number of times a measurement is counted, at least once. A fractional
+     * {@link Measurement#getWeight()} is rounded up or down at random, in proportion to its fraction,
+     * so that the counts are right on average: a weight of 2.5 counts 2 or 3 times, half of the
+     * time each. The random number comes from the timestamps of the measurement, so every aggregator
+     * counts the same measurement the same number of times.
+     */
+    static long countOf(Measurement measurement) {
+        double weight = measurement.getWeight();
+        if (weight <= 1) {
+            return 1L;
+        }
+        long whole = (long) weight;
+        double fraction = weight - whole;
+        if (fraction == 0) {
+            return whole;
+        }
+        // SplitMix64 finalizer, spreads the low bits of the timestamps over the 53 bits used.
+        long z = measurement.getStartNanos() * 0x9E3779B97F4A7C15L ^ measurement.getEndNanos();
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53 < fraction ? whole + 1 : whole;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        // Top SUB_BUCKET_BITS + 1 bits of the value, between SUB_BUCKET_COUNT and 2 * SUB_BUCKET_COUNT - 1.
+        int mantissa = (int) (value >>> shift);
+        return (shift << SUB_BUCKET_BITS) + mantissa;
+    }
+
+    /**
+     * Smallest value that falls in the bucket.
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = index - ((long) shift << SUB_BUCKET_BITS);
+        return mantissa << shift;
+    }
+
+    /**
+     * Number of values that fall in the bucket.
+     */
+    static long bucketWidth(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return 1L;
+        }
+        return 1L << ((index >>> SUB_BUCKET_BITS) - 1);
+    }
+}
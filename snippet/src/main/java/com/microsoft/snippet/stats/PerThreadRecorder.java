@@ -0,0 +1,134 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import androidx.annotation.RestrictTo;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Buffers the recorded durations per thread, so that threads measuring in parallel never write to
+ * the same memory. The buffered durations reach the aggregates when {@link PerThreadRecorder#drain()}
+ * is called, before every snapshot, or when the buffer of a thread is full.
+ * <p>
+ * Every thread owns two buffers, one active and one being drained, and a write counter that is odd
+ * while it is writing. The reader flips the active buffer of a thread, then waits until the thread
+ * is not in the middle of a write that could still go to the old buffer, and drains the old buffer.
+ * Writers never wait for the reader and never execute an atomic read-modify-write, a record is three
+ * array writes and two volatile writes to memory only the thread itself writes to.
+ * The waiting is a few nanoseconds unless a writer happens to be flushing its own full buffer.
+ *
+ * @param <K> key of the aggregate, a tag or a call site.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class PerThreadRecorder<K> {
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * Receives the drained durations. Called by the draining thread, or by a writer that flushes its
+     * own full buffer, so it must be thread safe.
+     */
+    interface Aggregate<K> {
+        void record(K key, long nanos, long count);
+    }
+
+    private final Aggregate<K> mAggregate;
+    private final int mBufferSize;
+    private final CopyOnWriteArrayList<ThreadBuffer<K>> mBuffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<ThreadBuffer<K>> mLocal = new ThreadLocal<>();
+
+    private static final class ThreadBuffer<K> {
+        final WeakReference<Thread> mThread = new WeakReference<>(Thread.currentThread());
+        final Object[][] mKeys;
+        final long[][] mValues;
+        final long[][] mCounts;
+        final int[] mSizes = new int[2];
+        // Index of the buffer the thread writes to. Flipped by the reader.
+        volatile int mActive;
+        // Odd while the owner thread is writing. Written only by the owner thread.
+        volatile long mWrites;
+
+        ThreadBuffer(int size) {
+            mKeys = new Object[2][size];
+            mValues = new long[2][size];
+            mCounts = new long[2][size];
+        }
+    }
+
+    PerThreadRecorder(Aggregate<K> aggregate, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size should be positive: " + bufferSize);
+        }
+        this.mAggregate = aggregate;
+        this.mBufferSize = bufferSize;
+    }
+
+    /**
+     * @param count number of calls the duration stands for, see {@link LatencyHistogram#countOf(com.microsoft.snippet.Measurement)}.
+     */
+    void record(K key, long nanos, long count) {
+        ThreadBuffer<K> buffer = mLocal.get();
+        if (buffer == null) {
+            buffer = new ThreadBuffer<>(mBufferSize);
+            mLocal.set(buffer);
+            mBuffers.add(buffer);
+        }
+        long writes = buffer.mWrites;
+        buffer.mWrites = writes + 1;
+        // Volatile write above and volatile read here, the reader does the opposite, so either the
+        // reader sees the write in progress or the writer sees the flipped buffer.
+        int active = buffer.mActive;
+        int size = buffer.mSizes[active];
+        buffer.mKeys[active][size] = key;
+        buffer.mValues[active][size] = nanos;
+        buffer.mCounts[active][size] = count;
+        size++;
+        if (size == mBufferSize) {
+            // Full before anyone drained it, the thread flushes it itself.
+            flush(buffer, active, size);
+            size = 0;
+        }
+        buffer.mSizes[active] = size;
+        buffer.mWrites = writes + 2;
+    }
+
+    /**
+     * Moves the durations buffered by all the threads to the aggregate. Writers keep recording
+     * meanwhile, into their other buffer.
+     */
+    synchronized void drain() {
+        for (ThreadBuffer<K> buffer : mBuffers) {
+            int drained = buffer.mActive;
+            buffer.mActive = 1 - drained;
+            long writes = buffer.mWrites;
+            if ((writes & 1) != 0) {
+                // The write in progress may still be going to the drained buffer.
+                while (buffer.mWrites == writes) {
+                    Thread.yield();
+                }
+            }
+            flush(buffer, drained, buffer.mSizes[drained]);
+            buffer.mSizes[drained] = 0;
+            Thread thread = buffer.mThread.get();
+            if (thread == null || !thread.isAlive()) {
+                // Nothing more will be written, the other buffer is drained on this last pass too.
+                flush(buffer, 1 - drained, buffer.mSizes[1 - drained]);
+                mBuffers.remove(buffer);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flush(ThreadBuffer<K> buffer, int index, int size) {
+        Object[] keys = buffer.mKeys[index];
+        long[] values = buffer.mValues[index];
+        long[] counts = buffer.mCounts[index];
+        for (int i = 0; i < size; i++) {
+            mAggregate.record((K) keys[i], values[i], counts[i]);
+            keys[i] = null;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.ExecutionContext;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.MeasurementBatch;
+import com.microsoft.snippet.MeasurementSink;
+import com.microsoft.snippet.Snippet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MeasurementSink} that keeps the durations of the last 10 seconds, minute and 5 minutes per tag
+ * and per call site, so that a regression in the middle of a session, after a cache eviction or under
+ * thermal throttling, shows up instead of being averaged away by the {@link LatencyAggregator}
+ * lifetime histograms.
+ * <pre>
+ * {@code
+ *     RollingWindowAggregator windows = new RollingWindowAggregator();
+ *     Snippet.addSink(windows);
+ *     ...
+ *     HistogramSnapshot lastMinute = windows.snapshot("feed_load", RollingWindowAggregator.WINDOW_1_MINUTE);
+ * }
+ * </pre>
+ * Keys are the same as for {@link LatencyAggregator}. Durations are placed in the windows by the end
+ * time of their measurement, so the windows stay right when the measurements are reported
+ * asynchronously. Every key takes a fixed ~34 KB, see {@link RollingWindow}, recording is O(1) and
+ * does not lock.
+ */
+public final class RollingWindowAggregator implements MeasurementSink {
+    private static final String TAG = RollingWindowAggregator.class.getSimpleName();
+    static final int DEFAULT_MAX_KEYS = 64;
+    private static final int BUCKETS_PER_WINDOW = 10;
+
+    /**
+     * Last 10 seconds, in buckets of 1 second.
+     */
+    public static final int WINDOW_10_SECONDS = 0;
+    /**
+     * Last minute, in buckets of 6 seconds.
+     */
+    public static final int WINDOW_1_MINUTE = 1;
+    /**
+     * Last 5 minutes, in buckets of 30 seconds.
+     */
+    public static final int WINDOW_5_MINUTES = 2;
+
+    private static final long[] WINDOW_NANOS = {
+            TimeUnit.SECONDS.toNanos(10),
+            TimeUnit.MINUTES.toNanos(1),
+            TimeUnit.MINUTES.toNanos(5),
+    };
+
+    private final ConcurrentMap<String, RollingWindow[]> mTags = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CallSite, RollingWindow[]> mCallSites = new ConcurrentHashMap<>();
+    private final int mMaxKeys;
+    private final AtomicInteger mKeys = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    public RollingWindowAggregator() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param maxKeys maximum number of tags and call sites together. Every key takes about 34 KB.
+     */
+    public RollingWindowAggregator(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Max keys should be positive: " + maxKeys);
+        }
+        this.mMaxKeys = maxKeys;
+    }
+
+    @Override
+    public void onMeasurements(@NonNull MeasurementBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            record(batch.get(i));
+        }
+    }
+
+    private void record(Measurement measurement) {
+        int kind = measurement.getKind();
+        if (kind != Measurement.KIND_CAPTURE && kind != Measurement.KIND_LOG_TOKEN) {
+            return;
+        }
+        RollingWindow[] windows;
+        String tag = measurement.getTag();
+        if (tag != null) {
+            windows = windowsOf(mTags, tag);
+        } else {
+            ExecutionContext context = measurement.getExecutionContext();
+            CallSite callSite = context != null ? context.getCallSite() : null;
+            if (callSite == null) {
+                return;
+            }
+            windows = windowsOf(mCallSites, callSite);
+        }
+        if (windows == null) {
+            return;
+        }
+        long end = measurement.getEndNanos();
+        long duration = end - measurement.getStartNanos();
+        long count = LatencyHistogram.countOf(measurement);
+        for (RollingWindow window : windows) {
+            window.record(end, duration, count);
+        }
+    }
+
+    @Nullable
+    private <K> RollingWindow[] windowsOf(ConcurrentMap<K, RollingWindow[]> map, K key) {
+        RollingWindow[] windows = map.get(key);
+        if (windows != null) {
+            return windows;
+        }
+        // Reserve the key first so that racing threads can never go past the limit.
+        if (mKeys.incrementAndGet() > mMaxKeys) {
+            mKeys.decrementAndGet();
+            if (mDropped.getAndIncrement() == 0) {
+                Log.w(TAG, "More than " + mMaxKeys + " keys, measurements of new keys are not recorded.");
+            }
+            return null;
+        }
+        RollingWindow[] created = new RollingWindow[WINDOW_NANOS.length];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new RollingWindow(BUCKETS_PER_WINDOW, WINDOW_NANOS[i] / BUCKETS_PER_WINDOW);
+        }
+        windows = map.putIfAbsent(key, created);
+        if (windows != null) {
+            mKeys.decrementAndGet();
+            return windows;
+        }
+        return created;
+    }
+
+    /**
+     * @param window one of {@link RollingWindowAggregator#WINDOW_10_SECONDS},
+     *               {@link RollingWindowAggregator#WINDOW_1_MINUTE} or
+     *               {@link RollingWindowAggregator#WINDOW_5_MINUTES}.
+     * @return distribution of the tokens started with the tag that ended within the window, null if the
+     * tag was never recorded.
+     */
+    @Nullable
+    public HistogramSnapshot snapshot(@NonNull String tag, int window) {
+        checkWindow(window);
+        RollingWindow[] windows = mTags.get(tag);
+        return windows != null ? windows[window].snapshot(now()) : null;
+    }
+
+    /**
+     * @param window one of the WINDOW_ constants.
+     * @return distribution of the captures and untagged tokens measured at the call site that ended
+     * within the window, null if the call site was never recorded.
+     */
+    @Nullable
+    public HistogramSnapshot snapshot(@NonNull CallSite callSite, int window) {
+        checkWindow(window);
+        RollingWindow[] windows = mCallSites.get(callSite);
+        return windows != null ? windows[window].snapshot(now()) : null;
+    }
+
+    @NonNull
+    public Map<String, HistogramSnapshot> snapshotTags(int window) {
+        return snapshotAll(mTags, window);
+    }
+
+    @NonNull
+    public Map<CallSite, HistogramSnapshot> snapshotCallSites(int window) {
+        return snapshotAll(mCallSites, window);
+    }
+
+    private <K> Map<K, HistogramSnapshot> snapshotAll(ConcurrentMap<K, RollingWindow[]> map, int window) {
+        checkWindow(window);
+        long now = now();
+        Map<K, HistogramSnapshot> snapshots = new HashMap<>();
+        for (Map.Entry<K, RollingWindow[]> entry : map.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue()[window].snapshot(now));
+        }
+        return snapshots;
+    }
+
+    private static long now() {
+        return Snippet.getTimeSource().nanoTime();
+    }
+
+    private static void checkWindow(int window) {
+        if (window < 0 || window >= WINDOW_NANOS.length) {
+            throw new IllegalArgumentException("Unknown window: " + window);
+        }
+    }
+
+    /**
+     * Number of measurements that were not recorded because the key limit was reached.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Drops all the windows.
+     */
+    public void clear() {
+        mTags.clear();
+        mCallSites.clear();
+        mKeys.set(0);
+    }
+}
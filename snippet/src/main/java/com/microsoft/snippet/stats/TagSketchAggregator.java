@@ -0,0 +1,276 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.MeasurementBatch;
+import com.microsoft.snippet.MeasurementSink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MeasurementSink} that keeps a {@link DDSketch} per tag of the log tokens started with
+ * {@link com.microsoft.snippet.Snippet#startCapture(String)}. Meant for tags with a high cardinality,
+ * like one tag per request, where a {@link LatencyAggregator} histogram per key would cost too much:
+ * a sketch only holds the bins its durations fall in, typically a few hundred longs.
+ * <p>
+ * Captures and untagged tokens are ignored, use {@link LatencyAggregator} for them. The sketches can be
+ * saved with {@link TagSketchAggregator#writeTo(OutputStream)} and merged into the aggregator of a later
+ * session with {@link TagSketchAggregator#mergeFrom(InputStream)}.
+ * <p>
+ * The number of tags is bounded, measurements of new tags are dropped once the limit is reached. Tags
+ * do not expire on their own: an app with an open ended set of tags should rotate the sketches out
+ * periodically with {@link TagSketchAggregator#drainTo(OutputStream)} or
+ * {@link TagSketchAggregator#drainSketches()}, for example every hour or when the app goes to the
+ * background, which also frees their tags.
+ * <p>
+ * Like {@link LatencyAggregator}, durations are buffered per thread and merged into the sketches on
+ * every query, threads reporting in parallel do not contend on the lock of a sketch.
+ */
+public final class TagSketchAggregator implements MeasurementSink {
+    private static final String TAG = TagSketchAggregator.class.getSimpleName();
+    private static final int MAGIC = 0x534e5053;  // "SNPS"
+    static final int DEFAULT_MAX_TAGS = 10_000;
+
+    private final ConcurrentMap<String, DDSketch> mSketches = new ConcurrentHashMap<>();
+    private final double mRelativeAccuracy;
+    private final int mMaxTags;
+    private final AtomicInteger mTags = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final PerThreadRecorder<String> mRecorder = new PerThreadRecorder<>(new PerThreadRecorder.Aggregate<String>() {
+        @Override
+        public void record(String tag, long nanos, long count) {
+            while (true) {
+                DDSketch sketch = sketchOf(tag);
+                if (sketch == null) {
+                    return;
+                }
+                synchronized (sketch) {
+                    // A drained sketch is removed under its lock, record into the new one instead.
+                    if (mSketches.get(tag) == sketch) {
+                        sketch.record(nanos, count);
+                        return;
+                    }
+                }
+            }
+        }
+    }, PerThreadRecorder.DEFAULT_BUFFER_SIZE);
+
+    public TagSketchAggregator() {
+        this(DDSketch.DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_TAGS);
+    }
+
+    /**
+     * @param relativeAccuracy accuracy of the quantiles, 0.01 for 1 %.
+     * @param maxTags          maximum number of tags, measurements of new tags beyond it are dropped.
+     */
+    public TagSketchAggregator(double relativeAccuracy, int maxTags) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("Relative accuracy should be between 0 and 1: " + relativeAccuracy);
+        }
+        if (maxTags < 1) {
+            throw new IllegalArgumentException("Max tags should be positive: " + maxTags);
+        }
+        this.mRelativeAccuracy = relativeAccuracy;
+        this.mMaxTags = maxTags;
+    }
+
+    @Override
+    public void onMeasurements(@NonNull MeasurementBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Measurement measurement = batch.get(i);
+            String tag = measurement.getTag();
+            if (tag == null || measurement.getKind() != Measurement.KIND_LOG_TOKEN) {
+                continue;
+            }
+            mRecorder.record(tag, measurement.getEndNanos() - measurement.getStartNanos(),
+                    LatencyHistogram.countOf(measurement));
+        }
+    }
+
+    @Nullable
+    private DDSketch sketchOf(String tag) {
+        DDSketch sketch = mSketches.get(tag);
+        if (sketch != null) {
+            return sketch;
+        }
+        if (mTags.incrementAndGet() > mMaxTags) {
+            mTags.decrementAndGet();
+            if (mDropped.getAndIncrement() == 0) {
+                Log.w(TAG, "More than " + mMaxTags + " tags, measurements of new tags are not recorded."
+                        + " Drain the sketches periodically to free the tags.");
+            }
+            return null;
+        }
+        DDSketch created = new DDSketch(mRelativeAccuracy);
+        sketch = mSketches.putIfAbsent(tag, created);
+        if (sketch != null) {
+            mTags.decrementAndGet();
+            return sketch;
+        }
+        return created;
+    }
+
+    /**
+     * @param tag      tag of the log tokens.
+     * @param quantile between 0 and 1, for example 0.99.
+     * @return quantile of the durations in microseconds, 0 if the tag was not recorded.
+     */
+    public double getQuantileMicros(@NonNull String tag, double quantile) {
+        mRecorder.drain();
+        DDSketch sketch = mSketches.get(tag);
+        return sketch != null ? sketch.getQuantileMicros(quantile) : 0;
+    }
+
+    /**
+     * @return copy of the sketch of the tag, null if the tag was not recorded.
+     */
+    @Nullable
+    public DDSketch getSketch(@NonNull String tag) {
+        mRecorder.drain();
+        DDSketch sketch = mSketches.get(tag);
+        if (sketch == null) {
+            return null;
+        }
+        DDSketch copy = new DDSketch(mRelativeAccuracy);
+        copy.merge(sketch);
+        return copy;
+    }
+
+    /**
+     * @return copies of the sketches of all the tags.
+     */
+    @NonNull
+    public Map<String, DDSketch> getSketches() {
+        // Before listing the tags, the buffered durations may be the first of a tag.
+        mRecorder.drain();
+        Map<String, DDSketch> sketches = new HashMap<>();
+        for (String tag : mSketches.keySet()) {
+            DDSketch copy = getSketch(tag);
+            if (copy != null) {
+                sketches.put(tag, copy);
+            }
+        }
+        return sketches;
+    }
+
+    /**
+     * Number of measurements that were not recorded because the tag limit was reached.
+     */
+    public long getDroppedCount() {
+        mRecorder.drain();
+        return mDropped.get();
+    }
+
+    /**
+     * Writes all the sketches to the stream, which is left open.
+     */
+    public void writeTo(@NonNull OutputStream stream) throws IOException {
+        mRecorder.drain();
+        write(stream, new HashMap<>(mSketches));
+    }
+
+    /**
+     * Writes all the sketches to the stream, which is left open, and removes them from the aggregator.
+     * The file can be read with {@link TagSketchAggregator#mergeFrom(InputStream)}.
+     */
+    public void drainTo(@NonNull OutputStream stream) throws IOException {
+        write(stream, drainSketches());
+    }
+
+    /**
+     * Removes all the sketches from the aggregator and returns them, the tags are freed and the
+     * aggregator starts over. Measurements reported meanwhile are either in the returned sketches or
+     * in the new ones, none is lost.
+     *
+     * @return the sketches, owned by the caller.
+     */
+    @NonNull
+    public Map<String, DDSketch> drainSketches() {
+        mRecorder.drain();
+        Map<String, DDSketch> drained = new HashMap<>();
+        for (Map.Entry<String, DDSketch> entry : mSketches.entrySet()) {
+            DDSketch sketch = entry.getValue();
+            synchronized (sketch) {
+                if (mSketches.remove(entry.getKey(), sketch)) {
+                    mTags.decrementAndGet();
+                    drained.put(entry.getKey(), sketch);
+                }
+            }
+        }
+        return drained;
+    }
+
+    private static void write(OutputStream stream, Map<String, DDSketch> sketches) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(sketches.size());
+        for (Map.Entry<String, DDSketch> entry : sketches.entrySet()) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Merges the sketches written by {@link TagSketchAggregator#writeTo(OutputStream)} into this
+     * aggregator, for example those of a previous session. The stream is left open, it may be read
+     * past the end of the sketches.
+     *
+     * @throws IllegalArgumentException if the sketches were saved with another accuracy.
+     */
+    public void mergeFrom(@NonNull InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a snippet sketch file");
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String tag = in.readUTF();
+            DDSketch saved = DDSketch.readFrom(in);
+            // Before the tag is taken, a rejected file leaves no empty sketch behind.
+            if (Double.compare(saved.getRelativeAccuracy(), mRelativeAccuracy) != 0) {
+                throw new IllegalArgumentException("Cannot merge sketches of accuracy " + saved.getRelativeAccuracy()
+                        + " into an aggregator of accuracy " + mRelativeAccuracy);
+            }
+            while (true) {
+                DDSketch sketch = sketchOf(tag);
+                if (sketch == null) {
+                    break;
+                }
+                synchronized (sketch) {
+                    if (mSketches.get(tag) == sketch) {
+                        sketch.merge(saved);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the sketches.
+     */
+    public void clear() {
+        drainSketches();
+    }
+}
@@ -6,6 +6,7 @@ package com.microsoft.snippet.token;
 
 import androidx.annotation.RestrictTo;
 
+import com.microsoft.snippet.CallSite;
 import com.microsoft.snippet.ExecutionContext;
 
 /**
@@ -65,6 +66,16 @@ public final class AttenuatedLogToken implements ILogToken {
         return NONE_INFO;
     }
 
+    @Override
+    public ExecutionContext endCapture(CallSite callSite) {
+        return NONE_INFO;
+    }
+
+    @Override
+    public ExecutionContext endCapture(String message, CallSite callSite) {
+        return NONE_INFO;
+    }
+
     @Override
     public long creatorThreadId() {
         return -1L;
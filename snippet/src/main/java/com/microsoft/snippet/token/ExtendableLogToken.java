@@ -1,5 +1,6 @@
 package com.microsoft.snippet.token;
 
+import com.microsoft.snippet.CallSite;
 import com.microsoft.snippet.ExecutionContext;
 import com.microsoft.snippet.Snippet;
 
@@ -30,6 +31,26 @@ public class ExtendableLogToken implements ILogToken {
         return mSnippetToken.endCapture();
     }
 
+    /**
+     * Routes to {@link ExtendableLogToken#endCapture()} so that the subclasses overriding it keep
+     * working for the code instrumented by the snippet gradle plugin. The call site is then found
+     * through the stack, override this to make use of the precomputed one.
+     */
+    @Override
+    public ExecutionContext endCapture(CallSite callSite) {
+        return endCapture();
+    }
+
+    /**
+     * Routes to {@link ExtendableLogToken#endCapture(String)} so that the subclasses overriding it
+     * keep working for the code instrumented by the snippet gradle plugin. The call site is then
+     * found through the stack, override this to make use of the precomputed one.
+     */
+    @Override
+    public ExecutionContext endCapture(String message, CallSite callSite) {
+        return endCapture(message);
+    }
+
     @Override
     public final long getStart() {
         return mSnippetToken.getStart();
@@ -4,6 +4,7 @@
 
 package com.microsoft.snippet.token;
 
+import com.microsoft.snippet.CallSite;
 import com.microsoft.snippet.Snippet;
 import com.microsoft.snippet.ExecutionContext;
 
@@ -65,6 +66,26 @@ public interface ILogToken {
      */
     ExecutionContext endCapture();
 
+    /**
+     * Ends the capture, call site is provided by the caller instead of being found out through the
+     * stack. Calls to {@link ILogToken#endCapture()} are rewritten to this by the snippet gradle plugin.
+     *
+     * @param callSite Code location that called endCapture()
+     */
+    ExecutionContext endCapture(CallSite callSite);
+
+    /**
+     * Ends the capture, call site is provided by the caller instead of being found out through the
+     * stack. Calls to {@link ILogToken#endCapture(String)} are rewritten to this by the snippet gradle plugin.
+     *
+     * @param message  Custom message if required
+     * @param callSite Code location that called endCapture()
+     */
+    ExecutionContext endCapture(String message, CallSite callSite);
+
+    /**
+     * Start timestamp of the capture in nanoseconds, as per {@link com.microsoft.snippet.TimeSource}.
+     */
     long getStart();
 
     long getEnd();
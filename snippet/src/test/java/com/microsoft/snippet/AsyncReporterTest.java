@@ -0,0 +1,221 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.snippet.token.ILogToken;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Delivery and drop policies of {@link AsyncReporter}. The sink holds the reporter thread in its
+ * first delivery, so that the queue can be filled up deterministically.
+ */
+public class AsyncReporterTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /**
+     * Records the start time of every measurement it gets, blocks the first delivery until released.
+     */
+    private static final class BlockingSink implements MeasurementSink {
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        final CountDownLatch mReleased = new CountDownLatch(1);
+        final List<Long> mStarts = new ArrayList<>();
+        private final Object mLock = new Object();
+        private int mExpected;
+
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            mEntered.countDown();
+            try {
+                mReleased.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (mLock) {
+                for (int i = 0; i < batch.size(); i++) {
+                    mStarts.add(batch.get(i).mStartNanos);
+                }
+                mLock.notifyAll();
+            }
+        }
+
+        List<Long> await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+            synchronized (mLock) {
+                mExpected = count;
+                while (mStarts.size() < mExpected && System.currentTimeMillis() < deadline) {
+                    mLock.wait(50);
+                }
+                return new ArrayList<>(mStarts);
+            }
+        }
+    }
+
+    private AsyncReporter mReporter;
+
+    private AsyncReporter reporter(BlockingSink sink, DropPolicy dropPolicy) {
+        SinkRegistry sinks = new SinkRegistry();
+        sinks.remove(LogcatSink.INSTANCE);
+        sinks.add(sink);
+        mReporter = new AsyncReporter(sinks, 4, dropPolicy);
+        return mReporter;
+    }
+
+    @After
+    public void tearDown() {
+        if (mReporter != null) {
+            mReporter.shutdown();
+        }
+    }
+
+    private static boolean report(AsyncReporter reporter, long start) {
+        Measurement measurement = reporter.obtain();
+        if (measurement == null) {
+            return false;
+        }
+        measurement.mStartNanos = start;
+        reporter.submit(measurement);
+        return true;
+    }
+
+    /**
+     * Reports 0 and waits until the reporter thread is stuck delivering it, then fills the three
+     * other slots with 1, 2 and 3.
+     */
+    private static void fill(AsyncReporter reporter, BlockingSink sink) throws InterruptedException {
+        assertTrue(report(reporter, 0L));
+        assertTrue(sink.mEntered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (long start = 1; start < 4; start++) {
+            assertTrue(report(reporter, start));
+        }
+    }
+
+    @Test
+    public void measurementsAreDeliveredInOrder() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        AsyncReporter reporter = reporter(sink, DropPolicy.DROP_NEWEST);
+        sink.mReleased.countDown();
+        for (long start = 0; start < 100; start++) {
+            while (!report(reporter, start)) {
+                Thread.yield();
+            }
+        }
+        List<Long> starts = sink.await(100);
+        assertEquals(100, starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            assertEquals((long) i, (long) starts.get(i));
+        }
+    }
+
+    @Test
+    public void dropNewestKeepsTheQueuedMeasurements() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        AsyncReporter reporter = reporter(sink, DropPolicy.DROP_NEWEST);
+        fill(reporter, sink);
+
+        assertNull(reporter.obtain());
+        assertNull(reporter.obtain());
+        assertEquals(2, reporter.droppedCount());
+
+        sink.mReleased.countDown();
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), sink.await(4));
+    }
+
+    @Test
+    public void dropOldestReplacesTheOldestQueuedMeasurement() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        AsyncReporter reporter = reporter(sink, DropPolicy.DROP_OLDEST);
+        fill(reporter, sink);
+
+        // 0 is held by the reporter thread, it can not be replaced and 4 is dropped.
+        assertNull(reporter.obtain());
+        assertEquals(1, reporter.droppedCount());
+
+        sink.mReleased.countDown();
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), sink.await(4));
+    }
+
+    @Test
+    public void dropOldestDoesNotReplaceASlotStillBeingWritten() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        AsyncReporter reporter = reporter(sink, DropPolicy.DROP_OLDEST);
+        fill(reporter, sink);
+        sink.mReleased.countDown();
+        sink.await(4);
+
+        // Hold on to a claimed slot, the reporter thread can not read past it. The reporter thread
+        // releases the delivered slots right after the sink returned, wait for them.
+        Measurement unpublished;
+        while ((unpublished = reporter.obtain()) == null) {
+            Thread.yield();
+        }
+        for (long start = 5; start < 8; start++) {
+            while (!report(reporter, start)) {
+                Thread.yield();
+            }
+        }
+        // Every slot is taken now. The oldest one is still being written, nothing to replace.
+        long dropped = reporter.droppedCount();
+        assertNull(reporter.obtain());
+        assertEquals(dropped + 1, reporter.droppedCount());
+        unpublished.mStartNanos = 4L;
+        reporter.submit(unpublished);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L), sink.await(8));
+    }
+
+    @Test
+    public void nothingIsObtainedWithoutSinks() {
+        SinkRegistry sinks = new SinkRegistry();
+        sinks.remove(LogcatSink.INSTANCE);
+        mReporter = new AsyncReporter(sinks, 4, DropPolicy.DROP_OLDEST);
+        assertNull(mReporter.obtain());
+        assertEquals(0, mReporter.droppedCount());
+    }
+
+    @Test
+    public void tokenRejectedByThePoolDoesNotWedgeTheQueue() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        sink.mReleased.countDown();
+        SnippetConfig saved = Snippet.getConfig();
+        Snippet.setConfig(saved.withExecutionPath(new Snippet.MeasuredExecutionPath()));
+        Snippet.addSink(sink);
+        Snippet.enableAsyncReporting(4, DropPolicy.DROP_NEWEST);
+        try {
+            ILogToken token = Snippet.startCapture();
+            // Looks like a token that is already in the pool, recycling it throws.
+            ((LogTokenHandle) token).token().mPooled = 1;
+            try {
+                token.endCapture();
+                fail("Token was recycled twice");
+            } catch (IllegalStateException expected) {
+                // The measurement of the token is published all the same.
+            }
+            Snippet.capture(new Snippet.Closure() {
+                @Override
+                public void invoke() {
+                }
+            });
+            assertEquals(2, sink.await(2).size());
+        } finally {
+            Snippet.disableAsyncReporting();
+            Snippet.removeSink(sink);
+            Snippet.setConfig(saved);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Interning of {@link CallSite}s and the cap on the number of interned call sites.
+ */
+public class CallSiteTest {
+
+    @Test
+    public void sameLocationGivesTheSameInstance() {
+        CallSite callSite = CallSite.of("com.example.feed.FeedLoader", "load", 42);
+        assertSame(callSite, CallSite.of("com.example.feed.FeedLoader", "load", 42));
+        assertEquals("FeedLoader", callSite.getSimpleClassName());
+        assertEquals("com.example.feed.FeedLoader#load:42", callSite.toString());
+    }
+
+    @Test
+    public void otherLinesMethodsAndClassesAreOtherCallSites() {
+        CallSite.Interner interner = new CallSite.Interner(16);
+        CallSite callSite = interner.intern("com.example.Feed", "load", 42);
+        CallSite otherLine = interner.intern("com.example.Feed", "load", 43);
+        CallSite otherMethod = interner.intern("com.example.Feed", "bind", 42);
+        CallSite otherClass = interner.intern("com.example.Profile", "load", 42);
+        assertEquals(4, interner.size());
+        assertSame(callSite, interner.intern("com.example.Feed", "load", 42));
+        assertSame(otherLine, interner.intern("com.example.Feed", "load", 43));
+        assertSame(otherMethod, interner.intern("com.example.Feed", "bind", 42));
+        assertSame(otherClass, interner.intern("com.example.Profile", "load", 42));
+        assertEquals(4, interner.size());
+    }
+
+    @Test
+    public void lookupMatchesByValue() {
+        CallSite.Interner interner = new CallSite.Interner(16);
+        CallSite callSite = interner.intern("com.example.Feed", "load", 42);
+        // Class and method names from another stack walk are equal strings, not the same ones.
+        assertSame(callSite, interner.intern(new String("com.example.Feed"), new String("load"), 42));
+    }
+
+    @Test
+    public void callSitesBeyondTheCapAreNotInterned() {
+        CallSite.Interner interner = new CallSite.Interner(2);
+        CallSite first = interner.intern("com.example.Feed", "load", 1);
+        interner.intern("com.example.Feed", "load", 2);
+        CallSite beyond = interner.intern("com.example.Feed", "load", 3);
+        CallSite again = interner.intern("com.example.Feed", "load", 3);
+        assertEquals(beyond, again);
+        assertNotSame(beyond, again);
+        assertEquals(2, interner.size());
+        // The interned ones are still found.
+        assertSame(first, interner.intern("com.example.Feed", "load", 1));
+    }
+
+    @Test
+    public void defaultCapIsAThousandCallSites() {
+        CallSite.Interner interner = new CallSite.Interner(CallSite.MAX_INTERNED_CALL_SITES);
+        for (int i = 0; i < 2 * CallSite.MAX_INTERNED_CALL_SITES; i++) {
+            interner.intern("com.example.Generated" + (i % 16), "run", i);
+        }
+        assertEquals(1024, interner.size());
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lanes of {@link CompositeExecutionPath}: every consumer gets every measurement on its own thread,
+ * slow and failing consumers only affect their own lane, the lane slots are reused, and the lanes
+ * start and stop with the installation of the path.
+ */
+public class CompositeExecutionPathTest {
+    private static final long TIMEOUT_MILLIS = 5_000L;
+
+    private static final Snippet.Closure NOTHING = new Snippet.Closure() {
+        @Override
+        public void invoke() {
+        }
+    };
+
+    /**
+     * Records the message of every measurement, the thread it was delivered on and the instances.
+     */
+    private static final class RecordingSink implements MeasurementSink {
+        final List<String> mMessages = new ArrayList<>();
+        final Set<Measurement> mInstances = Collections.newSetFromMap(new IdentityHashMap<Measurement, Boolean>());
+        volatile String mThreadName;
+
+        @Override
+        public synchronized void onMeasurements(@NonNull MeasurementBatch batch) {
+            mThreadName = Thread.currentThread().getName();
+            for (int i = 0; i < batch.size(); i++) {
+                mMessages.add(batch.get(i).getMessage());
+                mInstances.add(batch.get(i));
+            }
+            notifyAll();
+        }
+
+        synchronized List<String> await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mMessages.size() < count && System.currentTimeMillis() < deadline) {
+                wait(50);
+            }
+            return new ArrayList<>(mMessages);
+        }
+    }
+
+    private static final class BlockingSink implements MeasurementSink {
+        final CountDownLatch mReleased = new CountDownLatch(1);
+
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            try {
+                mReleased.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class ThrowingSink implements MeasurementSink {
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            throw new IllegalStateException("Consumer failure");
+        }
+    }
+
+    /**
+     * Only the lanes of this test use the consumer class name in their thread name.
+     */
+    private static final class LifecycleSink implements MeasurementSink {
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+        }
+    }
+
+    private SnippetConfig mSaved;
+
+    @Before
+    public void setUp() {
+        mSaved = Snippet.getConfig();
+    }
+
+    @After
+    public void tearDown() {
+        Snippet.setConfig(mSaved);
+    }
+
+    private static boolean laneRunning(String consumerName) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Snippet-Lane-") && thread.getName().endsWith(consumerName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean awaitLane(String consumerName, boolean running) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (laneRunning(consumerName) != running && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return laneRunning(consumerName) == running;
+    }
+
+    @Test
+    public void everyConsumerGetsEveryMeasurementOnItsLane() throws InterruptedException {
+        RecordingSink first = new RecordingSink();
+        RecordingSink second = new RecordingSink();
+        Snippet.setExecutionPath(new CompositeExecutionPath(first, second));
+        for (String message : new String[]{"a", "b", "c"}) {
+            Snippet.capture(message, NOTHING);
+        }
+        assertEquals(3, first.await(3).size());
+        assertEquals("a", first.mMessages.get(0));
+        assertEquals("c", first.mMessages.get(2));
+        assertEquals(3, second.await(3).size());
+        assertEquals("Snippet-Lane-0-RecordingSink", first.mThreadName);
+        assertEquals("Snippet-Lane-1-RecordingSink", second.mThreadName);
+    }
+
+    @Test
+    public void laneSlotsAreReused() throws InterruptedException {
+        RecordingSink consumer = new RecordingSink();
+        Snippet.setExecutionPath(new CompositeExecutionPath(2, consumer));
+        for (int i = 0; i < 10; i++) {
+            Snippet.capture("m" + i, NOTHING);
+            assertEquals(i + 1, consumer.await(i + 1).size());
+        }
+        // Fanning out copies into the pre-allocated slots of the lane, nothing is allocated per measurement.
+        assertTrue(consumer.mInstances.size() <= 2);
+        assertEquals("m9", consumer.mMessages.get(9));
+    }
+
+    @Test
+    public void slowConsumerOnlyDropsItsOwnMeasurements() throws InterruptedException {
+        BlockingSink slow = new BlockingSink();
+        RecordingSink fast = new RecordingSink();
+        CompositeExecutionPath path = new CompositeExecutionPath(4, slow, fast);
+        Snippet.setExecutionPath(path);
+        for (int i = 0; i < 20; i++) {
+            Snippet.capture("m" + i, NOTHING);
+            assertEquals(i + 1, fast.await(i + 1).size());
+        }
+        // At most a batch of 4 held by the consumer and 4 waiting in its lane.
+        assertTrue(path.getDroppedCount(slow) >= 12);
+        assertEquals(0, path.getDroppedCount(fast));
+        slow.mReleased.countDown();
+    }
+
+    @Test
+    public void failingConsumerIsCountedAndKeepsItsLane() throws InterruptedException {
+        ThrowingSink failing = new ThrowingSink();
+        RecordingSink healthy = new RecordingSink();
+        CompositeExecutionPath path = new CompositeExecutionPath(failing, healthy);
+        Snippet.setExecutionPath(path);
+        Snippet.capture("first", NOTHING);
+        healthy.await(1);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (path.getFailureCount(failing) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long failures = path.getFailureCount(failing);
+        assertTrue(failures > 0);
+
+        Snippet.capture("second", NOTHING);
+        assertEquals(2, healthy.await(2).size());
+        while (path.getFailureCount(failing) == failures && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(path.getFailureCount(failing) > failures);
+    }
+
+    @Test
+    public void lanesStartAndStopWithTheInstallation() throws InterruptedException {
+        String name = LifecycleSink.class.getSimpleName();
+        CompositeExecutionPath path = new CompositeExecutionPath(new LifecycleSink());
+        assertFalse(laneRunning(name));
+        Snippet.setExecutionPath(path);
+        assertTrue(awaitLane(name, true));
+        Snippet.setExecutionPath(new ReleaseExecutionPath());
+        assertTrue(awaitLane(name, false));
+        // Installed again, the path gets new lanes.
+        Snippet.setExecutionPath(path);
+        assertTrue(awaitLane(name, true));
+        Snippet.setExecutionPath(new ReleaseExecutionPath());
+        assertTrue(awaitLane(name, false));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Choice of the budget that applies in {@link LatencyBudgets}, for measurements whose call site is
+ * known at build time and for those whose call site is only resolved on the budget thread.
+ */
+public class LatencyBudgetsTest {
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final CallSite SLOW_SITE = CallSite.of("com.example.Feed", "load", 42);
+    private static final CallSite OTHER_SITE = CallSite.of("com.example.Feed", "bind", 77);
+
+    private final BlockingQueue<BudgetViolation> mViolations = new LinkedBlockingQueue<>();
+    private LatencyBudgets mBudgets;
+
+    @Before
+    public void setUp() {
+        mBudgets = new LatencyBudgets();
+        mBudgets.setListener(new BudgetListener() {
+            @Override
+            public void onOverBudget(@NonNull BudgetViolation violation) {
+                mViolations.add(violation);
+            }
+        });
+    }
+
+    private static ExecutionContext context(CallSite resolvedCallSite) {
+        ExecutionContext context = new ExecutionContext();
+        // Stands for the call site resolved from the stack handle.
+        context.setCallSite(resolvedCallSite);
+        context.setThreadName("worker");
+        return context;
+    }
+
+    private void check(CallSite knownCallSite, CallSite resolvedCallSite, String tag, long duration) {
+        if (mBudgets.mayExceed(duration)) {
+            mBudgets.check(Measurement.KIND_CAPTURE, tag, knownCallSite, context(resolvedCallSite), duration, 0L, null, null, 0);
+        }
+    }
+
+    /**
+     * Violations are delivered in order on a single thread, a known violation marks the end of the
+     * ones checked before it.
+     */
+    private BudgetViolation nextViolationBeforeMarker() throws InterruptedException {
+        mBudgets.setBudget("marker", 1, TimeUnit.MILLISECONDS);
+        check(null, null, "marker", 2 * MILLI);
+        BudgetViolation violation = mViolations.poll(5, TimeUnit.SECONDS);
+        assertNotNull(violation);
+        if ("marker".equals(violation.getTag())) {
+            return null;
+        }
+        assertEquals("marker", mViolations.poll(5, TimeUnit.SECONDS).getTag());
+        return violation;
+    }
+
+    @Test
+    public void nothingIsCheckedWithoutAListener() {
+        LatencyBudgets budgets = new LatencyBudgets();
+        budgets.setBudget(ThreadClass.BACKGROUND, 1, TimeUnit.MILLISECONDS);
+        assertFalse(budgets.mayExceed(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void callSiteBudgetAppliesToUninstrumentedCodeWithoutAThreadBudget() throws InterruptedException {
+        mBudgets.setBudget(SLOW_SITE, 10, TimeUnit.MILLISECONDS);
+        assertFalse(mBudgets.mayExceed(10 * MILLI));
+        assertTrue(mBudgets.mayExceed(20 * MILLI));
+
+        check(null, SLOW_SITE, null, 20 * MILLI);
+        BudgetViolation violation = nextViolationBeforeMarker();
+        assertNotNull(violation);
+        assertEquals(BudgetViolation.BUDGET_CALL_SITE, violation.getBudgetType());
+        assertEquals(10 * MILLI, violation.getBudgetNanos());
+        assertSame(SLOW_SITE, violation.getCallSite());
+    }
+
+    @Test
+    public void otherCallSitesAreDroppedOnTheBudgetThread() throws InterruptedException {
+        mBudgets.setBudget(SLOW_SITE, 10, TimeUnit.MILLISECONDS);
+        check(null, OTHER_SITE, null, 20 * MILLI);
+        assertEquals(null, nextViolationBeforeMarker());
+    }
+
+    @Test
+    public void knownCallSiteIsCheckedOnTheMeasuredThread() throws InterruptedException {
+        mBudgets.setBudget(SLOW_SITE, 10, TimeUnit.MILLISECONDS);
+        check(OTHER_SITE, OTHER_SITE, null, 20 * MILLI);
+        assertEquals(null, nextViolationBeforeMarker());
+        check(SLOW_SITE, SLOW_SITE, null, 20 * MILLI);
+        assertEquals(BudgetViolation.BUDGET_CALL_SITE, nextViolationBeforeMarker().getBudgetType());
+    }
+
+    @Test
+    public void threadBudgetAppliesWhenTheCallSiteHasNone() throws InterruptedException {
+        mBudgets.setBudget(SLOW_SITE, 50, TimeUnit.MILLISECONDS);
+        mBudgets.setBudget(ThreadClass.BACKGROUND, 10, TimeUnit.MILLISECONDS);
+        check(null, OTHER_SITE, null, 20 * MILLI);
+        BudgetViolation violation = nextViolationBeforeMarker();
+        assertEquals(BudgetViolation.BUDGET_THREAD, violation.getBudgetType());
+        assertEquals(ThreadClass.BACKGROUND, violation.getThreadClass());
+
+        // The call site budget wins over the thread budget once it is resolved.
+        check(null, SLOW_SITE, null, 20 * MILLI);
+        assertEquals(null, nextViolationBeforeMarker());
+    }
+
+    @Test
+    public void tagBudgetWinsOverTheCallSiteBudget() throws InterruptedException {
+        mBudgets.setBudget(SLOW_SITE, 10, TimeUnit.MILLISECONDS);
+        mBudgets.setBudget("feed", 30, TimeUnit.MILLISECONDS);
+        check(SLOW_SITE, SLOW_SITE, "feed", 20 * MILLI);
+        assertEquals(null, nextViolationBeforeMarker());
+        check(SLOW_SITE, SLOW_SITE, "feed", 40 * MILLI);
+        assertEquals(BudgetViolation.BUDGET_TAG, nextViolationBeforeMarker().getBudgetType());
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import com.microsoft.snippet.token.LogTokenState;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Hand over of the tokens by {@link LogTokenPool}: reuse, double recycling, exclusive ownership
+ * of a token under parallel captures, stale {@link LogTokenHandle}s, and the bounds of the pool.
+ */
+public class LogTokenPoolTest {
+
+    @Test
+    public void recycledTokenIsReusedByTheSameThread() {
+        LogTokenPool pool = new LogTokenPool(8, 60_000L);
+        LogTokenHandle first = pool.obtain();
+        assertEquals(LogTokenState.ACTIVE, first.getState());
+        Snippet.LogToken token = first.token();
+        pool.recycle(first);
+        assertEquals(LogTokenState.IN_POOL, token.getState());
+
+        LogTokenHandle second = pool.obtain();
+        assertSame(token, second.token());
+        assertEquals(1, pool.stats().getHits());
+        assertEquals(1, pool.stats().getMisses());
+    }
+
+    @Test
+    public void doubleRecycleIsRejected() {
+        LogTokenPool pool = new LogTokenPool(8, 60_000L);
+        LogTokenHandle handle = pool.obtain();
+        Snippet.LogToken token = handle.token();
+        pool.recycle(handle);
+        try {
+            pool.recycle(token);
+            fail("Token was recycled twice");
+        } catch (IllegalStateException expected) {
+            // Token itself is already in the pool.
+        }
+        // The token is in the pool once, the second obtain() creates a new one.
+        assertSame(token, pool.obtain().token());
+        assertNotSame(token, pool.obtain().token());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tokenNotFromThePoolIsRejected() {
+        Snippet.LogToken token = new Snippet.LogToken();
+        token.mPooled = 1;
+        new LogTokenPool(8, 60_000L).recycle(token);
+    }
+
+    @Test
+    public void racingRecyclesOfTheSameTokenLetOnlyOneThrough() throws InterruptedException {
+        final LogTokenPool pool = new LogTokenPool(8, 60_000L);
+        for (int round = 0; round < 200; round++) {
+            final Snippet.LogToken token = pool.obtain().token();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final int[] recycled = new int[2];
+            Thread[] threads = new Thread[2];
+            for (int t = 0; t < threads.length; t++) {
+                final int index = t;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            pool.recycle(token);
+                            recycled[index] = 1;
+                        } catch (IllegalStateException expected) {
+                            recycled[index] = 0;
+                        } catch (Throwable e) {
+                            failure.set(e);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+            assertEquals(1, recycled[0] + recycled[1]);
+            // Drain the pool so that the next round starts from an obtained token again.
+            pool.trim();
+        }
+    }
+
+    @Test
+    public void tokenIsNeverHandedToTwoThreadsAtOnce() throws InterruptedException {
+        final LogTokenPool pool = new LogTokenPool(4, 60_000L);
+        final Set<Snippet.LogToken> inUse = Collections.newSetFromMap(
+                new ConcurrentHashMap<Snippet.LogToken, Boolean>());
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 20_000; i++) {
+                        LogTokenHandle handle = pool.obtain();
+                        Snippet.LogToken token = handle.token();
+                        if (!inUse.add(token)) {
+                            failure.compareAndSet(null, "Token handed out twice");
+                        }
+                        inUse.remove(token);
+                        pool.recycle(handle);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        // Every pooled token is a distinct one.
+        Set<Snippet.LogToken> pooled = Collections.newSetFromMap(new IdentityHashMap<Snippet.LogToken, Boolean>());
+        int count = pool.stats().getPooled();
+        for (int i = 0; i < count; i++) {
+            assertTrue(pooled.add(pool.obtain().token()));
+        }
+    }
+
+    @Test
+    public void staleHandleDoesNotTouchTheNextCaptureOfItsToken() {
+        Snippet.MeasuredExecutionPath path = new Snippet.MeasuredExecutionPath();
+        // An empty pool gives the token recycled last back to the same thread.
+        Snippet.trimTokenPool();
+        LogTokenHandle first = (LogTokenHandle) path.startCapture();
+        first.endCapture();
+        assertFalse(first.isLive());
+
+        LogTokenHandle second = (LogTokenHandle) path.startCapture();
+        assertSame(first.token(), second.token());
+        assertTrue(second.isLive());
+        long start = second.getStart();
+
+        // Everything done through the old handle is ignored.
+        assertEquals(0L, first.endCapture().getExecutionDurationNanos());
+        first.setStart(start - 1_000L);
+        first.overrideFilter("stale");
+        first.reset();
+        assertEquals(LogTokenState.IN_POOL, first.getState());
+        assertEquals(-1L, first.getStart());
+        assertEquals(-1L, first.creatorThreadId());
+        try {
+            first.addSplit("stale");
+            fail("Split added through a stale handle");
+        } catch (IllegalStateException expected) {
+            // Same as a split on an ended token.
+        }
+
+        assertEquals(LogTokenState.ACTIVE, second.getState());
+        assertEquals(start, second.getStart());
+        assertEquals(Thread.currentThread().getId(), second.creatorThreadId());
+        second.addSplit("live");
+        assertTrue(second.endCapture().getExecutionDurationNanos() >= 0L);
+        assertFalse(second.isLive());
+    }
+
+    @Test
+    public void handleGoingStaleOnAnotherThreadDoesNotWriteIntoTheNextCapture() throws InterruptedException {
+        final long staleStart = 42L;
+        final LogTokenPool pool = new LogTokenPool(1, 60_000L);
+        final AtomicReference<LogTokenHandle> shared = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    LogTokenHandle handle = shared.get();
+                    if (handle != null) {
+                        handle.setStart(staleStart);
+                    }
+                }
+            }
+        });
+        writer.start();
+        int leaked = 0;
+        try {
+            for (int i = 0; i < 200_000; i++) {
+                // Recycling resets the start, a write that lands after it came through a stale handle.
+                LogTokenHandle handle = pool.obtain();
+                if (handle.getStart() == staleStart) {
+                    leaked++;
+                }
+                shared.set(handle);
+                pool.recycle(handle);
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        assertEquals(0, leaked);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recycleThroughAStaleHandleIsRejected() {
+        LogTokenPool pool = new LogTokenPool(8, 60_000L);
+        LogTokenHandle handle = pool.obtain();
+        pool.recycle(handle);
+        // The token is obtained again, the old handle must not send it back to the pool.
+        LogTokenHandle current = pool.obtain();
+        assertSame(handle.token(), current.token());
+        pool.recycle(handle);
+    }
+
+    @Test
+    public void poolNeverHoldsMoreThanItsCapacity() {
+        LogTokenPool pool = new LogTokenPool(3, 60_000L);
+        assertEquals(4, pool.stats().getCapacity());
+        LogTokenHandle[] handles = new LogTokenHandle[6];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = pool.obtain();
+        }
+        assertEquals(6, pool.stats().getHighWaterMark());
+        for (LogTokenHandle handle : handles) {
+            pool.recycle(handle);
+        }
+        TokenPoolStats stats = pool.stats();
+        assertEquals(4, stats.getPooled());
+        assertEquals(6, stats.getMisses());
+        assertEquals(0, stats.getHits());
+    }
+
+    @Test
+    public void prewarmedTokensAreHitsNotMisses() {
+        LogTokenPool pool = new LogTokenPool(8, 60_000L);
+        pool.prewarm(20);
+        assertEquals(8, pool.stats().getPooled());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(LogTokenState.ACTIVE, pool.obtain().getState());
+        }
+        TokenPoolStats stats = pool.stats();
+        assertEquals(8, stats.getHits());
+        assertEquals(0, stats.getMisses());
+        assertEquals(8, stats.getHighWaterMark());
+        assertEquals(0, stats.getPooled());
+    }
+
+    @Test
+    public void idleTokensAreEvictedByTheNextRecycle() throws InterruptedException {
+        LogTokenPool pool = new LogTokenPool(8, 20L);
+        LogTokenHandle[] handles = new LogTokenHandle[4];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = pool.obtain();
+        }
+        for (int i = 0; i < 3; i++) {
+            pool.recycle(handles[i]);
+        }
+        assertEquals(3, pool.stats().getPooled());
+
+        Thread.sleep(50L);
+        // The recycled token is fresh, only the three idle ones go.
+        pool.recycle(handles[3]);
+        TokenPoolStats stats = pool.stats();
+        assertEquals(3, stats.getEvictions());
+        assertEquals(1, stats.getPooled());
+        assertSame(handles[3].token(), pool.obtain().token());
+    }
+
+    @Test
+    public void trimEvictsEveryPooledToken() {
+        LogTokenPool pool = new LogTokenPool(8, 60_000L);
+        pool.prewarm(5);
+        pool.trim();
+        TokenPoolStats stats = pool.stats();
+        assertEquals(0, stats.getPooled());
+        assertEquals(5, stats.getEvictions());
+        pool.obtain();
+        assertEquals(1, pool.stats().getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityShouldBePositive() {
+        new LogTokenPool(0, 60_000L);
+    }
+}
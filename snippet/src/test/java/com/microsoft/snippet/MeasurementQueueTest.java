@@ -0,0 +1,182 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Slot hand over of {@link MeasurementQueue}: order, full and empty queue, reuse of the slots over
+ * several laps and no loss with parallel producers.
+ */
+public class MeasurementQueueTest {
+
+    private static void offer(MeasurementQueue queue, long value) {
+        Measurement slot = queue.claimForWrite();
+        assertNotNull("Queue should have space for " + value, slot);
+        slot.mStartNanos = value;
+        queue.publish(slot);
+    }
+
+    private static long poll(MeasurementQueue queue) {
+        Measurement slot = queue.claimForRead();
+        assertNotNull(slot);
+        long value = slot.mStartNanos;
+        queue.release(slot);
+        return value;
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(2, new MeasurementQueue(2).capacity());
+        assertEquals(8, new MeasurementQueue(5).capacity());
+        assertEquals(8, new MeasurementQueue(8).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityBelowTwoIsRejected() {
+        new MeasurementQueue(1);
+    }
+
+    @Test
+    public void slotsAreReadInTheOrderTheyWereClaimed() {
+        MeasurementQueue queue = new MeasurementQueue(4);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.claimForRead());
+        for (long lap = 0; lap < 3; lap++) {
+            for (long i = 0; i < 4; i++) {
+                offer(queue, lap * 10 + i);
+            }
+            assertNull(queue.claimForWrite());
+            for (long i = 0; i < 4; i++) {
+                assertEquals(lap * 10 + i, poll(queue));
+            }
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void unpublishedSlotIsNotRead() {
+        MeasurementQueue queue = new MeasurementQueue(4);
+        Measurement first = queue.claimForWrite();
+        offer(queue, 2L);
+        // The second one is published, but is behind the first one which is still being written.
+        assertNull(queue.claimForRead());
+        assertFalse(queue.isEmpty());
+        first.mStartNanos = 1L;
+        queue.publish(first);
+        assertEquals(1L, poll(queue));
+        assertEquals(2L, poll(queue));
+    }
+
+    @Test
+    public void releasedSlotIsCleared() {
+        MeasurementQueue queue = new MeasurementQueue(2);
+        Measurement slot = queue.claimForWrite();
+        slot.mMessage = "message";
+        queue.publish(slot);
+        Measurement read = queue.claimForRead();
+        assertSame(slot, read);
+        queue.release(read);
+        assertNull(slot.mMessage);
+    }
+
+    @Test
+    public void oldestIsOverwrittenOnlyIfItFreesTheNextWrite() {
+        MeasurementQueue queue = new MeasurementQueue(4);
+        // Not full, the next write does not need the oldest slot.
+        offer(queue, 0L);
+        assertNull(queue.claimOldestForOverwrite());
+        for (long i = 1; i < 4; i++) {
+            offer(queue, i);
+        }
+        Measurement oldest = queue.claimOldestForOverwrite();
+        assertNotNull(oldest);
+        assertEquals(0L, oldest.mStartNanos);
+        queue.release(oldest);
+        offer(queue, 4L);
+        assertEquals(1L, poll(queue));
+
+        // Consumer holds the slot the next write needs, freeing the oldest published one does not help.
+        offer(queue, 5L);
+        Measurement held = queue.claimForRead();
+        assertEquals(2L, held.mStartNanos);
+        assertNull(queue.claimForWrite());
+        assertNull(queue.claimOldestForOverwrite());
+        queue.release(held);
+        assertEquals(3L, poll(queue));
+        assertEquals(4L, poll(queue));
+        assertEquals(5L, poll(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void nothingIsLostWithParallelProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20_000;
+        final MeasurementQueue queue = new MeasurementQueue(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong full = new AtomicLong();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        Measurement slot;
+                        while ((slot = queue.claimForWrite()) == null) {
+                            full.incrementAndGet();
+                            Thread.yield();
+                        }
+                        slot.mThreadId = producer;
+                        slot.mStartNanos = i;
+                        queue.publish(slot);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        // Every producer's values arrive once and in order.
+        AtomicLongArray next = new AtomicLongArray(producers);
+        int received = 0;
+        while (received < producers * perProducer) {
+            Measurement slot = queue.claimForRead();
+            if (slot == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = (int) slot.mThreadId;
+            assertEquals(next.get(producer), slot.mStartNanos);
+            next.incrementAndGet(producer);
+            queue.release(slot);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, next.get(p));
+        }
+    }
+}
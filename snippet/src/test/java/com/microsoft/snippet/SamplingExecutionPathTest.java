@@ -0,0 +1,193 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.snippet.token.ILogToken;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Share of the calls sampled by a {@link SamplingExecutionPath} and the weight they carry, with the
+ * default rate and with the rates overridden per tag and per call site. Sampled captures are
+ * reported with their weight, unsampled ones still run the closure.
+ */
+public class SamplingExecutionPathTest {
+    private static final CallSite EVERY_CALL = CallSite.of("com.example.Feed", "load", 12);
+    private static final CallSite ONE_IN_FIVE = CallSite.of("com.example.Feed", "bind", 40);
+    private static final CallSite HALF = CallSite.of("com.example.Feed", "scroll", 77);
+
+    /**
+     * Weights of the reported captures, per message.
+     */
+    private static final class WeightSink implements MeasurementSink {
+        final List<String> mMessages = new ArrayList<>();
+        final List<Double> mWeights = new ArrayList<>();
+
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                mMessages.add(batch.get(i).getMessage());
+                mWeights.add(batch.get(i).getWeight());
+            }
+        }
+
+        /**
+         * @return number of captures reported with the message, each checked to carry the weight.
+         */
+        int reported(String message, double weight) {
+            int reported = 0;
+            for (int i = 0; i < mMessages.size(); i++) {
+                if (message.equals(mMessages.get(i))) {
+                    assertEquals(weight, mWeights.get(i), 0d);
+                    reported++;
+                }
+            }
+            return reported;
+        }
+    }
+
+    private static final class CountingClosure implements Snippet.Closure {
+        int mInvocations;
+
+        @Override
+        public void invoke() {
+            mInvocations++;
+        }
+    }
+
+    private final WeightSink mSink = new WeightSink();
+
+    @Before
+    public void setUp() {
+        Snippet.addSink(mSink);
+    }
+
+    @After
+    public void tearDown() {
+        Snippet.removeSink(mSink);
+    }
+
+    private static void capture(SamplingExecutionPath path, String message, CallSite callSite, int calls) {
+        CountingClosure closure = new CountingClosure();
+        for (int i = 0; i < calls; i++) {
+            path.capture(message, closure, callSite);
+        }
+        assertEquals(calls, closure.mInvocations);
+    }
+
+    /**
+     * Starts and ends the given number of tokens.
+     *
+     * @return number of sampled tokens, each checked to carry the expected weight.
+     */
+    private static int sampled(SamplingExecutionPath path, String tag, int calls, double weight) {
+        int sampled = 0;
+        for (int i = 0; i < calls; i++) {
+            ILogToken token = tag != null ? path.startCapture(tag, TagScope.GLOBAL) : path.startCapture();
+            if (token == Snippet.NO_OP_TOKEN) {
+                continue;
+            }
+            sampled++;
+            assertEquals(weight, ((LogTokenHandle) token).token().mWeight, 0d);
+            token.endCapture();
+        }
+        return sampled;
+    }
+
+    @Test
+    public void oneInSamplesEveryNthCall() {
+        SamplingExecutionPath path = SamplingExecutionPath.oneIn(4);
+        assertEquals(100, sampled(path, null, 400, 4d));
+    }
+
+    @Test
+    public void probabilityWeighsTheSampledCallsByItsInverse() {
+        SamplingExecutionPath path = SamplingExecutionPath.withProbability(0.25);
+        int sampled = sampled(path, null, 4000, 4d);
+        assertTrue("Sampled " + sampled, sampled > 800 && sampled < 1200);
+    }
+
+    @Test
+    public void tagRateOverridesTheDefaultRate() {
+        SamplingExecutionPath path = SamplingExecutionPath.oneIn(10);
+        path.setOneIn("app_start", 1);
+        path.setOneIn("scroll", 5);
+        assertEquals(20, sampled(path, "app_start", 20, 1d));
+        assertEquals(4, sampled(path, "scroll", 20, 5d));
+        assertEquals(2, sampled(path, "other", 20, 10d));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullTagTakesTheDefaultRateAndIsRejectedWhenSampled() {
+        SamplingExecutionPath path = SamplingExecutionPath.oneIn(1);
+        path.setOneIn("app_start", 2);
+        // Same as on the measured path, not a NullPointerException from the map of tag rates.
+        path.startCapture(null, TagScope.GLOBAL);
+    }
+
+    @Test
+    public void callSiteRateOverridesTheDefaultRate() {
+        SamplingExecutionPath path = SamplingExecutionPath.oneIn(10);
+        path.setOneIn(EVERY_CALL, 1);
+        path.setOneIn(ONE_IN_FIVE, 5);
+        path.setProbability(HALF, 0.5);
+        capture(path, "every", EVERY_CALL, 20);
+        capture(path, "fifth", ONE_IN_FIVE, 20);
+        capture(path, "half", HALF, 2000);
+        capture(path, "default", null, 20);
+
+        assertEquals(20, mSink.reported("every", 1d));
+        assertEquals(4, mSink.reported("fifth", 5d));
+        int half = mSink.reported("half", 2d);
+        assertTrue("Sampled " + half, half > 800 && half < 1200);
+        assertEquals(2, mSink.reported("default", 10d));
+    }
+
+    @Test
+    public void unsampledCaptureRunsTheClosureWithoutReportingIt() {
+        SamplingExecutionPath path = SamplingExecutionPath.oneIn(4);
+        CountingClosure closure = new CountingClosure();
+        ExecutionContext unsampled = null;
+        int sampled = 0;
+        for (int i = 0; i < 40; i++) {
+            int reported = mSink.mMessages.size();
+            ExecutionContext context = path.capture("load", closure);
+            assertEquals(i + 1, closure.mInvocations);
+            if (mSink.mMessages.size() > reported) {
+                sampled++;
+                assertNotSame(unsampled, context);
+                continue;
+            }
+            // Every unsampled capture gets the same empty context, nothing is measured.
+            if (unsampled == null) {
+                unsampled = context;
+            }
+            assertSame(unsampled, context);
+            assertEquals(0L, context.getExecutionDurationNanos());
+        }
+        assertEquals(10, sampled);
+        assertEquals(10, mSink.reported("load", 4d));
+    }
+
+    @Test
+    public void sampledCapturesCarryTheInverseOfTheProbability() {
+        SamplingExecutionPath path = SamplingExecutionPath.withProbability(0.25);
+        capture(path, "load", null, 4000);
+        int sampled = mSink.reported("load", 4d);
+        assertTrue("Sampled " + sampled, sampled > 800 && sampled < 1200);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Registration and delivery of {@link SinkRegistry}, and delivery on the measured thread by the
+ * {@link SynchronousReporter}.
+ */
+public class SinkRegistryTest {
+
+    private static final class RecordingSink implements MeasurementSink {
+        final List<Long> mStarts = new ArrayList<>();
+        final List<Thread> mThreads = new ArrayList<>();
+
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                mStarts.add(batch.get(i).getStartNanos());
+                mThreads.add(Thread.currentThread());
+            }
+        }
+    }
+
+    private static SinkRegistry registry(MeasurementSink... sinks) {
+        SinkRegistry registry = new SinkRegistry();
+        registry.remove(LogcatSink.INSTANCE);
+        for (MeasurementSink sink : sinks) {
+            registry.add(sink);
+        }
+        return registry;
+    }
+
+    @Test
+    public void sinkIsRegisteredOnce() {
+        RecordingSink sink = new RecordingSink();
+        SinkRegistry registry = registry();
+        assertTrue(registry.isEmpty());
+        assertTrue(registry.add(sink));
+        assertFalse(registry.add(sink));
+        registry.dispatch(TestMeasurements.batch(TestMeasurements.capture(1L, 2L, 1L, null, null)));
+        assertEquals(1, sink.mStarts.size());
+
+        assertTrue(registry.remove(sink));
+        assertFalse(registry.remove(sink));
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test
+    public void failingSinkDoesNotStopTheOthers() {
+        RecordingSink first = new RecordingSink();
+        RecordingSink last = new RecordingSink();
+        SinkRegistry registry = registry(first, new MeasurementSink() {
+            @Override
+            public void onMeasurements(@NonNull MeasurementBatch batch) {
+                throw new IllegalStateException("Broken sink");
+            }
+        }, last);
+        registry.dispatch(TestMeasurements.batch(TestMeasurements.capture(5L, 6L, 1L, null, null),
+                TestMeasurements.capture(7L, 8L, 1L, null, null)));
+        assertEquals(2, first.mStarts.size());
+        assertEquals(2, last.mStarts.size());
+        assertEquals(7L, (long) last.mStarts.get(1));
+    }
+
+    @Test
+    public void logcatPrintsAContextWithoutCallSite() {
+        Measurement measurement = TestMeasurements.capture(5L, 6L, 1L, "load", TestMeasurements.context(null, "worker"));
+        measurement.mFilter = SnippetConfig.DEFAULT_FILTER;
+        measurement.mFlags = Snippet.FLAG_METADATA_CLASS | Snippet.FLAG_METADATA_METHOD | Snippet.FLAG_METADATA_LINE;
+        // Class and method are printed as unknown.
+        LogcatFormatter.print(measurement);
+    }
+
+    @Test
+    public void synchronousReporterDeliversOnTheMeasuredThread() {
+        RecordingSink sink = new RecordingSink();
+        SynchronousReporter reporter = new SynchronousReporter(registry(sink));
+        Measurement first = reporter.obtain();
+        assertNotNull(first);
+        first.mStartNanos = 10L;
+        first.mMessage = "first";
+        reporter.submit(first);
+        assertEquals(1, sink.mStarts.size());
+        assertSame(Thread.currentThread(), sink.mThreads.get(0));
+        // The measurement is cleared and reused by the next capture of the thread.
+        assertNull(first.getMessage());
+        assertSame(first, reporter.obtain());
+    }
+
+    @Test
+    public void synchronousReporterCanBeReenteredFromASink() {
+        final RecordingSink inner = new RecordingSink();
+        final SinkRegistry registry = registry(inner);
+        final SynchronousReporter reporter = new SynchronousReporter(registry);
+        registry.add(new MeasurementSink() {
+            @Override
+            public void onMeasurements(@NonNull MeasurementBatch batch) {
+                if (batch.get(0).getStartNanos() == 1L) {
+                    Measurement nested = reporter.obtain();
+                    nested.mStartNanos = 2L;
+                    reporter.submit(nested);
+                }
+            }
+        });
+        Measurement outer = reporter.obtain();
+        outer.mStartNanos = 1L;
+        reporter.submit(outer);
+        assertEquals(2, inner.mStarts.size());
+        assertEquals(1L, (long) inner.mStarts.get(0));
+        assertEquals(2L, (long) inner.mStarts.get(1));
+    }
+
+    @Test
+    public void nothingIsObtainedWithoutSinks() {
+        assertNull(new SynchronousReporter(registry()).obtain());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import com.microsoft.snippet.token.ILogToken;
+import com.microsoft.snippet.token.LogTokenState;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Snapshots of {@link SnippetConfig} and their swaps through {@link Snippet#setConfig(SnippetConfig)}:
+ * no lost update under concurrent changes, install callbacks of the paths, and in-flight tokens that
+ * finish with the configuration they started with.
+ */
+public class SnippetConfigTest {
+    private SnippetConfig mSaved;
+
+    private static final class TrackedPath extends Snippet.MeasuredExecutionPath {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        void onInstalled() {
+            mEvents.add("installed");
+        }
+
+        @Override
+        void onUninstalled() {
+            mEvents.add("uninstalled");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mSaved = Snippet.getConfig();
+    }
+
+    @After
+    public void tearDown() {
+        Snippet.setConfig(mSaved);
+    }
+
+    @Test
+    public void withMethodsLeaveTheSnapshotUnchanged() {
+        SnippetConfig config = SnippetConfig.defaults();
+        SnippetConfig changed = config.withFlags(Snippet.FLAG_METADATA_LINE).withFilter("Perf")
+                .withTagEnabled("feed", false);
+        assertEquals(Snippet.FLAG_METADATA_CLASS | Snippet.FLAG_METADATA_METHOD, config.getFlags());
+        assertEquals(SnippetConfig.DEFAULT_FILTER, config.getFilter());
+        assertTrue(config.isTagEnabled("feed"));
+        assertEquals(Snippet.FLAG_METADATA_LINE, changed.getFlags());
+        assertEquals("Perf", changed.getFilter());
+        assertFalse(changed.isTagEnabled("feed"));
+        assertSame(changed, changed.withTagEnabled("feed", false));
+        assertTrue(changed.withTagEnabled("feed", true).isTagEnabled("feed"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void disabledTagsCannotBeModified() {
+        SnippetConfig.defaults().withTagEnabled("feed", false).getDisabledTags().add("other");
+    }
+
+    @Test
+    public void compareAndSetFailsOnAStaleSnapshot() {
+        SnippetConfig stale = Snippet.getConfig();
+        Snippet.setConfig(stale.withFilter("first"));
+        assertFalse(Snippet.compareAndSetConfig(stale, stale.withFilter("second")));
+        assertEquals("first", Snippet.getConfig().getFilter());
+    }
+
+    @Test
+    public void concurrentTagSwitchesAreNotLost() throws InterruptedException {
+        final int threads = 4;
+        final int tagsPerThread = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < tagsPerThread; i++) {
+                        Snippet.setTagEnabled("tag-" + thread + "-" + i, false);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * tagsPerThread, Snippet.getConfig().getDisabledTags().size());
+        assertSame(Snippet.NO_OP_TOKEN, Snippet.startCapture("tag-0-0"));
+    }
+
+    @Test
+    public void pathsAreToldWhenTheyAreSwappedInAndOut() {
+        TrackedPath first = new TrackedPath();
+        TrackedPath second = new TrackedPath();
+        Snippet.setExecutionPath(first);
+        Snippet.setConfig(Snippet.getConfig().withFilter("Perf"));
+        Snippet.setExecutionPath(second);
+        Snippet.setExecutionPath(new ReleaseExecutionPath());
+        assertEquals(2, first.mEvents.size());
+        assertEquals("installed", first.mEvents.get(0));
+        assertEquals("uninstalled", first.mEvents.get(1));
+        assertEquals(2, second.mEvents.size());
+        // A path that was swapped out keeps the last configuration it was installed with.
+        assertSame(first, first.config().getExecutionPath());
+        assertEquals("Perf", first.config().getFilter());
+    }
+
+    @Test
+    public void tokenStartedBeforeASwapEndsWithItsConfiguration() {
+        Snippet.MeasuredExecutionPath measured = new Snippet.MeasuredExecutionPath();
+        Snippet.setConfig(Snippet.getConfig().withExecutionPath(measured).withFilter("before"));
+        ILogToken token = Snippet.startCapture();
+        Snippet.LogToken logToken = ((LogTokenHandle) token).token();
+        SnippetConfig started = logToken.mConfig;
+        assertSame(measured, started.getExecutionPath());
+
+        Snippet.setConfig(Snippet.getConfig().withExecutionPath(new ReleaseExecutionPath()).withFilter("after"));
+        assertSame(Snippet.NO_OP_TOKEN, Snippet.startCapture());
+        assertSame(started, logToken.mConfig);
+        assertEquals("before", started.getFilter());
+        token.endCapture();
+        assertEquals(LogTokenState.IN_POOL, logToken.getState());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Parent links and self time of {@link SpanStack}, with log tokens that end out of order, on
+ * another thread, or come back from the pool on another thread. Every test runs on a new thread so
+ * that it starts with an empty stack.
+ */
+public class SpanStackTest {
+
+    private static void onNewThread(final Runnable body) throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    body.run();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static SpanStack.Frame endOnNewThread(final SpanStack.Frame frame, final long nanos) throws InterruptedException {
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                SpanStack.end(frame, nanos);
+            }
+        });
+        return frame;
+    }
+
+    @Test
+    public void tokenIsTheParentOfTheSpansStartedAfterIt() throws InterruptedException {
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                SpanStack stack = SpanStack.current();
+                SpanStack.Frame token = stack.push(new SpanStack.Frame(true));
+                SpanStack.Frame capture = stack.push();
+                assertSame(token, capture.mParent);
+                assertEquals(token.mSpanId, capture.mParentSpanId);
+                assertEquals(1, capture.mDepth);
+
+                stack.pop(capture, 100L);
+                assertEquals(100L, token.mChildNanos);
+                SpanStack.end(token, 300L);
+                assertEquals(0, stack.push().mDepth);
+            }
+        });
+    }
+
+    @Test
+    public void tokenEndedOnItsThreadUnwindsToItsFrame() throws InterruptedException {
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                SpanStack stack = SpanStack.current();
+                SpanStack.Frame outer = stack.push();
+                SpanStack.Frame token = stack.push(new SpanStack.Frame(true));
+                SpanStack.Frame later = stack.push(new SpanStack.Frame(true));
+                assertSame(token, later.mParent);
+
+                SpanStack.end(token, 300L);
+                assertEquals(300L, outer.mChildNanos);
+                // The token started after it went with it, the next span is a child of the capture.
+                SpanStack.Frame next = stack.push();
+                assertSame(outer, next.mParent);
+                assertEquals(1, next.mDepth);
+                stack.pop(next, 0L);
+
+                // Ending the unwound token later does not touch the stack.
+                SpanStack.end(later, 50L);
+                assertEquals(300L, outer.mChildNanos);
+                assertEquals(1, stack.push().mDepth);
+            }
+        });
+    }
+
+    @Test
+    public void runningCaptureIsNotUnwound() throws InterruptedException {
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                SpanStack stack = SpanStack.current();
+                SpanStack.Frame token = stack.push(new SpanStack.Frame(true));
+                SpanStack.Frame capture = stack.push();
+                // The token ends inside a capture that started after it.
+                SpanStack.end(token, 10L);
+                SpanStack.Frame inner = stack.push();
+                assertSame(capture, inner.mParent);
+                assertEquals(2, inner.mDepth);
+                stack.pop(inner, 0L);
+                stack.pop(capture, 5L);
+                assertEquals(0, stack.push().mDepth);
+            }
+        });
+    }
+
+    @Test
+    public void tokenEndedOnAnotherThreadIsDroppedByTheNextPush() throws InterruptedException {
+        final AtomicReference<SpanStack.Frame> token = new AtomicReference<>();
+        final AtomicReference<SpanStack.Frame> outer = new AtomicReference<>();
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                SpanStack stack = SpanStack.current();
+                outer.set(stack.push());
+                token.set(stack.push(new SpanStack.Frame(true)));
+                try {
+                    endOnNewThread(token.get(), 300L);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                // Not credited, the parent can only be checked on its own thread.
+                assertEquals(0L, outer.get().mChildNanos);
+                SpanStack.Frame next = stack.push();
+                assertSame(outer.get(), next.mParent);
+                assertEquals(1, next.mDepth);
+            }
+        });
+    }
+
+    @Test
+    public void frameReusedOnAnotherThreadIsStaleOnTheOldStack() throws InterruptedException {
+        final SpanStack.Frame frame = new SpanStack.Frame(true);
+        final AtomicReference<SpanStack.Frame> reopened = new AtomicReference<>();
+        onNewThread(new Runnable() {
+            @Override
+            public void run() {
+                SpanStack stack = SpanStack.current();
+                assertNotNull(stack.push(frame));
+                try {
+                    // Ended elsewhere, back to the pool and handed out again on another thread.
+                    endOnNewThread(frame, 0L);
+                    onNewThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            reopened.set(SpanStack.current().push(frame));
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                assertSame(frame, reopened.get());
+                SpanStack.Frame next = stack.push();
+                assertNull(next.mParent);
+                assertEquals(0, next.mDepth);
+            }
+        });
+    }
+}
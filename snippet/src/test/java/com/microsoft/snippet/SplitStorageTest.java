@@ -0,0 +1,166 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Split arrays of the log tokens and of {@link Measurement}: growth past the initial capacity, reuse
+ * of the arrays across pooled tokens and measurements, and the splits rebuilt by
+ * {@link Measurement#setSplits(long, long[], String[], int)}.
+ */
+public class SplitStorageTest {
+
+    /**
+     * Keeps a copy of every measurement, the delivered ones are reused by the reporter.
+     */
+    private static final class RecordingSink implements MeasurementSink {
+        final List<Measurement> mMeasurements = new ArrayList<>();
+
+        @Override
+        public void onMeasurements(@NonNull MeasurementBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                Measurement copy = new Measurement();
+                copy.copyFrom(batch.get(i));
+                mMeasurements.add(copy);
+            }
+        }
+    }
+
+    private final RecordingSink mSink = new RecordingSink();
+    private SnippetConfig mSaved;
+
+    @Before
+    public void setUp() {
+        mSaved = Snippet.getConfig();
+        Snippet.setConfig(mSaved.withExecutionPath(new Snippet.MeasuredExecutionPath()));
+        Snippet.addSink(mSink);
+    }
+
+    @After
+    public void tearDown() {
+        Snippet.removeSink(mSink);
+        Snippet.setConfig(mSaved);
+    }
+
+    private static void assertChained(Measurement measurement) {
+        assertEquals(measurement.getStartNanos(), measurement.getSplitStartNanos(0));
+        for (int i = 0; i < measurement.getSplitCount(); i++) {
+            assertEquals(i + 1, measurement.getSplitSequence(i));
+            if (i > 0) {
+                assertEquals(measurement.getSplitEndNanos(i - 1), measurement.getSplitStartNanos(i));
+            }
+        }
+    }
+
+    @Test
+    public void setSplitsChainsTheSplitsFromTheStart() {
+        Measurement measurement = new Measurement();
+        measurement.setSplits(100L, new long[]{150L, 170L, 300L}, new String[]{"parse", null, "bind"}, 3);
+        assertEquals(3, measurement.getSplitCount());
+        assertEquals(100L, measurement.getSplitStartNanos(0));
+        assertEquals(150L, measurement.getSplitStartNanos(1));
+        assertEquals(170L, measurement.getSplitStartNanos(2));
+        assertEquals(300L, measurement.getSplitEndNanos(2));
+        assertEquals(3, measurement.getSplitSequence(2));
+        assertEquals("parse", measurement.getSplitName(0));
+        assertNull(measurement.getSplitName(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void splitsPastTheCountAreOutOfBounds() {
+        Measurement measurement = new Measurement();
+        measurement.setSplits(100L, new long[]{150L, 170L, 300L}, new String[3], 3);
+        measurement.setSplits(100L, new long[]{150L}, new String[1], 1);
+        // The arrays still hold the third split of the last call.
+        measurement.getSplitEndNanos(2);
+    }
+
+    @Test
+    public void setSplitsReusesTheArraysThatAreLargeEnough() {
+        Measurement measurement = new Measurement();
+        measurement.setSplits(0L, new long[]{1L, 2L, 3L}, new String[3], 3);
+        long[] ends = measurement.mSplitEnds;
+        assertEquals(4, ends.length);
+
+        measurement.setSplits(10L, new long[]{11L, 12L}, new String[2], 2);
+        assertSame(ends, measurement.mSplitEnds);
+        assertEquals(2, measurement.getSplitCount());
+        assertEquals(10L, measurement.getSplitStartNanos(0));
+
+        measurement.setSplits(20L, new long[]{21L, 22L, 23L, 24L, 25L}, new String[5], 5);
+        assertNotSame(ends, measurement.mSplitEnds);
+        assertEquals(8, measurement.mSplitEnds.length);
+        assertEquals(24L, measurement.getSplitStartNanos(4));
+    }
+
+    @Test
+    public void copyFromReusesTheArraysThatAreLargeEnough() {
+        Measurement source = new Measurement();
+        source.setSplits(0L, new long[]{1L, 2L, 3L}, new String[]{"a", "b", "c"}, 3);
+        Measurement target = new Measurement();
+        target.setSplits(0L, new long[]{1L, 2L, 3L, 4L, 5L}, new String[5], 5);
+        long[] starts = target.mSplitStarts;
+
+        target.copyFrom(source);
+        assertSame(starts, target.mSplitStarts);
+        assertEquals(3, target.getSplitCount());
+        assertEquals(2L, target.getSplitStartNanos(2));
+        assertEquals("c", target.getSplitName(2));
+    }
+
+    @Test
+    public void tokenSplitsGrowPastTheInitialCapacity() {
+        LogTokenHandle token = (LogTokenHandle) Snippet.startCapture();
+        for (int i = 0; i < 10; i++) {
+            token.addSplit("split-" + i);
+        }
+        token.endCapture();
+
+        Measurement measurement = mSink.mMeasurements.get(mSink.mMeasurements.size() - 1);
+        assertEquals(10, measurement.getSplitCount());
+        assertEquals("split-0", measurement.getSplitName(0));
+        assertEquals("split-9", measurement.getSplitName(9));
+        assertChained(measurement);
+    }
+
+    @Test
+    public void reusedTokenStartsWithoutTheSplitsOfItsLastCapture() {
+        // An empty pool gives the token recycled last back to the same thread.
+        Snippet.trimTokenPool();
+        for (int round = 0; round < 2; round++) {
+            // A token split in a long loop drops its arrays, a shorter one keeps them for its next capture.
+            int splits = round == 0 ? 100 : 10;
+            LogTokenHandle first = (LogTokenHandle) Snippet.startCapture();
+            for (int i = 0; i < splits; i++) {
+                first.addSplit("first-" + i);
+            }
+            first.endCapture();
+            assertEquals(splits, mSink.mMeasurements.get(mSink.mMeasurements.size() - 1).getSplitCount());
+
+            LogTokenHandle second = (LogTokenHandle) Snippet.startCapture();
+            assertSame(first.token(), second.token());
+            second.addSplit();
+            second.endCapture();
+
+            Measurement measurement = mSink.mMeasurements.get(mSink.mMeasurements.size() - 1);
+            assertEquals(1, measurement.getSplitCount());
+            assertNull(measurement.getSplitName(0));
+            assertChained(measurement);
+        }
+    }
+}
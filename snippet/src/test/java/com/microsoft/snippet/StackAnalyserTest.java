@@ -0,0 +1,127 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import com.microsoft.snippet.token.ILogToken;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Location of the calling frame by {@link StackAnalyser#resolve(StackTraceElement[], int)} for each
+ * kind of API.
+ */
+public class StackAnalyserTest {
+    private static final StackTraceElement HANDLE = frame("com.microsoft.snippet.StackAnalyser", "captureHandle", 60);
+    private static final StackTraceElement CALLER = frame("com.microsoft.app.FeedActivity", "onCreate", 42);
+
+    private final StackAnalyser mAnalyser = new StackAnalyser();
+
+    private static StackTraceElement frame(String className, String methodName, int line) {
+        return new StackTraceElement(className, methodName, className + ".java", line);
+    }
+
+    private static void assertCaller(CallSite callSite) {
+        assertEquals("com.microsoft.app.FeedActivity", callSite.getClassName());
+        assertEquals("onCreate", callSite.getMethodName());
+        assertEquals(42, callSite.getLineNumber());
+    }
+
+    @Test
+    public void captureResolvesTheFrameAfterSnippetCapture() {
+        StackTraceElement[] frames = {HANDLE, frame("com.microsoft.snippet.Snippet", "invokeMeasureAndAttachExecutionContext", 640),
+                frame("com.microsoft.snippet.Snippet", "capture", 580), CALLER};
+        CallSite callSite = mAnalyser.resolve(frames, StackAnalyser.API_CAPTURE);
+        assertCaller(callSite);
+        // Interned, the next capture from the same line gets the same instance.
+        assertSame(callSite, mAnalyser.resolve(frames, StackAnalyser.API_CAPTURE));
+    }
+
+    @Test
+    public void logTokenResolvesTheFrameAfterEndCapture() {
+        StackTraceElement[] throughHandle = {HANDLE, frame("com.microsoft.snippet.Snippet$LogToken", "doEndSlice", 1300),
+                frame("com.microsoft.snippet.LogTokenHandle", "endCapture", 80), CALLER};
+        assertCaller(mAnalyser.resolve(throughHandle, StackAnalyser.API_LOG_TOKEN));
+        StackTraceElement[] onToken = {HANDLE, frame("com.microsoft.snippet.Snippet$LogToken", "endCapture", 1170), CALLER};
+        assertCaller(mAnalyser.resolve(onToken, StackAnalyser.API_LOG_TOKEN));
+    }
+
+    @Test
+    public void endCaptureAllResolvesTheFrameAfterSnippetEndCaptureAll() {
+        StackTraceElement[] frames = {HANDLE, frame("com.microsoft.snippet.Snippet", "endCaptureAll", 904), CALLER};
+        assertCaller(mAnalyser.resolve(frames, StackAnalyser.API_END_CAPTURE_ALL));
+    }
+
+    @Test
+    public void otherApiFramesAreNotMatched() {
+        StackTraceElement[] frames = {HANDLE, frame("com.microsoft.snippet.Snippet", "capture", 580), CALLER};
+        assertSame(CallSite.UNKNOWN, mAnalyser.resolve(frames, StackAnalyser.API_LOG_TOKEN));
+        assertSame(CallSite.UNKNOWN, mAnalyser.resolve(frames, StackAnalyser.API_END_CAPTURE_ALL));
+        // A capture() of another class is not the Snippet API.
+        StackTraceElement[] foreign = {HANDLE, frame("com.microsoft.app.Cache", "capture", 10), CALLER};
+        assertSame(CallSite.UNKNOWN, mAnalyser.resolve(foreign, StackAnalyser.API_CAPTURE));
+    }
+
+    @Test
+    public void apiOutsideOfThePackageIsNotMatched() {
+        StackTraceElement[] frames = {HANDLE, frame("com.microsoft.snippet.Snippet", "capture", 580), CALLER};
+        assertSame(CallSite.UNKNOWN, new StackAnalyser("org.example").resolve(frames, StackAnalyser.API_CAPTURE));
+    }
+
+    @Test
+    public void apiFrameWithoutACallerIsUnknown() {
+        StackTraceElement[] frames = {HANDLE, frame("com.microsoft.snippet.Snippet", "capture", 580)};
+        assertSame(CallSite.UNKNOWN, mAnalyser.resolve(frames, StackAnalyser.API_CAPTURE));
+    }
+
+    @Test
+    public void handleTakenInSnippetResolvesToThisTest() {
+        CallSite callSite = mAnalyser.resolve(new StackTraceElement[]{HANDLE,
+                frame("com.microsoft.snippet.Snippet", "capture", 580),
+                new Throwable().getStackTrace()[0]}, StackAnalyser.API_CAPTURE);
+        assertEquals(StackAnalyserTest.class.getName(), callSite.getClassName());
+        assertEquals("handleTakenInSnippetResolvesToThisTest", callSite.getMethodName());
+    }
+
+    /**
+     * Keeps the context its captures hand back.
+     */
+    private static final class KeepingPath extends Snippet.MeasuredExecutionPath {
+        ExecutionContext mContext;
+
+        @Override
+        public ExecutionContext capture(String message, Snippet.Closure closure) {
+            mContext = super.capture(message, closure);
+            return mContext;
+        }
+    }
+
+    @Test
+    public void handedOutContextsResolveTheCallerWithOnlyLogcat() {
+        SnippetConfig saved = Snippet.getConfig();
+        try {
+            // Nothing but logcat without the call site flags would ask for the call site.
+            KeepingPath path = new KeepingPath();
+            Snippet.setConfig(saved.withExecutionPath(path).withFlags(Snippet.FLAG_METADATA_THREAD_INFO));
+            Snippet.capture(new Snippet.Closure() {
+                @Override
+                public void invoke() {
+                }
+            });
+            ILogToken token = Snippet.startCapture();
+            ExecutionContext ended = token.endCapture();
+            for (ExecutionContext context : new ExecutionContext[]{path.mContext, ended}) {
+                assertEquals(StackAnalyserTest.class.getName(), context.getClassName());
+                assertEquals("handedOutContextsResolveTheCallerWithOnlyLogcat", context.getMethodName());
+                assertTrue(context.getLineNo() > 0);
+            }
+        } finally {
+            Snippet.setConfig(saved);
+        }
+    }
+}
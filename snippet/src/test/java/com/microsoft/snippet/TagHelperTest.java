@@ -0,0 +1,185 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import com.microsoft.snippet.token.ILogToken;
+import com.microsoft.snippet.token.LogTokenState;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exact lookups, prefix walk and glob matching of {@link TagHelper}, and the hand over of a token
+ * whose tag is rejected as a duplicate.
+ */
+public class TagHelperTest {
+    private static final TagScope OTHER_THREAD = TagScope.thread(Long.MAX_VALUE);
+
+    private TagHelper mHelper;
+    private final Map<ILogToken, String> mTags = new IdentityHashMap<>();
+
+    @Before
+    public void setUp() {
+        mHelper = new TagHelper();
+        for (String tag : new String[]{"net", "net/feed/load", "net/feed/loader", "net/profile/load",
+                "net/profile/avatar/load", "network", "ne", "db/query", "app_start"}) {
+            tag(tag, TagScope.GLOBAL);
+        }
+    }
+
+    private ILogToken tag(String tag, TagScope scope) {
+        ILogToken token = new Snippet.LogToken();
+        assertTrue(mHelper.tag(new TagKey(tag, scope), token).getSecond());
+        mTags.put(token, tag);
+        return token;
+    }
+
+    private Set<String> tagsMatching(String pattern, TagScope scope) {
+        Set<String> tags = new HashSet<>();
+        for (ILogToken token : mHelper.searchAll(pattern, scope)) {
+            tags.add(mTags.get(token));
+        }
+        return tags;
+    }
+
+    private static Set<String> setOf(String... tags) {
+        Set<String> set = new HashSet<>();
+        for (String tag : tags) {
+            set.add(tag);
+        }
+        return set;
+    }
+
+    @Test
+    public void exactPatternFindsOnlyThatTag() {
+        assertEquals(setOf("net"), tagsMatching("net", null));
+        assertEquals(setOf("net/feed/load"), tagsMatching("net/feed/load", null));
+        assertTrue(tagsMatching("net/feed", null).isEmpty());
+    }
+
+    @Test
+    public void trailingWildcardWalksThePrefix() {
+        assertEquals(setOf("net/feed/load", "net/feed/loader", "net/profile/load", "net/profile/avatar/load"),
+                tagsMatching("net/*", null));
+        assertEquals(setOf("net", "net/feed/load", "net/feed/loader", "net/profile/load",
+                "net/profile/avatar/load", "network"), tagsMatching("net*", null));
+        assertEquals(9, mHelper.searchAll("*", null).size());
+    }
+
+    @Test
+    public void wildcardInTheMiddleMatchesAnySequence() {
+        assertEquals(setOf("net/feed/load", "net/profile/load", "net/profile/avatar/load"),
+                tagsMatching("net/*/load", null));
+        assertEquals(setOf("net/feed/load", "net/profile/load", "net/profile/avatar/load"),
+                tagsMatching("*load", null));
+        assertEquals(setOf("net/feed/load", "net/feed/loader"), tagsMatching("net/f*d/load*", null));
+        assertEquals(setOf("net/profile/avatar/load"), tagsMatching("net/**/avatar/*", null));
+        assertTrue(tagsMatching("net/*/save", null).isEmpty());
+    }
+
+    @Test
+    public void scopeFiltersTheMatches() {
+        ILogToken scoped = tag("net/feed/load", OTHER_THREAD);
+        List<ILogToken> all = mHelper.searchAll("net/feed/load", null);
+        assertEquals(2, all.size());
+        List<ILogToken> other = mHelper.searchAll("net/*", OTHER_THREAD);
+        assertEquals(1, other.size());
+        assertSame(scoped, other.get(0));
+        assertEquals(4, mHelper.searchAll("net/*", TagScope.GLOBAL).size());
+    }
+
+    @Test
+    public void sameTagInTheSameScopeIsRejected() {
+        ILogToken second = new Snippet.LogToken();
+        Pair<ILogToken, Boolean> result = mHelper.tag(new TagKey("db/query", TagScope.GLOBAL), second);
+        assertFalse(result.getSecond());
+        // The rejected token did not leave an entry in the sorted index.
+        assertEquals(1, mHelper.searchAll("db/*", null).size());
+        assertTrue(mHelper.search(new TagKey("db/query", TagScope.GLOBAL)) != second);
+    }
+
+    @Test
+    public void untaggedTokensLeaveTheIndex() {
+        TagKey key = new TagKey("scoped", OTHER_THREAD);
+        ILogToken token = new Snippet.LogToken();
+        assertTrue(mHelper.tag(key, token).getSecond());
+        assertFalse(mHelper.unTag(new TagKey("scoped", OTHER_THREAD), new Snippet.LogToken()));
+        assertTrue(mHelper.unTag(key, token));
+        assertNull(mHelper.search(key));
+        assertTrue(mHelper.searchAll("scoped", null).isEmpty());
+        // The tag can be used again.
+        assertTrue(mHelper.tag(new TagKey("scoped", OTHER_THREAD), new Snippet.LogToken()).getSecond());
+    }
+
+    @Test
+    public void rejectedTokenIsNeverFoundWhileItIsIndexed() throws InterruptedException {
+        final ILogToken owner = tag("race", TagScope.GLOBAL);
+        final ILogToken rejected = new Snippet.LogToken();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread tagger = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 200_000; i++) {
+                        assertFalse(mHelper.tag(new TagKey("race", TagScope.GLOBAL), rejected).getSecond());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        tagger.start();
+        // The rejected token sits in the index between the two steps of tag(), a search that
+        // returned it would let an endCaptureAll() end a token that was never handed out.
+        while (tagger.isAlive()) {
+            for (ILogToken token : mHelper.searchAll("race", null)) {
+                if (token != owner) {
+                    tagger.interrupt();
+                    fail("Search returned a token whose tag was rejected");
+                }
+            }
+        }
+        tagger.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertSame(owner, mHelper.searchAll("race", null).get(0));
+    }
+
+    @Test
+    public void discardToleratesATokenThatWasAlreadyEnded() {
+        Snippet.MeasuredExecutionPath path = new Snippet.MeasuredExecutionPath();
+        LogTokenHandle ended = (LogTokenHandle) path.startCapture();
+        Snippet.LogToken token = ended.token();
+        int generation = ended.generation();
+        ended.endCapture();
+        // Ending it already sent the token back to the pool, discarding it again must not.
+        assertFalse(token.discard(generation));
+
+        LogTokenHandle unused = (LogTokenHandle) path.startCapture();
+        assertTrue(unused.token().discard(unused.generation()));
+        assertEquals(LogTokenState.IN_POOL, unused.token().getState());
+        assertFalse(unused.token().discard(unused.generation()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullPatternIsRejected() {
+        mHelper.searchAll(null, null);
+    }
+}
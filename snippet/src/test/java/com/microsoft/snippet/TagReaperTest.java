@@ -0,0 +1,131 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.snippet.token.ILogToken;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Expiry of abandoned tagged tokens by a {@link TagReaper}. The wheel ticks every second, each
+ * test waits for about one tick.
+ */
+public class TagReaperTest {
+    private static final long TIMEOUT_MILLIS = 5_000L;
+
+    private static final class AbandonedSink implements MeasurementSink {
+        final List<String> mTags = new ArrayList<>();
+        final List<Long> mThreadIds = new ArrayList<>();
+
+        @Override
+        public synchronized void onMeasurements(@NonNull MeasurementBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                Measurement measurement = batch.get(i);
+                if (measurement.getKind() == Measurement.KIND_ABANDONED) {
+                    mTags.add(measurement.getTag());
+                    mThreadIds.add(measurement.getThreadId());
+                }
+            }
+        }
+    }
+
+    private final Snippet.MeasuredExecutionPath mPath = new Snippet.MeasuredExecutionPath();
+    private final AbandonedSink mSink = new AbandonedSink();
+    private TagReaper mReaper;
+
+    @Before
+    public void setUp() {
+        mReaper = new TagReaper();
+        Snippet.addSink(mSink);
+    }
+
+    @After
+    public void tearDown() {
+        Snippet.removeSink(mSink);
+    }
+
+    private LogTokenHandle start(String tag) {
+        ILogToken token = mPath.startCapture(tag);
+        assertTrue(token instanceof LogTokenHandle);
+        mReaper.onTagged(tag, (LogTokenHandle) token);
+        return (LogTokenHandle) token;
+    }
+
+    private void awaitAbandoned(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mReaper.getAbandonedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(count, mReaper.getAbandonedCount());
+    }
+
+    @Test
+    public void expiredTokenIsReportedUntaggedAndRecycled() throws InterruptedException {
+        mReaper.setTimeToLive("reaper/expired", 10L, TimeUnit.MILLISECONDS);
+        mReaper.setTimeToLive("reaper/ended", 10L, TimeUnit.MILLISECONDS);
+        LogTokenHandle abandoned = start("reaper/expired");
+        start("reaper/ended").endCapture();
+
+        awaitAbandoned(1L);
+        assertFalse(abandoned.isLive());
+        synchronized (mSink) {
+            assertEquals(1, mSink.mTags.size());
+            assertEquals("reaper/expired", mSink.mTags.get(0));
+            // Reported on behalf of the thread that started it, not the reaper thread.
+            assertEquals(Thread.currentThread().getId(), (long) mSink.mThreadIds.get(0));
+        }
+        // The tag is free again.
+        assertNotSame(Snippet.NO_OP_TOKEN, mPath.startCapture("reaper/expired"));
+        mPath.find("reaper/expired").endCapture();
+    }
+
+    @Test
+    public void tokenEndedInTimeIsNotAbandoned() throws InterruptedException {
+        mReaper.setDefaultTimeToLive(10L, TimeUnit.MILLISECONDS);
+        LogTokenHandle ended = start("reaper/in-time");
+        ended.endCapture();
+        // A second token on the same tick tells when the first one's bucket was looked at.
+        start("reaper/marker");
+        awaitAbandoned(1L);
+        synchronized (mSink) {
+            assertEquals("reaper/marker", mSink.mTags.get(0));
+            assertEquals(1, mSink.mTags.size());
+        }
+    }
+
+    @Test
+    public void tagWithoutTimeToLiveNeverExpires() throws InterruptedException {
+        mReaper.setDefaultTimeToLive(10L, TimeUnit.MILLISECONDS);
+        mReaper.setTimeToLive("reaper/forever", 0L, TimeUnit.MILLISECONDS);
+        LogTokenHandle forever = start("reaper/forever");
+        start("reaper/marker-2");
+        awaitAbandoned(1L);
+        assertTrue(forever.isLive());
+        forever.endCapture();
+
+        // Negative removes the override, the default applies again.
+        mReaper.setTimeToLive("reaper/forever", -1L, TimeUnit.MILLISECONDS);
+        start("reaper/forever");
+        awaitAbandoned(2L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDefaultTimeToLiveIsRejected() {
+        mReaper.setDefaultTimeToLive(-1L, TimeUnit.SECONDS);
+    }
+}
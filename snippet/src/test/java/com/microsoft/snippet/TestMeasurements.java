@@ -0,0 +1,68 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+/**
+ * Builds the measurements and batches that the library hands over to the sinks, for the tests of
+ * the sinks outside of this package.
+ */
+public final class TestMeasurements {
+
+    private TestMeasurements() {
+    }
+
+    public static ExecutionContext context(CallSite callSite, String threadName) {
+        ExecutionContext context = new ExecutionContext();
+        context.setCallSite(callSite);
+        context.setThreadName(threadName);
+        return context;
+    }
+
+    public static Measurement capture(long start, long end, long threadId, String message, ExecutionContext context) {
+        Measurement measurement = new Measurement();
+        measurement.mKind = Measurement.KIND_CAPTURE;
+        measurement.mStartNanos = start;
+        measurement.mEndNanos = end;
+        measurement.mThreadId = threadId;
+        measurement.mMessage = message;
+        measurement.mContext = context;
+        measurement.mWeight = 1d;
+        return measurement;
+    }
+
+    /**
+     * Log token measurement, tagged if the tag is not null.
+     *
+     * @param splitEnds end of every split, the first split starts at the start of the token.
+     * @param splitNames name of every split, null for the unnamed ones.
+     */
+    public static Measurement token(int kind, long start, long end, long threadId, String tag, TagScope scope,
+                                    ExecutionContext context, long[] splitEnds, String[] splitNames) {
+        Measurement measurement = capture(start, end, threadId, null, context);
+        measurement.mKind = kind;
+        measurement.mTag = tag;
+        measurement.mTagScope = scope;
+        if (splitEnds.length > 0) {
+            measurement.setSplits(start, splitEnds, splitNames, splitEnds.length);
+        }
+        return measurement;
+    }
+
+    /**
+     * Weight of a sampled measurement, see {@link Measurement#getWeight()}.
+     */
+    public static Measurement weighted(Measurement measurement, double weight) {
+        measurement.mWeight = weight;
+        return measurement;
+    }
+
+    public static MeasurementBatch batch(Measurement... measurements) {
+        MeasurementBatch batch = new MeasurementBatch(measurements.length);
+        for (Measurement measurement : measurements) {
+            batch.add(measurement);
+        }
+        return batch;
+    }
+}
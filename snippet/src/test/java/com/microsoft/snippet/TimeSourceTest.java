@@ -0,0 +1,89 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import com.microsoft.snippet.token.ILogToken;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * {@link FakeTimeSource} and the measurements taken once it is installed through
+ * {@link Snippet#setTimeSource(TimeSource)}.
+ */
+public class TimeSourceTest {
+    private TimeSource mSaved;
+
+    @Before
+    public void setUp() {
+        mSaved = Snippet.getTimeSource();
+    }
+
+    @After
+    public void tearDown() {
+        Snippet.setTimeSource(mSaved);
+    }
+
+    @Test
+    public void fakeTimeOnlyMovesWhenMoved() {
+        FakeTimeSource time = new FakeTimeSource();
+        assertEquals(0L, time.nanoTime());
+        assertEquals(0L, time.nanoTime());
+        time.advance(3, TimeUnit.MILLISECONDS);
+        assertEquals(3_000_000L, time.nanoTime());
+        time.setNanoTime(42L);
+        assertEquals(42L, time.nanoTime());
+    }
+
+    @Test
+    public void fakeTimeAutoAdvancesAfterEveryRead() {
+        FakeTimeSource time = new FakeTimeSource(100L, 10L);
+        assertEquals(100L, time.nanoTime());
+        assertEquals(110L, time.nanoTime());
+        assertEquals(120L, time.nanoTime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fakeTimeCannotMoveBackwards() {
+        new FakeTimeSource().advance(-1, TimeUnit.NANOSECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullTimeSourceIsRejected() {
+        Snippet.setTimeSource(null);
+    }
+
+    @Test
+    public void captureIsTimedByTheInstalledSource() {
+        final FakeTimeSource time = new FakeTimeSource(5_000L, 0L);
+        Snippet.setTimeSource(time);
+        assertSame(time, Snippet.getTimeSource());
+        ExecutionContext context = new Snippet.MeasuredExecutionPath().capture(new Snippet.Closure() {
+            @Override
+            public void invoke() {
+                time.advance(1_500, TimeUnit.MICROSECONDS);
+            }
+        });
+        assertEquals(1_500_000L, context.getExecutionDurationNanos());
+        assertEquals(1L, context.getExecutionDuration());
+    }
+
+    @Test
+    public void logTokenIsTimedByTheInstalledSource() {
+        FakeTimeSource time = new FakeTimeSource(5_000L, 0L);
+        Snippet.setTimeSource(time);
+        ILogToken token = new Snippet.MeasuredExecutionPath().startCapture();
+        assertEquals(5_000L, token.getStart());
+        time.advance(250, TimeUnit.NANOSECONDS);
+        ExecutionContext context = token.endCapture();
+        assertEquals(250L, context.getExecutionDurationNanos());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit selection and formatting of {@link ToolBox#appendDuration(StringBuilder, long)}.
+ */
+public class ToolBoxTest {
+
+    private static String format(long nanos) {
+        return ToolBox.appendDuration(new StringBuilder(), nanos).toString();
+    }
+
+    @Test
+    public void belowAMicrosecondIsPrintedInNanoseconds() {
+        assertEquals("0 ns", format(0L));
+        assertEquals("1 ns", format(1L));
+        assertEquals("999 ns", format(999L));
+    }
+
+    @Test
+    public void belowAMillisecondIsPrintedInMicroseconds() {
+        assertEquals("1.000 µs", format(1_000L));
+        assertEquals("1.234 µs", format(1_234L));
+        assertEquals("999.999 µs", format(999_999L));
+    }
+
+    @Test
+    public void fromAMillisecondOnIsPrintedInMilliseconds() {
+        assertEquals("1.000 ms", format(1_000_000L));
+        assertEquals("1.000 ms", format(1_000_999L));
+        assertEquals("1.010 ms", format(1_010_000L));
+        assertEquals("1.500 ms", format(1_500_000L));
+        assertEquals("12345.678 ms", format(12_345_678_901L));
+    }
+
+    @Test
+    public void negativeDurationsKeepTheirUnit() {
+        assertEquals("-999 ns", format(-999L));
+        assertEquals("-1.500 µs", format(-1_500L));
+        assertEquals("-2.005 ms", format(-2_005_000L));
+    }
+}
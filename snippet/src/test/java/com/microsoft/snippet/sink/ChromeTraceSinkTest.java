@@ -0,0 +1,139 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.sink;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.ExecutionContext;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.TagScope;
+import com.microsoft.snippet.TestMeasurements;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Events written by {@link ChromeTraceSink}, compared as text without the process id.
+ */
+public class ChromeTraceSinkTest {
+    private static final CallSite FEED = CallSite.of("com.example.Feed", "load", 12);
+    private static final long[] NO_SPLITS = new long[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    private StringWriter mOutput;
+    private ChromeTraceSink mSink;
+
+    @Before
+    public void setUp() throws IOException {
+        mOutput = new StringWriter();
+        mSink = new ChromeTraceSink(mOutput);
+    }
+
+    /**
+     * Closes the sink and returns the events, one per line, without the "pid" field.
+     */
+    private List<String> events() throws IOException {
+        mSink.close();
+        String trace = mOutput.toString();
+        assertTrue(trace, trace.startsWith("[\n"));
+        assertTrue(trace, trace.endsWith("\n]\n"));
+        String body = trace.substring(2, trace.length() - 3);
+        List<String> events = new ArrayList<>();
+        if (body.isEmpty()) {
+            return events;
+        }
+        for (String event : body.split(",\n")) {
+            events.add(event.replaceAll(",\"pid\":-?\\d+", ""));
+        }
+        return events;
+    }
+
+    @Test
+    public void captureIsACompleteEventAfterTheThreadName() throws IOException {
+        ExecutionContext context = TestMeasurements.context(FEED, "main");
+        mSink.onMeasurements(TestMeasurements.batch(
+                TestMeasurements.capture(1_500L, 4_000_250L, 1L, null, context),
+                TestMeasurements.capture(5_000_000L, 5_000_007L, 1L, "say \"hi\"\n", context)));
+        assertEquals(Arrays.asList(
+                "{\"name\":\"thread_name\",\"ph\":\"M\",\"tid\":1,\"args\":{\"name\":\"main\"}}",
+                "{\"name\":\"Feed#load\",\"cat\":\"capture\",\"ph\":\"X\",\"ts\":1.500,\"tid\":1,"
+                        + "\"dur\":3998.750,\"args\":{\"callSite\":\"com.example.Feed#load:12\"}}",
+                "{\"name\":\"say \\\"hi\\\"\\n\",\"cat\":\"capture\",\"ph\":\"X\",\"ts\":5000.000,\"tid\":1,"
+                        + "\"dur\":0.007,\"args\":{\"callSite\":\"com.example.Feed#load:12\"}}"), events());
+    }
+
+    @Test
+    public void contextWithoutCallSiteIsNamedUnknown() throws IOException {
+        mSink.onMeasurements(TestMeasurements.batch(
+                TestMeasurements.capture(1_000L, 2_000L, 1L, null, TestMeasurements.context(null, "main"))));
+        assertEquals(Arrays.asList(
+                "{\"name\":\"thread_name\",\"ph\":\"M\",\"tid\":1,\"args\":{\"name\":\"main\"}}",
+                "{\"name\":\"unknown\",\"cat\":\"capture\",\"ph\":\"X\",\"ts\":1.000,\"tid\":1,\"dur\":1.000}"),
+                events());
+    }
+
+    @Test
+    public void tokenSplitsAreNestedCompleteEvents() throws IOException {
+        mSink.onMeasurements(TestMeasurements.batch(TestMeasurements.token(Measurement.KIND_LOG_TOKEN,
+                1_000L, 3_000L, 2L, null, null, null, new long[]{2_000L, 3_000L}, new String[]{"parse", null})));
+        assertEquals(Arrays.asList(
+                "{\"name\":\"unknown\",\"cat\":\"token\",\"ph\":\"X\",\"ts\":1.000,\"tid\":2,\"dur\":2.000}",
+                "{\"name\":\"parse\",\"cat\":\"split\",\"ph\":\"X\",\"ts\":1.000,\"tid\":2,\"dur\":1.000}",
+                "{\"name\":\"Split 2\",\"cat\":\"split\",\"ph\":\"X\",\"ts\":2.000,\"tid\":2,\"dur\":1.000}"), events());
+    }
+
+    @Test
+    public void taggedTokensAreAsyncPairsKeyedByTagAndScope() throws IOException {
+        mSink.onMeasurements(TestMeasurements.batch(
+                TestMeasurements.token(Measurement.KIND_LOG_TOKEN, 1_000L, 2_000L, 3L, "net/feed", TagScope.GLOBAL,
+                        null, new long[]{1_500L}, new String[]{"io"}),
+                TestMeasurements.token(Measurement.KIND_ABANDONED, 1_000L, 9_000L, 3L, "db", TagScope.thread(3L),
+                        null, NO_SPLITS, NO_NAMES)));
+        String scoped = "db@" + TagScope.thread(3L);
+        assertEquals(Arrays.asList(
+                "{\"name\":\"net/feed\",\"cat\":\"tag\",\"ph\":\"b\",\"ts\":1.000,\"tid\":3,\"id\":\"net/feed\"}",
+                "{\"name\":\"io\",\"cat\":\"tag\",\"ph\":\"b\",\"ts\":1.000,\"tid\":3,\"id\":\"net/feed\"}",
+                "{\"name\":\"io\",\"cat\":\"tag\",\"ph\":\"e\",\"ts\":1.500,\"tid\":3,\"id\":\"net/feed\"}",
+                "{\"name\":\"net/feed\",\"cat\":\"tag\",\"ph\":\"e\",\"ts\":2.000,\"tid\":3,\"id\":\"net/feed\"}",
+                "{\"name\":\"db (abandoned)\",\"cat\":\"tag\",\"ph\":\"b\",\"ts\":1.000,\"tid\":3,\"id\":\"" + scoped + "\"}",
+                "{\"name\":\"db (abandoned)\",\"cat\":\"tag\",\"ph\":\"e\",\"ts\":9.000,\"tid\":3,\"id\":\"" + scoped + "\"}"),
+                events());
+    }
+
+    @Test
+    public void everyThreadIsNamedOnce() throws IOException {
+        // More threads than the initial capacity of the named thread ids.
+        for (int round = 0; round < 2; round++) {
+            for (long threadId = 0; threadId < 40; threadId++) {
+                mSink.onMeasurements(TestMeasurements.batch(TestMeasurements.capture(0L, 1L, threadId, "m",
+                        TestMeasurements.context(FEED, "thread-" + threadId))));
+            }
+        }
+        int names = 0;
+        for (String event : events()) {
+            if (event.startsWith("{\"name\":\"thread_name\"")) {
+                assertTrue(event, event.contains("\"tid\":" + names + ","));
+                assertTrue(event, event.contains("\"thread-" + names + "\""));
+                names++;
+            }
+        }
+        assertEquals(40, names);
+    }
+
+    @Test
+    public void measurementsAfterCloseAreIgnored() throws IOException {
+        mSink.close();
+        mSink.onMeasurements(TestMeasurements.batch(TestMeasurements.capture(0L, 1L, 1L, "late", null)));
+        assertEquals(0, events().size());
+    }
+}
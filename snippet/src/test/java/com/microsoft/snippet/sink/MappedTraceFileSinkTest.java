@@ -0,0 +1,183 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.sink;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.ExecutionContext;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.TestMeasurements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segment layout, per segment dictionaries and rotation of {@link MappedTraceFileSink}, read back
+ * from the files.
+ */
+public class MappedTraceFileSinkTest {
+    private static final CallSite FEED = CallSite.of("com.example.Feed", "load", 12);
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("snippet-trace").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private File[] files(final String suffix) {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static ByteBuffer read(File segment) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(segment.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static Map<Integer, String> dictionary(File file) throws IOException {
+        Map<Integer, String> names = new HashMap<>();
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            while (true) {
+                int id;
+                try {
+                    id = input.readInt();
+                } catch (EOFException e) {
+                    return names;
+                }
+                byte[] bytes = new byte[input.readShort()];
+                input.readFully(bytes);
+                names.put(id, new String(bytes, "UTF-8"));
+            }
+        }
+    }
+
+    @Test
+    public void recordsAndNamesAreWrittenToTheSegment() throws IOException {
+        ExecutionContext context = TestMeasurements.context(FEED, "main");
+        MappedTraceFileSink sink = new MappedTraceFileSink(mDirectory, 4096, 2);
+        sink.onMeasurements(TestMeasurements.batch(
+                TestMeasurements.capture(100L, 250L, 7L, "first", context),
+                TestMeasurements.token(Measurement.KIND_LOG_TOKEN, 300L, 900L, 7L, null, null, context,
+                        new long[]{400L, 900L}, new String[]{"parse", null})));
+        sink.close();
+
+        File[] segments = files(".trace");
+        assertEquals(1, segments.length);
+        ByteBuffer buffer = read(segments[0]);
+        assertEquals(MappedTraceFileSink.MAGIC, buffer.getInt());
+        assertEquals(MappedTraceFileSink.VERSION, buffer.getShort());
+        assertEquals(MappedTraceFileSink.RECORD_SIZE, buffer.getShort());
+        assertEquals(0, buffer.getInt());
+        assertEquals(4, buffer.getInt());  // Capture, token and its two splits.
+
+        Map<Integer, String> names = dictionary(files(".dict")[0]);
+        assertEquals(4, names.size());
+
+        int[] kinds = {Measurement.KIND_CAPTURE, Measurement.KIND_LOG_TOKEN, Measurement.KIND_SPLIT, Measurement.KIND_SPLIT};
+        long[] starts = {100L, 300L, 300L, 400L};
+        long[] ends = {250L, 900L, 400L, 900L};
+        String[] messages = {"first", null, "parse", null};
+        int[] sequences = {0, 0, 1, 2};
+        for (int record = 0; record < kinds.length; record++) {
+            buffer.position(MappedTraceFileSink.HEADER_SIZE + record * MappedTraceFileSink.RECORD_SIZE);
+            assertEquals(starts[record], buffer.getLong());
+            assertEquals(ends[record], buffer.getLong());
+            assertEquals(7L, buffer.getLong());
+            assertEquals(FEED.toString(), names.get(buffer.getInt()));
+            assertEquals("main", names.get(buffer.getInt()));
+            int messageId = buffer.getInt();
+            if (messages[record] == null) {
+                assertEquals(-1, messageId);
+            } else {
+                assertEquals(messages[record], names.get(messageId));
+            }
+            assertEquals(sequences[record], buffer.getInt());
+            assertEquals(kinds[record], buffer.getInt());
+        }
+    }
+
+    @Test
+    public void oldSegmentsAreDeletedAndEachHasItsOwnDictionary() throws IOException {
+        ExecutionContext context = TestMeasurements.context(FEED, "worker");
+        // Two records per segment, at most two segments on the disk.
+        MappedTraceFileSink sink = new MappedTraceFileSink(mDirectory,
+                MappedTraceFileSink.HEADER_SIZE + 2 * MappedTraceFileSink.RECORD_SIZE, 2);
+        for (long i = 0; i < 5; i++) {
+            sink.onMeasurements(TestMeasurements.batch(TestMeasurements.capture(i, i + 1, 3L, "m" + i, context)));
+        }
+        sink.close();
+
+        File[] segments = files(".trace");
+        File[] dictionaries = files(".dict");
+        assertEquals(2, segments.length);
+        assertEquals(2, dictionaries.length);
+        assertTrue(segments[0].getName().endsWith("-1.trace"));
+        assertTrue(segments[1].getName().endsWith("-2.trace"));
+
+        ByteBuffer second = read(segments[0]);
+        assertEquals(1, second.getInt(8));
+        assertEquals(2, second.getInt(12));
+        // Ids start from 0 in every segment, names used again are written again.
+        Map<Integer, String> names = dictionary(dictionaries[0]);
+        assertEquals(FEED.toString(), names.get(0));
+        assertEquals("worker", names.get(1));
+        assertEquals("m2", names.get(2));
+        assertEquals("m3", names.get(3));
+
+        ByteBuffer third = read(segments[1]);
+        assertEquals(1, third.getInt(12));
+        assertEquals(4L, third.getLong(MappedTraceFileSink.HEADER_SIZE));
+        assertEquals("m4", dictionary(dictionaries[1]).get(2));
+    }
+
+    @Test
+    public void measurementsAfterCloseAreIgnored() throws IOException {
+        MappedTraceFileSink sink = new MappedTraceFileSink(mDirectory, 4096, 1);
+        sink.close();
+        sink.onMeasurements(TestMeasurements.batch(TestMeasurements.capture(1L, 2L, 1L, null, null)));
+        sink.close();
+        assertEquals(0, read(files(".trace")[0]).getInt(12));
+        assertFalse(files(".dict")[0].length() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void segmentWithoutRoomForARecordIsRejected() throws IOException {
+        new MappedTraceFileSink(mDirectory, MappedTraceFileSink.HEADER_SIZE, 1);
+    }
+}
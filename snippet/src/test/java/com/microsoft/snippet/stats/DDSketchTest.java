@@ -0,0 +1,174 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Accuracy of {@link DDSketch}, collapsing of its lowest bins, merging and serialization.
+ */
+public class DDSketchTest {
+    private static final double[] QUANTILES = {0.01, 0.1, 0.5, 0.9, 0.99, 0.999};
+
+    private static long[] logNormal(long seed, int count) {
+        Random random = new Random(seed);
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = 1 + (long) Math.exp(Math.log(2_000_000) + 1.5 * random.nextGaussian());
+        }
+        return values;
+    }
+
+    private static double exact(long[] sorted, double quantile) {
+        return sorted[(int) (quantile * (sorted.length - 1))];
+    }
+
+    @Test
+    public void quantilesAreWithinTheRelativeAccuracy() {
+        long[] values = logNormal(1, 100_000);
+        DDSketch sketch = new DDSketch();
+        for (long value : values) {
+            sketch.record(value);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, sketch.getCount());
+        for (double quantile : QUANTILES) {
+            double expected = exact(values, quantile);
+            assertEquals("q" + quantile, expected, sketch.getQuantileNanos(quantile),
+                    expected * DDSketch.DEFAULT_RELATIVE_ACCURACY);
+        }
+        assertEquals(values[0], sketch.getQuantileNanos(0), 0d);
+        assertEquals(values[values.length - 1], sketch.getQuantileNanos(1), 0d);
+    }
+
+    @Test
+    public void collapsingKeepsTheHighQuantilesAccurate() {
+        DDSketch sketch = new DDSketch(0.01, 64);
+        long[] values = new long[10_000];
+        Random random = new Random(3);
+        for (int i = 0; i < values.length; i++) {
+            // 1 ns to 10 s, far more than 64 bins of 2 %.
+            values[i] = 1 + (long) Math.pow(10, 10 * random.nextDouble());
+            sketch.record(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, sketch.getCount());
+        double top = exact(values, 0.999);
+        assertEquals(top, sketch.getQuantileNanos(0.999), top * 0.01);
+        // Collapsed low values are reported in the lowest bin kept, never below the truth.
+        assertTrue(sketch.getQuantileNanos(0.01) >= exact(values, 0.01) * 0.99);
+    }
+
+    @Test
+    public void zeroAndNegativeDurations() {
+        DDSketch sketch = new DDSketch();
+        sketch.record(0L);
+        sketch.record(-3L);
+        sketch.record(1000L, 2L);
+        assertEquals(4, sketch.getCount());
+        assertEquals(0d, sketch.getQuantileNanos(0.25), 0d);
+        assertEquals(1000d, sketch.getQuantileNanos(0.9), 10d);
+        assertEquals(0.5, sketch.getMeanMicros(), 1e-9);
+    }
+
+    @Test
+    public void mergeIsTheSameAsRecordingEverything() {
+        long[] first = logNormal(11, 20_000);
+        long[] second = logNormal(12, 30_000);
+        DDSketch left = new DDSketch();
+        DDSketch right = new DDSketch();
+        DDSketch all = new DDSketch();
+        for (long value : first) {
+            left.record(value);
+            all.record(value);
+        }
+        for (long value : second) {
+            right.record(value);
+            all.record(value);
+        }
+        left.merge(right);
+        assertEquals(all.getCount(), left.getCount());
+        assertEquals(all.getMinMicros(), left.getMinMicros(), 0d);
+        assertEquals(all.getMaxMicros(), left.getMaxMicros(), 0d);
+        assertEquals(all.getMeanMicros(), left.getMeanMicros(), 1e-9);
+        for (double quantile : QUANTILES) {
+            assertEquals("q" + quantile, all.getQuantileNanos(quantile), left.getQuantileNanos(quantile), 0d);
+        }
+    }
+
+    @Test
+    public void mergingAnEmptySketchChangesNothing() {
+        DDSketch sketch = new DDSketch();
+        sketch.record(500L);
+        sketch.merge(new DDSketch());
+        assertEquals(1, sketch.getCount());
+        DDSketch empty = new DDSketch();
+        empty.merge(sketch);
+        assertEquals(500d, empty.getQuantileNanos(0.5), 0d);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sketchesOfAnotherAccuracyCannotBeMerged() {
+        DDSketch other = new DDSketch(0.02);
+        other.record(10L);
+        new DDSketch(0.01).merge(other);
+    }
+
+    @Test
+    public void writeAndReadBack() throws IOException {
+        DDSketch sketch = new DDSketch();
+        for (long value : logNormal(21, 5_000)) {
+            sketch.record(value);
+        }
+        sketch.record(0L);
+
+        DDSketch read = DDSketch.readFrom(new DataInputStream(new ByteArrayInputStream(bytesOf(sketch))));
+        assertEquals(sketch.getRelativeAccuracy(), read.getRelativeAccuracy(), 0d);
+        assertEquals(sketch.getCount(), read.getCount());
+        assertEquals(sketch.getMinMicros(), read.getMinMicros(), 0d);
+        assertEquals(sketch.getMaxMicros(), read.getMaxMicros(), 0d);
+        assertEquals(sketch.getMeanMicros(), read.getMeanMicros(), 0d);
+        for (double quantile : QUANTILES) {
+            assertEquals("q" + quantile, sketch.getQuantileNanos(quantile), read.getQuantileNanos(quantile), 0d);
+        }
+        // A sketch read back keeps recording and merging like the original.
+        read.record(1L);
+        read.merge(sketch);
+        assertEquals(2 * sketch.getCount() + 1, read.getCount());
+    }
+
+    @Test
+    public void emptySketchRoundTrip() throws IOException {
+        DDSketch read = DDSketch.readFrom(new DataInputStream(new ByteArrayInputStream(bytesOf(new DDSketch()))));
+        assertEquals(0, read.getCount());
+        assertEquals(0d, read.getQuantileNanos(0.5), 0d);
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownFormatIsRejected() throws IOException {
+        byte[] bytes = bytesOf(new DDSketch());
+        bytes[0] = 99;
+        DDSketch.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static byte[] bytesOf(DDSketch sketch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        sketch.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.ExecutionContext;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.TestMeasurements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Keys and counts of {@link LatencyAggregator}, fed through
+ * {@link LatencyAggregator#onMeasurements(com.microsoft.snippet.MeasurementBatch)}: tags against call
+ * sites, the key limit and weighted measurements.
+ */
+public class LatencyAggregatorTest {
+    private static final CallSite FEED = CallSite.of("com.example.Feed", "load", 12);
+    private static final CallSite BIND = CallSite.of("com.example.Feed", "bind", 40);
+    private static final long[] NO_SPLITS = new long[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    private static ExecutionContext at(CallSite callSite) {
+        return TestMeasurements.context(callSite, "worker");
+    }
+
+    private static Measurement capture(long start, long end, CallSite callSite) {
+        return TestMeasurements.capture(start, end, 1L, null, at(callSite));
+    }
+
+    private static Measurement token(int kind, long start, long end, String tag, CallSite callSite) {
+        return TestMeasurements.token(kind, start, end, 1L, tag, null, at(callSite), NO_SPLITS, NO_NAMES);
+    }
+
+    @Test
+    public void tagsAndCallSitesAreSeparateKeys() {
+        LatencyAggregator aggregator = new LatencyAggregator();
+        aggregator.onMeasurements(TestMeasurements.batch(
+                capture(0L, 1_000L, FEED),
+                token(Measurement.KIND_LOG_TOKEN, 0L, 2_000L, null, FEED),
+                token(Measurement.KIND_LOG_TOKEN, 0L, 5_000L, "feed_load", FEED),
+                // Abandoned tokens only measure their time to live.
+                token(Measurement.KIND_ABANDONED, 0L, 9_000L, "feed_load", FEED),
+                TestMeasurements.capture(0L, 7_000L, 1L, null, null)));
+
+        HistogramSnapshot callSite = aggregator.snapshot(FEED);
+        assertEquals(2, callSite.getCount());
+        assertEquals(2_000L, callSite.getMaxNanos());
+        HistogramSnapshot tag = aggregator.snapshot("feed_load");
+        assertEquals(1, tag.getCount());
+        assertEquals(5_000L, tag.getMaxNanos());
+        assertNull(aggregator.snapshot(BIND));
+        assertEquals(1, aggregator.snapshotTags().size());
+        assertEquals(1, aggregator.snapshotCallSites().size());
+        assertEquals(0, aggregator.getDroppedCount());
+    }
+
+    @Test
+    public void measurementsOfNewKeysBeyondTheLimitAreDropped() {
+        LatencyAggregator aggregator = new LatencyAggregator(2);
+        aggregator.onMeasurements(TestMeasurements.batch(
+                token(Measurement.KIND_LOG_TOKEN, 0L, 1_000L, "first", FEED),
+                capture(0L, 1_000L, FEED),
+                token(Measurement.KIND_LOG_TOKEN, 0L, 1_000L, "second", FEED),
+                capture(0L, 1_000L, BIND),
+                // Keys that already have a histogram are still recorded.
+                token(Measurement.KIND_LOG_TOKEN, 0L, 3_000L, "first", FEED)));
+
+        assertEquals(2, aggregator.getDroppedCount());
+        assertEquals(2, aggregator.snapshot("first").getCount());
+        assertNull(aggregator.snapshot("second"));
+        assertNull(aggregator.snapshot(BIND));
+
+        aggregator.clear();
+        aggregator.onMeasurements(TestMeasurements.batch(capture(0L, 1_000L, BIND)));
+        assertEquals(1, aggregator.snapshot(BIND).getCount());
+        assertEquals(2, aggregator.getDroppedCount());
+    }
+
+    @Test
+    public void weightedMeasurementsAreCountedAsTheirWeight() {
+        LatencyAggregator aggregator = new LatencyAggregator();
+        aggregator.onMeasurements(TestMeasurements.batch(
+                TestMeasurements.weighted(capture(0L, 1_000L, FEED), 4d),
+                // A weight below 1 still counts the measurement once.
+                TestMeasurements.weighted(capture(0L, 1_000L, BIND), 0.5d)));
+        assertEquals(4, aggregator.snapshot(FEED).getCount());
+        assertEquals(1, aggregator.snapshot(BIND).getCount());
+    }
+
+    @Test
+    public void fractionalWeightsAreRightOnAverage() {
+        LatencyAggregator aggregator = new LatencyAggregator();
+        int measurements = 2_000;
+        for (int i = 0; i < measurements; i++) {
+            long start = i * 10_000L;
+            Measurement measurement = TestMeasurements.weighted(capture(start, start + 1_000L + i, FEED), 2.5d);
+            long count = LatencyHistogram.countOf(measurement);
+            assertTrue(count == 2 || count == 3);
+            aggregator.onMeasurements(TestMeasurements.batch(measurement));
+        }
+        // 5000 on average, the standard deviation of the sum is about 22.
+        long count = aggregator.snapshot(FEED).getCount();
+        assertTrue(String.valueOf(count), Math.abs(count - 5_000) < 200);
+    }
+}
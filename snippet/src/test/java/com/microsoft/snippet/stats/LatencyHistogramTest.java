@@ -0,0 +1,112 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bucketing of {@link LatencyHistogram} and the percentiles of its {@link HistogramSnapshot}.
+ */
+public class LatencyHistogramTest {
+    // Half a bucket out of 64 sub-buckets per power of two, rounded up.
+    private static final double PRECISION = 0.016;
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue("Buckets go down at " + value, index >= previous);
+            long lower = LatencyHistogram.bucketLowerBound(index);
+            assertTrue("Value " + value + " below its bucket", lower <= value);
+            assertTrue("Value " + value + " above its bucket", value < lower + LatencyHistogram.bucketWidth(index));
+            previous = index;
+        }
+    }
+
+    @Test
+    public void bucketWidthIsWithinPrecision() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long value = LatencyHistogram.SUB_BUCKET_COUNT + (random.nextLong() >>> 25);
+            int index = LatencyHistogram.bucketIndex(value);
+            double width = LatencyHistogram.bucketWidth(index);
+            assertTrue("Bucket too wide for " + value, width / LatencyHistogram.bucketLowerBound(index) <= 1d / 64);
+        }
+    }
+
+    @Test
+    public void valuesBeyondTheRangeGoToTheLastBucket() {
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(1L << 45));
+    }
+
+    @Test
+    public void percentilesOfLogNormalDurationsAreWithinPrecision() {
+        Random random = new Random(7);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[200_000];
+        for (int i = 0; i < values.length; i++) {
+            // Median around 1 ms with a long tail, like real latencies.
+            values[i] = (long) Math.exp(Math.log(1_000_000) + random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[0], snapshot.getMinNanos());
+        assertEquals(values[values.length - 1], snapshot.getMaxNanos());
+        for (double percentile : new double[]{1, 10, 50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = snapshot.getPercentileNanos(percentile);
+            assertEquals("p" + percentile, 1d, (double) estimate / exact, PRECISION);
+        }
+        assertEquals(values[values.length - 1], snapshot.getPercentileNanos(100));
+    }
+
+    @Test
+    public void percentilesStayWithinTheRecordedRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000_003L);
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1_000_003L, snapshot.getP50Nanos());
+        assertEquals(1_000_003L, snapshot.getP999Nanos());
+    }
+
+    @Test
+    public void countsAndNegativeDurations() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5L);
+        histogram.record(100L, 3L);
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(4, snapshot.getCount());
+        assertEquals(0, snapshot.getMinNanos());
+        assertEquals(75d, snapshot.getMeanNanos(), 0d);
+        assertEquals(100L, snapshot.getP50Nanos());
+    }
+
+    @Test
+    public void emptyAndResetHistograms() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getP99Nanos());
+        histogram.record(10L);
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getPercentileNanos(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileAbove100IsRejected() {
+        new LatencyHistogram().snapshot().getPercentileNanos(100.1);
+    }
+}
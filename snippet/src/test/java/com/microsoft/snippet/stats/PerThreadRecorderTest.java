@@ -0,0 +1,153 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Buffer flips of {@link PerThreadRecorder}: every recorded duration reaches the aggregate exactly
+ * once, whether it is drained by the reader or flushed by its own thread.
+ */
+public class PerThreadRecorderTest {
+
+    private static final class Totals implements PerThreadRecorder.Aggregate<String> {
+        final ConcurrentMap<String, AtomicLong> mCounts = new ConcurrentHashMap<>();
+        final AtomicLong mNanos = new AtomicLong();
+
+        @Override
+        public void record(String key, long nanos, long count) {
+            AtomicLong counter = mCounts.get(key);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = mCounts.putIfAbsent(key, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.addAndGet(count);
+            mNanos.addAndGet(nanos * count);
+        }
+
+        long count(String key) {
+            AtomicLong counter = mCounts.get(key);
+            return counter != null ? counter.get() : 0;
+        }
+    }
+
+    @Test
+    public void durationsReachTheAggregateOnDrain() {
+        Totals totals = new Totals();
+        PerThreadRecorder<String> recorder = new PerThreadRecorder<>(totals, 16);
+        recorder.record("a", 10L, 1L);
+        recorder.record("b", 20L, 3L);
+        assertEquals(0, totals.count("a"));
+
+        recorder.drain();
+        assertEquals(1, totals.count("a"));
+        assertEquals(3, totals.count("b"));
+        assertEquals(70L, totals.mNanos.get());
+
+        // Nothing is drained twice, the flipped buffer was emptied.
+        recorder.drain();
+        recorder.drain();
+        assertEquals(1, totals.count("a"));
+        assertEquals(70L, totals.mNanos.get());
+    }
+
+    @Test
+    public void recordsAfterAFlipGoToTheOtherBuffer() {
+        Totals totals = new Totals();
+        PerThreadRecorder<String> recorder = new PerThreadRecorder<>(totals, 16);
+        for (int round = 1; round <= 5; round++) {
+            for (int i = 0; i < round; i++) {
+                recorder.record("a", 1L, 1L);
+            }
+            recorder.drain();
+            assertEquals(round * (round + 1) / 2, totals.count("a"));
+        }
+    }
+
+    @Test
+    public void fullBufferIsFlushedByItsThread() {
+        Totals totals = new Totals();
+        PerThreadRecorder<String> recorder = new PerThreadRecorder<>(totals, 4);
+        for (int i = 0; i < 9; i++) {
+            recorder.record("a", 1L, 1L);
+        }
+        assertEquals(8, totals.count("a"));
+        recorder.drain();
+        assertEquals(9, totals.count("a"));
+    }
+
+    @Test
+    public void bufferOfAFinishedThreadIsDrained() throws InterruptedException {
+        final Totals totals = new Totals();
+        final PerThreadRecorder<String> recorder = new PerThreadRecorder<>(totals, 16);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recorder.record("worker", 5L, 1L);
+                recorder.record("worker", 5L, 1L);
+            }
+        });
+        thread.start();
+        thread.join();
+        recorder.drain();
+        assertEquals(2, totals.count("worker"));
+        recorder.drain();
+        assertEquals(2, totals.count("worker"));
+    }
+
+    @Test
+    public void concurrentWritersAndDrainsLoseNothing() throws InterruptedException {
+        final Totals totals = new Totals();
+        final PerThreadRecorder<String> recorder = new PerThreadRecorder<>(totals, 64);
+        final int threads = 4;
+        final int records = 200_000;
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String key = "thread-" + t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < records; i++) {
+                            recorder.record(key, 1L, 1L);
+                        }
+                    } catch (Throwable e) {
+                        failed.set(true);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        boolean running = true;
+        while (running) {
+            recorder.drain();
+            running = false;
+            for (Thread writer : writers) {
+                running |= writer.isAlive();
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        recorder.drain();
+
+        assertFalse(failed.get());
+        for (int t = 0; t < threads; t++) {
+            assertEquals("thread-" + t, records, totals.count("thread-" + t));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.FakeTimeSource;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.Snippet;
+import com.microsoft.snippet.TestMeasurements;
+import com.microsoft.snippet.TimeSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Windows of {@link RollingWindowAggregator}, fed through
+ * {@link RollingWindowAggregator#onMeasurements(com.microsoft.snippet.MeasurementBatch)} and read
+ * against a {@link FakeTimeSource}: which window a measurement is in, tags against call sites, the
+ * key limit and weights.
+ */
+public class RollingWindowAggregatorTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long START = 1_000 * SECOND;
+    private static final CallSite FEED = CallSite.of("com.example.Feed", "load", 12);
+    private static final CallSite BIND = CallSite.of("com.example.Feed", "bind", 40);
+    private static final long[] NO_SPLITS = new long[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    private final FakeTimeSource mTime = new FakeTimeSource(START, 0L);
+    private TimeSource mSaved;
+
+    @Before
+    public void setUp() {
+        mSaved = Snippet.getTimeSource();
+        Snippet.setTimeSource(mTime);
+    }
+
+    @After
+    public void tearDown() {
+        Snippet.setTimeSource(mSaved);
+    }
+
+    /**
+     * Measurement of a second that ends now.
+     */
+    private Measurement capture(CallSite callSite) {
+        long end = mTime.nanoTime();
+        return TestMeasurements.capture(end - SECOND, end, 1L, null, TestMeasurements.context(callSite, "worker"));
+    }
+
+    private Measurement token(int kind, String tag) {
+        long end = mTime.nanoTime();
+        return TestMeasurements.token(kind, end - SECOND, end, 1L, tag, null,
+                TestMeasurements.context(FEED, "worker"), NO_SPLITS, NO_NAMES);
+    }
+
+    private static long count(RollingWindowAggregator aggregator, CallSite callSite, int window) {
+        return aggregator.snapshot(callSite, window).getCount();
+    }
+
+    @Test
+    public void measurementsLeaveTheWindowsByTheirEndTime() {
+        RollingWindowAggregator aggregator = new RollingWindowAggregator();
+        aggregator.onMeasurements(TestMeasurements.batch(capture(FEED)));
+        assertEquals(1, count(aggregator, FEED, RollingWindowAggregator.WINDOW_10_SECONDS));
+
+        mTime.advance(30, TimeUnit.SECONDS);
+        aggregator.onMeasurements(TestMeasurements.batch(capture(FEED)));
+        assertEquals(1, count(aggregator, FEED, RollingWindowAggregator.WINDOW_10_SECONDS));
+        assertEquals(2, count(aggregator, FEED, RollingWindowAggregator.WINDOW_1_MINUTE));
+
+        mTime.advance(2, TimeUnit.MINUTES);
+        assertEquals(0, count(aggregator, FEED, RollingWindowAggregator.WINDOW_10_SECONDS));
+        assertEquals(0, count(aggregator, FEED, RollingWindowAggregator.WINDOW_1_MINUTE));
+        assertEquals(2, count(aggregator, FEED, RollingWindowAggregator.WINDOW_5_MINUTES));
+    }
+
+    @Test
+    public void tagsAndCallSitesAreSeparateKeys() {
+        RollingWindowAggregator aggregator = new RollingWindowAggregator();
+        aggregator.onMeasurements(TestMeasurements.batch(
+                capture(FEED),
+                token(Measurement.KIND_LOG_TOKEN, null),
+                token(Measurement.KIND_LOG_TOKEN, "feed_load"),
+                token(Measurement.KIND_ABANDONED, "feed_load"),
+                TestMeasurements.capture(0L, 1L, 1L, null, null)));
+        int window = RollingWindowAggregator.WINDOW_1_MINUTE;
+        assertEquals(2, aggregator.snapshot(FEED, window).getCount());
+        assertEquals(1, aggregator.snapshot("feed_load", window).getCount());
+        assertNull(aggregator.snapshot(BIND, window));
+        assertEquals(1, aggregator.snapshotTags(window).size());
+        assertEquals(1, aggregator.snapshotCallSites(window).size());
+    }
+
+    @Test
+    public void measurementsOfNewKeysBeyondTheLimitAreDropped() {
+        RollingWindowAggregator aggregator = new RollingWindowAggregator(2);
+        aggregator.onMeasurements(TestMeasurements.batch(
+                capture(FEED),
+                token(Measurement.KIND_LOG_TOKEN, "feed_load"),
+                capture(BIND),
+                token(Measurement.KIND_LOG_TOKEN, "bind"),
+                capture(FEED)));
+        int window = RollingWindowAggregator.WINDOW_10_SECONDS;
+        assertEquals(2, aggregator.getDroppedCount());
+        assertEquals(2, aggregator.snapshot(FEED, window).getCount());
+        assertNull(aggregator.snapshot(BIND, window));
+        assertNull(aggregator.snapshot("bind", window));
+
+        aggregator.clear();
+        aggregator.onMeasurements(TestMeasurements.batch(capture(BIND)));
+        assertEquals(1, aggregator.snapshot(BIND, window).getCount());
+    }
+
+    @Test
+    public void weightedMeasurementsAreCountedAsTheirWeight() {
+        RollingWindowAggregator aggregator = new RollingWindowAggregator();
+        aggregator.onMeasurements(TestMeasurements.batch(
+                TestMeasurements.weighted(capture(FEED), 5d),
+                TestMeasurements.weighted(capture(BIND), 0.1d)));
+        for (int window = 0; window < 3; window++) {
+            assertEquals(5, aggregator.snapshot(FEED, window).getCount());
+            assertEquals(1, aggregator.snapshot(BIND, window).getCount());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownWindowIsRejected() {
+        new RollingWindowAggregator().snapshot(FEED, 3);
+    }
+}
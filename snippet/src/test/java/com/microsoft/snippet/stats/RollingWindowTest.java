@@ -0,0 +1,85 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rotation of the {@link RollingWindow} ring: buckets leave the window as time moves on and are
+ * cleared when their slot comes around again.
+ */
+public class RollingWindowTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void snapshotCoversTheLastBuckets() {
+        RollingWindow window = new RollingWindow(4, SECOND);
+        assertEquals(4 * SECOND, window.getWindowNanos());
+        for (int second = 0; second < 4; second++) {
+            window.record(second * SECOND, 1000L);
+        }
+        assertEquals(4, window.snapshot(3 * SECOND).getCount());
+        // One second later the oldest bucket is out of the window, even if nothing was recorded.
+        assertEquals(3, window.snapshot(4 * SECOND).getCount());
+        assertEquals(1, window.snapshot(6 * SECOND + SECOND / 2).getCount());
+        assertEquals(0, window.snapshot(7 * SECOND).getCount());
+    }
+
+    @Test
+    public void bucketIsClearedWhenItsSlotComesAround() {
+        RollingWindow window = new RollingWindow(4, SECOND);
+        window.record(0L, 1000L, 5L);
+        window.record(SECOND, 2000L);
+        // Slot 4 reuses the bucket of slot 0.
+        window.record(4 * SECOND, 3000L);
+        HistogramSnapshot snapshot = window.snapshot(4 * SECOND);
+        assertEquals(2, snapshot.getCount());
+        assertEquals(2000L, snapshot.getMinNanos());
+        assertEquals(3000L, snapshot.getMaxNanos());
+    }
+
+    @Test
+    public void lateDurationsOfAReusedBucketAreIgnored() {
+        RollingWindow window = new RollingWindow(2, SECOND);
+        window.record(2 * SECOND, 1000L);
+        // Slot 0 maps to the same bucket, which already counts slot 2.
+        window.record(0L, 9000L);
+        HistogramSnapshot snapshot = window.snapshot(2 * SECOND);
+        assertEquals(1, snapshot.getCount());
+        assertEquals(1000L, snapshot.getMaxNanos());
+    }
+
+    @Test
+    public void negativeTimesAreRoundedDown() {
+        RollingWindow window = new RollingWindow(2, SECOND);
+        window.record(-1L, 1000L);
+        window.record(-SECOND, 1000L);
+        window.record(0L, 1000L);
+        assertEquals(3, window.snapshot(0L).getCount());
+        assertEquals(1, window.snapshot(SECOND).getCount());
+    }
+
+    @Test
+    public void percentilesAreWithinTheCoarsePrecision() {
+        RollingWindow window = new RollingWindow(10, SECOND);
+        for (long value = 1; value <= 10_000; value++) {
+            window.record(0L, value * 1000L);
+        }
+        HistogramSnapshot snapshot = window.snapshot(0L);
+        assertEquals(10_000, snapshot.getCount());
+        double p50 = snapshot.getP50Nanos();
+        double p99 = snapshot.getP99Nanos();
+        assertEquals(1d, p50 / 5_000_000L, 0.125);
+        assertEquals(1d, p99 / 9_900_000L, 0.125);
+        assertEquals(10_000_000L, snapshot.getPercentileNanos(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bucketDurationMustBePositive() {
+        new RollingWindow(4, 0L);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright © Microsoft Corporation. All rights reserved.
+ */
+
+package com.microsoft.snippet.stats;
+
+import com.microsoft.snippet.CallSite;
+import com.microsoft.snippet.Measurement;
+import com.microsoft.snippet.TestMeasurements;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sketches of {@link TagSketchAggregator}, fed through
+ * {@link TagSketchAggregator#onMeasurements(com.microsoft.snippet.MeasurementBatch)}: what is keyed,
+ * the tag limit, weights, draining under load and merging saved sketches.
+ */
+public class TagSketchAggregatorTest {
+    private static final CallSite FEED = CallSite.of("com.example.Feed", "load", 12);
+    private static final long[] NO_SPLITS = new long[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    private static Measurement token(int kind, long start, long end, String tag) {
+        return TestMeasurements.token(kind, start, end, 1L, tag, null, TestMeasurements.context(FEED, "worker"),
+                NO_SPLITS, NO_NAMES);
+    }
+
+    private static Measurement tagged(String tag, long duration) {
+        return token(Measurement.KIND_LOG_TOKEN, 0L, duration, tag);
+    }
+
+    private static long count(Map<String, DDSketch> sketches, String tag) {
+        DDSketch sketch = sketches.get(tag);
+        return sketch != null ? sketch.getCount() : 0L;
+    }
+
+    @Test
+    public void onlyTaggedTokensAreRecorded() {
+        TagSketchAggregator aggregator = new TagSketchAggregator();
+        aggregator.onMeasurements(TestMeasurements.batch(
+                tagged("request-1", 1_000L),
+                token(Measurement.KIND_LOG_TOKEN, 0L, 2_000L, null),
+                token(Measurement.KIND_ABANDONED, 0L, 9_000L, "request-1"),
+                TestMeasurements.capture(0L, 3_000L, 1L, "request-1", TestMeasurements.context(FEED, "worker"))));
+        Map<String, DDSketch> sketches = aggregator.getSketches();
+        assertEquals(1, sketches.size());
+        assertEquals(1, count(sketches, "request-1"));
+        assertEquals(0, aggregator.getDroppedCount());
+    }
+
+    @Test
+    public void drainingFreesTheTagsBeyondTheLimit() {
+        TagSketchAggregator aggregator = new TagSketchAggregator(DDSketch.DEFAULT_RELATIVE_ACCURACY, 2);
+        aggregator.onMeasurements(TestMeasurements.batch(tagged("a", 1_000L), tagged("b", 1_000L),
+                tagged("c", 1_000L), tagged("a", 2_000L)));
+        assertEquals(1, aggregator.getDroppedCount());
+        assertNull(aggregator.getSketch("c"));
+        assertEquals(2, aggregator.getSketch("a").getCount());
+
+        Map<String, DDSketch> drained = aggregator.drainSketches();
+        assertEquals(2, drained.size());
+        assertTrue(aggregator.getSketches().isEmpty());
+        aggregator.onMeasurements(TestMeasurements.batch(tagged("c", 1_000L)));
+        assertEquals(1, aggregator.getSketch("c").getCount());
+        assertEquals(1, aggregator.getDroppedCount());
+    }
+
+    @Test
+    public void weightedTokensAreCountedAsTheirWeight() {
+        TagSketchAggregator aggregator = new TagSketchAggregator();
+        aggregator.onMeasurements(TestMeasurements.batch(
+                TestMeasurements.weighted(tagged("request", 1_000L), 3d),
+                TestMeasurements.weighted(tagged("request", 2_000L), 0.25d)));
+        assertEquals(4, aggregator.getSketch("request").getCount());
+    }
+
+    @Test
+    public void drainingWhileRecordingLosesNothing() throws InterruptedException {
+        final TagSketchAggregator aggregator = new TagSketchAggregator();
+        final int measurements = 50_000;
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < measurements; i++) {
+                    aggregator.onMeasurements(TestMeasurements.batch(tagged("request-" + (i % 8), 1_000L + i)));
+                }
+                done.set(true);
+            }
+        });
+        reporter.start();
+        long drained = 0;
+        while (!done.get()) {
+            for (DDSketch sketch : aggregator.drainSketches().values()) {
+                drained += sketch.getCount();
+            }
+        }
+        reporter.join();
+        // The last buffered durations are only merged by the next query.
+        for (DDSketch sketch : aggregator.drainSketches().values()) {
+            drained += sketch.getCount();
+        }
+        assertEquals(measurements, drained);
+    }
+
+    @Test
+    public void savedSketchesAreMergedIntoALaterSession() throws IOException {
+        TagSketchAggregator previous = new TagSketchAggregator();
+        previous.onMeasurements(TestMeasurements.batch(tagged("request", 1_000L), tagged("request", 2_000L)));
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        previous.drainTo(saved);
+        assertTrue(previous.getSketches().isEmpty());
+
+        TagSketchAggregator current = new TagSketchAggregator();
+        current.onMeasurements(TestMeasurements.batch(tagged("request", 3_000L)));
+        current.mergeFrom(new ByteArrayInputStream(saved.toByteArray()));
+        DDSketch merged = current.getSketch("request");
+        assertEquals(3, merged.getCount());
+        assertEquals(3d, merged.getMaxMicros(), 0.1d);
+    }
+
+    @Test
+    public void sketchesOfAnotherAccuracyAreRejected() throws IOException {
+        TagSketchAggregator coarse = new TagSketchAggregator(0.05d, TagSketchAggregator.DEFAULT_MAX_TAGS);
+        coarse.onMeasurements(TestMeasurements.batch(tagged("request", 1_000L)));
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        coarse.writeTo(saved);
+
+        TagSketchAggregator fine = new TagSketchAggregator(0.01d, 1);
+        try {
+            fine.mergeFrom(new ByteArrayInputStream(saved.toByteArray()));
+            fail("Sketches of accuracy 0.05 merged into an aggregator of accuracy 0.01");
+        } catch (IllegalArgumentException expected) {
+            // The tag is not taken by an empty sketch.
+        }
+        assertTrue(fine.getSketches().isEmpty());
+        fine.onMeasurements(TestMeasurements.batch(tagged("other", 1_000L)));
+        assertEquals(1, fine.getSketch("other").getCount());
+        assertEquals(0, fine.getDroppedCount());
+    }
+}